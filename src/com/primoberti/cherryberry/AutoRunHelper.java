@@ -0,0 +1,199 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry;
+
+import android.app.AlarmManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.primoberti.cherryberry.diagnostics.WakeupStats;
+import com.primoberti.cherryberry.engine.SessionPlan;
+
+/**
+ * Keeps the auto-run {@link SessionPlan}, if any, and its wakeup alarm.
+ *
+ * While a plan runs there is exactly one pending alarm, set for the next
+ * boundary between periods. {@link NotificationService} rolls it forward
+ * every time it goes off, so the device only wakes up at the boundaries.
+ *
+ * Must be used from the main thread.
+ *
+ * @author berti
+ */
+public class AutoRunHelper {
+
+	/* Public constants ************************ */
+
+	public final static String PLAN_BOUNDARY = "com.primoberti.cherryberry.PLAN_BOUNDARY";
+
+	/** Pomodoros in a plan when long breaks are disabled. */
+	public final static int DEFAULT_POMODOROS = 4;
+
+	/* Private constants *********************** */
+
+	private final static String SHARED_PREFS = "auto_run_plan";
+
+	private final static String PREF_START = "start";
+
+	private final static String PREF_POMODOROS = "pomodoros";
+
+	private final static String PREF_POMODORO_DURATION = "pomodoroDuration";
+
+	private final static String PREF_BREAK_DURATION = "breakDuration";
+
+	private final static String PREF_LONG_BREAK_DURATION = "longBreakDuration";
+
+	private final static String PREF_LONG_BREAK_INTERVAL = "longBreakInterval";
+
+	private final static String PREF_COMPLETED_POMODOROS = "completedPomodoros";
+
+	/* Private static fields ******************* */
+
+	private static SessionPlan plan;
+
+	private static boolean loaded;
+
+	/* Public static methods ******************* */
+
+	/**
+	 * Creates a plan starting at the given time with the current settings,
+	 * running until the next long break.
+	 *
+	 * @param completedPomodoros pomodoros completed since the last long break
+	 * @return the plan, or null if a duration in the settings isn't positive
+	 */
+	public static SessionPlan createPlan(Context context, long start,
+			int completedPomodoros) {
+		Settings settings = PreferencesHelper.getSettings(context);
+		if (settings.getPomodoroDuration() <= 0
+				|| settings.getBreakDuration() <= 0
+				|| settings.getLongBreakDuration() <= 0) {
+			return null;
+		}
+
+		int interval = settings.getLongBreakInterval();
+		int pomodoros = interval > completedPomodoros ? interval
+				- completedPomodoros : DEFAULT_POMODOROS;
+
+		return new SessionPlan(start, pomodoros,
+				settings.getPomodoroDuration(), settings.getBreakDuration(),
+				settings.getLongBreakDuration(), interval, completedPomodoros);
+	}
+
+	/**
+	 * Returns the plan being run, or null if there is none.
+	 */
+	public static SessionPlan getPlan(Context context) {
+		if (!loaded) {
+			plan = load(context);
+			loaded = true;
+		}
+		return plan;
+	}
+
+	/**
+	 * Saves the plan and sets the alarm for its first boundary.
+	 */
+	public static void start(Context context, SessionPlan plan) {
+		AutoRunHelper.plan = plan;
+		loaded = true;
+
+		getPreferences(context).edit()
+				.putLong(PREF_START, plan.getStart())
+				.putInt(PREF_POMODOROS, plan.getPomodoros())
+				.putLong(PREF_POMODORO_DURATION, plan.getPomodoroDuration())
+				.putLong(PREF_BREAK_DURATION, plan.getBreakDuration())
+				.putLong(PREF_LONG_BREAK_DURATION, plan.getLongBreakDuration())
+				.putInt(PREF_LONG_BREAK_INTERVAL, plan.getLongBreakInterval())
+				.putInt(PREF_COMPLETED_POMODOROS, plan.getCompletedPomodoros())
+				.commit();
+
+		scheduleNextAlarm(context, System.currentTimeMillis());
+	}
+
+	/**
+	 * Sets the alarm for the first boundary after the given time, replacing
+	 * the pending one.
+	 *
+	 * @return false if the plan is over, in which case no alarm is set
+	 */
+	public static boolean scheduleNextAlarm(Context context, long now) {
+		SessionPlan plan = getPlan(context);
+		long boundary = plan != null ? plan.getNextBoundary(now) : -1;
+		if (boundary < 0) {
+			return false;
+		}
+
+		getAlarmManager(context).set(AlarmManager.RTC_WAKEUP, boundary,
+				NotificationFactory.getInstance(context).getAlarmIntent(
+						PLAN_BOUNDARY));
+		WakeupStats.getInstance(context).onAlarmSet(PLAN_BOUNDARY, boundary);
+		return true;
+	}
+
+	/**
+	 * Forgets the plan and cancels its alarm.
+	 */
+	public static void clear(Context context) {
+		plan = null;
+		loaded = true;
+
+		getPreferences(context).edit().clear().commit();
+		getAlarmManager(context).cancel(
+				NotificationFactory.getInstance(context).getAlarmIntent(
+						PLAN_BOUNDARY));
+		WakeupStats.getInstance(context).onAlarmCancelled(PLAN_BOUNDARY);
+	}
+
+	/* Private static methods ****************** */
+
+	private static SessionPlan load(Context context) {
+		SharedPreferences preferences = getPreferences(context);
+		if (!preferences.contains(PREF_START)) {
+			return null;
+		}
+
+		try {
+			return new SessionPlan(preferences.getLong(PREF_START, 0),
+					preferences.getInt(PREF_POMODOROS, 0),
+					preferences.getLong(PREF_POMODORO_DURATION, 0),
+					preferences.getLong(PREF_BREAK_DURATION, 0),
+					preferences.getLong(PREF_LONG_BREAK_DURATION, 0),
+					preferences.getInt(PREF_LONG_BREAK_INTERVAL, 0),
+					preferences.getInt(PREF_COMPLETED_POMODOROS, 0));
+		}
+		catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private static SharedPreferences getPreferences(Context context) {
+		return context.getSharedPreferences(SHARED_PREFS, Context.MODE_PRIVATE);
+	}
+
+	private static AlarmManager getAlarmManager(Context context) {
+		return (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+	}
+
+}
@@ -23,6 +23,15 @@
 
 package com.primoberti.cherryberry;
 
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Locale;
+
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
@@ -30,19 +39,38 @@ import android.content.ComponentName;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.content.pm.ApplicationInfo;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.IBinder;
-import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.view.View.OnFocusChangeListener;
+import android.view.ViewTreeObserver;
+import android.widget.AdapterView;
+import android.widget.AdapterView.OnItemClickListener;
+import android.widget.AutoCompleteTextView;
 import android.widget.Button;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.primoberti.cherryberry.PomodoroTimerService.LocalBinder;
+import com.primoberti.cherryberry.backup.AppBackup;
+import com.primoberti.cherryberry.backup.Backup;
+import com.primoberti.cherryberry.diagnostics.StartupTrace;
+import com.primoberti.cherryberry.diagnostics.StartupTrace.Phase;
+import com.primoberti.cherryberry.engine.EventLog;
+import com.primoberti.cherryberry.engine.PomodoroEngine;
+import com.primoberti.cherryberry.history.Session.Interruption;
+import com.primoberti.cherryberry.history.SessionExporter;
+import com.primoberti.cherryberry.history.SessionStore;
+import com.primoberti.cherryberry.tasks.Task;
+import com.primoberti.cherryberry.tasks.TaskStore;
 
 public class CherryBerryActivity extends Activity {
 
@@ -54,9 +82,18 @@ public class CherryBerryActivity extends Activity {
 
 	private ServiceConnection timerServiceConnection;
 
+	private final PomodoroTimerListener timerListener = new MyPomodoroTimerListener();
+
 	private TextView statusTextView;
 
-	private TextView timerTextView;
+	private CountdownView countdownView;
+
+	private AutoCompleteTextView taskTextView;
+
+	/** Task last picked from the suggestions, or null. */
+	private Task selectedTask;
+
+	private StartupTrace startupTrace;
 
 	/* Private constants *********************** */
 
@@ -66,6 +103,8 @@ public class CherryBerryActivity extends Activity {
 
 	private final static int SHOW_SETTINGS = 0;
 
+	private final static int PICK_IMPORT_FILE = 1;
+
 	/* Public methods ************************** */
 
 	/** Called when the activity is first created. */
@@ -73,16 +112,47 @@ public class CherryBerryActivity extends Activity {
 	public void onCreate(Bundle savedInstanceState) {
 		Log.d(TAG, "onCreate");
 
+		startupTrace = StartupTrace.getInstance(this);
+		startupTrace.begin();
+
 		super.onCreate(savedInstanceState);
-		setContentView(R.layout.main);
 
 		// Load the default values for the user settings
-		PreferenceManager.setDefaultValues(this, R.xml.settings, false);
+		PreferencesHelper.applyDefaults(this);
+		startupTrace.mark(Phase.DEFAULTS);
+
+		setContentView(R.layout.main);
 
 		timerServiceConnection = new PomodoroTimerServiceConnector();
 
 		statusTextView = (TextView) findViewById(R.id.statusTextView);
-		timerTextView = (TextView) findViewById(R.id.timerTextView);
+		countdownView = (CountdownView) findViewById(R.id.countdownView);
+		// Frame times are only meant for debug builds
+		boolean debuggable = (getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+		countdownView.setDebugOverlay(debuggable);
+
+		final TaskStore taskStore = TaskStore.getInstance(this);
+		final TaskAdapter taskAdapter = new TaskAdapter(this, taskStore);
+		taskTextView = (AutoCompleteTextView) findViewById(R.id.taskTextView);
+		taskTextView.setAdapter(taskAdapter);
+		taskTextView.setOnFocusChangeListener(new OnFocusChangeListener() {
+
+			@Override
+			public void onFocusChange(View v, boolean hasFocus) {
+				// Load the tasks while the user starts typing
+				if (hasFocus) {
+					taskStore.prefetch();
+				}
+			}
+		});
+		taskTextView.setOnItemClickListener(new OnItemClickListener() {
+
+			@Override
+			public void onItemClick(AdapterView<?> parent, View view,
+					int position, long id) {
+				selectedTask = taskAdapter.getItem(position);
+			}
+		});
 
 		// Show current pomodoro duration preference by default
 		updateTimer(PreferencesHelper.getPomodoroDuration(this));
@@ -104,6 +174,31 @@ public class CherryBerryActivity extends Activity {
 				onStopClick();
 			}
 		});
+
+		button = (Button) findViewById(R.id.internalInterruptionButton);
+		button.setOnClickListener(new OnClickListener() {
+
+			@Override
+			public void onClick(View v) {
+				onInterruptionClick(Interruption.INTERNAL);
+			}
+		});
+
+		button = (Button) findViewById(R.id.externalInterruptionButton);
+		button.setOnClickListener(new OnClickListener() {
+
+			@Override
+			public void onClick(View v) {
+				onInterruptionClick(Interruption.EXTERNAL);
+			}
+		});
+		startupTrace.mark(Phase.LAYOUT);
+
+		// Don't wait for the service to show the timer
+		showSnapshot();
+		startupTrace.mark(Phase.SNAPSHOT);
+
+		traceFirstFrame();
 	}
 
 	@Override
@@ -119,7 +214,10 @@ public class CherryBerryActivity extends Activity {
 	protected void onStop() {
 		Log.d(TAG, "onStop");
 
-		// TODO cancel timer?
+		// Let the timer tick slowly while nobody is watching
+		if (timerService != null) {
+			timerService.removeListener(timerListener);
+		}
 		unbindService(timerServiceConnection);
 		timerService = null;
 		timerServiceBound = false;
@@ -162,12 +260,20 @@ public class CherryBerryActivity extends Activity {
 		Log.d(TAG, "onResume");
 
 		super.onResume();
+
+		// The task field is hidden until there are tasks to pick from
+		new TaskCheckTask().execute();
 	}
 
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
 		MenuInflater inflater = getMenuInflater();
 		inflater.inflate(R.menu.main_menu, menu);
+
+		// The wakeup stats are only meant for debug builds
+		boolean debuggable = (getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+		menu.findItem(R.id.wakeup_stats).setVisible(debuggable);
+
 		return true;
 	}
 
@@ -180,6 +286,34 @@ public class CherryBerryActivity extends Activity {
 		case R.id.settings:
 			showSettings();
 			return true;
+		case R.id.export_history:
+			showExportDialog();
+			return true;
+		case R.id.import_history:
+			showImportPicker();
+			return true;
+		case R.id.backup:
+			new BackupTask().execute();
+			return true;
+		case R.id.restore_backup:
+			showRestoreDialog();
+			return true;
+		case R.id.wakeup_stats:
+			Intent intent = new Intent(this, WakeupStatsActivity.class);
+			intent.putExtra(WakeupStatsActivity.EXTRA_FRAME_COUNT,
+					countdownView.getFrameCount());
+			intent.putExtra(WakeupStatsActivity.EXTRA_JANKY_FRAME_COUNT,
+					countdownView.getJankyFrameCount());
+			intent.putExtra(WakeupStatsActivity.EXTRA_P99_FRAME_TIME,
+					countdownView.getP99FrameTime());
+			startActivity(intent);
+			return true;
+		case R.id.auto_run:
+			if (timerServiceBound && !timerService.startPlan()) {
+				Toast.makeText(this, R.string.toast_plan_not_started,
+						Toast.LENGTH_LONG).show();
+			}
+			return true;
 		default:
 			return super.onOptionsItemSelected(item);
 		}
@@ -220,6 +354,15 @@ public class CherryBerryActivity extends Activity {
 				updateTimer(PreferencesHelper.getPomodoroDuration(this));
 			}
 		}
+		else if (requestCode == PICK_IMPORT_FILE && resultCode == RESULT_OK
+				&& data != null && data.getData() != null) {
+			Intent intent = new Intent(this, ImportService.class);
+			intent.setData(data.getData());
+			startService(intent);
+
+			Toast.makeText(this, R.string.toast_history_import_started,
+					Toast.LENGTH_SHORT).show();
+		}
 	}
 
 	/* Private methods ************************* */
@@ -234,12 +377,14 @@ public class CherryBerryActivity extends Activity {
 	}
 
 	private void checkPomodoroTimerServiceStatus() {
-		PomodoroTimerService.Status status = timerService.getStatus();
+		PomodoroEngine.Status status = timerService.getStatus();
+		showInterruptionButtons(status == PomodoroEngine.Status.POMODORO_RUNNING);
 		switch (status) {
 		case POMODORO_RUNNING:
 			disableStartButton();
 			statusTextView.setText(R.string.status_pomodoro_running);
-			updateTimer(timerService.getTimerEnd() - System.currentTimeMillis());
+			countdownView.start(timerService.getTimerStart(),
+					timerService.getTimerEnd());
 			break;
 		case POMODORO_FINISHED:
 			onPomodoroFinish();
@@ -247,18 +392,85 @@ public class CherryBerryActivity extends Activity {
 		case BREAK_RUNNING:
 			disableStartButton();
 			statusTextView.setText(R.string.status_break_running);
-			updateTimer(timerService.getTimerEnd() - System.currentTimeMillis());
+			countdownView.start(timerService.getTimerStart(),
+					timerService.getTimerEnd());
 			break;
 		case BREAK_FINISHED:
 			onBreakFinish();
 			break;
+		case IDLE:
+			// The snapshot shown at startup may be out of date
+			enableStartButton();
+			statusTextView.setText(R.string.status_idle);
+			updateTimer(PreferencesHelper.getPomodoroDuration(this));
+			break;
+		}
+	}
+
+	/**
+	 * Shows the last state saved by the timer service, which is corrected as
+	 * soon as the service is bound.
+	 */
+	private void showSnapshot() {
+		EventLog.State snapshot = PomodoroTimerService.readSnapshot(this);
+		if (snapshot == null) {
+			return;
 		}
+
+		switch (snapshot.getStatus()) {
+		case POMODORO_RUNNING:
+			disableStartButton();
+			showInterruptionButtons(true);
+			statusTextView.setText(R.string.status_pomodoro_running);
+			countdownView.start(snapshot.getTimerStart(),
+					snapshot.getTimerEnd());
+			break;
+		case POMODORO_FINISHED:
+			disableStartButton();
+			statusTextView.setText(R.string.status_pomodoro_finished);
+			updateTimer(0);
+			break;
+		case BREAK_RUNNING:
+			disableStartButton();
+			statusTextView.setText(R.string.status_break_running);
+			countdownView.start(snapshot.getTimerStart(),
+					snapshot.getTimerEnd());
+			break;
+		}
+	}
+
+	/**
+	 * Marks the first frame in the startup trace once it has been drawn.
+	 */
+	private void traceFirstFrame() {
+		final View decorView = getWindow().getDecorView();
+		decorView.getViewTreeObserver().addOnPreDrawListener(
+				new ViewTreeObserver.OnPreDrawListener() {
+
+					@Override
+					public boolean onPreDraw() {
+						decorView.getViewTreeObserver()
+								.removeOnPreDrawListener(this);
+						// Runs right after the frame being drawn
+						decorView.post(new Runnable() {
+
+							@Override
+							public void run() {
+								startupTrace.mark(Phase.FIRST_FRAME);
+							}
+						});
+						return true;
+					}
+				});
 	}
 
 	private void onStartClick() {
 		if (timerServiceBound) {
-			timerService.startPomodoro();
+			timerService.startPomodoro(getSelectedTaskId());
+			countdownView.start(timerService.getTimerStart(),
+					timerService.getTimerEnd());
 			disableStartButton();
+			showInterruptionButtons(true);
 
 			statusTextView.setText(R.string.status_pomodoro_running);
 		}
@@ -270,19 +482,44 @@ public class CherryBerryActivity extends Activity {
 		}
 		updateTimer(0);
 		enableStartButton();
+		showInterruptionButtons(false);
 
 		statusTextView.setText(R.string.status_idle);
 	}
 
-	private void updateTimer(long millis) {
-		long minutes = millis / 1000 / 60;
-		long seconds = millis / 1000 % 60;
+	private void onInterruptionClick(Interruption kind) {
+		if (timerServiceBound && timerService.recordInterruption(kind)) {
+			Toast.makeText(
+					this,
+					getString(R.string.toast_interruption_recorded,
+							timerService.getInterruptionCount()),
+					Toast.LENGTH_SHORT).show();
+		}
+	}
+
+	/**
+	 * Returns the id of the task picked from the suggestions, unless the text
+	 * has been edited since.
+	 */
+	private String getSelectedTaskId() {
+		if (selectedTask == null
+				|| !selectedTask.getTitle().equals(
+						taskTextView.getText().toString())) {
+			return null;
+		}
+		return selectedTask.getId();
+	}
 
-		timerTextView.setText(String.format("%d:%02d", minutes, seconds));
+	/**
+	 * Shows the given time without a running count down.
+	 */
+	private void updateTimer(long millis) {
+		countdownView.show(millis);
 	}
 
 	private void onPomodoroFinish() {
 		updateTimer(0);
+		showInterruptionButtons(false);
 
 		statusTextView.setText(R.string.status_pomodoro_finished);
 
@@ -296,14 +533,30 @@ public class CherryBerryActivity extends Activity {
 		statusTextView.setText(R.string.status_idle);
 	}
 
+	private void dismissPomodoroFinishedDialog() {
+		try {
+			dismissDialog(DIALOG_POMODORO_FINISHED);
+		}
+		catch (IllegalArgumentException e) {
+			// Not shown
+		}
+	}
+
 	private void enableStartButton() {
 		((Button) findViewById(R.id.startButton)).setEnabled(true);
 		((Button) findViewById(R.id.stopButton)).setEnabled(false);
+		taskTextView.setEnabled(true);
 	}
 
 	private void disableStartButton() {
 		((Button) findViewById(R.id.startButton)).setEnabled(false);
 		((Button) findViewById(R.id.stopButton)).setEnabled(true);
+		taskTextView.setEnabled(false);
+	}
+
+	private void showInterruptionButtons(boolean show) {
+		findViewById(R.id.interruptionLayout).setVisibility(
+				show ? View.VISIBLE : View.INVISIBLE);
 	}
 
 	private void showAboutDialog() {
@@ -328,6 +581,82 @@ public class CherryBerryActivity extends Activity {
 		startActivityForResult(intent, SHOW_SETTINGS);
 	}
 
+	private void showExportDialog() {
+		AlertDialog.Builder builder = new AlertDialog.Builder(this);
+		builder.setTitle(R.string.dialog_title_export_history);
+		builder.setItems(R.array.export_formats,
+				new DialogInterface.OnClickListener() {
+
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						new ExportTask(SessionExporter.Format.values()[which])
+								.execute();
+					}
+				});
+
+		AlertDialog dialog = builder.create();
+		dialog.show();
+	}
+
+	/**
+	 * Lets the user pick a CSV or JSON export to import into the history.
+	 */
+	private void showImportPicker() {
+		Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+		intent.setType("*/*");
+		intent.addCategory(Intent.CATEGORY_OPENABLE);
+		startActivityForResult(Intent.createChooser(intent,
+				getString(R.string.dialog_title_import_history)),
+				PICK_IMPORT_FILE);
+	}
+
+	/**
+	 * Lets the user pick one of the backups in the backup directory, newest
+	 * first, and restores it.
+	 */
+	private void showRestoreDialog() {
+		File directory = AppBackup.getDirectory(this);
+		final File[] files = directory.listFiles(new FilenameFilter() {
+
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(AppBackup.EXTENSION);
+			}
+		});
+		if (files == null || files.length == 0) {
+			Toast.makeText(this,
+					getString(R.string.toast_no_backups, directory.getPath()),
+					Toast.LENGTH_LONG).show();
+			return;
+		}
+
+		Arrays.sort(files, new Comparator<File>() {
+
+			@Override
+			public int compare(File lhs, File rhs) {
+				long diff = rhs.lastModified() - lhs.lastModified();
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+		CharSequence[] names = new CharSequence[files.length];
+		for (int i = 0; i < files.length; i++) {
+			names[i] = files[i].getName();
+		}
+
+		AlertDialog.Builder builder = new AlertDialog.Builder(this);
+		builder.setTitle(R.string.dialog_title_restore_backup);
+		builder.setItems(names, new DialogInterface.OnClickListener() {
+
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				new RestoreTask(files[which]).execute();
+			}
+		});
+
+		AlertDialog dialog = builder.create();
+		dialog.show();
+	}
+
 	/* Private inner classes ******************* */
 
 	private class PomodoroTimerServiceConnector implements ServiceConnection {
@@ -339,9 +668,10 @@ public class CherryBerryActivity extends Activity {
 			timerService = ((LocalBinder) service).getService();
 			timerServiceBound = true;
 
-			timerService.setListener(new MyPomodoroTimerListener());
+			timerService.addListener(timerListener);
 
 			checkPomodoroTimerServiceStatus();
+			startupTrace.mark(Phase.SERVICE_CONNECTED);
 		}
 
 		@Override
@@ -366,9 +696,184 @@ public class CherryBerryActivity extends Activity {
 			CherryBerryActivity.this.onBreakFinish();
 		}
 
+		@Override
+		public void onPeriodStart(PomodoroTimerService timer) {
+			dismissPomodoroFinishedDialog();
+			checkPomodoroTimerServiceStatus();
+		}
+
 		@Override
 		public void onTick(PomodoroTimerService timer, long millisUntilFinished) {
-			updateTimer(millisUntilFinished);
+			// The view animates itself; this only catches up with periods
+			// started elsewhere
+			countdownView.start(timer.getTimerStart(), timer.getTimerEnd());
+		}
+
+	}
+
+	/**
+	 * Shows the task field once the tasks are loaded, if there are any.
+	 */
+	private class TaskCheckTask extends AsyncTask<Void, Void, Integer> {
+
+		@Override
+		protected Integer doInBackground(Void... params) {
+			try {
+				return TaskStore.getInstance(CherryBerryActivity.this)
+						.getTaskCount();
+			}
+			catch (InterruptedException e) {
+				return 0;
+			}
+		}
+
+		@Override
+		protected void onPostExecute(Integer count) {
+			taskTextView.setVisibility(count > 0 ? View.VISIBLE : View.GONE);
+		}
+
+	}
+
+	/**
+	 * Exports the whole history in the background to a gzipped file on the
+	 * external storage, or in the app files directory if there is none.
+	 */
+	private class ExportTask extends AsyncTask<Void, Void, File> {
+
+		private final SessionExporter exporter;
+
+		private int count;
+
+		public ExportTask(SessionExporter.Format format) {
+			exporter = new SessionExporter(format, true);
+		}
+
+		@Override
+		protected File doInBackground(Void... params) {
+			File directory = getFilesDir();
+			if (Environment.MEDIA_MOUNTED.equals(Environment
+					.getExternalStorageState())) {
+				directory = new File(Environment.getExternalStorageDirectory(),
+						"CherryBerry");
+				directory.mkdirs();
+			}
+
+			String name = "cherryberry-history-"
+					+ new SimpleDateFormat("yyyyMMdd-HHmm", Locale.US)
+							.format(new Date());
+			File file = new File(directory, exporter.getFileName(name));
+			try {
+				count = SessionStore.getInstance(CherryBerryActivity.this)
+						.export(exporter, file);
+				return file;
+			}
+			catch (IOException e) {
+				Log.e(TAG, "Can't export history", e);
+				return null;
+			}
+		}
+
+		@Override
+		protected void onPostExecute(File file) {
+			if (file != null) {
+				Toast.makeText(
+						CherryBerryActivity.this,
+						getString(R.string.toast_history_exported, count,
+								file.getPath()), Toast.LENGTH_LONG).show();
+			}
+			else {
+				Toast.makeText(CherryBerryActivity.this,
+						R.string.toast_history_not_exported, Toast.LENGTH_LONG)
+						.show();
+			}
+		}
+
+	}
+
+	/**
+	 * Backs up the settings, timer, history and tasks in the background.
+	 */
+	private class BackupTask extends AsyncTask<Void, Void, File> {
+
+		private int count;
+
+		@Override
+		protected File doInBackground(Void... params) {
+			String name = "cherryberry-"
+					+ new SimpleDateFormat("yyyyMMdd-HHmm", Locale.US)
+							.format(new Date()) + AppBackup.EXTENSION;
+			File file = new File(AppBackup.getDirectory(CherryBerryActivity.this),
+					name);
+			try {
+				count = AppBackup.write(CherryBerryActivity.this, file);
+				return file;
+			}
+			catch (IOException e) {
+				Log.e(TAG, "Can't write backup", e);
+				return null;
+			}
+		}
+
+		@Override
+		protected void onPostExecute(File file) {
+			if (file != null) {
+				Toast.makeText(
+						CherryBerryActivity.this,
+						getString(R.string.toast_backup_written, count,
+								file.getPath()), Toast.LENGTH_LONG).show();
+			}
+			else {
+				Toast.makeText(CherryBerryActivity.this,
+						R.string.toast_backup_not_written, Toast.LENGTH_LONG)
+						.show();
+			}
+		}
+
+	}
+
+	/**
+	 * Restores a backup in the background, then hands its timer state to the
+	 * service.
+	 */
+	private class RestoreTask extends AsyncTask<Void, Void, Backup> {
+
+		private final File file;
+
+		public RestoreTask(File file) {
+			this.file = file;
+		}
+
+		@Override
+		protected Backup doInBackground(Void... params) {
+			try {
+				return AppBackup.restore(CherryBerryActivity.this, file);
+			}
+			catch (IOException e) {
+				Log.e(TAG, "Can't restore backup " + file, e);
+				return null;
+			}
+			catch (InterruptedException e) {
+				return null;
+			}
+		}
+
+		@Override
+		protected void onPostExecute(Backup backup) {
+			if (backup == null) {
+				Toast.makeText(CherryBerryActivity.this,
+						R.string.toast_backup_not_restored, Toast.LENGTH_LONG)
+						.show();
+				return;
+			}
+
+			if (timerServiceBound && backup.getTimerState() != null) {
+				timerService.replaceState(backup.getTimerState());
+				checkPomodoroTimerServiceStatus();
+			}
+			Toast.makeText(
+					CherryBerryActivity.this,
+					getString(R.string.toast_backup_restored, backup
+							.getSessions().size()), Toast.LENGTH_LONG).show();
 		}
 
 	}
@@ -383,6 +888,8 @@ public class CherryBerryActivity extends Activity {
 				// Start break
 				if (timerServiceBound) {
 					timerService.startBreak();
+					countdownView.start(timerService.getTimerStart(),
+							timerService.getTimerEnd());
 
 					statusTextView.setText(R.string.status_break_running);
 				}
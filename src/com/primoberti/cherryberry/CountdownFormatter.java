@@ -0,0 +1,199 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry;
+
+/**
+ * Formats count down times as <code>m:ss</code>, or <code>h:mm:ss</code> for
+ * an hour or more, without allocating.
+ *
+ * The text is written into a buffer that is reused on every call, and the
+ * formatter itself is the {@link CharSequence} for the last formatted time.
+ * The digits of every minute up to a configurable maximum are precomputed;
+ * longer times are formatted digit by digit, still without allocating.
+ *
+ * Not thread safe.
+ *
+ * @author berti
+ */
+public class CountdownFormatter implements CharSequence {
+
+	/* Public constants ************************ */
+
+	/** Default maximum for the precomputed table: two hours. */
+	public final static long DEFAULT_MAX_MILLIS = 2 * 60 * 60 * 1000;
+
+	/* Private constants *********************** */
+
+	/** Two digit representation of 0 to 99. */
+	private final static char[] TWO_DIGITS = new char[200];
+
+	static {
+		for (int i = 0; i < 100; i++) {
+			TWO_DIGITS[i * 2] = (char) ('0' + i / 10);
+			TWO_DIGITS[i * 2 + 1] = (char) ('0' + i % 10);
+		}
+	}
+
+	/** Enough for the hours in Long.MAX_VALUE milliseconds plus ":mm:ss". */
+	private final static int BUFFER_SIZE = 32;
+
+	/* Private fields ************************** */
+
+	/**
+	 * Precomputed prefix for each minute up to the maximum, including the
+	 * trailing ':', e.g. "7:" or "1:05:".
+	 */
+	private final char[][] minutePrefixes;
+
+	private final char[] buffer = new char[BUFFER_SIZE];
+
+	private int length;
+
+	/* Public constructors ********************* */
+
+	public CountdownFormatter() {
+		this(DEFAULT_MAX_MILLIS);
+	}
+
+	/**
+	 * @param maxMillis longest time served from the precomputed table
+	 */
+	public CountdownFormatter(long maxMillis) {
+		int maxMinutes = (int) Math.min(maxMillis / 60000, Integer.MAX_VALUE - 1);
+		minutePrefixes = new char[maxMinutes + 1][];
+		for (int minutes = 0; minutes <= maxMinutes; minutes++) {
+			length = 0;
+			appendMinutes(minutes);
+			minutePrefixes[minutes] = new char[length];
+			System.arraycopy(buffer, 0, minutePrefixes[minutes], 0, length);
+		}
+
+		format(0);
+	}
+
+	/* Public methods ************************** */
+
+	/**
+	 * Formats the given time, truncated to whole seconds. Negative times are
+	 * formatted as zero.
+	 *
+	 * @param millis the time to format
+	 * @return the length of the formatted text
+	 * @see #getChars()
+	 */
+	public int format(long millis) {
+		long totalSeconds = Math.max(0, millis) / 1000;
+		long minutes = totalSeconds / 60;
+		int seconds = (int) (totalSeconds % 60);
+
+		length = 0;
+		if (minutes < minutePrefixes.length) {
+			char[] prefix = minutePrefixes[(int) minutes];
+			System.arraycopy(prefix, 0, buffer, 0, prefix.length);
+			length = prefix.length;
+		}
+		else {
+			appendMinutes(minutes);
+		}
+		appendTwoDigits(seconds);
+
+		return length;
+	}
+
+	/**
+	 * Returns the buffer holding the last formatted time, from index 0 to
+	 * {@link #length()}. It is overwritten by the next call to
+	 * {@link #format(long)}.
+	 */
+	public char[] getChars() {
+		return buffer;
+	}
+
+	@Override
+	public int length() {
+		return length;
+	}
+
+	@Override
+	public char charAt(int index) {
+		if (index < 0 || index >= length) {
+			throw new IndexOutOfBoundsException("Index " + index
+					+ ", length " + length);
+		}
+		return buffer[index];
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		return toString().subSequence(start, end);
+	}
+
+	@Override
+	public String toString() {
+		return new String(buffer, 0, length);
+	}
+
+	/* Private methods ************************* */
+
+	/**
+	 * Appends the minutes part including the trailing ':', with hours if
+	 * needed.
+	 */
+	private void appendMinutes(long minutes) {
+		if (minutes >= 60) {
+			appendNumber(minutes / 60);
+			buffer[length++] = ':';
+			appendTwoDigits((int) (minutes % 60));
+		}
+		else {
+			appendNumber(minutes);
+		}
+		buffer[length++] = ':';
+	}
+
+	private void appendTwoDigits(int value) {
+		buffer[length++] = TWO_DIGITS[value * 2];
+		buffer[length++] = TWO_DIGITS[value * 2 + 1];
+	}
+
+	private void appendNumber(long value) {
+		if (value < 10) {
+			buffer[length++] = (char) ('0' + value);
+			return;
+		}
+
+		int start = length;
+		while (value > 0) {
+			buffer[length++] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+		// Digits were written backwards
+		for (int i = start, j = length - 1; i < j; i++, j--) {
+			char c = buffer[i];
+			buffer[i] = buffer[j];
+			buffer[j] = c;
+		}
+	}
+
+}
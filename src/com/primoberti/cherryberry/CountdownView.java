@@ -0,0 +1,485 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry;
+
+import java.util.Arrays;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.View;
+import android.view.WindowManager;
+
+/**
+ * Count down shown as the time left inside a ring that empties as the period
+ * runs.
+ *
+ * While a period runs the view animates itself at the refresh rate of the
+ * display, for as long as it is shown. Each frame only invalidates the end
+ * of the ring that moved, plus the digits once a second, so nothing is
+ * measured or laid out again. Everything drawn is allocated up front:
+ * paints, bounds and the text buffer of a {@link CountdownFormatter}.
+ *
+ * Frame times are kept to count the janky frames, those that took over one
+ * and a half refresh intervals, and to work out the 99th percentile. The
+ * debug overlay shows both in a corner of the view. Frames are paced with
+ * postDelayed rather than vsync, which needs API 16, so the times run from
+ * one frame callback to the next and include how late the handler ran it.
+ *
+ * Must be used from the main thread.
+ *
+ * @author berti
+ */
+public class CountdownView extends View {
+
+	/* Private constants *********************** */
+
+	private final static String TAG = "CountdownView";
+
+	/** Frame interval used if the display doesn't tell its refresh rate. */
+	private final static long DEFAULT_FRAME_INTERVAL = 1000000000L / 60;
+
+	/** Latest frame times kept for the percentile. */
+	private final static int FRAME_SAMPLES = 128;
+
+	/** The ring starts and ends at twelve o'clock. */
+	private final static float START_ANGLE = -90;
+
+	/**
+	 * Largest move of the end of the ring, in degrees, covered by the bounds
+	 * of its old and new ends; the whole view is redrawn for larger ones.
+	 */
+	private final static float MAX_DIRTY_SWEEP = 3;
+
+	/** Widest text drawn, to size the digits and their bounds. */
+	private final static char[] WIDEST_TEXT = "0:00:00".toCharArray();
+
+	private final static char[] JANKY_LABEL = "janky ".toCharArray();
+
+	private final static char[] P99_LABEL = ", p99 ".toCharArray();
+
+	private final static char[] MS_LABEL = " ms".toCharArray();
+
+	private final static int RING_COLOR = 0xffcc2233;
+
+	private final static int TRACK_COLOR = 0x33ffffff;
+
+	private final static int TEXT_COLOR = 0xffffffff;
+
+	private final static int OVERLAY_COLOR = 0xff66ff66;
+
+	/* Private fields ************************** */
+
+	private final Paint trackPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+	private final Paint ringPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+	private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+	private final Paint overlayPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+	private final RectF ringBounds = new RectF();
+
+	private final Rect textBounds = new Rect();
+
+	private final Rect overlayBounds = new Rect();
+
+	private final Rect dirty = new Rect();
+
+	private final CountdownFormatter formatter = new CountdownFormatter();
+
+	private float textBaseline;
+
+	private float strokeWidth;
+
+	private long timerStart;
+
+	private long timerEnd;
+
+	private boolean running;
+
+	/** Sweep of the ring, in degrees, drawn on the next frame. */
+	private float sweep;
+
+	/** Whole seconds left shown by the digits. */
+	private long shownSeconds = -1;
+
+	private boolean windowVisible = true;
+
+	private long frameInterval = DEFAULT_FRAME_INTERVAL;
+
+	/** Start of the last frame drawn while running, or 0. */
+	private long lastFrame;
+
+	private final long[] frameTimes = new long[FRAME_SAMPLES];
+
+	private final long[] sortedFrameTimes = new long[FRAME_SAMPLES];
+
+	private int frameCount;
+
+	private int jankyFrameCount;
+
+	private long p99FrameTime;
+
+	private boolean debugOverlay;
+
+	private final char[] overlayText = new char[64];
+
+	private int overlayLength;
+
+	private final Runnable frameTask = new Runnable() {
+
+		@Override
+		public void run() {
+			nextFrame();
+		}
+
+	};
+
+	/* Public constructors ********************* */
+
+	public CountdownView(Context context) {
+		this(context, null);
+	}
+
+	public CountdownView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+
+		trackPaint.setStyle(Paint.Style.STROKE);
+		trackPaint.setColor(TRACK_COLOR);
+		ringPaint.setStyle(Paint.Style.STROKE);
+		ringPaint.setStrokeCap(Paint.Cap.ROUND);
+		ringPaint.setColor(RING_COLOR);
+		textPaint.setColor(TEXT_COLOR);
+		textPaint.setTextAlign(Paint.Align.CENTER);
+		overlayPaint.setColor(OVERLAY_COLOR);
+		float density = getResources().getDisplayMetrics().density;
+		overlayPaint.setTextSize(12 * density);
+
+		updateOverlayText();
+	}
+
+	/* Public methods ************************** */
+
+	/**
+	 * Animates the count down of a period running between the given times.
+	 * Does nothing if it is already animating that period, so it can be
+	 * called on every tick.
+	 */
+	public void start(long timerStart, long timerEnd) {
+		if (running && timerStart == this.timerStart
+				&& timerEnd == this.timerEnd) {
+			return;
+		}
+
+		this.timerStart = timerStart;
+		this.timerEnd = timerEnd;
+		running = true;
+		lastFrame = 0;
+		removeCallbacks(frameTask);
+		// The ring may jump anywhere for a new period
+		invalidate();
+		nextFrame();
+	}
+
+	/**
+	 * Stops animating and shows the given time, inside a full ring, or an
+	 * empty one if the time is zero.
+	 */
+	public void show(long millis) {
+		if (running) {
+			running = false;
+			removeCallbacks(frameTask);
+			Log.d(TAG, "Stopped after " + frameCount + " frames, "
+					+ jankyFrameCount + " janky, p99 " + p99FrameTime / 1000
+					+ " us");
+		}
+
+		sweep = millis > 0 ? 360 : 0;
+		shownSeconds = millis / 1000;
+		formatter.format(millis);
+		invalidate();
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Shows the frame time statistics in a corner of the view.
+	 */
+	public void setDebugOverlay(boolean debugOverlay) {
+		this.debugOverlay = debugOverlay;
+		invalidate();
+	}
+
+	/**
+	 * Returns the number of frames drawn while running.
+	 */
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+	/**
+	 * Returns the number of frames that took over one and a half refresh
+	 * intervals.
+	 */
+	public int getJankyFrameCount() {
+		return jankyFrameCount;
+	}
+
+	/**
+	 * Returns the 99th percentile of the latest frame times, in nanoseconds,
+	 * as of the last second shown.
+	 */
+	public long getP99FrameTime() {
+		return p99FrameTime;
+	}
+
+	/* Protected methods *********************** */
+
+	@Override
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+
+		WindowManager windowManager = (WindowManager) getContext()
+				.getSystemService(Context.WINDOW_SERVICE);
+		float refreshRate = windowManager.getDefaultDisplay().getRefreshRate();
+		frameInterval = refreshRate >= 1 ? (long) (1000000000L / refreshRate)
+				: DEFAULT_FRAME_INTERVAL;
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		removeCallbacks(frameTask);
+
+		super.onDetachedFromWindow();
+	}
+
+	@Override
+	protected void onWindowVisibilityChanged(int visibility) {
+		super.onWindowVisibilityChanged(visibility);
+
+		windowVisible = visibility == VISIBLE;
+		resume();
+	}
+
+	@Override
+	protected void onVisibilityChanged(View changedView, int visibility) {
+		super.onVisibilityChanged(changedView, visibility);
+
+		resume();
+	}
+
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+
+		float left = getPaddingLeft();
+		float top = getPaddingTop();
+		float size = Math.min(w - left - getPaddingRight(), h - top
+				- getPaddingBottom());
+		strokeWidth = size / 16;
+		trackPaint.setStrokeWidth(strokeWidth);
+		ringPaint.setStrokeWidth(strokeWidth);
+
+		// Centered, with the stroke inside the view
+		left += (w - getPaddingLeft() - getPaddingRight() - size) / 2;
+		top += (h - getPaddingTop() - getPaddingBottom() - size) / 2;
+		ringBounds.set(left, top, left + size, top + size);
+		ringBounds.inset(strokeWidth / 2, strokeWidth / 2);
+
+		textPaint.setTextSize(size / 5);
+		float textWidth = textPaint.measureText(WIDEST_TEXT, 0,
+				WIDEST_TEXT.length);
+		textBaseline = ringBounds.centerY()
+				- (textPaint.ascent() + textPaint.descent()) / 2;
+		textBounds.set((int) (ringBounds.centerX() - textWidth / 2) - 1,
+				(int) (textBaseline + textPaint.ascent()) - 1,
+				(int) (ringBounds.centerX() + textWidth / 2) + 1,
+				(int) (textBaseline + textPaint.descent()) + 1);
+
+		overlayBounds.set(0, 0, w,
+				(int) (overlayPaint.descent() - overlayPaint.ascent()) + 2);
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		// Called on every frame: no allocations from here on
+		if (running) {
+			recordFrame(System.nanoTime());
+		}
+
+		canvas.drawArc(ringBounds, 0, 360, false, trackPaint);
+		if (sweep > 0) {
+			canvas.drawArc(ringBounds, START_ANGLE, sweep, false, ringPaint);
+		}
+		canvas.drawText(formatter.getChars(), 0, formatter.length(),
+				ringBounds.centerX(), textBaseline, textPaint);
+
+		if (debugOverlay) {
+			canvas.drawText(overlayText, 0, overlayLength, getPaddingLeft(),
+					-overlayPaint.ascent() + 1, overlayPaint);
+		}
+	}
+
+	/* Private methods ************************* */
+
+	/**
+	 * Moves the ring and the digits to the current time and invalidates what
+	 * changed, then schedules the next frame while the view is shown.
+	 */
+	private void nextFrame() {
+		if (!running) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		long remaining = Math.max(timerEnd - now, 0);
+		long duration = Math.max(timerEnd - timerStart, 1);
+		float newSweep = Math.min(360f * remaining / duration, 360);
+
+		dirty.setEmpty();
+		if (Math.abs(newSweep - sweep) > MAX_DIRTY_SWEEP) {
+			// E.g. after the view was hidden; the arc in between changes too
+			dirty.set(0, 0, getWidth(), getHeight());
+		}
+		else {
+			addRingEnd(sweep);
+			addRingEnd(newSweep);
+		}
+		sweep = newSweep;
+
+		long seconds = remaining / 1000;
+		if (seconds != shownSeconds) {
+			shownSeconds = seconds;
+			formatter.format(remaining);
+			dirty.union(textBounds);
+			updateOverlayText();
+			if (debugOverlay) {
+				dirty.union(overlayBounds);
+			}
+		}
+
+		if (!dirty.isEmpty()) {
+			invalidate(dirty);
+		}
+
+		if (remaining > 0 && isAnimating()) {
+			long elapsed = lastFrame > 0 ? System.nanoTime() - lastFrame : 0;
+			long delay = Math.max(frameInterval - elapsed, 0) / 1000000;
+			postDelayed(frameTask, delay);
+		}
+	}
+
+	/**
+	 * Picks up the animation again when the view is shown, or stops
+	 * scheduling frames when it is hidden.
+	 */
+	private void resume() {
+		removeCallbacks(frameTask);
+		lastFrame = 0;
+		if (running && isAnimating()) {
+			nextFrame();
+		}
+	}
+
+	private boolean isAnimating() {
+		return windowVisible && isShown();
+	}
+
+	/**
+	 * Adds the bounds of the end of the ring at the given sweep to the dirty
+	 * region.
+	 */
+	private void addRingEnd(float sweep) {
+		double angle = Math.toRadians(START_ANGLE + sweep);
+		float radius = ringBounds.width() / 2;
+		int x = (int) (ringBounds.centerX() + radius * Math.cos(angle));
+		int y = (int) (ringBounds.centerY() + radius * Math.sin(angle));
+		// The round cap and the bulge of the arc between two frames
+		int margin = (int) strokeWidth + 2;
+		dirty.union(x - margin, y - margin, x + margin, y + margin);
+	}
+
+	private void recordFrame(long now) {
+		if (lastFrame > 0) {
+			long frameTime = now - lastFrame;
+			frameTimes[frameCount % FRAME_SAMPLES] = frameTime;
+			frameCount++;
+			if (frameTime > frameInterval * 3 / 2) {
+				jankyFrameCount++;
+			}
+		}
+		lastFrame = now;
+	}
+
+	/**
+	 * Works out the 99th percentile of the latest frame times and writes the
+	 * overlay text, without allocating. Called once a second.
+	 */
+	private void updateOverlayText() {
+		int samples = Math.min(frameCount, FRAME_SAMPLES);
+		if (samples > 0) {
+			System.arraycopy(frameTimes, 0, sortedFrameTimes, 0, samples);
+			Arrays.sort(sortedFrameTimes, 0, samples);
+			p99FrameTime = sortedFrameTimes[(samples * 99 + 99) / 100 - 1];
+		}
+
+		overlayLength = 0;
+		append(JANKY_LABEL);
+		appendNumber(jankyFrameCount);
+		overlayText[overlayLength++] = '/';
+		appendNumber(frameCount);
+		append(P99_LABEL);
+		appendNumber(p99FrameTime / 1000000);
+		overlayText[overlayLength++] = '.';
+		appendNumber(p99FrameTime / 100000 % 10);
+		append(MS_LABEL);
+	}
+
+	private void append(char[] chars) {
+		System.arraycopy(chars, 0, overlayText, overlayLength, chars.length);
+		overlayLength += chars.length;
+	}
+
+	private void appendNumber(long value) {
+		int start = overlayLength;
+		do {
+			overlayText[overlayLength++] = (char) ('0' + value % 10);
+			value /= 10;
+		} while (value > 0);
+		// Digits were written backwards
+		for (int i = start, j = overlayLength - 1; i < j; i++, j--) {
+			char c = overlayText[i];
+			overlayText[i] = overlayText[j];
+			overlayText[j] = c;
+		}
+	}
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry;
+
+import android.os.Handler;
+
+import com.primoberti.cherryberry.engine.Scheduler;
+
+/**
+ * {@link Scheduler} that posts tasks to a {@link Handler}, so they run on the
+ * handler's thread.
+ *
+ * @author berti
+ */
+public class HandlerScheduler implements Scheduler {
+
+	/* Private fields ************************** */
+
+	private final Handler handler;
+
+	/* Public constructors ********************* */
+
+	/**
+	 * Creates a scheduler for the looper of the current thread.
+	 */
+	public HandlerScheduler() {
+		this(new Handler());
+	}
+
+	public HandlerScheduler(Handler handler) {
+		this.handler = handler;
+	}
+
+	/* Public methods ************************** */
+
+	@Override
+	public void schedule(Runnable task, long delayMillis) {
+		handler.postDelayed(task, delayMillis);
+	}
+
+	@Override
+	public void cancel(Runnable task) {
+		handler.removeCallbacks(task);
+	}
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.primoberti.cherryberry.history.Session;
+import com.primoberti.cherryberry.history.SessionImporter;
+import com.primoberti.cherryberry.history.SessionImporter.Progress;
+import com.primoberti.cherryberry.history.SessionStore;
+
+/**
+ * Imports the sessions in the file whose URI is the data of the intent into
+ * the history, showing the progress in a notification.
+ *
+ * Every batch goes into the history in its own transaction, and the
+ * importer's progress is kept as a checkpoint at most once a second. If the
+ * process dies, the intent is delivered again and the import goes on from
+ * the last checkpoint. The sessions committed after it are read again, but
+ * they are left out as duplicates.
+ *
+ * @author berti
+ */
+public class ImportService extends IntentService {
+
+	/* Private constants *********************** */
+
+	private final static String TAG = "ImportService";
+
+	private final static String SHARED_PREFS = "import_checkpoint";
+
+	private final static String PREF_URI = "uri";
+
+	private final static String PREF_OFFSET = "offset";
+
+	private final static String PREF_READ = "read";
+
+	private final static String PREF_IMPORTED = "imported";
+
+	private final static String PREF_DUPLICATES = "duplicates";
+
+	private final static String PREF_INVALID = "invalid";
+
+	private final static long CHECKPOINT_INTERVAL_MS = 1000;
+
+	/* Public constructors ********************* */
+
+	public ImportService() {
+		super(TAG);
+		setIntentRedelivery(true);
+	}
+
+	/* Protected methods *********************** */
+
+	@Override
+	protected void onHandleIntent(Intent intent) {
+		final Uri uri = intent.getData();
+		final SharedPreferences preferences = getSharedPreferences(
+				SHARED_PREFS, MODE_PRIVATE);
+		final NotificationFactory notifications = NotificationFactory
+				.getInstance(this);
+		final SessionStore store = SessionStore.getInstance(this);
+
+		Progress checkpoint = readCheckpoint(preferences, uri);
+		notifications.showImportProgress(checkpoint != null ? checkpoint
+				.getImported() : 0);
+
+		SessionImporter importer = new SessionImporter(
+				new SessionImporter.Sink() {
+
+					@Override
+					public int insert(List<Session> sessions) {
+						return store.insertNew(sessions);
+					}
+
+				});
+
+		SessionImporter.ProgressListener listener = new SessionImporter.ProgressListener() {
+
+			private long lastCheckpoint = SystemClock.elapsedRealtime();
+
+			@Override
+			public void onProgress(Progress progress) {
+				long now = SystemClock.elapsedRealtime();
+				if (now - lastCheckpoint >= CHECKPOINT_INTERVAL_MS) {
+					saveCheckpoint(preferences, uri, progress);
+					notifications.showImportProgress(progress.getImported());
+					lastCheckpoint = now;
+				}
+			}
+
+		};
+
+		InputStream in = null;
+		try {
+			in = getContentResolver().openInputStream(uri);
+			Progress progress = importer.importFrom(in, checkpoint, listener);
+			Log.i(TAG, "Imported " + uri + ": " + progress);
+
+			notifications.showImportFinished(progress.getImported(),
+					progress.getDuplicates(), progress.getInvalid());
+		}
+		catch (IOException e) {
+			Log.e(TAG, "Can't import " + uri, e);
+			notifications.showImportFailed();
+		}
+		catch (RuntimeException e) {
+			Log.e(TAG, "Can't import " + uri, e);
+			notifications.showImportFailed();
+		}
+		finally {
+			if (in != null) {
+				try {
+					in.close();
+				}
+				catch (IOException e) {
+					// Already read
+				}
+			}
+			// Only a process death resumes an import, not a new attempt
+			preferences.edit().clear().commit();
+		}
+	}
+
+	/* Private methods ************************* */
+
+	/**
+	 * Returns the checkpoint saved for the given file, or null if there is
+	 * none.
+	 */
+	private Progress readCheckpoint(SharedPreferences preferences, Uri uri) {
+		if (!uri.toString().equals(preferences.getString(PREF_URI, null))) {
+			return null;
+		}
+
+		Progress checkpoint = new Progress(preferences.getLong(PREF_OFFSET, 0),
+				preferences.getInt(PREF_READ, 0), preferences.getInt(
+						PREF_IMPORTED, 0), preferences.getInt(PREF_DUPLICATES,
+						0), preferences.getInt(PREF_INVALID, 0));
+		Log.i(TAG, "Resuming the import of " + uri + " after " + checkpoint);
+		return checkpoint;
+	}
+
+	private void saveCheckpoint(SharedPreferences preferences, Uri uri,
+			Progress progress) {
+		SharedPreferences.Editor editor = preferences.edit();
+		editor.putString(PREF_URI, uri.toString());
+		editor.putLong(PREF_OFFSET, progress.getOffset());
+		editor.putInt(PREF_READ, progress.getRead());
+		editor.putInt(PREF_IMPORTED, progress.getImported());
+		editor.putInt(PREF_DUPLICATES, progress.getDuplicates());
+		editor.putInt(PREF_INVALID, progress.getInvalid());
+		editor.commit();
+	}
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Rate limiter for the live count down in the ongoing notification.
+ *
+ * Updates are posted at most once per second while the screen is on and
+ * once per minute while it is off. Updates requested in between are
+ * coalesced: only the latest one is posted when the interval has passed.
+ *
+ * Must be used from the main thread.
+ *
+ * @author berti
+ */
+public class LiveNotification {
+
+	/* Private constants *********************** */
+
+	private final static long SCREEN_ON_INTERVAL = 1000;
+
+	private final static long SCREEN_OFF_INTERVAL = 60 * 1000;
+
+	/* Private fields ************************** */
+
+	private final NotificationFactory factory;
+
+	private final Handler handler;
+
+	private boolean screenOn = true;
+
+	private long lastPost;
+
+	private boolean pending;
+
+	private int pendingTextId;
+
+	private long pendingRemaining;
+
+	private long pendingDuration;
+
+	private boolean pendingInterruptible;
+
+	private long pendingSince;
+
+	private long requests;
+
+	private long posts;
+
+	private final Runnable postTask = new Runnable() {
+
+		@Override
+		public void run() {
+			post();
+		}
+
+	};
+
+	/* Public constructors ********************* */
+
+	public LiveNotification(NotificationFactory factory, Handler handler) {
+		this.factory = factory;
+		this.handler = handler;
+	}
+
+	/* Public methods ************************** */
+
+	/**
+	 * Requests an update of the count down.
+	 *
+	 * @param contentTextId text resource, a format taking the remaining time
+	 * @param remaining time left in the period
+	 * @param duration total duration of the period
+	 * @param interruptible whether to offer logging interruptions
+	 */
+	public void update(int contentTextId, long remaining, long duration,
+			boolean interruptible) {
+		long now = SystemClock.elapsedRealtime();
+
+		requests++;
+		pendingTextId = contentTextId;
+		pendingRemaining = remaining;
+		pendingDuration = duration;
+		pendingInterruptible = interruptible;
+		pendingSince = now;
+
+		if (!pending) {
+			pending = true;
+
+			long wait = lastPost + getInterval() - now;
+			if (wait <= 0 || lastPost == 0) {
+				post();
+			}
+			else {
+				handler.postDelayed(postTask, wait);
+			}
+		}
+	}
+
+	/**
+	 * Drops any pending update and forgets the last one, e.g. when the period
+	 * ends.
+	 */
+	public void cancel() {
+		handler.removeCallbacks(postTask);
+
+		pending = false;
+		lastPost = 0;
+	}
+
+	public boolean isScreenOn() {
+		return screenOn;
+	}
+
+	public void setScreenOn(boolean screenOn) {
+		this.screenOn = screenOn;
+	}
+
+	/**
+	 * Returns how many updates have been requested.
+	 */
+	public long getRequestCount() {
+		return requests;
+	}
+
+	/**
+	 * Returns how many updates have actually been posted; the rest were
+	 * coalesced.
+	 */
+	public long getPostCount() {
+		return posts;
+	}
+
+	/* Private methods ************************* */
+
+	private long getInterval() {
+		return screenOn ? SCREEN_ON_INTERVAL : SCREEN_OFF_INTERVAL;
+	}
+
+	private void post() {
+		if (!pending) {
+			return;
+		}
+
+		long now = SystemClock.elapsedRealtime();
+
+		pending = false;
+		lastPost = now;
+		posts++;
+
+		// Account for the time the update waited
+		long remaining = Math.max(0, pendingRemaining - (now - pendingSince));
+		factory.showOngoingCountdown(pendingTextId, remaining, pendingDuration,
+				pendingInterruptible);
+	}
+
+}
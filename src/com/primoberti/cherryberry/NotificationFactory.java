@@ -0,0 +1,402 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.res.Resources;
+import android.text.format.DateFormat;
+import android.view.View;
+import android.widget.RemoteViews;
+
+/**
+ * Builds and posts the CherryBerry notifications.
+ *
+ * The PendingIntents, the time format and the notifications themselves are
+ * created once and then updated in place, so starting or stopping a period
+ * only costs the call to the {@link NotificationManager}. Every notification
+ * is posted through {@link #post(Notification)}, which keeps track of how
+ * many times the {@link NotificationManager} was called and how long it took.
+ *
+ * Must be used from the main thread.
+ *
+ * @author berti
+ */
+public class NotificationFactory {
+
+	/* Private constants *********************** */
+
+	private final static int LIGHT_COLOR = 0xffd60707;
+
+	private final static int LIGHT_ON_MS = 300;
+
+	private final static int LIGHT_OFF_MS = 3000;
+
+	/** Apart from the timer one, so an import doesn't replace it. */
+	private final static int IMPORT_NOTIFICATION_ID = 2;
+
+	/* Private static fields ******************* */
+
+	private static NotificationFactory instance;
+
+	/* Private fields ************************** */
+
+	private final Context context;
+
+	private final NotificationManager notificationManager;
+
+	private final PendingIntent contentIntent;
+
+	private final PendingIntent internalInterruptionIntent;
+
+	private final PendingIntent externalInterruptionIntent;
+
+	private final Map<String, PendingIntent> alarmIntents = new HashMap<String, PendingIntent>();
+
+	private final java.text.DateFormat timeFormat;
+
+	private final Date date = new Date();
+
+	private final Notification ongoingNotification;
+
+	private final Notification finishedNotification;
+
+	private final Notification importNotification;
+
+	private final CountdownFormatter formatter = new CountdownFormatter();
+
+	private long notifyCount;
+
+	private long notifyNanos;
+
+	/* Private constructors ******************** */
+
+	private NotificationFactory(Context context) {
+		this.context = context;
+
+		notificationManager = (NotificationManager) context
+				.getSystemService(Context.NOTIFICATION_SERVICE);
+
+		Intent notificationIntent = new Intent(context,
+				CherryBerryActivity.class);
+		contentIntent = PendingIntent.getActivity(context, 0,
+				notificationIntent, 0);
+
+		internalInterruptionIntent = getServiceIntent(context,
+				PomodoroTimerService.RECORD_INTERNAL_INTERRUPTION);
+		externalInterruptionIntent = getServiceIntent(context,
+				PomodoroTimerService.RECORD_EXTERNAL_INTERRUPTION);
+
+		timeFormat = DateFormat.getTimeFormat(context);
+
+		ongoingNotification = new Notification();
+		ongoingNotification.icon = R.drawable.ic_stat_generic;
+		ongoingNotification.flags |= Notification.FLAG_ONGOING_EVENT;
+		ongoingNotification.contentIntent = contentIntent;
+
+		finishedNotification = new Notification();
+		finishedNotification.icon = R.drawable.ic_stat_generic;
+		finishedNotification.contentIntent = contentIntent;
+
+		importNotification = new Notification();
+		importNotification.icon = R.drawable.ic_stat_generic;
+		importNotification.contentIntent = contentIntent;
+	}
+
+	/* Public static methods ******************* */
+
+	public static NotificationFactory getInstance(Context context) {
+		if (instance == null) {
+			instance = new NotificationFactory(context.getApplicationContext());
+		}
+		return instance;
+	}
+
+	/* Private static methods ****************** */
+
+	private static PendingIntent getServiceIntent(Context context,
+			String action) {
+		Intent intent = new Intent(context, PomodoroTimerService.class);
+		intent.setAction(action);
+		return PendingIntent.getService(context, 0, intent, 0);
+	}
+
+	/* Public methods ************************** */
+
+	/**
+	 * Returns the intent that delivers the given action to
+	 * {@link NotificationService} when an alarm goes off.
+	 */
+	public PendingIntent getAlarmIntent(String action) {
+		PendingIntent pendingIntent = alarmIntents.get(action);
+		if (pendingIntent == null) {
+			Intent intent = new Intent(context, NotificationService.class);
+			intent.setAction(action);
+			pendingIntent = PendingIntent.getService(context, 0, intent, 0);
+			alarmIntents.put(action, pendingIntent);
+		}
+		return pendingIntent;
+	}
+
+	/**
+	 * Shows the ongoing notification for a running period.
+	 *
+	 * @param tickerTextId ticker text resource
+	 * @param contentTitleId title resource
+	 * @param contentTextId text resource, a format taking the finish time
+	 * @param finishTime wall clock time when the period ends
+	 */
+	public void showOngoing(int tickerTextId, int contentTitleId,
+			int contentTextId, long finishTime) {
+		showOngoing(tickerTextId, contentTitleId, contentTextId, finishTime,
+				false);
+	}
+
+	/**
+	 * Shows the ongoing notification for a running period, optionally
+	 * alerting the user as set in the settings, e.g. when an auto-run plan
+	 * moves on to the next period without user interaction.
+	 *
+	 * @param tickerTextId ticker text resource
+	 * @param contentTitleId title resource
+	 * @param contentTextId text resource, a format taking the finish time
+	 * @param finishTime wall clock time when the period ends
+	 * @param alert whether to alert the user
+	 */
+	public void showOngoing(int tickerTextId, int contentTitleId,
+			int contentTextId, long finishTime, boolean alert) {
+		Resources resources = context.getResources();
+
+		date.setTime(finishTime);
+		String contentText = resources.getString(contentTextId,
+				timeFormat.format(date));
+
+		ongoingNotification.when = System.currentTimeMillis();
+		ongoingNotification.tickerText = resources.getString(tickerTextId);
+		ongoingNotification.flags = Notification.FLAG_ONGOING_EVENT;
+		ongoingNotification.defaults = 0;
+		if (alert) {
+			applyAlerts(ongoingNotification);
+		}
+		ongoingNotification.setLatestEventInfo(context,
+				resources.getString(contentTitleId), contentText,
+				contentIntent);
+
+		post(ongoingNotification);
+	}
+
+	/**
+	 * Updates the ongoing notification with a live count down and progress
+	 * bar. Meant to be called often, so it doesn't show the ticker text.
+	 *
+	 * @param contentTextId text resource, a format taking the remaining time
+	 * @param remaining time left in the period
+	 * @param duration total duration of the period
+	 * @param interruptible whether to show the buttons that log an
+	 *            interruption, which only work from Android 3.0 on
+	 */
+	public void showOngoingCountdown(int contentTextId, long remaining,
+			long duration, boolean interruptible) {
+		Resources resources = context.getResources();
+
+		formatter.format(remaining);
+		int progress = duration > 0 ? (int) ((duration - remaining) * 1000 / duration)
+				: 0;
+
+		// RemoteViews accumulate every action set on them, so they can't be
+		// reused between updates
+		RemoteViews views = new RemoteViews(context.getPackageName(),
+				R.layout.notification_ongoing);
+		views.setTextViewText(R.id.notificationTitle,
+				resources.getString(R.string.app_name));
+		views.setTextViewText(R.id.notificationText,
+				resources.getString(contentTextId, formatter.toString()));
+		views.setProgressBar(R.id.notificationProgress, 1000, progress, false);
+		if (interruptible && android.os.Build.VERSION.SDK_INT >= 11) {
+			views.setViewVisibility(R.id.notificationInterruptions,
+					View.VISIBLE);
+			views.setOnClickPendingIntent(R.id.notificationInternalButton,
+					internalInterruptionIntent);
+			views.setOnClickPendingIntent(R.id.notificationExternalButton,
+					externalInterruptionIntent);
+		}
+
+		ongoingNotification.tickerText = null;
+		ongoingNotification.flags = Notification.FLAG_ONGOING_EVENT;
+		ongoingNotification.defaults = 0;
+		ongoingNotification.contentView = views;
+
+		post(ongoingNotification);
+	}
+
+	/**
+	 * Shows the notification for a finished period, alerting the user as set
+	 * in the settings.
+	 *
+	 * @param tickerTextId ticker text resource
+	 * @param contentTitleId title resource
+	 * @param contentTextId text resource
+	 */
+	public void showFinished(int tickerTextId, int contentTitleId,
+			int contentTextId) {
+		Resources resources = context.getResources();
+
+		Notification notification = finishedNotification;
+		notification.when = System.currentTimeMillis();
+		notification.tickerText = resources.getString(tickerTextId);
+		notification.flags = Notification.FLAG_AUTO_CANCEL;
+		notification.defaults = 0;
+		applyAlerts(notification);
+
+		notification.setLatestEventInfo(context,
+				resources.getString(contentTitleId),
+				resources.getString(contentTextId), contentIntent);
+
+		post(notification);
+	}
+
+	/**
+	 * Shows the ongoing notification for a history import.
+	 *
+	 * @param imported number of sessions imported so far
+	 */
+	public void showImportProgress(int imported) {
+		Resources resources = context.getResources();
+
+		importNotification.when = System.currentTimeMillis();
+		importNotification.tickerText = null;
+		importNotification.flags = Notification.FLAG_ONGOING_EVENT;
+		importNotification.setLatestEventInfo(context,
+				resources.getString(R.string.notification_title_importing),
+				resources.getString(R.string.notification_text_importing,
+						imported), contentIntent);
+
+		notificationManager.notify(IMPORT_NOTIFICATION_ID, importNotification);
+	}
+
+	/**
+	 * Replaces the import notification with the outcome of the import.
+	 *
+	 * @param imported number of sessions imported
+	 * @param duplicates number of sessions already in the history
+	 * @param invalid number of records that weren't sessions
+	 */
+	public void showImportFinished(int imported, int duplicates, int invalid) {
+		Resources resources = context.getResources();
+
+		importNotification.when = System.currentTimeMillis();
+		importNotification.tickerText = resources
+				.getString(R.string.notification_title_imported);
+		importNotification.flags = Notification.FLAG_AUTO_CANCEL;
+		importNotification.setLatestEventInfo(context,
+				resources.getString(R.string.notification_title_imported),
+				resources.getString(R.string.notification_text_imported,
+						imported, duplicates, invalid), contentIntent);
+
+		notificationManager.notify(IMPORT_NOTIFICATION_ID, importNotification);
+	}
+
+	public void showImportFailed() {
+		Resources resources = context.getResources();
+
+		importNotification.when = System.currentTimeMillis();
+		importNotification.tickerText = resources
+				.getString(R.string.notification_title_import_failed);
+		importNotification.flags = Notification.FLAG_AUTO_CANCEL;
+		importNotification.setLatestEventInfo(context,
+				resources.getString(R.string.notification_title_import_failed),
+				resources.getString(R.string.notification_text_import_failed),
+				contentIntent);
+
+		notificationManager.notify(IMPORT_NOTIFICATION_ID, importNotification);
+	}
+
+	public void cancel() {
+		notificationManager.cancel(NotificationService.NOTIFICATION_ID);
+	}
+
+	/**
+	 * Returns the ongoing notification last shown, for the timer service to
+	 * run in the foreground with.
+	 */
+	public Notification getOngoingNotification() {
+		return ongoingNotification;
+	}
+
+	/**
+	 * Returns how many notifications have been posted.
+	 */
+	public long getNotifyCount() {
+		return notifyCount;
+	}
+
+	/**
+	 * Returns the total time spent posting notifications, in nanoseconds.
+	 */
+	public long getNotifyNanos() {
+		return notifyNanos;
+	}
+
+	/* Private methods ************************* */
+
+	/**
+	 * Adds the vibration, sound and light set in the settings.
+	 */
+	private void applyAlerts(Notification notification) {
+		Settings settings = PreferencesHelper.getSettings(context);
+
+		if (settings.isNotificationVibration()) {
+			notification.defaults |= Notification.DEFAULT_VIBRATE;
+		}
+
+		if (settings.isNotificationSound()) {
+			notification.defaults |= Notification.DEFAULT_SOUND;
+		}
+
+		if (settings.isNotificationLight()) {
+			notification.ledARGB = LIGHT_COLOR;
+			notification.ledOnMS = LIGHT_ON_MS;
+			notification.ledOffMS = LIGHT_OFF_MS;
+			notification.flags |= Notification.FLAG_SHOW_LIGHTS;
+		}
+	}
+
+	private void post(Notification notification) {
+		long start = System.nanoTime();
+
+		notificationManager.notify(NotificationService.NOTIFICATION_ID,
+				notification);
+
+		notifyNanos += System.nanoTime() - start;
+		notifyCount++;
+	}
+
+}
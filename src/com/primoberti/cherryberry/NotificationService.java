@@ -23,15 +23,14 @@
 
 package com.primoberti.cherryberry;
 
-import android.app.Notification;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.app.Service;
-import android.content.Context;
 import android.content.Intent;
-import android.content.res.Resources;
 import android.os.IBinder;
 
+import com.primoberti.cherryberry.diagnostics.WakeupStats;
+import com.primoberti.cherryberry.engine.PomodoroEngine.Status;
+import com.primoberti.cherryberry.engine.SessionPlan;
+
 /**
  * Service for displaying notifications related to a pomodoro.
  * 
@@ -52,11 +51,24 @@ public class NotificationService extends Service {
 
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {
-		if (intent.getAction().equals(PomodoroTimerService.POMODORO_FINISHED)) {
-			showPomodoroNotification();
+		// Every action is delivered by an alarm waking up the device
+		WakeupStats.Wakeup wakeup = WakeupStats.getInstance(this).onWakeup(
+				intent.getAction());
+		try {
+			if (intent.getAction().equals(
+					PomodoroTimerService.POMODORO_FINISHED)) {
+				showPomodoroNotification();
+			}
+			else if (intent.getAction().equals(
+					PomodoroTimerService.BREAK_FINISHED)) {
+				showBreakNotification();
+			}
+			else if (intent.getAction().equals(AutoRunHelper.PLAN_BOUNDARY)) {
+				onPlanBoundary();
+			}
 		}
-		else if (intent.getAction().equals(PomodoroTimerService.BREAK_FINISHED)) {
-			showBreakNotification();
+		finally {
+			wakeup.finish();
 		}
 
 		stopSelf();
@@ -66,56 +78,57 @@ public class NotificationService extends Service {
 
 	/* Private methods ************************* */
 
+	/**
+	 * Announces the period of the auto-run plan that starts now, or the end of
+	 * the plan, and rolls the alarm forward to the next boundary.
+	 */
+	private void onPlanBoundary() {
+		SessionPlan plan = AutoRunHelper.getPlan(this);
+		if (plan == null) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		int index = plan.indexAt(now);
+
+		if (AutoRunHelper.scheduleNextAlarm(this, now)) {
+			if (plan.getStatus(index) == Status.POMODORO_RUNNING) {
+				NotificationFactory.getInstance(this).showOngoing(
+						R.string.notification_title_break_finished,
+						R.string.app_name,
+						R.string.notification_text_pomodoro_running,
+						plan.getPeriodEnd(index), true);
+			}
+			else {
+				NotificationFactory.getInstance(this).showOngoing(
+						R.string.notification_title_pomodoro_finished,
+						R.string.app_name,
+						R.string.notification_text_break_running,
+						plan.getPeriodEnd(index), true);
+			}
+		}
+		else {
+			AutoRunHelper.clear(this);
+			showBreakNotification();
+		}
+	}
+
 	private void showPomodoroNotification() {
-		showNotification(NOTIFICATION_ID,
-				R.string.notification_title_pomodoro_finished,
+		showNotification(R.string.notification_title_pomodoro_finished,
 				R.string.app_name,
 				R.string.notification_text_pomodoro_finished);
 	}
 
 	private void showBreakNotification() {
-		showNotification(NOTIFICATION_ID,
-				R.string.notification_title_break_finished, R.string.app_name,
+		showNotification(R.string.notification_title_break_finished,
+				R.string.app_name,
 				R.string.notification_text_break_finished);
 	}
 
-	private void showNotification(int id, int tickerText, int contentTitle,
+	private void showNotification(int tickerText, int contentTitle,
 			int contentText) {
-		Resources resources = getResources();
-
-		String ns = Context.NOTIFICATION_SERVICE;
-		NotificationManager mNotificationManager = (NotificationManager) getSystemService(ns);
-
-		int icon = R.drawable.ic_stat_generic;
-		long when = System.currentTimeMillis();
-		Notification notification = new Notification(icon,
-				resources.getString(tickerText), when);
-		notification.flags |= Notification.FLAG_AUTO_CANCEL;
-
-		if (PreferencesHelper.isNotificationVibration(this)) {
-			notification.defaults |= Notification.DEFAULT_VIBRATE;
-		}
-
-		if (PreferencesHelper.isNotificationSound(this)) {
-			notification.defaults |= Notification.DEFAULT_SOUND;
-		}
-
-		if (PreferencesHelper.isNotificationLight(this)) {
-			notification.ledARGB = 0xffd60707;
-			notification.ledOnMS = 300;
-			notification.ledOffMS = 3000;
-			notification.flags |= Notification.FLAG_SHOW_LIGHTS;
-		}
-
-		Context context = getApplicationContext();
-		Intent notificationIntent = new Intent(this, CherryBerryActivity.class);
-		PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
-				notificationIntent, 0);
-		notification.setLatestEventInfo(context,
-				resources.getString(contentTitle),
-				resources.getString(contentText), contentIntent);
-
-		mNotificationManager.notify(id, notification);
+		NotificationFactory.getInstance(this).showFinished(tickerText,
+				contentTitle, contentText);
 	}
 
 }
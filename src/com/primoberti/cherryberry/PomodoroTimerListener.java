@@ -34,6 +34,12 @@ public interface PomodoroTimerListener {
 
 	public void onBreakFinish(PomodoroTimerService timer);
 
+	/**
+	 * Called when a period starts without user interaction, e.g. while
+	 * following an auto-run plan or when a plan is started.
+	 */
+	public void onPeriodStart(PomodoroTimerService timer);
+
 	public void onTick(PomodoroTimerService timer, long millisUntilFinished);
 
 }
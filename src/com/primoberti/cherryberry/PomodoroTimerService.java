@@ -23,44 +23,80 @@
 
 package com.primoberti.cherryberry;
 
-import java.util.Date;
+import java.io.File;
+import java.io.IOException;
 
 import android.app.AlarmManager;
-import android.app.Notification;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
-import android.content.res.Resources;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.os.Binder;
-import android.os.CountDownTimer;
+import android.os.Handler;
 import android.os.IBinder;
-import android.text.format.DateFormat;
+import android.os.PowerManager;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
+import com.primoberti.cherryberry.diagnostics.WakeupStats;
+import com.primoberti.cherryberry.engine.AlignedTicker;
+import com.primoberti.cherryberry.engine.EventLog;
+import com.primoberti.cherryberry.engine.PomodoroEngine;
+import com.primoberti.cherryberry.engine.PomodoroEngine.Status;
+import com.primoberti.cherryberry.engine.SessionPlan;
+import com.primoberti.cherryberry.history.InterruptionLog;
+import com.primoberti.cherryberry.history.Session;
+import com.primoberti.cherryberry.history.Session.Interruption;
+import com.primoberti.cherryberry.history.Session.Outcome;
+import com.primoberti.cherryberry.history.SessionStore;
+
 /**
- * Timer-related functionality to control a pomodoro.
+ * Timer-related functionality to control a pomodoro. The state machine itself
+ * lives in {@link PomodoroEngine}; this service persists its state and takes
+ * care of the alarms and notifications.
+ * 
+ * The activity binds to the service while it is shown. While a period runs
+ * the service is also started and in the foreground, so the live count down
+ * keeps going after the activity is gone.
  * 
  * @author berti
  */
 public class PomodoroTimerService extends Service {
 
-	/* Public enumerations ********************* */
-
-	public enum Status {
-		IDLE, POMODORO_RUNNING, POMODORO_FINISHED, BREAK_RUNNING, BREAK_FINISHED
-	};
-
 	/* Public constants ************************ */
 
 	public final static String BREAK_FINISHED = "com.primoberti.cherryberry.BREAK_FINISHED";
 
 	public final static String POMODORO_FINISHED = "com.primoberti.cherryberry.POMODORO_FINISHED";
 
+	/** Records an internal interruption of the running pomodoro. */
+	public final static String RECORD_INTERNAL_INTERRUPTION = "com.primoberti.cherryberry.RECORD_INTERNAL_INTERRUPTION";
+
+	/** Records an external interruption of the running pomodoro. */
+	public final static String RECORD_EXTERNAL_INTERRUPTION = "com.primoberti.cherryberry.RECORD_EXTERNAL_INTERRUPTION";
+
+	/**
+	 * Starts a break if a pomodoro has just finished, or else a pomodoro,
+	 * unless one is running.
+	 */
+	public final static String START_NEXT_PERIOD = "com.primoberti.cherryberry.START_NEXT_PERIOD";
+
+	/** Stops the running pomodoro or break. */
+	public final static String STOP_PERIOD = "com.primoberti.cherryberry.STOP_PERIOD";
+
 	/* Private constants *********************** */
 
+	private final static String EVENT_LOG_FILE = "timer_events.log";
+
+	private final static String INTERRUPTION_LOG_FILE = "interruptions.log";
+
+	/**
+	 * Preferences file where the state was saved before the event log was
+	 * introduced; only read to migrate existing state.
+	 */
 	private final static String SHARED_PREFS = PomodoroTimerService.class
 			+ "_SHARED_PREFS";
 
@@ -70,20 +106,115 @@ public class PomodoroTimerService extends Service {
 
 	private final static String PREF_TIMER_END = "timerEnd";
 
+	/** Preferences file with the task the last pomodoro was started for. */
+	private final static String TASK_PREFS = PomodoroTimerService.class
+			+ "_TASK_PREFS";
+
+	private final static String PREF_TASK = "task";
+
+	private final static String PREF_TASK_START = "taskStart";
+
 	/* Private fields ************************** */
 
-	private Status status;
+	private Handler handler;
 
-	private InternalTimer timer;
+	private PomodoroEngine engine;
 
-	private long timerStart;
+	/** Auto-run plan being followed, or null. */
+	private SessionPlan plan;
 
-	private long timerEnd;
+	private EventLog eventLog;
 
-	private PomodoroTimerListener listener;
+	private NotificationFactory notificationFactory;
+
+	private SessionStore sessionStore;
+
+	private InterruptionLog interruptionLog;
+
+	private AlarmManager alarmManager;
+
+	private WakeupStats wakeupStats;
+
+	private LiveNotification liveNotification;
+
+	/** Id of the task of the pomodoro started at {@link #taskStart}, or null. */
+	private String task;
+
+	private long taskStart;
+
+	/** Whether the service is started and in the foreground. */
+	private boolean foreground;
+
+	private BroadcastReceiver screenReceiver = new BroadcastReceiver() {
+
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			liveNotification.setScreenOn(Intent.ACTION_SCREEN_ON.equals(intent
+					.getAction()));
+			updateTickInterval();
+		}
+
+	};
+
+	/**
+	 * Follows the live notification setting. Must be kept strongly
+	 * referenced, as the preferences only keep a weak reference.
+	 */
+	private OnSharedPreferenceChangeListener preferenceListener = new OnSharedPreferenceChangeListener() {
+
+		@Override
+		public void onSharedPreferenceChanged(
+				SharedPreferences sharedPreferences, String key) {
+			if (key.equals(getString(R.string.settings_key_notification_live))) {
+				// The settings snapshot may not have been dropped yet
+				updateTickInterval(PreferencesHelper.readSettings(
+						PomodoroTimerService.this).isNotificationLive());
+			}
+		}
+
+	};
+
+	private final TimerEventBus bus = new TimerEventBus();
 
 	private IBinder binder = new LocalBinder();
 
+	private final Runnable syncWithPlanTask = new Runnable() {
+
+		@Override
+		public void run() {
+			syncWithPlan();
+		}
+
+	};
+
+	private final Runnable updateForegroundTask = new Runnable() {
+
+		@Override
+		public void run() {
+			updateForeground();
+		}
+
+	};
+
+	/* Public static methods ******************* */
+
+	/**
+	 * Returns the last state saved by the service, or null if there is none.
+	 * Reads the end of a small file without waiting for the service's
+	 * writes, so it is cheap enough to show the timer before the service is
+	 * bound, but the state may be out of date if a period has ended since.
+	 */
+	public static EventLog.State readSnapshot(Context context) {
+		try {
+			return EventLog.readState(new File(context.getFilesDir(),
+					EVENT_LOG_FILE));
+		}
+		catch (IOException e) {
+			Log.e("PomodoroTimerService", "Can't read event log", e);
+			return null;
+		}
+	}
+
 	/* Public methods ************************** */
 
 	@Override
@@ -97,14 +228,96 @@ public class PomodoroTimerService extends Service {
 	public void onCreate() {
 		Log.d("PomodoroTimerService", "onCreate");
 
+		handler = new Handler();
+
+		engine = new PomodoroEngine(AndroidClock.INSTANCE,
+				new HandlerScheduler(handler),
+				AlignedTicker.GRANULARITY_BACKGROUND);
+		engine.setListener(new EngineListener());
+
+		eventLog = new EventLog(new File(getFilesDir(), EVENT_LOG_FILE));
+		interruptionLog = new InterruptionLog(new File(getFilesDir(),
+				INTERRUPTION_LOG_FILE));
+
+		notificationFactory = NotificationFactory.getInstance(this);
+		sessionStore = SessionStore.getInstance(this);
+		alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+		wakeupStats = WakeupStats.getInstance(this);
+
+		liveNotification = new LiveNotification(notificationFactory, handler);
+		liveNotification.setScreenOn(((PowerManager) getSystemService(POWER_SERVICE))
+				.isScreenOn());
+
+		IntentFilter filter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+		filter.addAction(Intent.ACTION_SCREEN_OFF);
+		registerReceiver(screenReceiver, filter);
+		PreferenceManager.getDefaultSharedPreferences(this)
+				.registerOnSharedPreferenceChangeListener(preferenceListener);
+
+		// A pomodoro that finished meanwhile is recorded with its task
+		restoreTask();
 		restoreState();
+
+		plan = AutoRunHelper.getPlan(this);
+		if (plan != null) {
+			syncWithPlan();
+		}
+
+		if (engine.isRunning()) {
+			// The notification may have been left by a process that died
+			showPersistentNotification();
+		}
+		handler.post(updateForegroundTask);
+		updateTickInterval();
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		if (intent != null) {
+			if (RECORD_INTERNAL_INTERRUPTION.equals(intent.getAction())) {
+				recordInterruption(Interruption.INTERNAL);
+			}
+			else if (RECORD_EXTERNAL_INTERRUPTION.equals(intent.getAction())) {
+				recordInterruption(Interruption.EXTERNAL);
+			}
+			else if (START_NEXT_PERIOD.equals(intent.getAction())) {
+				if (engine.getStatus() == Status.POMODORO_FINISHED) {
+					startBreak();
+				}
+				else if (!engine.isRunning()) {
+					startPomodoro();
+				}
+			}
+			else if (STOP_PERIOD.equals(intent.getAction())) {
+				stop();
+			}
+		}
+
+		// Keeps running while bound, or while a period runs
+		if (!engine.isRunning()) {
+			stopSelf(startId);
+			return START_NOT_STICKY;
+		}
+
+		return START_STICKY;
 	}
 
 	@Override
 	public void onDestroy() {
 		Log.d("PomodoroTimerService", "onDestroy");
 
-		cancelTimer();
+		liveNotification.cancel();
+		if (engine.isRunning()) {
+			// Nothing updates the live count down from now on
+			showPersistentNotification();
+		}
+
+		engine.shutdown();
+		handler.removeCallbacks(syncWithPlanTask);
+		handler.removeCallbacks(updateForegroundTask);
+		unregisterReceiver(screenReceiver);
+		PreferenceManager.getDefaultSharedPreferences(this)
+				.unregisterOnSharedPreferenceChangeListener(preferenceListener);
 
 		super.onDestroy();
 	}
@@ -115,62 +328,182 @@ public class PomodoroTimerService extends Service {
 	 * @see #setPomodoroDuration(long)
 	 */
 	public void startPomodoro() {
-		startPomodoro(PreferencesHelper.getPomodoroDuration(this));
+		startPomodoro(null);
 	}
 
 	/**
-	 * Start a pomodoro count down timer with the remaining time, but don't set
-	 * any alarm. Use this to continue an existing count down after the timer
-	 * was shutdown.
+	 * Start a pomodoro for the given task with the default pomodoro duration.
+	 * The task id is recorded with the pomodoro in the history.
 	 * 
-	 * @param millis the remaining duration of the pomodoro
+	 * @param taskId id of a {@link com.primoberti.cherryberry.tasks.Task}, or
+	 *            null
 	 */
-	public void continuePomodoro(long millis) {
-		startPomodoroTimer(millis);
+	public void startPomodoro(String taskId) {
+		long millis = PreferencesHelper.getPomodoroDuration(this);
+		if (millis > 0) {
+			cancelPlan();
+			startPomodoro(millis);
+			setTask(taskId, engine.getTimerStart());
+		}
 	}
 
 	/**
-	 * Start a break with the default break duration.
-	 * 
-	 * @see #setBreakDuration(long)
+	 * Start a break with the default break duration, or the long break
+	 * duration if enough pomodoros have been completed since the last one.
 	 */
 	public void startBreak() {
-		startBreak(PreferencesHelper.getBreakDuration(this));
+		long millis = getNextBreakDuration();
+		if (millis > 0) {
+			cancelPlan();
+			startBreak(millis);
+		}
 	}
 
 	/**
-	 * Start a break count down timer with the remaining time, but don't set any
-	 * alarm. Use this to continue an existing count down after the timer was
-	 * shutdown.
-	 * 
-	 * @param millis the remaining duration of the break
+	 * Returns true if the next break will be a long one.
 	 */
-	public void continueBreak(long millis) {
-		startBreakTimer(millis);
+	public boolean isLongBreakNext() {
+		engine.setLongBreakInterval(PreferencesHelper.getLongBreakInterval(this));
+		return engine.isLongBreakNext();
 	}
 
 	/**
 	 * Cancels the current count down timer.
 	 */
 	public void stop() {
-		cancelTimer();
+		if (engine.isRunning()) {
+			recordSession(Outcome.STOPPED);
+		}
+
+		cancelPlan();
 		cancelAlarms();
 		hidePersistentNotification();
 
-		setIdle();
+		engine.stop();
 	}
 
 	public void skip() {
-		stop();
+		if (engine.isRunning()) {
+			recordSession(Outcome.SKIPPED);
+		}
+		else if (engine.getStatus() == Status.POMODORO_FINISHED) {
+			long now = System.currentTimeMillis();
+			sessionStore.record(createSession(Session.Type.BREAK, now, now,
+					getNextBreakDuration(), Outcome.SKIPPED));
+		}
+
+		cancelPlan();
+		cancelAlarms();
+		hidePersistentNotification();
+
+		engine.skip();
+	}
+
+	/**
+	 * Replaces the timer state, e.g. with the one in a backup. Any auto-run
+	 * plan is dropped. A period that is still running gets its alarm and
+	 * notification back, and one that ended meanwhile is finished as usual.
+	 */
+	public void replaceState(EventLog.State state) {
+		cancelPlan();
+		cancelAlarms();
+		hidePersistentNotification();
+
+		engine.restore(state.getStatus(), state.getTimerStart(),
+				state.getTimerEnd(), state.getCompletedPomodoros());
+		// Restoring the same status doesn't notify the listener
+		saveState();
+
+		long remaining = engine.getTimerEnd() - System.currentTimeMillis();
+		if (engine.getStatus() == Status.POMODORO_RUNNING) {
+			setPomodoroAlarm(remaining);
+			showPersistentPomodoroNotification(remaining);
+		}
+		else if (engine.getStatus() == Status.BREAK_RUNNING) {
+			setBreakAlarm(remaining);
+			showPersistentBreakNotification(remaining);
+		}
+		handler.post(updateForegroundTask);
+	}
+
+	/**
+	 * Runs pomodoros and breaks back to back until the next long break,
+	 * without waiting for the user in between. Any running period is stopped
+	 * first.
+	 * 
+	 * @return false if the settings have a duration that isn't positive, in
+	 *         which case nothing is started or stopped
+	 */
+	public boolean startPlan() {
+		long now = System.currentTimeMillis();
+		SessionPlan newPlan = AutoRunHelper.createPlan(this, now,
+				engine.getCompletedPomodoros());
+		if (newPlan == null) {
+			return false;
+		}
+
+		if (engine.isRunning()) {
+			stop();
+		}
+		cancelAlarms();
+
+		plan = newPlan;
+		AutoRunHelper.start(this, plan);
+
+		syncWithPlan();
+		showPersistentPomodoroNotification(plan.getPeriodEnd(0) - now);
+		return true;
+	}
+
+	/**
+	 * Logs an interruption of the running pomodoro, to be recorded with it in
+	 * the history.
+	 * 
+	 * @return false if no pomodoro is running
+	 */
+	public boolean recordInterruption(Interruption kind) {
+		if (engine.getStatus() != Status.POMODORO_RUNNING) {
+			return false;
+		}
+
+		interruptionLog.record(engine.getTimerStart(), kind,
+				System.currentTimeMillis());
+		return true;
+	}
+
+	/**
+	 * Returns the interruptions of either kind logged for the running
+	 * pomodoro.
+	 */
+	public int getInterruptionCount() {
+		return engine.getStatus() == Status.POMODORO_RUNNING ? interruptionLog
+				.getCount(engine.getTimerStart()) : 0;
+	}
+
+	/**
+	 * Returns the id of the task of the running or just finished pomodoro, or
+	 * null.
+	 */
+	public String getTask() {
+		Status status = engine.getStatus();
+		boolean pomodoro = status == Status.POMODORO_RUNNING
+				|| status == Status.POMODORO_FINISHED;
+		return pomodoro && engine.getTimerStart() == taskStart ? task : null;
+	}
+
+	/**
+	 * Returns true while an auto-run plan is being followed.
+	 */
+	public boolean isPlanRunning() {
+		return plan != null;
 	}
 
 	public Status getStatus() {
-		return status;
+		return engine.getStatus();
 	}
 
 	public boolean isRunning() {
-		return status == Status.POMODORO_RUNNING
-				|| status == Status.BREAK_RUNNING;
+		return engine.isRunning();
 	}
 
 	/**
@@ -179,7 +512,7 @@ public class PomodoroTimerService extends Service {
 	 * @return start time of the current count down timer
 	 */
 	public long getTimerStart() {
-		return timerStart;
+		return engine.getTimerStart();
 	}
 
 	/**
@@ -188,128 +521,292 @@ public class PomodoroTimerService extends Service {
 	 * @return start time of the current count down timer
 	 */
 	public long getTimerEnd() {
-		return timerEnd;
+		return engine.getTimerEnd();
 	}
 
-	public PomodoroTimerListener getListener() {
-		return listener;
+	/**
+	 * Subscribes a listener for timer events, delivered on the main thread
+	 * with a tick per second.
+	 */
+	public void addListener(PomodoroTimerListener listener) {
+		bus.addListener(listener);
+
+		updateTickInterval();
 	}
 
-	public void setListener(PomodoroTimerListener listener) {
-		this.listener = listener;
+	/**
+	 * Subscribes a listener for timer events. While there are no listeners,
+	 * and no live count down in the notification on screen, the count down
+	 * only ticks once a minute.
+	 * 
+	 * @param listener the listener
+	 * @param handler handler to receive the events on, or null for the main
+	 *            thread
+	 * @param tickInterval milliseconds of count down between ticks
+	 * @see TimerEventBus#addListener(PomodoroTimerListener, Handler, long)
+	 */
+	public void addListener(PomodoroTimerListener listener, Handler handler,
+			long tickInterval) {
+		bus.addListener(listener, handler, tickInterval);
 
-		if (timer != null) {
-			timer.setListener(listener);
-		}
+		updateTickInterval();
+	}
+
+	public void removeListener(PomodoroTimerListener listener) {
+		bus.removeListener(listener);
+
+		updateTickInterval();
+	}
+
+	/**
+	 * Returns the ticker driving the count down, for its jitter statistics.
+	 */
+	public AlignedTicker getTicker() {
+		return engine.getTicker();
+	}
+
+	/**
+	 * Returns the live count down notification, for its update counts.
+	 */
+	public LiveNotification getLiveNotification() {
+		return liveNotification;
 	}
 
 	/* Private methods ************************* */
 
 	/**
-	 * Start a pomodoro count down timer.
+	 * Start a pomodoro count down timer, unless the duration isn't positive.
 	 * 
 	 * @param millis the duration of the pomodoro
 	 */
 	private void startPomodoro(long millis) {
-		startPomodoroTimer(millis);
-		setPomodoroAlarm(millis);
-		showPersistentPomodoroNotification(millis);
+		if (millis > 0) {
+			// A break may be running
+			cancelAlarms();
+			engine.startPomodoro(millis);
+			setPomodoroAlarm(millis);
+			showPersistentPomodoroNotification(millis);
+		}
 	}
 
 	/**
-	 * Start a break countdown timer.
+	 * Start a break countdown timer, unless the duration isn't positive.
 	 * 
 	 * @param millis the duration of the break
 	 */
 	private void startBreak(long millis) {
-		if (status != Status.POMODORO_FINISHED) {
-			throw new IllegalStateException("Can't start break in " + status
-					+ " state");
+		if (millis > 0) {
+			engine.startBreak(millis);
+			setBreakAlarm(millis);
+			showPersistentBreakNotification(millis);
 		}
-
-		startBreakTimer(millis);
-		setBreakAlarm(millis);
-		showPersistentBreakNotification(millis);
 	}
 
-	private void saveState() {
-		Log.d("PomodoroTimerService", "saveState " + status.toString());
+	private long getNextBreakDuration() {
+		return isLongBreakNext() ? PreferencesHelper.getLongBreakDuration(this)
+				: PreferencesHelper.getBreakDuration(this);
+	}
 
-		SharedPreferences preferences = getSharedPreferences(SHARED_PREFS,
-				MODE_PRIVATE);
-		SharedPreferences.Editor editor = preferences.edit();
+	/**
+	 * Ticks as often as the most demanding listener asks for, every second
+	 * while the live notification is on screen, and once a minute otherwise.
+	 */
+	private void updateTickInterval() {
+		updateTickInterval(PreferencesHelper.isNotificationLive(this));
+	}
 
-		editor.putInt(PREF_STATUS, status.ordinal());
-		editor.putLong(PREF_TIMER_START, timerStart);
-		editor.putLong(PREF_TIMER_END, timerEnd);
+	/**
+	 * @param notificationLive whether the live notification is enabled
+	 */
+	private void updateTickInterval(boolean notificationLive) {
+		boolean live = notificationLive && liveNotification.isScreenOn();
 
-		editor.commit();
+		long interval = Math.min(bus.getMinTickInterval(),
+				live ? AlignedTicker.GRANULARITY_TEXT
+						: AlignedTicker.GRANULARITY_BACKGROUND);
+		engine.setTickInterval(Math.max(interval,
+				AlignedTicker.GRANULARITY_ANIMATION));
 	}
 
-	private void restoreState() {
-		SharedPreferences preferences = getSharedPreferences(SHARED_PREFS,
-				MODE_PRIVATE);
+	/**
+	 * Moves the engine to the period of the plan running now, recording the
+	 * periods that ended while the service wasn't running, or ends the plan
+	 * once it is over. The engine is restored with the exact boundaries of the
+	 * plan, so it never drifts from the alarm.
+	 */
+	private void syncWithPlan() {
+		long now = System.currentTimeMillis();
+		if (!engine.isRunning()) {
+			// The engine may finish a period slightly before its end time
+			now = Math.max(now, engine.getTimerEnd());
+		}
 
-		status = Status.values()[preferences.getInt(PREF_STATUS,
-				Status.IDLE.ordinal())];
-		timerStart = preferences.getLong(PREF_TIMER_START, 0);
-		timerEnd = preferences.getLong(PREF_TIMER_END, 0);
+		int index = plan.indexAt(now);
+		if (index < plan.getPeriodCount() && engine.isRunning()
+				&& engine.getTimerEnd() == plan.getPeriodEnd(index)) {
+			return;
+		}
 
-		Log.d("PomodoroTimerService", "restoreState " + status.toString());
+		int known = engine.getTimerStart() > 0 ? plan.indexAt(engine
+				.getTimerStart()) : index - 1;
+		for (int i = Math.max(known + 1, 0); i < index
+				&& i < plan.getPeriodCount(); i++) {
+			sessionStore.record(createSession(
+					getSessionType(plan.getStatus(i)), plan.getPeriodStart(i),
+					plan.getPeriodEnd(i),
+					plan.getPeriodEnd(i) - plan.getPeriodStart(i),
+					Outcome.FINISHED));
+		}
 
-		if (status == Status.POMODORO_RUNNING) {
-			if (timerEnd > System.currentTimeMillis()) {
-				continuePomodoro(timerEnd - System.currentTimeMillis());
-			}
-			else {
-				status = Status.POMODORO_FINISHED;
-			}
+		if (index >= plan.getPeriodCount()) {
+			finishPlan();
 		}
-		else if (status == Status.BREAK_RUNNING) {
-			if (timerEnd > System.currentTimeMillis()) {
-				continueBreak(timerEnd - System.currentTimeMillis());
-			}
-			else {
-				status = Status.BREAK_FINISHED;
-			}
+		else {
+			engine.restore(plan.getStatus(index), plan.getPeriodStart(index),
+					plan.getPeriodEnd(index),
+					plan.getCompletedPomodoros(index));
+			// Restoring the same status doesn't notify the listener
+			saveState();
+		}
+	}
+
+	/**
+	 * Forgets the plan once its last break is over, leaving the engine in its
+	 * finished status.
+	 */
+	private void finishPlan() {
+		// The alarm for the end of the plan may not have gone off yet
+		AutoRunHelper.clear(this);
+		plan = null;
+
+		if (engine.getStatus() == Status.BREAK_FINISHED) {
+			bus.dispatchBreakFinish(this);
 		}
 	}
 
-	private void cancelTimer() {
-		if (timer != null) {
-			timer.cancel();
-			timer = null;
+	private void cancelPlan() {
+		if (plan != null) {
+			AutoRunHelper.clear(this);
+			plan = null;
+			handler.removeCallbacks(syncWithPlanTask);
 		}
 	}
 
-	private void startPomodoroTimer(long millis) {
-		if (millis > 0) {
-			startTimer(millis);
-			status = Status.POMODORO_RUNNING;
+	/**
+	 * Records the running period in the history as ending now.
+	 */
+	private void recordSession(Outcome outcome) {
+		sessionStore.record(createSession(getSessionType(engine.getStatus()),
+				engine.getTimerStart(), System.currentTimeMillis(),
+				engine.getTimerEnd() - engine.getTimerStart(), outcome));
+	}
 
-			saveState();
+	/**
+	 * Creates a session for the history, folding in the interruptions logged
+	 * for it, which are then dropped from the log.
+	 */
+	private Session createSession(Session.Type type, long start, long end,
+			long plannedDuration, Outcome outcome) {
+		int internal = interruptionLog.getCount(start, Interruption.INTERNAL);
+		int external = interruptionLog.getCount(start, Interruption.EXTERNAL);
+		if (internal + external > 0) {
+			interruptionLog.clear();
 		}
-	}
 
-	private void startBreakTimer(long millis) {
-		if (millis > 0) {
-			startTimer(millis);
-			status = Status.BREAK_RUNNING;
+		String sessionTask = type == Session.Type.POMODORO
+				&& start == taskStart ? task : null;
 
-			saveState();
+		return new Session(type, start, end, plannedDuration, outcome,
+				sessionTask, internal, external);
+	}
+
+	/**
+	 * Remembers the task of the pomodoro started at the given time, so it
+	 * survives the service being restarted.
+	 */
+	private void setTask(String taskId, long start) {
+		task = taskId;
+		taskStart = start;
+
+		SharedPreferences.Editor editor = getSharedPreferences(TASK_PREFS,
+				MODE_PRIVATE).edit();
+		if (taskId != null) {
+			editor.putString(PREF_TASK, taskId);
+			editor.putLong(PREF_TASK_START, start);
+		}
+		else {
+			editor.clear();
+		}
+		// Called from the main thread, so write in the background if possible
+		if (android.os.Build.VERSION.SDK_INT >= 9) {
+			editor.apply();
+		}
+		else {
+			editor.commit();
 		}
 	}
 
-	private void startTimer(long millis) {
-		if (isRunning()) {
-			cancelTimer();
+	private void restoreTask() {
+		SharedPreferences preferences = getSharedPreferences(TASK_PREFS,
+				MODE_PRIVATE);
+		task = preferences.getString(PREF_TASK, null);
+		taskStart = preferences.getLong(PREF_TASK_START, 0);
+	}
+
+	private Session.Type getSessionType(Status status) {
+		return status == Status.POMODORO_RUNNING
+				|| status == Status.POMODORO_FINISHED ? Session.Type.POMODORO
+				: Session.Type.BREAK;
+	}
+
+	/**
+	 * Queues the last transition to be appended to the event log. The write
+	 * happens in the background, so this is safe to call on every transition.
+	 */
+	private void saveState() {
+		Status status = engine.getStatus();
+
+		Log.d("PomodoroTimerService", "saveState " + status.toString());
+
+		eventLog.append(engine);
+		TimerWidgetProvider.update(this, new EventLog.State(status,
+				engine.getTimerStart(), engine.getTimerEnd(),
+				engine.getCompletedPomodoros()));
+	}
+
+	private void restoreState() {
+		Status status = Status.IDLE;
+		long timerStart = 0;
+		long timerEnd = 0;
+		int completedPomodoros = 0;
+
+		EventLog.State state = null;
+		try {
+			state = eventLog.restore();
+		}
+		catch (IOException e) {
+			Log.e("PomodoroTimerService", "Can't read event log", e);
 		}
 
-		timer = new InternalTimer(millis, 1000, listener);
-		timer.start();
+		if (state != null) {
+			status = state.getStatus();
+			timerStart = state.getTimerStart();
+			timerEnd = state.getTimerEnd();
+			completedPomodoros = state.getCompletedPomodoros();
+		}
+		else if (!eventLog.exists()) {
+			SharedPreferences preferences = getSharedPreferences(
+					SHARED_PREFS, MODE_PRIVATE);
+
+			status = Status.values()[preferences.getInt(PREF_STATUS,
+					Status.IDLE.ordinal())];
+			timerStart = preferences.getLong(PREF_TIMER_START, 0);
+			timerEnd = preferences.getLong(PREF_TIMER_END, 0);
+		}
+
+		Log.d("PomodoroTimerService", "restoreState " + status.toString());
 
-		timerStart = System.currentTimeMillis();
-		timerEnd = timerStart + millis;
+		engine.restore(status, timerStart, timerEnd, completedPomodoros);
 	}
 
 	/**
@@ -340,93 +837,84 @@ public class PomodoroTimerService extends Service {
 	private void setAlarm(long millis, String action) {
 		long finishTime = System.currentTimeMillis() + millis;
 
-		Intent intent = new Intent(this, NotificationService.class);
-		intent.setAction(action);
-		PendingIntent pendingIntent = PendingIntent.getService(this, 0, intent,
-				0);
-
-		AlarmManager alarmManager = (AlarmManager) this
-				.getSystemService(Context.ALARM_SERVICE);
-		alarmManager.set(AlarmManager.RTC_WAKEUP, finishTime, pendingIntent);
+		alarmManager.set(AlarmManager.RTC_WAKEUP, finishTime,
+				notificationFactory.getAlarmIntent(action));
+		wakeupStats.onAlarmSet(action, finishTime);
 	}
 
+	/**
+	 * Cancels the alarm of the running period, the only one that is ever set.
+	 */
 	private void cancelAlarms() {
-		cancelAlarm(POMODORO_FINISHED);
-		cancelAlarm(BREAK_FINISHED);
+		if (engine.getStatus() == Status.POMODORO_RUNNING) {
+			cancelAlarm(POMODORO_FINISHED);
+		}
+		else if (engine.getStatus() == Status.BREAK_RUNNING) {
+			cancelAlarm(BREAK_FINISHED);
+		}
 	}
 
 	private void cancelAlarm(String action) {
-		Intent intent = new Intent(this, NotificationService.class);
-		intent.setAction(action);
-		PendingIntent pendingIntent = PendingIntent.getService(this, 0, intent,
-				0);
-
-		AlarmManager alarmManager = (AlarmManager) this
-				.getSystemService(Context.ALARM_SERVICE);
-		alarmManager.cancel(pendingIntent);
+		alarmManager.cancel(notificationFactory.getAlarmIntent(action));
+		wakeupStats.onAlarmCancelled(action);
 	}
 
 	private void showPersistentPomodoroNotification(long millis) {
-		showPersistentNotification(NotificationService.NOTIFICATION_ID,
+		notificationFactory.showOngoing(
 				R.string.notification_title_pomodoro_running,
 				R.string.app_name,
-				R.string.notification_text_pomodoro_running, millis);
+				R.string.notification_text_pomodoro_running,
+				finishTime(millis));
 	}
 
 	private void showPersistentBreakNotification(long millis) {
-		showPersistentNotification(NotificationService.NOTIFICATION_ID,
+		notificationFactory.showOngoing(
 				R.string.notification_title_break_running, R.string.app_name,
-				R.string.notification_text_break_running, millis);
+				R.string.notification_text_break_running, finishTime(millis));
 	}
 
-	private void showPersistentNotification(int id, int tickerTextId,
-			int contentTitleId, int contentTextId, long millis) {
-		long finishTime = System.currentTimeMillis() + millis;
-
-		Resources resources = getResources();
-
-		String ns = Context.NOTIFICATION_SERVICE;
-		NotificationManager mNotificationManager = (NotificationManager) getSystemService(ns);
-
-		int icon = R.drawable.ic_stat_generic;
-		long when = System.currentTimeMillis();
-		Notification notification = new Notification(icon,
-				resources.getString(tickerTextId), when);
-		notification.flags |= Notification.FLAG_ONGOING_EVENT;
-
-		Date date = new Date(finishTime);
-		java.text.DateFormat dateFormat = DateFormat
-				.getTimeFormat(getApplicationContext());
-		String contentTextFormat = getResources().getString(contentTextId);
-		String contentText2 = String.format(contentTextFormat,
-				dateFormat.format(date));
-
-		Context context = getApplicationContext();
-		Intent notificationIntent = new Intent(this, CherryBerryActivity.class);
-		PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
-				notificationIntent, 0);
-		notification.setLatestEventInfo(context,
-				resources.getString(contentTitleId), contentText2,
-				contentIntent);
-
-		mNotificationManager.notify(id, notification);
+	/**
+	 * Shows the persistent notification of the running period, with its
+	 * finish time rather than a live count down.
+	 */
+	private void showPersistentNotification() {
+		long remaining = engine.getTimerEnd() - System.currentTimeMillis();
+		if (engine.getStatus() == Status.POMODORO_RUNNING) {
+			showPersistentPomodoroNotification(remaining);
+		}
+		else {
+			showPersistentBreakNotification(remaining);
+		}
 	}
 
 	private void hidePersistentNotification() {
-		String ns = Context.NOTIFICATION_SERVICE;
-		NotificationManager mNotificationManager = (NotificationManager) getSystemService(ns);
-
-		mNotificationManager.cancel(NotificationService.NOTIFICATION_ID);
+		// The notification of a foreground service can't be cancelled
+		stopForeground(true);
+		foreground = false;
+		notificationFactory.cancel();
 	}
 
-	private void setIdle() {
-		Log.d("PomodoroTimerService", "setIdle");
-
-		status = Status.IDLE;
-		timerStart = 0;
-		timerEnd = 0;
-
-		saveState();
+	/**
+	 * Keeps the service started and in the foreground while a period runs,
+	 * so it outlives the activity and keeps the live count down going, and
+	 * stops it once no period runs. Posted after every transition, so the
+	 * notification of a new period is shown by then.
+	 */
+	private void updateForeground() {
+		if (engine.isRunning()) {
+			if (!foreground) {
+				startService(new Intent(this, PomodoroTimerService.class));
+				startForeground(NotificationService.NOTIFICATION_ID,
+						notificationFactory.getOngoingNotification());
+				foreground = true;
+			}
+		}
+		else {
+			// Leaves the last notification, e.g. the finished one, in place
+			stopForeground(false);
+			foreground = false;
+			stopSelf();
+		}
 	}
 
 	/**
@@ -449,46 +937,63 @@ public class PomodoroTimerService extends Service {
 
 	/* Private inner classes ******************* */
 
-	private class InternalTimer extends CountDownTimer {
+	/**
+	 * Persists every transition of the engine and forwards its events to the
+	 * {@link PomodoroTimerListener}s.
+	 */
+	private class EngineListener implements PomodoroEngine.Listener {
 
-		private PomodoroTimerListener listener;
+		@Override
+		public void onStatusChange(PomodoroEngine engine, Status previous) {
+			saveState();
 
-		public InternalTimer(long millisInFuture, long countDownInterval,
-				PomodoroTimerListener listener) {
-			super(millisInFuture, countDownInterval);
+			if (!engine.isRunning()) {
+				liveNotification.cancel();
+			}
 
-			this.listener = listener;
-		}
+			if (previous == Status.POMODORO_RUNNING
+					&& engine.getStatus() == Status.POMODORO_FINISHED
+					|| previous == Status.BREAK_RUNNING
+					&& engine.getStatus() == Status.BREAK_FINISHED) {
+				sessionStore.record(createSession(getSessionType(previous),
+						engine.getTimerStart(), engine.getTimerEnd(),
+						engine.getTimerEnd() - engine.getTimerStart(),
+						Outcome.FINISHED));
+			}
 
-		@Override
-		public void onFinish() {
-			if (status == Status.POMODORO_RUNNING) {
-				status = Status.POMODORO_FINISHED;
-				if (listener != null) {
-					listener.onPomodoroFinish(PomodoroTimerService.this);
-				}
+			if (plan != null && !engine.isRunning()) {
+				// Move on to the next period outside of this transition
+				handler.post(syncWithPlanTask);
+				handler.post(updateForegroundTask);
+				return;
 			}
-			else if (status == Status.BREAK_RUNNING) {
-				status = Status.BREAK_FINISHED;
-				if (listener != null) {
-					listener.onBreakFinish(PomodoroTimerService.this);
-				}
+
+			if (previous == Status.POMODORO_RUNNING
+					&& engine.getStatus() == Status.POMODORO_FINISHED) {
+				bus.dispatchPomodoroFinish(PomodoroTimerService.this);
+			}
+			else if (previous == Status.BREAK_RUNNING
+					&& engine.getStatus() == Status.BREAK_FINISHED) {
+				bus.dispatchBreakFinish(PomodoroTimerService.this);
+			}
+			else if (engine.isRunning()) {
+				bus.dispatchPeriodStart(PomodoroTimerService.this);
 			}
+
+			handler.post(updateForegroundTask);
 		}
 
 		@Override
-		public void onTick(long millisUntilFinished) {
-			if (listener != null) {
-				listener.onTick(PomodoroTimerService.this, millisUntilFinished);
+		public void onTick(PomodoroEngine engine, long millisUntilFinished) {
+			if (PreferencesHelper.isNotificationLive(PomodoroTimerService.this)) {
+				boolean pomodoro = engine.getStatus() == Status.POMODORO_RUNNING;
+				int textId = pomodoro ? R.string.notification_text_pomodoro_remaining
+						: R.string.notification_text_break_remaining;
+				liveNotification.update(textId, millisUntilFinished,
+						engine.getTimerEnd() - engine.getTimerStart(), pomodoro);
 			}
-		}
-
-		public PomodoroTimerListener getListener() {
-			return listener;
-		}
 
-		public void setListener(PomodoroTimerListener listener) {
-			this.listener = listener;
+			bus.dispatchTick(PomodoroTimerService.this, millisUntilFinished);
 		}
 
 	}
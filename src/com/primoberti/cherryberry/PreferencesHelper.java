@@ -25,77 +25,234 @@ package com.primoberti.cherryberry;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.content.res.Resources;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
 /**
  * Abstract helper class for accessing shared preferences across CherryBerry.
  * 
+ * Values are read from a cached {@link Settings} snapshot, which is dropped
+ * whenever the preferences change and built again on the next read, so the
+ * getters don't touch the preferences nor parse anything.
+ * 
  * @author berti
  */
 public abstract class PreferencesHelper {
 
 	private final static String TAG = "PreferencesHelper";
 
+	/**
+	 * Version of the preferences in settings.xml. Must be increased whenever
+	 * a preference with a default value is added, so the default is applied
+	 * to existing installs.
+	 */
+	private final static int SETTINGS_VERSION = 1;
+
+	private final static String PREF_SETTINGS_VERSION = "settingsVersion";
+
+	/* Private static fields ******************* */
+
+	private static volatile Settings settings;
+
+	/**
+	 * Drops the snapshot when the preferences change. Must be kept strongly
+	 * referenced, as the preferences only keep a weak reference.
+	 */
+	private static OnSharedPreferenceChangeListener changeListener;
+
+	/** Changes to the preferences seen by the listener. */
+	private static volatile int changes;
+
+	/** Only for the stats screen, so updated without synchronization. */
+	private static long hits;
+
+	/** Only updated with the class lock held. */
+	private static long rebuilds;
+
 	/* Public static methods ******************* */
 
+	/**
+	 * Returns the current settings snapshot, building it if the preferences
+	 * changed since the last call. The first call also starts listening for
+	 * changes to the preferences.
+	 */
+	public static Settings getSettings(Context context) {
+		Settings current = settings;
+		if (current == null) {
+			synchronized (PreferencesHelper.class) {
+				current = settings;
+				if (current == null) {
+					current = rebuild(context);
+				}
+			}
+		}
+		else {
+			hits++;
+		}
+		return current;
+	}
+
+	/**
+	 * Reads the settings from the preferences, without the snapshot. For
+	 * listeners of the preferences, which may be called before the snapshot
+	 * is dropped.
+	 */
+	public static Settings readSettings(Context context) {
+		return buildSettings(context);
+	}
+
+	/**
+	 * Writes the default values from settings.xml to the preferences the
+	 * first time it is called for each {@link #SETTINGS_VERSION}. Any other
+	 * time it only reads the default preferences, which the settings snapshot
+	 * loads anyway, instead of parsing the XML.
+	 * 
+	 * @return true if the defaults were applied
+	 */
+	public static boolean applyDefaults(Context context) {
+		SharedPreferences preferences = PreferenceManager
+				.getDefaultSharedPreferences(context);
+		if (preferences.getInt(PREF_SETTINGS_VERSION, 0) == SETTINGS_VERSION) {
+			return false;
+		}
+
+		Log.d(TAG, "Applying defaults for settings version "
+				+ SETTINGS_VERSION);
+
+		// Only sets the preferences that don't have a value yet
+		PreferenceManager.setDefaultValues(context, R.xml.settings, true);
+		preferences.edit().putInt(PREF_SETTINGS_VERSION, SETTINGS_VERSION)
+				.commit();
+		return true;
+	}
+
+	/**
+	 * Returns how many times the settings were served from the snapshot.
+	 */
+	public static long getSettingsHits() {
+		return hits;
+	}
+
+	/**
+	 * Returns how many times the snapshot was built.
+	 */
+	public static synchronized long getSettingsRebuilds() {
+		return rebuilds;
+	}
+
 	public static int getPomodoroDurationMins(Context context) {
-		return getIntFromString(context,
-				R.string.settings_key_pomodoro_duration,
-				R.integer.settings_default_pomodoro_duration);
+		return getSettings(context).getPomodoroDurationMins();
 	}
 
 	public static int getBreakDurationMins(Context context) {
-		return getIntFromString(context, R.string.settings_key_break_duration,
-				R.integer.settings_default_break_duration);
+		return getSettings(context).getBreakDurationMins();
 	}
 
 	public static int getLongBreakDurationMins(Context context) {
-		return getIntFromString(context,
-				R.string.settings_key_long_break_duration, 15);
+		return getSettings(context).getLongBreakDurationMins();
+	}
+
+	public static int getLongBreakInterval(Context context) {
+		return getSettings(context).getLongBreakInterval();
 	}
 
 	public static long getPomodoroDuration(Context context) {
-		return getPomodoroDurationMins(context) * 60 * 1000;
+		return getSettings(context).getPomodoroDuration();
 	}
 
 	public static long getBreakDuration(Context context) {
-		return getBreakDurationMins(context) * 60 * 1000;
+		return getSettings(context).getBreakDuration();
 	}
 
 	public static long getLongBreakDuration(Context context) {
-		return getLongBreakDurationMins(context) * 60 * 1000;
+		return getSettings(context).getLongBreakDuration();
 	}
 
 	public static boolean isNotificationLight(Context context) {
-		return getBoolean(context, R.string.settings_key_notification_light,
-				R.bool.settings_default_notification_light);
+		return getSettings(context).isNotificationLight();
 	}
 
 	public static boolean isNotificationVibration(Context context) {
-		return getBoolean(context,
-				R.string.settings_key_notification_vibration,
-				R.bool.settings_default_notification_vibration);
+		return getSettings(context).isNotificationVibration();
 	}
 
 	public static boolean isNotificationSound(Context context) {
-		return getBoolean(context, R.string.settings_key_notification_sound,
-				R.bool.settings_default_notification_sound);
+		return getSettings(context).isNotificationSound();
+	}
+
+	public static boolean isNotificationLive(Context context) {
+		return getSettings(context).isNotificationLive();
 	}
 
 	/* Private static methods ****************** */
 
-	private static int getInt(Context context, int key, int defValue) {
-		SharedPreferences preferences = PreferenceManager
-				.getDefaultSharedPreferences(context);
-		return preferences.getInt(context.getResources().getString(key),
-				defValue);
+	/**
+	 * Builds the snapshot, registering the change listener the first time.
+	 * Must be called with the class lock held.
+	 */
+	private static Settings rebuild(Context context) {
+		if (changeListener == null) {
+			changeListener = new OnSharedPreferenceChangeListener() {
+
+				@Override
+				public void onSharedPreferenceChanged(
+						SharedPreferences sharedPreferences, String key) {
+					changes++;
+					settings = null;
+				}
+
+			};
+			PreferenceManager.getDefaultSharedPreferences(context)
+					.registerOnSharedPreferenceChangeListener(changeListener);
+		}
+
+		// Not kept if the preferences change while it's built, as it may
+		// have read some of the old values
+		int seen = changes;
+		Settings current = buildSettings(context);
+		if (seen == changes) {
+			settings = current;
+		}
+		rebuilds++;
+		return current;
 	}
 
-	private static int getIntFromString(Context context, int key, int defValue) {
+	private static Settings buildSettings(Context context) {
 		SharedPreferences preferences = PreferenceManager
 				.getDefaultSharedPreferences(context);
-		String stringKey = context.getResources().getString(key);
+		Resources resources = context.getResources();
+
+		return new Settings(getIntFromString(preferences, resources,
+				R.string.settings_key_pomodoro_duration,
+				resources.getInteger(R.integer.settings_default_pomodoro_duration)),
+				getIntFromString(preferences, resources,
+						R.string.settings_key_break_duration,
+						resources.getInteger(R.integer.settings_default_break_duration)),
+				getIntFromString(preferences, resources,
+						R.string.settings_key_long_break_duration,
+						resources.getInteger(R.integer.settings_default_long_break_duration)),
+				getIntFromString(preferences, resources,
+						R.string.settings_key_long_break_interval,
+						resources.getInteger(R.integer.settings_default_long_break_interval)),
+				getBoolean(preferences, resources,
+						R.string.settings_key_notification_light,
+						R.bool.settings_default_notification_light),
+				getBoolean(preferences, resources,
+						R.string.settings_key_notification_vibration,
+						R.bool.settings_default_notification_vibration),
+				getBoolean(preferences, resources,
+						R.string.settings_key_notification_sound,
+						R.bool.settings_default_notification_sound),
+				getBoolean(preferences, resources,
+						R.string.settings_key_notification_live,
+						R.bool.settings_default_notification_live));
+	}
+
+	private static int getIntFromString(SharedPreferences preferences,
+			Resources resources, int key, int defValue) {
+		String stringKey = resources.getString(key);
 		String stringValue = preferences.getString(stringKey, null);
 		int value = defValue;
 		if (stringValue != null) {
@@ -109,23 +266,10 @@ public abstract class PreferencesHelper {
 		return value;
 	}
 
-	private static boolean getBoolean(Context context, int key, int defValueKey) {
-		boolean defValue = context.getResources().getBoolean(defValueKey);
-		return getBoolean(context, key, defValue);
-	}
-
-	private static boolean getBoolean(Context context, int key, boolean defValue) {
-		SharedPreferences preferences = PreferenceManager
-				.getDefaultSharedPreferences(context);
-		return preferences.getBoolean(context.getResources().getString(key),
-				defValue);
-	}
-
-	private static String getString(Context context, int key, String defValue) {
-		SharedPreferences preferences = PreferenceManager
-				.getDefaultSharedPreferences(context);
-		return preferences.getString(context.getResources().getString(key),
-				defValue);
+	private static boolean getBoolean(SharedPreferences preferences,
+			Resources resources, int key, int defValueKey) {
+		boolean defValue = resources.getBoolean(defValueKey);
+		return preferences.getBoolean(resources.getString(key), defValue);
 	}
 
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry;
+
+/**
+ * Immutable snapshot of the user settings, with every value already parsed.
+ * Get the current one from {@link PreferencesHelper#getSettings}.
+ *
+ * @author berti
+ */
+public final class Settings {
+
+	/* Private fields ************************** */
+
+	private final int pomodoroDurationMins;
+
+	private final int breakDurationMins;
+
+	private final int longBreakDurationMins;
+
+	private final int longBreakInterval;
+
+	private final boolean notificationLight;
+
+	private final boolean notificationVibration;
+
+	private final boolean notificationSound;
+
+	private final boolean notificationLive;
+
+	/* Public constructors ********************* */
+
+	public Settings(int pomodoroDurationMins, int breakDurationMins,
+			int longBreakDurationMins, int longBreakInterval,
+			boolean notificationLight, boolean notificationVibration,
+			boolean notificationSound, boolean notificationLive) {
+		this.pomodoroDurationMins = pomodoroDurationMins;
+		this.breakDurationMins = breakDurationMins;
+		this.longBreakDurationMins = longBreakDurationMins;
+		this.longBreakInterval = longBreakInterval;
+		this.notificationLight = notificationLight;
+		this.notificationVibration = notificationVibration;
+		this.notificationSound = notificationSound;
+		this.notificationLive = notificationLive;
+	}
+
+	/* Public methods ************************** */
+
+	public int getPomodoroDurationMins() {
+		return pomodoroDurationMins;
+	}
+
+	public int getBreakDurationMins() {
+		return breakDurationMins;
+	}
+
+	public int getLongBreakDurationMins() {
+		return longBreakDurationMins;
+	}
+
+	/**
+	 * Returns how many pomodoros are completed before a long break, or 0 if
+	 * long breaks are disabled.
+	 */
+	public int getLongBreakInterval() {
+		return longBreakInterval;
+	}
+
+	public long getPomodoroDuration() {
+		return pomodoroDurationMins * 60 * 1000L;
+	}
+
+	public long getBreakDuration() {
+		return breakDurationMins * 60 * 1000L;
+	}
+
+	public long getLongBreakDuration() {
+		return longBreakDurationMins * 60 * 1000L;
+	}
+
+	public boolean isNotificationLight() {
+		return notificationLight;
+	}
+
+	public boolean isNotificationVibration() {
+		return notificationVibration;
+	}
+
+	public boolean isNotificationSound() {
+		return notificationSound;
+	}
+
+	/**
+	 * Whether the ongoing notification shows a live count down.
+	 */
+	public boolean isNotificationLive() {
+		return notificationLive;
+	}
+
+}
@@ -48,6 +48,8 @@ public class SettingsActivity extends PreferenceActivity implements
 
 	private Preference pomodoroDurationPreference;
 	private Preference breakDurationPreference;
+	private Preference longBreakDurationPreference;
+	private Preference longBreakIntervalPreference;
 
 	@Override
 	@TargetApi(11)
@@ -65,10 +67,14 @@ public class SettingsActivity extends PreferenceActivity implements
 
 		pomodoroDurationPreference = findPreference(R.string.settings_key_pomodoro_duration);
 		breakDurationPreference = findPreference(R.string.settings_key_break_duration);
+		longBreakDurationPreference = findPreference(R.string.settings_key_long_break_duration);
+		longBreakIntervalPreference = findPreference(R.string.settings_key_long_break_interval);
 
 		OnPreferenceChangeListener listener = new CheckNumberOnPreferenceChangeListener();
 		pomodoroDurationPreference.setOnPreferenceChangeListener(listener);
 		breakDurationPreference.setOnPreferenceChangeListener(listener);
+		longBreakDurationPreference.setOnPreferenceChangeListener(listener);
+		longBreakIntervalPreference.setOnPreferenceChangeListener(listener);
 	}
 
 	@Override
@@ -78,8 +84,11 @@ public class SettingsActivity extends PreferenceActivity implements
 		PreferenceManager.getDefaultSharedPreferences(this)
 				.registerOnSharedPreferenceChangeListener(this);
 
-		updatePomodoroDurationSummary();
-		updateBreakDurationSummary();
+		Settings settings = PreferencesHelper.getSettings(this);
+		updatePomodoroDurationSummary(settings);
+		updateBreakDurationSummary(settings);
+		updateLongBreakDurationSummary(settings);
+		updateLongBreakIntervalSummary(settings);
 	}
 
 	@Override
@@ -93,11 +102,19 @@ public class SettingsActivity extends PreferenceActivity implements
 	@Override
 	public void onSharedPreferenceChanged(SharedPreferences sharedPreferences,
 			String key) {
+		// The snapshot may not have been dropped yet
+		Settings settings = PreferencesHelper.readSettings(this);
 		if (key.equals(getString(R.string.settings_key_pomodoro_duration))) {
-			updatePomodoroDurationSummary();
+			updatePomodoroDurationSummary(settings);
 		}
 		else if (key.equals(getString(R.string.settings_key_break_duration))) {
-			updateBreakDurationSummary();
+			updateBreakDurationSummary(settings);
+		}
+		else if (key.equals(getString(R.string.settings_key_long_break_duration))) {
+			updateLongBreakDurationSummary(settings);
+		}
+		else if (key.equals(getString(R.string.settings_key_long_break_interval))) {
+			updateLongBreakIntervalSummary(settings);
 		}
 	}
 
@@ -121,15 +138,27 @@ public class SettingsActivity extends PreferenceActivity implements
 		return getPreferenceScreen().findPreference(getString(keyId));
 	}
 
-	private void updateBreakDurationSummary() {
+	private void updateBreakDurationSummary(Settings settings) {
 		setSummary(breakDurationPreference, R.string.settings_summary_duration,
-				PreferencesHelper.getBreakDurationMins(this));
+				settings.getBreakDurationMins());
 	}
 
-	private void updatePomodoroDurationSummary() {
+	private void updatePomodoroDurationSummary(Settings settings) {
 		setSummary(pomodoroDurationPreference,
 				R.string.settings_summary_duration,
-				PreferencesHelper.getPomodoroDurationMins(this));
+				settings.getPomodoroDurationMins());
+	}
+
+	private void updateLongBreakDurationSummary(Settings settings) {
+		setSummary(longBreakDurationPreference,
+				R.string.settings_summary_duration,
+				settings.getLongBreakDurationMins());
+	}
+
+	private void updateLongBreakIntervalSummary(Settings settings) {
+		setSummary(longBreakIntervalPreference,
+				R.string.settings_summary_long_break_interval,
+				settings.getLongBreakInterval());
 	}
 
 	private void setSummary(Preference preference, int summaryId,
@@ -146,7 +175,11 @@ public class SettingsActivity extends PreferenceActivity implements
 		public boolean onPreferenceChange(Preference preference, Object newValue) {
 			boolean valid = true;
 			try {
-				Integer.parseInt(newValue.toString());
+				if (Integer.parseInt(newValue.toString()) <= 0) {
+					Log.w(TAG, preference.getTitle() + ": " + newValue
+							+ " is not positive");
+					valid = false;
+				}
 			}
 			catch (NumberFormatException e) {
 				Log.w(TAG, preference.getTitle() + ": " + newValue
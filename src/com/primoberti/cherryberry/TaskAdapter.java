@@ -0,0 +1,145 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry;
+
+import java.util.Collections;
+import java.util.List;
+
+import android.content.Context;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.Filter;
+import android.widget.Filterable;
+import android.widget.TextView;
+
+import com.primoberti.cherryberry.tasks.Task;
+import com.primoberti.cherryberry.tasks.TaskStore;
+
+/**
+ * Type-ahead suggestions of tasks for an AutoCompleteTextView, searched in
+ * the {@link TaskStore} by the filter thread.
+ *
+ * @author berti
+ */
+public class TaskAdapter extends BaseAdapter implements Filterable {
+
+	/* Private constants *********************** */
+
+	private final static String TAG = "TaskAdapter";
+
+	private final static int MAX_RESULTS = 20;
+
+	/* Private fields ************************** */
+
+	private final LayoutInflater inflater;
+
+	private final TaskStore store;
+
+	/** Current suggestions, only touched on the main thread. */
+	private List<Task> tasks = Collections.emptyList();
+
+	private final Filter filter = new Filter() {
+
+		@Override
+		protected FilterResults performFiltering(CharSequence constraint) {
+			FilterResults results = new FilterResults();
+			try {
+				List<Task> found = store.search(constraint, MAX_RESULTS);
+				results.values = found;
+				results.count = found.size();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			catch (RuntimeException e) {
+				Log.e(TAG, "Can't search tasks", e);
+			}
+			return results;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		protected void publishResults(CharSequence constraint,
+				FilterResults results) {
+			if (results.values != null) {
+				tasks = (List<Task>) results.values;
+				notifyDataSetChanged();
+			}
+			else {
+				tasks = Collections.emptyList();
+				notifyDataSetInvalidated();
+			}
+		}
+
+		@Override
+		public CharSequence convertResultToString(Object resultValue) {
+			return ((Task) resultValue).getTitle();
+		}
+
+	};
+
+	/* Public constructors ********************* */
+
+	public TaskAdapter(Context context, TaskStore store) {
+		this.inflater = LayoutInflater.from(context);
+		this.store = store;
+	}
+
+	/* Public methods ************************** */
+
+	@Override
+	public int getCount() {
+		return tasks.size();
+	}
+
+	@Override
+	public Task getItem(int position) {
+		return tasks.get(position);
+	}
+
+	@Override
+	public long getItemId(int position) {
+		return position;
+	}
+
+	@Override
+	public View getView(int position, View convertView, ViewGroup parent) {
+		TextView view = (TextView) convertView;
+		if (view == null) {
+			view = (TextView) inflater.inflate(
+					android.R.layout.simple_dropdown_item_1line, parent, false);
+		}
+		view.setText(getItem(position).getTitle());
+		return view;
+	}
+
+	@Override
+	public Filter getFilter() {
+		return filter;
+	}
+
+}
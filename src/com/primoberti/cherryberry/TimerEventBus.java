@@ -0,0 +1,253 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.Handler;
+
+import com.primoberti.cherryberry.engine.AlignedTicker;
+
+/**
+ * Delivers the events of a {@link PomodoroTimerService} to any number of
+ * {@link PomodoroTimerListener}s.
+ *
+ * Subscribers are kept in a copy-on-write list, so dispatching takes no locks
+ * and subscribers can come and go from any thread. Each subscriber picks the
+ * {@link Handler} it receives events on, or none to receive them directly on
+ * the dispatching thread, and the interval between its ticks. Ticks for a
+ * subscriber with a handler are coalesced: while one is still waiting in its
+ * queue, newer ticks only replace the remaining time it will see, so a slow
+ * subscriber never holds up the count down or the other subscribers.
+ *
+ * Events must be dispatched from a single thread, the main one.
+ *
+ * @author berti
+ */
+public class TimerEventBus {
+
+	/* Private fields ************************** */
+
+	private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+	/* Public methods ************************** */
+
+	/**
+	 * Subscribes the listener to receive events directly on the dispatching
+	 * thread, with a tick per second.
+	 */
+	public void addListener(PomodoroTimerListener listener) {
+		addListener(listener, null, AlignedTicker.GRANULARITY_TEXT);
+	}
+
+	/**
+	 * Subscribes the listener. Subscribing it again replaces the previous
+	 * subscription.
+	 *
+	 * @param listener the listener
+	 * @param handler handler to receive events on, or null to receive them on
+	 *            the dispatching thread
+	 * @param tickInterval milliseconds of count down between ticks
+	 */
+	public void addListener(PomodoroTimerListener listener, Handler handler,
+			long tickInterval) {
+		if (tickInterval <= 0) {
+			throw new IllegalArgumentException("Invalid tick interval "
+					+ tickInterval);
+		}
+
+		removeListener(listener);
+		subscriptions.add(new Subscription(listener, handler, tickInterval));
+	}
+
+	public void removeListener(PomodoroTimerListener listener) {
+		for (Subscription subscription : subscriptions) {
+			if (subscription.listener == listener) {
+				subscriptions.remove(subscription);
+				subscription.cancel();
+			}
+		}
+	}
+
+	public boolean hasListeners() {
+		return !subscriptions.isEmpty();
+	}
+
+	/**
+	 * Returns the shortest tick interval among the subscribers, or
+	 * {@link Long#MAX_VALUE} if there are none.
+	 */
+	public long getMinTickInterval() {
+		long min = Long.MAX_VALUE;
+		for (Subscription subscription : subscriptions) {
+			min = Math.min(min, subscription.tickInterval);
+		}
+		return min;
+	}
+
+	public void dispatchPomodoroFinish(final PomodoroTimerService timer) {
+		for (final Subscription subscription : subscriptions) {
+			subscription.deliver(new Runnable() {
+
+				@Override
+				public void run() {
+					subscription.listener.onPomodoroFinish(timer);
+				}
+
+			});
+		}
+	}
+
+	public void dispatchBreakFinish(final PomodoroTimerService timer) {
+		for (final Subscription subscription : subscriptions) {
+			subscription.deliver(new Runnable() {
+
+				@Override
+				public void run() {
+					subscription.listener.onBreakFinish(timer);
+				}
+
+			});
+		}
+	}
+
+	public void dispatchPeriodStart(final PomodoroTimerService timer) {
+		for (final Subscription subscription : subscriptions) {
+			subscription.deliver(new Runnable() {
+
+				@Override
+				public void run() {
+					subscription.listener.onPeriodStart(timer);
+				}
+
+			});
+		}
+	}
+
+	/**
+	 * Delivers the tick to the subscribers whose interval it crosses. Called
+	 * every second while someone shows the count down, so it doesn't
+	 * allocate.
+	 */
+	public void dispatchTick(PomodoroTimerService timer,
+			long millisUntilFinished) {
+		for (Subscription subscription : subscriptions) {
+			subscription.tick(timer, millisUntilFinished);
+		}
+	}
+
+	/* Private inner classes ******************* */
+
+	private static class Subscription {
+
+		private final PomodoroTimerListener listener;
+
+		private final Handler handler;
+
+		private final long tickInterval;
+
+		/**
+		 * Count down interval of the last tick delivered, only used on the
+		 * dispatching thread. Reset by every other event, so the first tick of
+		 * a period is always delivered.
+		 */
+		private long lastTickSlot = -1;
+
+		private PomodoroTimerService tickTimer;
+
+		private volatile long tickMillis;
+
+		private final AtomicBoolean tickPending = new AtomicBoolean();
+
+		private volatile boolean cancelled;
+
+		private final Runnable tickTask = new Runnable() {
+
+			@Override
+			public void run() {
+				tickPending.set(false);
+				if (!cancelled) {
+					listener.onTick(tickTimer, tickMillis);
+				}
+			}
+
+		};
+
+		public Subscription(PomodoroTimerListener listener, Handler handler,
+				long tickInterval) {
+			this.listener = listener;
+			this.handler = handler;
+			this.tickInterval = tickInterval;
+		}
+
+		public void deliver(final Runnable event) {
+			lastTickSlot = -1;
+
+			if (handler == null) {
+				event.run();
+			}
+			else {
+				handler.post(new Runnable() {
+
+					@Override
+					public void run() {
+						if (!cancelled) {
+							event.run();
+						}
+					}
+
+				});
+			}
+		}
+
+		public void tick(PomodoroTimerService timer, long millisUntilFinished) {
+			long slot = (millisUntilFinished + tickInterval - 1) / tickInterval;
+			if (slot == lastTickSlot) {
+				return;
+			}
+			lastTickSlot = slot;
+
+			if (handler == null) {
+				listener.onTick(timer, millisUntilFinished);
+			}
+			else {
+				tickTimer = timer;
+				tickMillis = millisUntilFinished;
+				if (tickPending.compareAndSet(false, true)) {
+					handler.post(tickTask);
+				}
+			}
+		}
+
+		public void cancel() {
+			cancelled = true;
+			if (handler != null) {
+				handler.removeCallbacks(tickTask);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProvider;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+import android.view.View;
+import android.widget.RemoteViews;
+
+import com.primoberti.cherryberry.engine.EventLog;
+import com.primoberti.cherryberry.engine.PomodoroEngine.Status;
+
+/**
+ * Home screen widget with the timer status, the minutes left and buttons to
+ * start and stop it.
+ *
+ * The widget never binds to {@link PomodoroTimerService}: it shows the state
+ * the service last saved, which the service hands over on every transition.
+ * While a period runs the remaining time is shown in whole minutes, and a
+ * non waking alarm refreshes the widget only when that number changes, so
+ * the screen off costs nothing. The last refresh is at the end time, when
+ * the widget shows the period finished by itself, whether or not the service
+ * has finished it yet. Every instance of the widget shows the same,
+ * so they are all updated with a single call.
+ *
+ * @author berti
+ */
+public class TimerWidgetProvider extends AppWidgetProvider {
+
+	/* Public constants ************************ */
+
+	/** Refreshes the widgets when the minutes left change. */
+	public final static String REFRESH = "com.primoberti.cherryberry.REFRESH_WIDGETS";
+
+	/* Private constants *********************** */
+
+	private final static String TAG = "TimerWidgetProvider";
+
+	private final static long MINUTE = 60 * 1000;
+
+	/* Public static methods ******************* */
+
+	/**
+	 * Updates the widgets with the state last saved by the service.
+	 */
+	public static void update(Context context) {
+		update(context, PomodoroTimerService.readSnapshot(context));
+	}
+
+	/**
+	 * Updates the widgets with the given timer state, if there are any.
+	 *
+	 * @param state timer state, or null if there is none
+	 */
+	public static void update(Context context, EventLog.State state) {
+		AppWidgetManager manager = AppWidgetManager.getInstance(context);
+		int[] ids = manager.getAppWidgetIds(new ComponentName(context,
+				TimerWidgetProvider.class));
+		if (ids == null || ids.length == 0) {
+			return;
+		}
+
+		update(context, manager, ids, state);
+	}
+
+	/* Public methods ************************** */
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		if (REFRESH.equals(intent.getAction())) {
+			update(context);
+		}
+		else {
+			super.onReceive(context, intent);
+		}
+	}
+
+	@Override
+	public void onUpdate(Context context, AppWidgetManager appWidgetManager,
+			int[] appWidgetIds) {
+		update(context, appWidgetManager, appWidgetIds,
+				PomodoroTimerService.readSnapshot(context));
+	}
+
+	@Override
+	public void onDisabled(Context context) {
+		getAlarmManager(context).cancel(getRefreshIntent(context));
+	}
+
+	/* Private static methods ****************** */
+
+	private static void update(Context context, AppWidgetManager manager,
+			int[] ids, EventLog.State state) {
+		long now = System.currentTimeMillis();
+		Status status = state != null ? state.getStatus() : Status.IDLE;
+		int completedPomodoros = state != null ? state
+				.getCompletedPomodoros() : 0;
+		long remaining = 0;
+		if (status == Status.POMODORO_RUNNING || status == Status.BREAK_RUNNING) {
+			remaining = state.getTimerEnd() - now;
+			if (remaining <= 0) {
+				// Over, even if the service hasn't saved it yet, e.g. while
+				// the device sleeps until its wakeup alarm
+				if (status == Status.POMODORO_RUNNING) {
+					status = Status.POMODORO_FINISHED;
+					completedPomodoros++;
+				}
+				else {
+					status = Status.BREAK_FINISHED;
+				}
+			}
+		}
+		boolean running = status == Status.POMODORO_RUNNING
+				|| status == Status.BREAK_RUNNING;
+
+		Log.d(TAG, "update " + ids.length + " widgets, " + status);
+
+		RemoteViews views = new RemoteViews(context.getPackageName(),
+				R.layout.timer_widget);
+		views.setTextViewText(R.id.widgetStatusText,
+				context.getString(getStatusText(status)));
+
+		int minutes;
+		if (running) {
+			minutes = (int) ((remaining + MINUTE - 1) / MINUTE);
+		}
+		else if (status == Status.POMODORO_FINISHED) {
+			minutes = (int) (getNextBreakDuration(context,
+					completedPomodoros) / MINUTE);
+		}
+		else {
+			minutes = PreferencesHelper.getPomodoroDurationMins(context);
+		}
+		views.setTextViewText(R.id.widgetTimeText,
+				context.getString(R.string.widget_text_minutes_left, minutes));
+
+		views.setViewVisibility(R.id.widgetStartButton, running ? View.GONE
+				: View.VISIBLE);
+		views.setViewVisibility(R.id.widgetStopButton, running ? View.VISIBLE
+				: View.GONE);
+		views.setTextViewText(R.id.widgetStartButton, context
+				.getString(status == Status.POMODORO_FINISHED
+						? R.string.button_start_break : R.string.button_start));
+		views.setOnClickPendingIntent(R.id.widgetStartButton,
+				getServiceIntent(context, PomodoroTimerService.START_NEXT_PERIOD));
+		views.setOnClickPendingIntent(R.id.widgetStopButton,
+				getServiceIntent(context, PomodoroTimerService.STOP_PERIOD));
+		views.setOnClickPendingIntent(R.id.widgetLayout, PendingIntent
+				.getActivity(context, 0, new Intent(context,
+						CherryBerryActivity.class), 0));
+
+		manager.updateAppWidget(ids, views);
+
+		AlarmManager alarmManager = getAlarmManager(context);
+		PendingIntent refreshIntent = getRefreshIntent(context);
+		if (running) {
+			// When the minutes left go down by one, the last time at the end
+			alarmManager.set(AlarmManager.RTC, state.getTimerEnd()
+					- (minutes - 1) * MINUTE, refreshIntent);
+		}
+		else {
+			alarmManager.cancel(refreshIntent);
+		}
+	}
+
+	private static int getStatusText(Status status) {
+		switch (status) {
+		case POMODORO_RUNNING:
+			return R.string.status_pomodoro_running;
+		case POMODORO_FINISHED:
+			return R.string.status_pomodoro_finished;
+		case BREAK_RUNNING:
+			return R.string.status_break_running;
+		default:
+			return R.string.status_idle;
+		}
+	}
+
+	private static long getNextBreakDuration(Context context,
+			int completedPomodoros) {
+		int interval = PreferencesHelper.getLongBreakInterval(context);
+		if (interval > 0 && completedPomodoros >= interval) {
+			return PreferencesHelper.getLongBreakDuration(context);
+		}
+		return PreferencesHelper.getBreakDuration(context);
+	}
+
+	private static AlarmManager getAlarmManager(Context context) {
+		return (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+	}
+
+	private static PendingIntent getRefreshIntent(Context context) {
+		Intent intent = new Intent(context, TimerWidgetProvider.class);
+		intent.setAction(REFRESH);
+		return PendingIntent.getBroadcast(context, 0, intent, 0);
+	}
+
+	private static PendingIntent getServiceIntent(Context context,
+			String action) {
+		Intent intent = new Intent(context, PomodoroTimerService.class);
+		intent.setAction(action);
+		return PendingIntent.getService(context, 0, intent, 0);
+	}
+
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.primoberti.cherryberry.PomodoroTimerService.LocalBinder;
+import com.primoberti.cherryberry.diagnostics.StartupTrace;
+import com.primoberti.cherryberry.diagnostics.WakeupStats;
+import com.primoberti.cherryberry.engine.AlignedTicker;
+
+/**
+ * Debug screen showing the {@link WakeupStats}, with options to export them
+ * to a file and to reset them, followed by the cold start times from the
+ * {@link StartupTrace}, and how often the settings snapshot of
+ * {@link PreferencesHelper} was reused.
+ *
+ * The tick jitter of the timer and the updates of its live notification are
+ * shown too while {@link PomodoroTimerService} is running; the screen binds
+ * to it without creating it.
+ *
+ * The frame times of the main screen count down are shown when passed in the
+ * extras of the intent.
+ *
+ * @author berti
+ */
+public class WakeupStatsActivity extends Activity {
+
+	/* Public constants ************************ */
+
+	/** Frames drawn by the count down, an int. */
+	public final static String EXTRA_FRAME_COUNT = "com.primoberti.cherryberry.FRAME_COUNT";
+
+	/** Janky frames drawn by the count down, an int. */
+	public final static String EXTRA_JANKY_FRAME_COUNT = "com.primoberti.cherryberry.JANKY_FRAME_COUNT";
+
+	/** 99th percentile of the count down frame times in ns, a long. */
+	public final static String EXTRA_P99_FRAME_TIME = "com.primoberti.cherryberry.P99_FRAME_TIME";
+
+	/* Private constants *********************** */
+
+	private final static String TAG = "WakeupStatsActivity";
+
+	/* Private fields ************************** */
+
+	private WakeupStats wakeupStats;
+
+	private TextView statsTextView;
+
+	private PomodoroTimerService timerService;
+
+	private final ServiceConnection timerServiceConnection = new ServiceConnection() {
+
+		@Override
+		public void onServiceConnected(ComponentName name, IBinder service) {
+			timerService = ((LocalBinder) service).getService();
+			updateStats();
+		}
+
+		@Override
+		public void onServiceDisconnected(ComponentName name) {
+			timerService = null;
+		}
+
+	};
+
+	/* Public methods ************************** */
+
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		setContentView(R.layout.wakeup_stats);
+
+		setTitle(R.string.activity_title_wakeup_stats);
+
+		wakeupStats = WakeupStats.getInstance(this);
+		statsTextView = (TextView) findViewById(R.id.statsTextView);
+	}
+
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu) {
+		MenuInflater inflater = getMenuInflater();
+		inflater.inflate(R.menu.wakeup_stats_menu, menu);
+		return true;
+	}
+
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+		switch (item.getItemId()) {
+		case R.id.export_stats:
+			exportStats();
+			return true;
+		case R.id.reset_stats:
+			wakeupStats.reset();
+			updateStats();
+			return true;
+		default:
+			return super.onOptionsItemSelected(item);
+		}
+	}
+
+	/* Protected methods *********************** */
+
+	@Override
+	protected void onStart() {
+		super.onStart();
+
+		bindService(new Intent(this, PomodoroTimerService.class),
+				timerServiceConnection, 0);
+	}
+
+	@Override
+	protected void onStop() {
+		unbindService(timerServiceConnection);
+		timerService = null;
+
+		super.onStop();
+	}
+
+	@Override
+	protected void onResume() {
+		super.onResume();
+
+		updateStats();
+	}
+
+	/* Private methods ************************* */
+
+	private void updateStats() {
+		StringBuilder out = new StringBuilder(wakeupStats.dump());
+		out.append('\n');
+		if (timerService != null) {
+			appendTicker(out, timerService.getTicker());
+			LiveNotification notification = timerService
+					.getLiveNotification();
+			out.append("Live notification: requests=")
+					.append(notification.getRequestCount()).append(" posts=")
+					.append(notification.getPostCount()).append('\n');
+		}
+		else {
+			out.append("Timer service not running\n");
+		}
+		out.append("Settings: hits=").append(PreferencesHelper.getSettingsHits())
+				.append(" rebuilds=")
+				.append(PreferencesHelper.getSettingsRebuilds()).append('\n');
+		appendFrames(out, getIntent());
+		out.append(StartupTrace.getInstance(this).dump());
+		statsTextView.setText(out);
+	}
+
+	private void appendTicker(StringBuilder out, AlignedTicker ticker) {
+		out.append("Ticks: ").append(ticker.getTickCount()).append('\n');
+		out.append("Tick jitter (ms): last=").append(ticker.getLastJitter())
+				.append(" mean=").append(ticker.getAverageJitter())
+				.append(" max=").append(ticker.getMaxJitter()).append('\n');
+	}
+
+	/**
+	 * Appends the count down frame times, which are measured between handler
+	 * callbacks and so include their scheduling delay.
+	 */
+	private void appendFrames(StringBuilder out, Intent intent) {
+		if (!intent.hasExtra(EXTRA_FRAME_COUNT)) {
+			return;
+		}
+
+		out.append("Count down frames: count=")
+				.append(intent.getIntExtra(EXTRA_FRAME_COUNT, 0))
+				.append(" janky=")
+				.append(intent.getIntExtra(EXTRA_JANKY_FRAME_COUNT, 0))
+				.append(" p99=")
+				.append(intent.getLongExtra(EXTRA_P99_FRAME_TIME, 0) / 1000)
+				.append(" us\n");
+	}
+
+	private void exportStats() {
+		try {
+			File file = wakeupStats.exportDump();
+			Toast.makeText(this,
+					getString(R.string.toast_stats_exported, file.getPath()),
+					Toast.LENGTH_LONG).show();
+		}
+		catch (IOException e) {
+			Log.e(TAG, "Can't export wakeup stats", e);
+			Toast.makeText(this, R.string.toast_stats_not_exported,
+					Toast.LENGTH_LONG).show();
+		}
+	}
+
+}
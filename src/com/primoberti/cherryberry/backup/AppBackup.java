@@ -0,0 +1,178 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.backup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Environment;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.primoberti.cherryberry.PomodoroTimerService;
+import com.primoberti.cherryberry.engine.EventLog;
+import com.primoberti.cherryberry.history.Session;
+import com.primoberti.cherryberry.history.SessionStore;
+import com.primoberti.cherryberry.tasks.TaskStore;
+
+/**
+ * Backs up and restores everything the app keeps: the settings, the timer
+ * state, the session history and the synced tasks.
+ *
+ * Restoring merges the sessions into the history, leaving out the ones
+ * already there, and replaces the settings and tasks in the backup. The
+ * timer state is only returned, since it has to be applied by the running
+ * {@link PomodoroTimerService}.
+ *
+ * @author berti
+ */
+public class AppBackup {
+
+	/* Public constants ************************ */
+
+	public final static String EXTENSION = ".cbk";
+
+	/* Private constants *********************** */
+
+	private final static String TAG = "AppBackup";
+
+	/** Sessions inserted in each transaction when restoring. */
+	private final static int RESTORE_BATCH_SIZE = 1000;
+
+	/* Private constructors ******************** */
+
+	private AppBackup() {
+	}
+
+	/* Public static methods ******************* */
+
+	/**
+	 * Writes a backup to the given file. Blocks, so it must not be called
+	 * from the main thread.
+	 *
+	 * @return the number of sessions in the backup
+	 */
+	public static int write(Context context, File file) throws IOException {
+		long start = System.currentTimeMillis();
+		BackupWriter writer = new BackupWriter(file, start);
+		try {
+			writer.writeSettings(PreferenceManager
+					.getDefaultSharedPreferences(context).getAll());
+			EventLog.State state = PomodoroTimerService.readSnapshot(context);
+			if (state != null) {
+				writer.writeTimer(state);
+			}
+			SessionStore.getInstance(context).backup(writer);
+			TaskStore.getInstance(context).backup(writer);
+			writer.finish();
+
+			Log.d(TAG, "Backed up " + writer.getSessionCount() + " sessions in "
+					+ (System.currentTimeMillis() - start) + " ms");
+			return writer.getSessionCount();
+		}
+		finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Restores the backup in the given file. Nothing is restored unless the
+	 * whole backup can be read. Blocks, so it must not be called from the
+	 * main thread.
+	 *
+	 * @return the backup, whose timer state is left to the caller
+	 */
+	public static Backup restore(Context context, File file)
+			throws IOException, InterruptedException {
+		long start = System.currentTimeMillis();
+		Backup backup = new BackupReader(file).read();
+		Log.d(TAG, "Read " + backup.getSessions().size() + " sessions in "
+				+ (System.currentTimeMillis() - start) + " ms");
+
+		restoreSettings(context, backup.getSettings());
+
+		List<Session> sessions = backup.getSessions();
+		SessionStore store = SessionStore.getInstance(context);
+		int inserted = 0;
+		for (int i = 0; i < sessions.size(); i += RESTORE_BATCH_SIZE) {
+			inserted += store.insertNew(sessions.subList(i,
+					Math.min(i + RESTORE_BATCH_SIZE, sessions.size())));
+		}
+
+		TaskStore.getInstance(context).restore(backup.getTaskLists(),
+				backup.getTasks());
+
+		Log.d(TAG, "Restored " + inserted + " new sessions in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		return backup;
+	}
+
+	/**
+	 * Returns the directory backups are written to: on the external storage
+	 * if there is one, or else in the app files directory.
+	 */
+	public static File getDirectory(Context context) {
+		File directory = context.getFilesDir();
+		if (Environment.MEDIA_MOUNTED.equals(Environment
+				.getExternalStorageState())) {
+			directory = new File(Environment.getExternalStorageDirectory(),
+					"CherryBerry");
+			directory.mkdirs();
+		}
+		return directory;
+	}
+
+	/* Private static methods ****************** */
+
+	private static void restoreSettings(Context context,
+			Map<String, Object> settings) {
+		SharedPreferences.Editor editor = PreferenceManager
+				.getDefaultSharedPreferences(context).edit();
+		for (Map.Entry<String, Object> setting : settings.entrySet()) {
+			String key = setting.getKey();
+			Object value = setting.getValue();
+			if (value instanceof Boolean) {
+				editor.putBoolean(key, (Boolean) value);
+			}
+			else if (value instanceof Integer) {
+				editor.putInt(key, (Integer) value);
+			}
+			else if (value instanceof Long) {
+				editor.putLong(key, (Long) value);
+			}
+			else if (value instanceof Float) {
+				editor.putFloat(key, (Float) value);
+			}
+			else {
+				editor.putString(key, (String) value);
+			}
+		}
+		editor.commit();
+	}
+
+}
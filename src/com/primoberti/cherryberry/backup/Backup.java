@@ -0,0 +1,110 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.backup;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.primoberti.cherryberry.engine.EventLog;
+import com.primoberti.cherryberry.history.Session;
+import com.primoberti.cherryberry.tasks.Task;
+
+/**
+ * What a backup read by {@link BackupReader} holds.
+ *
+ * @author berti
+ */
+public class Backup {
+
+	/* Private fields ************************** */
+
+	private final long created;
+
+	private final Map<String, Object> settings = new LinkedHashMap<String, Object>();
+
+	private EventLog.State timerState;
+
+	private final List<Session> sessions = new ArrayList<Session>();
+
+	private final Map<String, String> taskLists = new LinkedHashMap<String, String>();
+
+	private final List<Task> tasks = new ArrayList<Task>();
+
+	/* Package constructors ******************** */
+
+	Backup(long created) {
+		this.created = created;
+	}
+
+	/* Public methods ************************** */
+
+	/**
+	 * Returns the time the backup was made.
+	 */
+	public long getCreated() {
+		return created;
+	}
+
+	/**
+	 * Returns the preferences, as booleans, integers, longs, floats or
+	 * strings by key.
+	 */
+	public Map<String, Object> getSettings() {
+		return settings;
+	}
+
+	/**
+	 * Returns the timer state, or null if there was none.
+	 */
+	public EventLog.State getTimerState() {
+		return timerState;
+	}
+
+	/**
+	 * Returns the sessions in the order they were written, oldest first.
+	 */
+	public List<Session> getSessions() {
+		return sessions;
+	}
+
+	/**
+	 * Returns the titles of the task lists by id.
+	 */
+	public Map<String, String> getTaskLists() {
+		return taskLists;
+	}
+
+	public List<Task> getTasks() {
+		return tasks;
+	}
+
+	/* Package methods ************************* */
+
+	void setTimerState(EventLog.State timerState) {
+		this.timerState = timerState;
+	}
+
+}
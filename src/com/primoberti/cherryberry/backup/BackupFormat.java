@@ -0,0 +1,108 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.backup;
+
+/**
+ * Layout of a backup file, shared by {@link BackupWriter} and
+ * {@link BackupReader}.
+ *
+ * A backup starts with a header: the {@link #MAGIC} bytes, the format
+ * {@link #VERSION} (4 bytes) and the time it was made (8 bytes). Blocks
+ * follow, each with a header of its type (1 byte), the number of records in
+ * it (4 bytes), the length of its payload (4 bytes) and a CRC32 of all of
+ * them and the payload (4 bytes). The last block is an {@link #BLOCK_END}
+ * one, whose count is the number of blocks before it, so a truncated backup
+ * is told apart from a complete one.
+ *
+ * Every block can be decoded on its own. Numbers are unsigned LEB128
+ * varints, or zigzag varints when they may be negative. Strings are the
+ * varint of their UTF-8 length plus one, 0 standing for null, followed by
+ * the bytes.
+ *
+ * <ul>
+ * <li>Settings: key, a type tag and the value, for each preference.</li>
+ * <li>Timer: status, start and end times and completed pomodoros of the
+ * timer state.</li>
+ * <li>Sessions: start time as a zigzag delta from the previous one in the
+ * block, duration and planned duration, type and outcome packed in one
+ * varint, task and interruptions. Tasks are numbered in the order they
+ * appear in the block: a number up to the count seen refers back to one, 0
+ * means none, and the next number is followed by the new task id.</li>
+ * <li>Task lists: id and title.</li>
+ * <li>Tasks: id, list id, title, notes, completed flag, pomodoros and update
+ * time.</li>
+ * </ul>
+ *
+ * Readers skip the blocks of types they don't know, so new kinds of data
+ * only need a new block type. Changes to the existing blocks need a new
+ * version.
+ *
+ * @author berti
+ */
+final class BackupFormat {
+
+	/* Public constants ************************ */
+
+	public final static byte[] MAGIC = { (byte) 0xcb, 'C', 'B', 'K' };
+
+	public final static int VERSION = 1;
+
+	public final static int HEADER_SIZE = MAGIC.length + 4 + 8;
+
+	public final static int BLOCK_HEADER_SIZE = 1 + 4 + 4 + 4;
+
+	public final static int BLOCK_END = 0;
+
+	public final static int BLOCK_SETTINGS = 1;
+
+	public final static int BLOCK_TIMER = 2;
+
+	public final static int BLOCK_SESSIONS = 3;
+
+	public final static int BLOCK_TASK_LISTS = 4;
+
+	public final static int BLOCK_TASKS = 5;
+
+	/** Sessions in a full block, a few tens of KB. */
+	public final static int SESSIONS_PER_BLOCK = 4096;
+
+	/** Tasks or task lists in a full block. */
+	public final static int TASKS_PER_BLOCK = 1024;
+
+	public final static byte SETTING_BOOLEAN = 'Z';
+
+	public final static byte SETTING_INT = 'I';
+
+	public final static byte SETTING_LONG = 'J';
+
+	public final static byte SETTING_FLOAT = 'F';
+
+	public final static byte SETTING_STRING = 'S';
+
+	/* Private constructors ******************** */
+
+	private BackupFormat() {
+	}
+
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.backup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+import com.primoberti.cherryberry.engine.EventLog;
+import com.primoberti.cherryberry.engine.PomodoroEngine.Status;
+import com.primoberti.cherryberry.history.Session;
+import com.primoberti.cherryberry.tasks.Task;
+
+/**
+ * Reads a backup in the {@link BackupFormat}.
+ *
+ * The file is mapped in memory and its block headers are walked first, to
+ * check that it is complete. The blocks are then checked against their CRC
+ * and decoded in parallel, each from its own view of the mapping, and put
+ * together in file order. Nothing is returned unless every block is valid,
+ * so a damaged backup is never half restored.
+ *
+ * @author berti
+ */
+public class BackupReader {
+
+	/* Private constants *********************** */
+
+	private final static String TAG = "BackupReader";
+
+	private final static Status[] STATUSES = Status.values();
+
+	private final static Session.Type[] TYPES = Session.Type.values();
+
+	private final static Session.Outcome[] OUTCOMES = Session.Outcome.values();
+
+	/* Private fields ************************** */
+
+	private final File file;
+
+	private final int threads;
+
+	/* Public constructors ********************* */
+
+	public BackupReader(File file) {
+		this(file, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param threads number of blocks decoded at once
+	 */
+	public BackupReader(File file, int threads) {
+		this.file = file;
+		this.threads = Math.max(threads, 1);
+	}
+
+	/* Public methods ************************** */
+
+	/**
+	 * Reads the whole backup. Blocks, so it must not be called from the main
+	 * thread.
+	 *
+	 * @throws IOException if the file can't be read, isn't a backup, or is
+	 *             truncated or damaged
+	 */
+	public Backup read() throws IOException, InterruptedException {
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = input.getChannel();
+			if (channel.size() < BackupFormat.HEADER_SIZE
+					|| channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Not a backup: " + file);
+			}
+			MappedByteBuffer mapped = channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			for (int i = 0; i < BackupFormat.MAGIC.length; i++) {
+				if (mapped.get(i) != BackupFormat.MAGIC[i]) {
+					throw new IOException("Not a backup: " + file);
+				}
+			}
+			int version = mapped.getInt(BackupFormat.MAGIC.length);
+			if (version > BackupFormat.VERSION) {
+				throw new IOException("Backup made by a newer version: "
+						+ version);
+			}
+			long created = mapped.getLong(BackupFormat.MAGIC.length + 4);
+
+			List<BlockReader> blocks = findBlocks(mapped);
+			Backup backup = new Backup(created);
+			decode(blocks, backup);
+			return backup;
+		}
+		finally {
+			input.close();
+		}
+	}
+
+	/* Private methods ************************* */
+
+	/**
+	 * Walks the block headers up to the end block.
+	 */
+	private List<BlockReader> findBlocks(MappedByteBuffer mapped)
+			throws IOException {
+		List<BlockReader> blocks = new ArrayList<BlockReader>();
+		int offset = BackupFormat.HEADER_SIZE;
+		int size = mapped.capacity();
+		while (true) {
+			if (size - offset < BackupFormat.BLOCK_HEADER_SIZE) {
+				throw new IOException("Truncated backup: " + file);
+			}
+			int type = mapped.get(offset) & 0xff;
+			int count = mapped.getInt(offset + 1);
+			int length = mapped.getInt(offset + 5);
+			if (length < 0
+					|| length > size - offset - BackupFormat.BLOCK_HEADER_SIZE) {
+				throw new IOException("Truncated backup: " + file);
+			}
+
+			BlockReader block = new BlockReader(mapped, offset, type, count,
+					length);
+			if (type == BackupFormat.BLOCK_END) {
+				if (count != blocks.size() || !block.isValid()) {
+					throw new IOException("Damaged end of backup: " + file);
+				}
+				return blocks;
+			}
+			blocks.add(block);
+			offset += BackupFormat.BLOCK_HEADER_SIZE + length;
+		}
+	}
+
+	private void decode(List<BlockReader> blocks, Backup backup)
+			throws IOException, InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.min(threads, Math.max(blocks.size(), 1)),
+				new ThreadFactory() {
+
+					@Override
+					public Thread newThread(Runnable r) {
+						return new Thread(r, TAG);
+					}
+
+				});
+		try {
+			List<Future<Object>> results = executor.invokeAll(blocks);
+			for (int i = 0; i < blocks.size(); i++) {
+				blocks.get(i).addTo(backup, get(results.get(i)));
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private Object get(Future<Object> future) throws IOException,
+			InterruptedException {
+		try {
+			return future.get();
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/* Private inner classes ******************* */
+
+	/**
+	 * Checks and decodes a block from its own view of the mapped file.
+	 */
+	private class BlockReader implements Callable<Object> {
+
+		private final MappedByteBuffer mapped;
+
+		private final int offset;
+
+		private final int type;
+
+		private final int count;
+
+		private final int length;
+
+		private byte[] data;
+
+		private int position;
+
+		public BlockReader(MappedByteBuffer mapped, int offset, int type,
+				int count, int length) {
+			this.mapped = mapped;
+			this.offset = offset;
+			this.type = type;
+			this.count = count;
+			this.length = length;
+		}
+
+		@Override
+		public Object call() throws IOException {
+			if (!isValid()) {
+				throw new IOException("Damaged block at " + offset + " in "
+						+ file);
+			}
+
+			try {
+				return decode();
+			}
+			catch (ArrayIndexOutOfBoundsException e) {
+				throw new IOException("Malformed block at " + offset + " in "
+						+ file);
+			}
+			finally {
+				// Only the decoded records are kept until the end
+				data = null;
+			}
+		}
+
+		/**
+		 * Copies the header and the payload out of the mapping and checks
+		 * them against the CRC.
+		 */
+		public boolean isValid() {
+			int headerLength = BackupFormat.BLOCK_HEADER_SIZE - 4;
+			data = new byte[headerLength + length];
+			ByteBuffer view = mapped.duplicate();
+			view.position(offset);
+			view.get(data, 0, headerLength);
+			int stored = view.getInt();
+			view.get(data, headerLength, length);
+
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			position = headerLength;
+			return (int) crc.getValue() == stored;
+		}
+
+		@SuppressWarnings("unchecked")
+		public void addTo(Backup backup, Object decoded) {
+			switch (type) {
+			case BackupFormat.BLOCK_SETTINGS:
+				backup.getSettings().putAll((Map<String, Object>) decoded);
+				break;
+			case BackupFormat.BLOCK_TIMER:
+				backup.setTimerState((EventLog.State) decoded);
+				break;
+			case BackupFormat.BLOCK_SESSIONS:
+				backup.getSessions().addAll((List<Session>) decoded);
+				break;
+			case BackupFormat.BLOCK_TASK_LISTS:
+				backup.getTaskLists().putAll((Map<String, String>) decoded);
+				break;
+			case BackupFormat.BLOCK_TASKS:
+				backup.getTasks().addAll((List<Task>) decoded);
+				break;
+			default:
+				break;
+			}
+		}
+
+		private Object decode() throws IOException {
+			switch (type) {
+			case BackupFormat.BLOCK_SETTINGS:
+				return readSettings();
+			case BackupFormat.BLOCK_TIMER:
+				return readTimer();
+			case BackupFormat.BLOCK_SESSIONS:
+				return readSessions();
+			case BackupFormat.BLOCK_TASK_LISTS:
+				return readTaskLists();
+			case BackupFormat.BLOCK_TASKS:
+				return readTasks();
+			default:
+				// Left by a newer version, can't be used here
+				return null;
+			}
+		}
+
+		private Map<String, Object> readSettings() throws IOException {
+			Map<String, Object> settings = new LinkedHashMap<String, Object>();
+			for (int i = 0; i < count; i++) {
+				String key = getString();
+				byte tag = data[position++];
+				Object value;
+				switch (tag) {
+				case BackupFormat.SETTING_BOOLEAN:
+					value = data[position++] != 0;
+					break;
+				case BackupFormat.SETTING_INT:
+					value = (int) getSignedVarLong();
+					break;
+				case BackupFormat.SETTING_LONG:
+					value = getSignedVarLong();
+					break;
+				case BackupFormat.SETTING_FLOAT:
+					value = Float.intBitsToFloat((data[position] & 0xff) << 24
+							| (data[position + 1] & 0xff) << 16
+							| (data[position + 2] & 0xff) << 8
+							| data[position + 3] & 0xff);
+					position += 4;
+					break;
+				case BackupFormat.SETTING_STRING:
+					value = getString();
+					break;
+				default:
+					throw new IOException("Unknown setting type " + tag);
+				}
+				settings.put(key, value);
+			}
+			return settings;
+		}
+
+		private EventLog.State readTimer() throws IOException {
+			int status = (int) getVarLong();
+			if (status >= STATUSES.length) {
+				throw new IOException("Unknown timer status " + status);
+			}
+			return new EventLog.State(STATUSES[status], getVarLong(),
+					getVarLong(), (int) getVarLong());
+		}
+
+		private List<Session> readSessions() throws IOException {
+			List<Session> sessions = new ArrayList<Session>(count);
+			List<String> tasks = new ArrayList<String>();
+			long start = 0;
+			for (int i = 0; i < count; i++) {
+				start += getSignedVarLong();
+				long end = start + getSignedVarLong();
+				long planned = getSignedVarLong();
+				int kind = (int) getVarLong();
+				int type = kind & 1;
+				int outcome = kind >> 1;
+				if (outcome >= OUTCOMES.length) {
+					throw new IOException("Unknown outcome " + outcome);
+				}
+
+				String task = null;
+				int number = (int) getVarLong();
+				if (number == tasks.size() + 1) {
+					tasks.add(getString());
+				}
+				else if (number > tasks.size()) {
+					throw new IOException("Unknown task " + number);
+				}
+				if (number > 0) {
+					task = tasks.get(number - 1);
+				}
+
+				int internal = (int) getVarLong();
+				int external = (int) getVarLong();
+				sessions.add(new Session(TYPES[type], start, end, planned,
+						OUTCOMES[outcome], task, internal, external));
+			}
+			return sessions;
+		}
+
+		private Map<String, String> readTaskLists() throws IOException {
+			Map<String, String> lists = new LinkedHashMap<String, String>();
+			for (int i = 0; i < count; i++) {
+				lists.put(getString(), getString());
+			}
+			return lists;
+		}
+
+		private List<Task> readTasks() throws IOException {
+			List<Task> tasks = new ArrayList<Task>(count);
+			for (int i = 0; i < count; i++) {
+				String id = getString();
+				String listId = getString();
+				String title = getString();
+				String notes = getString();
+				boolean completed = data[position++] != 0;
+				tasks.add(new Task(id, listId, title, notes, completed,
+						(int) getVarLong(), getVarLong()));
+			}
+			return tasks;
+		}
+
+		private long getVarLong() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = data[position++];
+				value |= (long) (b & 0x7f) << shift;
+				if (b >= 0) {
+					return value;
+				}
+			}
+			throw new IOException("Malformed varint at " + offset + " in "
+					+ file);
+		}
+
+		private long getSignedVarLong() throws IOException {
+			long value = getVarLong();
+			return value >>> 1 ^ -(value & 1);
+		}
+
+		private String getString() throws IOException {
+			int length = (int) getVarLong() - 1;
+			if (length < 0) {
+				return null;
+			}
+			if (length > data.length - position) {
+				throw new IOException("Malformed string at " + offset
+						+ " in " + file);
+			}
+			try {
+				String value = new String(data, position, length, "UTF-8");
+				position += length;
+				return value;
+			}
+			catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+	}
+
+}
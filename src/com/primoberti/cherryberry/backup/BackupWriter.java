@@ -0,0 +1,376 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.backup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.primoberti.cherryberry.engine.EventLog;
+import com.primoberti.cherryberry.history.Session;
+import com.primoberti.cherryberry.tasks.Task;
+
+/**
+ * Writes a backup in the {@link BackupFormat}.
+ *
+ * Records are encoded into a reused buffer and written a block at a time,
+ * so sessions and tasks can be streamed from the database. Consecutive
+ * records of the same kind go in the same block until it is full. The
+ * backup is written aside and only renamed to the given file by
+ * {@link #finish()}, so a failed backup never replaces a good one.
+ *
+ * @author berti
+ */
+public class BackupWriter {
+
+	/* Private constants *********************** */
+
+	private final static int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+	private final static int NO_BLOCK = -1;
+
+	/* Private fields ************************** */
+
+	private final File file;
+
+	private final File temp;
+
+	private final FileOutputStream out;
+
+	private final FileChannel channel;
+
+	private final ByteBuffer header = ByteBuffer
+			.allocate(BackupFormat.BLOCK_HEADER_SIZE);
+
+	private ByteBuffer payload = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+	private final CRC32 crc = new CRC32();
+
+	private int blockType = NO_BLOCK;
+
+	private int recordCount;
+
+	private int blockCount;
+
+	private int sessionCount;
+
+	/** Start time of the last session in the block. */
+	private long previousStart;
+
+	/** Numbers of the tasks seen in the block, from 1. */
+	private final Map<String, Integer> taskNumbers = new HashMap<String, Integer>();
+
+	private boolean finished;
+
+	/* Public constructors ********************* */
+
+	/**
+	 * Starts writing a backup to the given file.
+	 *
+	 * @param created time the backup is made
+	 */
+	public BackupWriter(File file, long created) throws IOException {
+		this.file = file;
+		temp = new File(file.getPath() + ".tmp");
+		out = new FileOutputStream(temp);
+		channel = out.getChannel();
+
+		ByteBuffer fileHeader = ByteBuffer.allocate(BackupFormat.HEADER_SIZE);
+		fileHeader.put(BackupFormat.MAGIC);
+		fileHeader.putInt(BackupFormat.VERSION);
+		fileHeader.putLong(created);
+		fileHeader.flip();
+		writeFully(fileHeader);
+	}
+
+	/* Public methods ************************** */
+
+	/**
+	 * Writes the given preferences in a block of their own. Values of types
+	 * other than booleans, numbers and strings are left out.
+	 */
+	public void writeSettings(Map<String, ?> settings) throws IOException {
+		startBlock(BackupFormat.BLOCK_SETTINGS);
+		for (Map.Entry<String, ?> setting : settings.entrySet()) {
+			Object value = setting.getValue();
+			if (value instanceof Boolean) {
+				putSettingKey(setting.getKey(), BackupFormat.SETTING_BOOLEAN);
+				payload.put((byte) ((Boolean) value ? 1 : 0));
+			}
+			else if (value instanceof Integer) {
+				putSettingKey(setting.getKey(), BackupFormat.SETTING_INT);
+				putSignedVarLong((Integer) value);
+			}
+			else if (value instanceof Long) {
+				putSettingKey(setting.getKey(), BackupFormat.SETTING_LONG);
+				putSignedVarLong((Long) value);
+			}
+			else if (value instanceof Float) {
+				putSettingKey(setting.getKey(), BackupFormat.SETTING_FLOAT);
+				payload.putInt(Float.floatToIntBits((Float) value));
+			}
+			else if (value instanceof String) {
+				putSettingKey(setting.getKey(), BackupFormat.SETTING_STRING);
+				putString((String) value);
+			}
+			else {
+				continue;
+			}
+			recordCount++;
+		}
+		endBlock();
+	}
+
+	/**
+	 * Writes the timer state in a block of its own.
+	 */
+	public void writeTimer(EventLog.State state) throws IOException {
+		startBlock(BackupFormat.BLOCK_TIMER);
+		ensureCapacity(4 * 10);
+		putVarLong(state.getStatus().ordinal());
+		putVarLong(state.getTimerStart());
+		putVarLong(state.getTimerEnd());
+		putVarLong(state.getCompletedPomodoros());
+		recordCount++;
+		endBlock();
+	}
+
+	/**
+	 * Adds a session. The deltas between start times are smallest when the
+	 * sessions are added oldest first.
+	 */
+	public void addSession(Session session) throws IOException {
+		if (blockType != BackupFormat.BLOCK_SESSIONS
+				|| recordCount == BackupFormat.SESSIONS_PER_BLOCK) {
+			startBlock(BackupFormat.BLOCK_SESSIONS);
+		}
+
+		ensureCapacity(6 * 10 + 1);
+		putVarLong(zigzag(session.getStart() - previousStart));
+		putVarLong(zigzag(session.getEnd() - session.getStart()));
+		putVarLong(zigzag(session.getPlannedDuration()));
+		putVarLong(session.getType().ordinal() | session.getOutcome().ordinal() << 1);
+
+		String task = session.getTask();
+		if (task == null) {
+			payload.put((byte) 0);
+		}
+		else {
+			Integer number = taskNumbers.get(task);
+			if (number != null) {
+				putVarLong(number);
+			}
+			else {
+				number = taskNumbers.size() + 1;
+				taskNumbers.put(task, number);
+				putVarLong(number);
+				putString(task);
+			}
+		}
+
+		ensureCapacity(2 * 10);
+		putVarLong(session.getInterruptions(Session.Interruption.INTERNAL));
+		putVarLong(session.getInterruptions(Session.Interruption.EXTERNAL));
+
+		previousStart = session.getStart();
+		recordCount++;
+		sessionCount++;
+	}
+
+	public void addTaskList(String id, String title) throws IOException {
+		if (blockType != BackupFormat.BLOCK_TASK_LISTS
+				|| recordCount == BackupFormat.TASKS_PER_BLOCK) {
+			startBlock(BackupFormat.BLOCK_TASK_LISTS);
+		}
+
+		putString(id);
+		putString(title);
+		recordCount++;
+	}
+
+	public void addTask(Task task) throws IOException {
+		if (blockType != BackupFormat.BLOCK_TASKS
+				|| recordCount == BackupFormat.TASKS_PER_BLOCK) {
+			startBlock(BackupFormat.BLOCK_TASKS);
+		}
+
+		putString(task.getId());
+		putString(task.getListId());
+		putString(task.getTitle());
+		putString(task.getNotes());
+		ensureCapacity(1 + 2 * 10);
+		payload.put((byte) (task.isCompleted() ? 1 : 0));
+		putVarLong(task.getPomodoros());
+		putVarLong(task.getUpdated());
+		recordCount++;
+	}
+
+	/**
+	 * Writes the last block and the end of the backup, syncs it and puts it
+	 * in place of the file.
+	 */
+	public void finish() throws IOException {
+		endBlock();
+
+		// The count of the end block is the number of blocks before it
+		int blocks = blockCount;
+		startBlock(BackupFormat.BLOCK_END);
+		recordCount = blocks;
+		endBlock();
+
+		channel.force(true);
+		out.close();
+		if (!temp.renameTo(file)) {
+			throw new IOException("Can't rename " + temp + " to " + file);
+		}
+		finished = true;
+	}
+
+	/**
+	 * Gives up on the backup, unless it is finished, deleting what was
+	 * written. Meant to be called in a finally block.
+	 */
+	public void close() {
+		if (finished) {
+			return;
+		}
+
+		try {
+			out.close();
+		}
+		catch (IOException e) {
+			// Deleted anyway
+		}
+		temp.delete();
+	}
+
+	public int getSessionCount() {
+		return sessionCount;
+	}
+
+	/* Private static methods ****************** */
+
+	private static long zigzag(long value) {
+		return value << 1 ^ value >> 63;
+	}
+
+	/* Private methods ************************* */
+
+	private void startBlock(int type) throws IOException {
+		endBlock();
+		blockType = type;
+		recordCount = 0;
+		previousStart = 0;
+		taskNumbers.clear();
+		payload.clear();
+	}
+
+	/**
+	 * Writes the block being filled, if any.
+	 */
+	private void endBlock() throws IOException {
+		if (blockType == NO_BLOCK) {
+			return;
+		}
+
+		header.clear();
+		header.put((byte) blockType);
+		header.putInt(recordCount);
+		header.putInt(payload.position());
+
+		crc.reset();
+		crc.update(header.array(), 0, header.position());
+		crc.update(payload.array(), 0, payload.position());
+		header.putInt((int) crc.getValue());
+
+		header.flip();
+		payload.flip();
+		writeFully(header);
+		writeFully(payload);
+
+		blockType = NO_BLOCK;
+		blockCount++;
+	}
+
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private void ensureCapacity(int bytes) {
+		if (payload.remaining() < bytes) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(
+					payload.capacity() * 2, payload.position() + bytes));
+			payload.flip();
+			larger.put(payload);
+			payload = larger;
+		}
+	}
+
+	private void putVarLong(long value) {
+		while ((value & ~0x7fL) != 0) {
+			payload.put((byte) (value & 0x7f | 0x80));
+			value >>>= 7;
+		}
+		payload.put((byte) value);
+	}
+
+	private void putSignedVarLong(long value) {
+		ensureCapacity(10);
+		putVarLong(zigzag(value));
+	}
+
+	private void putString(String value) throws IOException {
+		if (value == null) {
+			ensureCapacity(1);
+			payload.put((byte) 0);
+			return;
+		}
+
+		byte[] bytes;
+		try {
+			bytes = value.getBytes("UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		ensureCapacity(5 + bytes.length);
+		putVarLong(bytes.length + 1);
+		payload.put(bytes);
+	}
+
+	private void putSettingKey(String key, byte type) throws IOException {
+		putString(key);
+		ensureCapacity(1 + 10);
+		payload.put(type);
+	}
+
+}
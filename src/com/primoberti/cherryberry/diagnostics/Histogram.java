@@ -0,0 +1,221 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.diagnostics;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size histogram with power of two buckets, safe to update from any
+ * thread without locking.
+ *
+ * Bucket 0 counts values up to 0, and bucket i counts values from 2^(i-1) to
+ * 2^i - 1; the last bucket also counts anything larger. Percentiles are
+ * therefore reported as the upper bound of their bucket, within a factor of
+ * two of the real value.
+ *
+ * @author berti
+ */
+public class Histogram {
+
+	/* Public constants ************************ */
+
+	public final static int BUCKETS = 32;
+
+	/* Private fields ************************** */
+
+	private final String name;
+
+	private final String unit;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong sum = new AtomicLong();
+
+	private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+	/* Public constructors ********************* */
+
+	public Histogram(String name, String unit) {
+		this.name = name;
+		this.unit = unit;
+	}
+
+	/* Public static methods ******************* */
+
+	public static int getBucket(long value) {
+		if (value <= 0) {
+			return 0;
+		}
+		return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+	}
+
+	/**
+	 * Returns the largest value counted in the given bucket, or
+	 * {@link Long#MAX_VALUE} for the last one.
+	 */
+	public static long getUpperBound(int bucket) {
+		if (bucket == BUCKETS - 1) {
+			return Long.MAX_VALUE;
+		}
+		return (1L << bucket) - 1;
+	}
+
+	/* Public methods ************************** */
+
+	public void record(long value) {
+		buckets.incrementAndGet(getBucket(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		long current;
+		while ((current = max.get()) < value
+				&& !max.compareAndSet(current, value)) {
+			// Retry with the new maximum
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getUnit() {
+		return unit;
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getSum() {
+		return sum.get();
+	}
+
+	/**
+	 * Returns the largest value recorded, or 0 if none was.
+	 */
+	public long getMax() {
+		long value = max.get();
+		return value == Long.MIN_VALUE ? 0 : value;
+	}
+
+	public long getMean() {
+		long n = count.get();
+		return n > 0 ? sum.get() / n : 0;
+	}
+
+	public long getBucketCount(int bucket) {
+		return buckets.get(bucket);
+	}
+
+	/**
+	 * Returns the upper bound of the bucket holding the given percentile, or
+	 * 0 if nothing was recorded.
+	 *
+	 * @param percentile between 0 and 100
+	 */
+	public long getPercentile(double percentile) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+
+		long target = (long) Math.ceil(n * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= target) {
+				return Math.min(getUpperBound(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(Long.MIN_VALUE);
+	}
+
+	/**
+	 * Appends a human readable summary and the non empty buckets.
+	 */
+	public void dump(StringBuilder out) {
+		out.append(name).append(" (").append(unit).append("): count=")
+				.append(getCount()).append(" mean=").append(getMean())
+				.append(" p50=").append(getPercentile(50)).append(" p90=")
+				.append(getPercentile(90)).append(" p99=")
+				.append(getPercentile(99)).append(" max=").append(getMax())
+				.append('\n');
+
+		for (int i = 0; i < BUCKETS; i++) {
+			long n = buckets.get(i);
+			if (n > 0) {
+				out.append("  <= ");
+				if (i == BUCKETS - 1) {
+					out.append("inf");
+				}
+				else {
+					out.append(getUpperBound(i));
+				}
+				out.append(": ").append(n).append('\n');
+			}
+		}
+	}
+
+	/**
+	 * Writes the histogram in a binary form that {@link #readFrom(DataInput)}
+	 * reads back.
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeLong(count.get());
+		out.writeLong(sum.get());
+		out.writeLong(max.get());
+		for (int i = 0; i < BUCKETS; i++) {
+			out.writeLong(buckets.get(i));
+		}
+	}
+
+	/**
+	 * Replaces the contents with the ones written by
+	 * {@link #writeTo(DataOutput)}.
+	 */
+	public void readFrom(DataInput in) throws IOException {
+		count.set(in.readLong());
+		sum.set(in.readLong());
+		max.set(in.readLong());
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets.set(i, in.readLong());
+		}
+	}
+
+}
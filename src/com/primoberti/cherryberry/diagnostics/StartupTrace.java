@@ -0,0 +1,278 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.diagnostics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Times the phases of launching the main screen.
+ *
+ * A trace starts with {@link #begin()} at the top of onCreate, and every
+ * {@link Phase} is marked with its time since then. Once all of them have
+ * been marked the trace is logged, and if it was the first launch in the
+ * process, the cold start, its times are added to a {@link Histogram} per
+ * phase. The histograms are only read and written from a background thread
+ * or from {@link #dump()}, so tracing doesn't add any disk access to the
+ * launch itself.
+ *
+ * Only meant to be used from the main thread.
+ *
+ * @author berti
+ */
+public class StartupTrace {
+
+	/* Public enumerations ********************* */
+
+	/**
+	 * Milestones of a launch, in the order they are expected.
+	 */
+	public enum Phase {
+		/** Default settings applied, if needed. */
+		DEFAULTS,
+		/** Content view inflated and set up. */
+		LAYOUT,
+		/** Last known timer state shown. */
+		SNAPSHOT,
+		/** First frame drawn. */
+		FIRST_FRAME,
+		/** Timer service connected and its real state shown. */
+		SERVICE_CONNECTED
+	};
+
+	/* Private constants *********************** */
+
+	private final static String TAG = "StartupTrace";
+
+	private final static String STATE_FILE = "startup_stats.bin";
+
+	private final static int VERSION = 1;
+
+	private final static Phase[] PHASES = Phase.values();
+
+	/* Private static fields ******************* */
+
+	private static StartupTrace instance;
+
+	/* Private fields ************************** */
+
+	private final Context context;
+
+	/** Cold start times of each phase; guarded by this. */
+	private final Histogram[] histograms = new Histogram[PHASES.length];
+
+	/** Whether the histograms have been read from the file; guarded by this. */
+	private boolean loaded;
+
+	private long origin;
+
+	private final long[] marks = new long[PHASES.length];
+
+	private boolean tracing;
+
+	private boolean coldStart = true;
+
+	/* Private constructors ******************** */
+
+	private StartupTrace(Context context) {
+		this.context = context;
+
+		for (int i = 0; i < PHASES.length; i++) {
+			histograms[i] = new Histogram("Cold start to "
+					+ PHASES[i].name().toLowerCase(Locale.US), "ms");
+		}
+	}
+
+	/* Public static methods ******************* */
+
+	public static synchronized StartupTrace getInstance(Context context) {
+		if (instance == null) {
+			instance = new StartupTrace(context.getApplicationContext());
+		}
+		return instance;
+	}
+
+	/* Public methods ************************** */
+
+	/**
+	 * Starts a new trace. Only the first trace in the process counts as a
+	 * cold start.
+	 */
+	public void begin() {
+		origin = SystemClock.uptimeMillis();
+		Arrays.fill(marks, -1);
+		tracing = true;
+	}
+
+	/**
+	 * Marks the given phase as reached now, unless it already was in this
+	 * trace.
+	 */
+	public void mark(Phase phase) {
+		if (!tracing || marks[phase.ordinal()] >= 0) {
+			return;
+		}
+
+		marks[phase.ordinal()] = SystemClock.uptimeMillis() - origin;
+
+		for (long mark : marks) {
+			if (mark < 0) {
+				return;
+			}
+		}
+		finish();
+	}
+
+	/**
+	 * Returns a human readable summary of the cold starts measured.
+	 */
+	public synchronized String dump() {
+		load();
+
+		StringBuilder out = new StringBuilder();
+		for (Histogram histogram : histograms) {
+			out.append('\n');
+			histogram.dump(out);
+		}
+		return out.toString();
+	}
+
+	/* Private methods ************************* */
+
+	private void finish() {
+		tracing = false;
+
+		StringBuilder message = new StringBuilder(coldStart ? "Cold start:"
+				: "Warm start:");
+		for (int i = 0; i < PHASES.length; i++) {
+			message.append(' ')
+					.append(PHASES[i].name().toLowerCase(Locale.US))
+					.append('=').append(marks[i]).append("ms");
+		}
+		Log.i(TAG, message.toString());
+
+		if (coldStart) {
+			coldStart = false;
+
+			final long[] times = marks.clone();
+			new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					record(times);
+				}
+
+			}, TAG).start();
+		}
+	}
+
+	private synchronized void record(long[] times) {
+		load();
+
+		for (int i = 0; i < times.length; i++) {
+			histograms[i].record(times[i]);
+		}
+
+		save();
+	}
+
+	/**
+	 * Reads the histograms from the file the first time they are needed.
+	 * Must be called with the lock held.
+	 */
+	private void load() {
+		if (loaded) {
+			return;
+		}
+		loaded = true;
+
+		File file = new File(context.getFilesDir(), STATE_FILE);
+		if (!file.exists()) {
+			return;
+		}
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			try {
+				if (in.readInt() != VERSION) {
+					return;
+				}
+				for (Histogram histogram : histograms) {
+					histogram.readFrom(in);
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			Log.w(TAG, "Can't read " + file, e);
+		}
+	}
+
+	/**
+	 * Saves the histograms aside and renames them over the previous ones, so
+	 * a crash leaves either of them intact. Must be called with the lock
+	 * held.
+	 */
+	private void save() {
+		File file = new File(context.getFilesDir(), STATE_FILE);
+		File temp = new File(context.getFilesDir(), STATE_FILE + ".tmp");
+
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				out.writeInt(VERSION);
+				for (Histogram histogram : histograms) {
+					histogram.writeTo(out);
+				}
+			}
+			finally {
+				out.close();
+			}
+
+			if (!temp.renameTo(file)) {
+				throw new IOException("Can't rename " + temp + " to " + file);
+			}
+		}
+		catch (IOException e) {
+			Log.w(TAG, "Can't save " + file, e);
+		}
+	}
+
+}
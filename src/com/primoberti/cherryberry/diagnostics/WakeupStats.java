@@ -0,0 +1,389 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.diagnostics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Counts how often CherryBerry wakes up the device and what each wakeup
+ * costs.
+ *
+ * Every alarm set and cancelled is counted, and its trigger time is kept
+ * until it is delivered, even across process death, so the delivery can be
+ * measured against it. Each delivered alarm counts as a wakeup; its lateness,
+ * the CPU time of the thread handling it and the wall time it kept the
+ * process busy go into {@link Histogram}s. The totals are saved in the
+ * background whenever they change and can be exported as a text dump.
+ *
+ * The app holds no wake locks of its own, so the wall time spent handling
+ * the wakeups is what it adds to the time the device stays awake.
+ *
+ * @author berti
+ */
+public class WakeupStats {
+
+	/* Private constants *********************** */
+
+	private final static String TAG = "WakeupStats";
+
+	private final static String STATE_FILE = "wakeup_stats.bin";
+
+	private final static String DUMP_FILE = "wakeup_stats.txt";
+
+	/** Trigger times of the pending alarms, by action. */
+	private final static String SHARED_PREFS = "wakeup_alarms";
+
+	private final static int VERSION = 1;
+
+	private final static ExecutorService WRITER = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "WakeupStats");
+					thread.setDaemon(true);
+					return thread;
+				}
+
+			});
+
+	/* Private static fields ******************* */
+
+	private static WakeupStats instance;
+
+	/* Private fields ************************** */
+
+	private final Context context;
+
+	private final SharedPreferences pendingAlarms;
+
+	private final AtomicLong alarmsSet = new AtomicLong();
+
+	private final AtomicLong alarmsCancelled = new AtomicLong();
+
+	private final AtomicLong wakeups = new AtomicLong();
+
+	private final AtomicLong since = new AtomicLong();
+
+	private final Histogram lateness = new Histogram("Alarm lateness", "ms");
+
+	private final Histogram cpuTime = new Histogram("Wakeup CPU time", "us");
+
+	private final Histogram wallTime = new Histogram("Wakeup wall time", "ms");
+
+	/** True while a save is queued and hasn't started yet. */
+	private boolean savePending;
+
+	private final Runnable saveTask = new Runnable() {
+
+		@Override
+		public void run() {
+			synchronized (WakeupStats.this) {
+				savePending = false;
+			}
+			write();
+		}
+
+	};
+
+	/* Private constructors ******************** */
+
+	private WakeupStats(Context context) {
+		this.context = context;
+		this.pendingAlarms = context.getSharedPreferences(SHARED_PREFS,
+				Context.MODE_PRIVATE);
+
+		load();
+	}
+
+	/* Public static methods ******************* */
+
+	public static synchronized WakeupStats getInstance(Context context) {
+		if (instance == null) {
+			instance = new WakeupStats(context.getApplicationContext());
+		}
+		return instance;
+	}
+
+	/* Public methods ************************** */
+
+	/**
+	 * Counts an alarm set to deliver the given action at the given wall clock
+	 * time.
+	 */
+	public void onAlarmSet(String action, long triggerTime) {
+		alarmsSet.incrementAndGet();
+		apply(pendingAlarms.edit().putLong(action, triggerTime));
+
+		save();
+	}
+
+	/**
+	 * Counts an alarm cancelled before its delivery. Cancelling an alarm that
+	 * isn't pending doesn't count.
+	 */
+	public void onAlarmCancelled(String action) {
+		if (pendingAlarms.contains(action)) {
+			alarmsCancelled.incrementAndGet();
+			apply(pendingAlarms.edit().remove(action));
+
+			save();
+		}
+	}
+
+	/**
+	 * Starts measuring the handling of a delivered alarm. Must be followed by
+	 * {@link Wakeup#finish()} on the same thread.
+	 */
+	public Wakeup onWakeup(String action) {
+		long triggerTime = pendingAlarms.getLong(action, 0);
+		if (triggerTime > 0) {
+			lateness.record(System.currentTimeMillis() - triggerTime);
+			apply(pendingAlarms.edit().remove(action));
+		}
+
+		return new Wakeup();
+	}
+
+	public long getAlarmsSet() {
+		return alarmsSet.get();
+	}
+
+	public long getAlarmsCancelled() {
+		return alarmsCancelled.get();
+	}
+
+	public long getWakeups() {
+		return wakeups.get();
+	}
+
+	public Histogram getLateness() {
+		return lateness;
+	}
+
+	public Histogram getCpuTime() {
+		return cpuTime;
+	}
+
+	public Histogram getWallTime() {
+		return wallTime;
+	}
+
+	/**
+	 * Returns a human readable summary of everything measured.
+	 */
+	public String dump() {
+		StringBuilder out = new StringBuilder();
+		out.append("Since: ").append(new Date(since.get()))
+				.append('\n');
+		out.append("Alarms set: ").append(alarmsSet.get()).append('\n');
+		out.append("Alarms cancelled: ").append(alarmsCancelled.get())
+				.append('\n');
+		out.append("Wakeups: ").append(wakeups.get()).append('\n');
+		out.append('\n');
+		lateness.dump(out);
+		out.append('\n');
+		cpuTime.dump(out);
+		out.append('\n');
+		wallTime.dump(out);
+		return out.toString();
+	}
+
+	/**
+	 * Writes {@link #dump()} to a file in the app files directory.
+	 *
+	 * @return the file written
+	 */
+	public File exportDump() throws IOException {
+		File file = new File(context.getFilesDir(), DUMP_FILE);
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file),
+				"UTF-8");
+		try {
+			writer.write(dump());
+		}
+		finally {
+			writer.close();
+		}
+		return file;
+	}
+
+	/**
+	 * Clears every count and starts measuring again from now.
+	 */
+	public void reset() {
+		alarmsSet.set(0);
+		alarmsCancelled.set(0);
+		wakeups.set(0);
+		since.set(System.currentTimeMillis());
+		lateness.reset();
+		cpuTime.reset();
+		wallTime.reset();
+
+		save();
+	}
+
+	/* Private methods ************************* */
+
+	private void load() {
+		since.set(System.currentTimeMillis());
+
+		File file = new File(context.getFilesDir(), STATE_FILE);
+		if (!file.exists()) {
+			return;
+		}
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			try {
+				if (in.readInt() != VERSION) {
+					return;
+				}
+				since.set(in.readLong());
+				alarmsSet.set(in.readLong());
+				alarmsCancelled.set(in.readLong());
+				wakeups.set(in.readLong());
+				lateness.readFrom(in);
+				cpuTime.readFrom(in);
+				wallTime.readFrom(in);
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			Log.w(TAG, "Can't read " + file, e);
+		}
+	}
+
+	/**
+	 * Queues a save of the totals, unless one is queued already.
+	 */
+	private void save() {
+		synchronized (this) {
+			if (savePending) {
+				return;
+			}
+			savePending = true;
+		}
+		WRITER.execute(saveTask);
+	}
+
+	/**
+	 * Saves the totals aside and renames them over the previous ones, so a
+	 * crash leaves either of them intact. Runs on the writer thread.
+	 */
+	private void write() {
+		File file = new File(context.getFilesDir(), STATE_FILE);
+		File temp = new File(context.getFilesDir(), STATE_FILE + ".tmp");
+
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				out.writeInt(VERSION);
+				out.writeLong(since.get());
+				out.writeLong(alarmsSet.get());
+				out.writeLong(alarmsCancelled.get());
+				out.writeLong(wakeups.get());
+				lateness.writeTo(out);
+				cpuTime.writeTo(out);
+				wallTime.writeTo(out);
+			}
+			finally {
+				out.close();
+			}
+
+			if (!temp.renameTo(file)) {
+				throw new IOException("Can't rename " + temp + " to " + file);
+			}
+		}
+		catch (IOException e) {
+			Log.w(TAG, "Can't save " + file, e);
+		}
+	}
+
+	/**
+	 * Writes the changes to the pending alarms in the background where
+	 * possible (Android 2.3 and later). They are kept in memory meanwhile.
+	 */
+	@TargetApi(9)
+	private void apply(SharedPreferences.Editor editor) {
+		if (android.os.Build.VERSION.SDK_INT >= 9) {
+			editor.apply();
+		}
+		else {
+			editor.commit();
+		}
+	}
+
+	/* Public inner classes ******************** */
+
+	/**
+	 * Handling of a single wakeup being measured.
+	 */
+	public class Wakeup {
+
+		private final long startCpu = Debug.threadCpuTimeNanos();
+
+		private final long startWall = SystemClock.elapsedRealtime();
+
+		/**
+		 * Records the cost of the wakeup and saves the totals.
+		 */
+		public void finish() {
+			long cpu = Debug.threadCpuTimeNanos();
+			if (cpu >= 0 && startCpu >= 0) {
+				cpuTime.record((cpu - startCpu) / 1000);
+			}
+			wallTime.record(SystemClock.elapsedRealtime() - startWall);
+			wakeups.incrementAndGet();
+
+			save();
+		}
+
+	}
+
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.engine;
+
+/**
+ * Count down ticker whose ticks are aligned to the deadline.
+ *
+ * Ticks are scheduled for the instants at which the remaining time is an
+ * exact multiple of the granularity, and the delay to the next tick is
+ * computed from the clock on every tick, so lateness never accumulates. The
+ * remaining time reported on each tick is the aligned value (the actual
+ * remaining time rounded up to the granularity), which keeps a seconds
+ * display from skipping or repeating a second; how late the tick actually
+ * was is reported separately as its jitter.
+ *
+ * A single runnable is reused for all the ticks.
+ *
+ * @author berti
+ */
+public class AlignedTicker {
+
+	/* Public constants ************************ */
+
+	/** Granularity for a seconds display. */
+	public final static long GRANULARITY_TEXT = 1000;
+
+	/** Granularity for animations, about one frame at 60 fps. */
+	public final static long GRANULARITY_ANIMATION = 16;
+
+	/** Granularity when nothing is shown but something must still be updated. */
+	public final static long GRANULARITY_BACKGROUND = 60 * 1000;
+
+	/* Private constants *********************** */
+
+	/** Maximum time a tick may run early and still count as on time. */
+	private final static long MAX_EARLY = 20;
+
+	/* Private fields ************************** */
+
+	private final Clock clock;
+
+	private final Scheduler scheduler;
+
+	private final Callback callback;
+
+	private long granularity;
+
+	private long deadline;
+
+	private boolean running;
+
+	/** Incremented every time the ticks are rescheduled from scratch. */
+	private int generation;
+
+	/** Whether the next tick is the immediate one after a (re)start. */
+	private boolean firstTick;
+
+	private long ticks;
+
+	private long lastJitter;
+
+	private long maxJitter;
+
+	private long totalJitter;
+
+	private final Runnable tickTask = new Runnable() {
+
+		@Override
+		public void run() {
+			tick();
+		}
+
+	};
+
+	/* Public constructors ********************* */
+
+	public AlignedTicker(Clock clock, Scheduler scheduler, long granularity,
+			Callback callback) {
+		this.clock = clock;
+		this.scheduler = scheduler;
+		this.callback = callback;
+
+		setGranularity(granularity);
+	}
+
+	/* Public methods ************************** */
+
+	/**
+	 * Starts ticking towards the given deadline. The first tick happens right
+	 * away and reports no jitter.
+	 *
+	 * @param deadline the end of the count down, in the monotonic time of the
+	 *            clock
+	 */
+	public void start(long deadline) {
+		scheduler.cancel(tickTask);
+
+		this.deadline = deadline;
+		running = true;
+
+		restart();
+	}
+
+	public void stop() {
+		scheduler.cancel(tickTask);
+
+		running = false;
+		generation++;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	public long getGranularity() {
+		return granularity;
+	}
+
+	/**
+	 * Changes the granularity of the ticks. A running ticker ticks right away
+	 * and then continues aligned to the new granularity.
+	 */
+	public void setGranularity(long granularity) {
+		if (granularity <= 0) {
+			throw new IllegalArgumentException("Invalid granularity "
+					+ granularity);
+		}
+
+		if (this.granularity != granularity) {
+			this.granularity = granularity;
+
+			if (running) {
+				scheduler.cancel(tickTask);
+				restart();
+			}
+		}
+	}
+
+	public long getTickCount() {
+		return ticks;
+	}
+
+	/**
+	 * Returns how late the last tick ran, in milliseconds. Negative if it ran
+	 * early.
+	 */
+	public long getLastJitter() {
+		return lastJitter;
+	}
+
+	public long getMaxJitter() {
+		return maxJitter;
+	}
+
+	public long getAverageJitter() {
+		return ticks > 0 ? totalJitter / ticks : 0;
+	}
+
+	/* Private methods ************************* */
+
+	private void restart() {
+		generation++;
+		firstTick = true;
+		scheduler.schedule(tickTask, 0);
+	}
+
+	private void tick() {
+		if (!running) {
+			return;
+		}
+
+		long now = clock.monotonicMillis();
+		long remaining = deadline - now;
+
+		// Whole steps left, rounding up: the tick belongs to the step
+		// boundary that has just been crossed
+		long steps = (remaining + granularity - 1) / granularity;
+		long jitter = 0;
+		if (!firstTick) {
+			jitter = steps * granularity - remaining;
+			if (remaining > 0
+					&& granularity - jitter <= Math.min(MAX_EARLY,
+							granularity / 4)) {
+				// Slightly early for the next boundary, treat it as reached
+				steps--;
+				jitter -= granularity;
+			}
+		}
+		firstTick = false;
+
+		ticks++;
+		lastJitter = jitter;
+		maxJitter = Math.max(maxJitter, jitter);
+		totalJitter += jitter;
+
+		if (steps <= 0) {
+			running = false;
+			callback.onFinish(jitter);
+		}
+		else {
+			int generation = this.generation;
+			callback.onTick(steps * granularity, jitter);
+
+			// Unless the callback stopped or restarted the ticker
+			if (running && generation == this.generation) {
+				long next = deadline - (steps - 1) * granularity;
+				scheduler.schedule(tickTask,
+						Math.max(0, next - clock.monotonicMillis()));
+			}
+		}
+	}
+
+	/* Public inner classes ******************** */
+
+	public interface Callback {
+
+		/**
+		 * Called on every tick but the last one.
+		 *
+		 * @param millisUntilFinished remaining time, a multiple of the
+		 *            granularity
+		 * @param jitter how late this tick ran, in milliseconds
+		 */
+		public void onTick(long millisUntilFinished, long jitter);
+
+		/**
+		 * Called once the deadline is reached.
+		 *
+		 * @param jitter how late the deadline was detected, in milliseconds
+		 */
+		public void onFinish(long jitter);
+
+	}
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.engine;
+
+/**
+ * Source of time for {@link PomodoroEngine}.
+ *
+ * Count downs are measured against the monotonic clock, so they are not
+ * affected by changes to the wall clock. The wall clock is only used for the
+ * timestamps that are persisted or shown to the user.
+ *
+ * @author berti
+ */
+public interface Clock {
+
+	/**
+	 * Clock backed by {@link System#nanoTime()} and
+	 * {@link System#currentTimeMillis()}.
+	 */
+	public final static Clock SYSTEM = new Clock() {
+
+		@Override
+		public long monotonicMillis() {
+			return System.nanoTime() / 1000000;
+		}
+
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+
+	};
+
+	/**
+	 * Returns the current value of a clock that never goes backwards, in
+	 * milliseconds. Its origin is arbitrary.
+	 */
+	public long monotonicMillis();
+
+	/**
+	 * Returns the current wall clock time, in milliseconds since the epoch.
+	 */
+	public long currentTimeMillis();
+
+}
@@ -0,0 +1,787 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.engine;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import com.primoberti.cherryberry.engine.PomodoroEngine.Event;
+import com.primoberti.cherryberry.engine.PomodoroEngine.Status;
+
+/**
+ * Append-only log of the transitions of a {@link PomodoroEngine}, from which
+ * its state is rebuilt.
+ *
+ * Every transition is appended as an {@link Event} record holding only what
+ * the event adds: its time, the end of the period it starts and whether it
+ * starts a new long break cycle. The state is the result of folding the
+ * events with the engine's transition table. Every {@link #SNAPSHOT_INTERVAL}
+ * events a snapshot record with the whole state is appended, so
+ * {@link #restore()} only reads the tail of the log back to the last
+ * snapshot and replays the events after it, however long the log is. A
+ * transition the events can't explain, e.g. a state restored from an
+ * auto-run plan, is appended as a snapshot too, so replaying always arrives
+ * at the state the engine had.
+ *
+ * Records have a fixed size and a CRC32 checksum. Appending returns
+ * immediately; a background thread writes the records queued since its last
+ * write with a single sync. A write that fails is retried with a growing
+ * delay, keeping the transitions queued meanwhile. A record torn by a crash
+ * ends the log, and is cut off before the next append.
+ *
+ * The whole log can be read back with {@link #read(long)}, e.g. to audit the
+ * history.
+ *
+ * @author berti
+ */
+public class EventLog {
+
+	/* Public constants ************************ */
+
+	/**
+	 * Size of a record: kind, flags and status (1 byte each), time, start and
+	 * end times (8 bytes each), completed pomodoros (4 bytes) and checksum (4
+	 * bytes). Events hold the status they lead to, to check the replay, and
+	 * leave the start time and the count at zero.
+	 */
+	public final static int RECORD_SIZE = 35;
+
+	/** Magic number and format version at the start of the log. */
+	public final static byte[] HEADER = { (byte) 0xcb, 'E', 'L', 1 };
+
+	/** Number of events between snapshots. */
+	public final static int SNAPSHOT_INTERVAL = 32;
+
+	/* Private constants *********************** */
+
+	/** Record kind of snapshots; events use the ordinal of the event. */
+	private final static byte KIND_SNAPSHOT = (byte) 0xff;
+
+	/** Event flag: the event starts a new long break cycle. */
+	private final static byte FLAG_CYCLE_RESET = 1;
+
+	/** Snapshot flag: the state was set without an event. */
+	private final static byte FLAG_JUMP = 1;
+
+	private final static State INITIAL_STATE = new State(Status.IDLE, 0, 0, 0);
+
+	/** Delay before retrying the first failed write, doubled on each. */
+	private final static long MIN_RETRY_DELAY = 1000;
+
+	private final static long MAX_RETRY_DELAY = 60 * 1000;
+
+	private final static ScheduledExecutorService WRITER = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "EventLog");
+					thread.setDaemon(true);
+					return thread;
+				}
+
+			});
+
+	/* Private fields ************************** */
+
+	private final File file;
+
+	private final Object lock = new Object();
+
+	/** Transitions waiting to be written, guarded by lock. */
+	private List<Transition> pending = new ArrayList<Transition>();
+
+	/** State at the end of the log; only touched by the writer thread. */
+	private State state;
+
+	/** Length of the valid part of the log, or -1 until it has been read. */
+	private long length = -1;
+
+	private int eventsSinceSnapshot;
+
+	/** Delay of the last retry, or 0 after a write that succeeded. */
+	private long retryDelay;
+
+	private volatile int appends;
+
+	private volatile int writes;
+
+	private final Runnable writeTask = new Runnable() {
+
+		@Override
+		public void run() {
+			write();
+		}
+
+	};
+
+	/* Public constructors ********************* */
+
+	public EventLog(File file) {
+		this.file = file;
+	}
+
+	/* Public static methods ******************* */
+
+	/**
+	 * Returns the state at the end of the log in the given file, or null if
+	 * the log is empty or missing. Reads the file directly instead of waiting
+	 * for the writer, so transitions that are still queued are left out, and
+	 * a record being written is ignored like one torn by a crash.
+	 *
+	 * @throws IOException if the log can't be read
+	 */
+	public static State readState(File file) throws IOException {
+		Tail tail = readTail(file);
+		return tail.end > HEADER.length ? tail.state : null;
+	}
+
+	/* Public methods ************************** */
+
+	/**
+	 * Queues the last transition of the engine to be appended. Call it after
+	 * every transition, and after restoring the engine to a state that may
+	 * differ from the logged one; restoring the logged state adds nothing.
+	 *
+	 * @see PomodoroEngine#getLastEvent()
+	 */
+	public void append(PomodoroEngine engine) {
+		Transition transition = new Transition(engine.getLastEvent(), engine
+				.getClock().currentTimeMillis(), new State(engine.getStatus(),
+				engine.getTimerStart(), engine.getTimerEnd(),
+				engine.getCompletedPomodoros()));
+
+		boolean submit;
+		synchronized (lock) {
+			submit = pending.isEmpty();
+			pending.add(transition);
+		}
+		appends++;
+
+		if (submit) {
+			WRITER.execute(writeTask);
+		}
+	}
+
+	/**
+	 * Returns the state at the end of the log, or null if the log is empty or
+	 * missing. Writes the pending transitions first, even if their retry is
+	 * not due yet.
+	 *
+	 * @throws IOException if the log can't be read
+	 */
+	public State restore() throws IOException {
+		return runOnWriter(new Callable<State>() {
+
+			@Override
+			public State call() throws IOException {
+				write();
+				if (length < 0) {
+					recover();
+				}
+				return length > HEADER.length ? state : null;
+			}
+
+		});
+	}
+
+	/**
+	 * Reads the events and jumps appended since the given time, oldest
+	 * first, each with the state it led to. Reads the whole log, so it is
+	 * meant for the history rather than for every start.
+	 *
+	 * @param since wall clock time of the first entry to return
+	 * @throws IOException if the log can't be read
+	 */
+	public List<Entry> read(final long since) throws IOException {
+		return runOnWriter(new Callable<List<Entry>>() {
+
+			@Override
+			public List<Entry> call() throws IOException {
+				return readEntries(since);
+			}
+
+		});
+	}
+
+	public boolean exists() {
+		return file.exists();
+	}
+
+	/**
+	 * Returns the number of transitions appended so far.
+	 */
+	public int getAppendCount() {
+		return appends;
+	}
+
+	/**
+	 * Returns the number of writes to the file so far, which is lower than
+	 * {@link #getAppendCount()} when appends were written together.
+	 */
+	public int getWriteCount() {
+		return writes;
+	}
+
+	/* Private static methods ****************** */
+
+	/**
+	 * Returns the state reached by applying an event, or null if the event
+	 * isn't allowed in the given state.
+	 */
+	private static State apply(State state, Event event, byte flags,
+			long time, long timerEnd) {
+		Status to = PomodoroEngine.next(state.status, event);
+		if (to == null) {
+			return null;
+		}
+
+		long start = state.timerStart;
+		long end = state.timerEnd;
+		int completed = state.completedPomodoros;
+		if (event == Event.START_POMODORO || event == Event.START_BREAK) {
+			start = time;
+			end = timerEnd;
+		}
+		else if (to == Status.IDLE) {
+			start = 0;
+			end = 0;
+		}
+
+		if (state.status == Status.POMODORO_RUNNING
+				&& to == Status.POMODORO_FINISHED) {
+			completed++;
+		}
+		if ((flags & FLAG_CYCLE_RESET) != 0) {
+			completed = 0;
+		}
+
+		return new State(to, start, end, completed);
+	}
+
+	private static void encode(ByteBuffer buffer, byte kind, byte flags,
+			Status status, long time, long timerStart, long timerEnd,
+			int completedPomodoros) {
+		int offset = buffer.position();
+		buffer.put(kind);
+		buffer.put(flags);
+		buffer.put((byte) status.ordinal());
+		buffer.putLong(time);
+		buffer.putLong(timerStart);
+		buffer.putLong(timerEnd);
+		buffer.putInt(completedPomodoros);
+		buffer.putInt(checksum(buffer.array(), offset));
+	}
+
+	private static void encodeSnapshot(ByteBuffer buffer, byte flags,
+			long time, State state) {
+		encode(buffer, KIND_SNAPSHOT, flags, state.status, time,
+				state.timerStart, state.timerEnd, state.completedPomodoros);
+	}
+
+	private static int checksum(byte[] data, int offset) {
+		CRC32 crc = new CRC32();
+		crc.update(data, offset, RECORD_SIZE - 4);
+		return (int) crc.getValue();
+	}
+
+	private static boolean isValid(byte[] data, int offset) {
+		int kind = data[offset] & 0xff;
+		if (kind != (KIND_SNAPSHOT & 0xff) && kind >= Event.values().length) {
+			return false;
+		}
+		return ByteBuffer.wrap(data).getInt(offset + RECORD_SIZE - 4) == checksum(
+				data, offset);
+	}
+
+	private static boolean isSnapshot(byte[] data, int offset) {
+		return data[offset] == KIND_SNAPSHOT;
+	}
+
+	/**
+	 * Decodes a record and applies it to the given state.
+	 *
+	 * @return the new state, or null if the record is invalid
+	 */
+	private static State decode(State state, byte[] data, int offset) {
+		if (!isValid(data, offset)) {
+			return null;
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(data, offset, RECORD_SIZE);
+		byte kind = buffer.get();
+		byte flags = buffer.get();
+		int ordinal = buffer.get();
+		long time = buffer.getLong();
+		long timerStart = buffer.getLong();
+		long timerEnd = buffer.getLong();
+		int completedPomodoros = buffer.getInt();
+
+		Status[] statuses = Status.values();
+		if (ordinal < 0 || ordinal >= statuses.length) {
+			return null;
+		}
+		if (kind == KIND_SNAPSHOT) {
+			return new State(statuses[ordinal], timerStart, timerEnd,
+					completedPomodoros);
+		}
+
+		// The status is only stored to check the replay against
+		State next = apply(state, Event.values()[kind], flags, time, timerEnd);
+		return next != null && next.status == statuses[ordinal] ? next : null;
+	}
+
+	private static boolean hasHeader(byte[] data) {
+		for (int i = 0; i < HEADER.length; i++) {
+			if (data[i] != HEADER[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Rebuilds the state from the last snapshot and the events after it,
+	 * reading back from the end of the log a window at a time until a
+	 * snapshot is found. Only reads the file.
+	 */
+	private static Tail readTail(File file) throws IOException {
+		State current = INITIAL_STATE;
+		int events = 0;
+		long end = 0;
+
+		if (file.exists()) {
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			try {
+				byte[] header = new byte[HEADER.length];
+				// Anything but a log is rewritten from the start
+				if (in.length() >= HEADER.length) {
+					in.readFully(header);
+				}
+				if (hasHeader(header)) {
+					long records = (in.length() - HEADER.length)
+							/ RECORD_SIZE;
+					long window = SNAPSHOT_INTERVAL + 1;
+					long first;
+					byte[] data;
+					int snapshot = -1;
+					while (true) {
+						window = Math.min(window, records);
+						first = records - window;
+						data = new byte[(int) window * RECORD_SIZE];
+						in.seek(HEADER.length + first * RECORD_SIZE);
+						in.readFully(data);
+
+						for (int offset = data.length - RECORD_SIZE; offset >= 0; offset -= RECORD_SIZE) {
+							if (isSnapshot(data, offset)
+									&& isValid(data, offset)) {
+								snapshot = offset;
+								break;
+							}
+						}
+						if (snapshot >= 0 || first == 0) {
+							break;
+						}
+						window *= 2;
+					}
+
+					// Without a snapshot, replay everything from the start
+					int offset = Math.max(snapshot, 0);
+					for (; offset < data.length; offset += RECORD_SIZE) {
+						State next = decode(current, data, offset);
+						if (next == null) {
+							break;
+						}
+						current = next;
+						events = isSnapshot(data, offset) ? 0 : events + 1;
+					}
+					end = HEADER.length + first * RECORD_SIZE + offset;
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+
+		return new Tail(current, events, end);
+	}
+
+	/* Private methods ************************* */
+
+	private <T> T runOnWriter(Callable<T> task) throws IOException {
+		try {
+			return WRITER.submit(task).get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading " + file);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Appends the pending transitions with a single write. Runs on the writer
+	 * thread.
+	 */
+	private void write() {
+		List<Transition> transitions;
+		synchronized (lock) {
+			transitions = pending;
+			pending = new ArrayList<Transition>();
+		}
+		if (transitions.isEmpty()) {
+			return;
+		}
+
+		try {
+			if (length < 0) {
+				recover();
+			}
+
+			// Up to a snapshot after every event, plus the header
+			ByteBuffer buffer = ByteBuffer.allocate(HEADER.length + 2
+					* RECORD_SIZE * (transitions.size() + 1));
+			State current = state;
+			int events = eventsSinceSnapshot;
+			if (length == 0) {
+				buffer.put(HEADER);
+				encodeSnapshot(buffer, (byte) 0, transitions.get(0).time,
+						current);
+			}
+
+			for (Transition transition : transitions) {
+				if (transition.event == null
+						&& transition.state.equals(current)) {
+					// Restored to the state already logged
+					continue;
+				}
+
+				State next = encodeTransition(buffer, current, transition);
+				if (next != null) {
+					current = next;
+					if (++events >= SNAPSHOT_INTERVAL) {
+						encodeSnapshot(buffer, (byte) 0, transition.time,
+								current);
+						events = 0;
+					}
+				}
+				else {
+					encodeSnapshot(buffer, FLAG_JUMP, transition.time,
+							transition.state);
+					current = transition.state;
+					events = 0;
+				}
+			}
+
+			RandomAccessFile out = new RandomAccessFile(file, "rw");
+			try {
+				// Overwrites whatever a failed write left behind
+				out.seek(length);
+				out.write(buffer.array(), 0, buffer.position());
+				out.setLength(length + buffer.position());
+				out.getFD().sync();
+			}
+			finally {
+				out.close();
+			}
+
+			length += buffer.position();
+			state = current;
+			eventsSinceSnapshot = events;
+			retryDelay = 0;
+			writes++;
+		}
+		catch (IOException e) {
+			// Written again later over whatever this write left behind.
+			// Appends don't schedule a write while these are pending, so
+			// the retry must.
+			synchronized (lock) {
+				transitions.addAll(pending);
+				pending = transitions;
+			}
+			retryDelay = Math.min(Math.max(retryDelay * 2, MIN_RETRY_DELAY),
+					MAX_RETRY_DELAY);
+			WRITER.schedule(writeTask, retryDelay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Encodes the transition as an event record if its event leads from the
+	 * current state to the transition's one.
+	 *
+	 * @return the new state, or null if nothing was encoded
+	 */
+	private State encodeTransition(ByteBuffer buffer, State current,
+			Transition transition) {
+		Event event = transition.event;
+		if (event == null) {
+			return null;
+		}
+
+		State target = transition.state;
+		byte flags = target.completedPomodoros == 0
+				&& current.completedPomodoros > 0 ? FLAG_CYCLE_RESET : 0;
+		long time;
+		if (event == Event.START_POMODORO || event == Event.START_BREAK) {
+			time = target.timerStart;
+		}
+		else if (event == Event.FINISH) {
+			// Finished when it ended, even if it was noticed later
+			time = target.timerEnd;
+		}
+		else {
+			time = transition.time;
+		}
+
+		State next = apply(current, event, flags, time, target.timerEnd);
+		if (next == null || !next.equals(target)) {
+			return null;
+		}
+
+		encode(buffer, (byte) event.ordinal(), flags, next.status, time, 0,
+				next.timerEnd, 0);
+		return next;
+	}
+
+	/**
+	 * Reads the state back from the end of the log, and sets the length to
+	 * the end of the last valid record. Runs on the writer thread.
+	 */
+	private void recover() throws IOException {
+		Tail tail = readTail(file);
+		state = tail.state;
+		eventsSinceSnapshot = tail.events;
+		length = tail.end;
+	}
+
+	private List<Entry> readEntries(long since) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		if (!file.exists()) {
+			return entries;
+		}
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			byte[] data = new byte[RECORD_SIZE];
+			in.readFully(data, 0, HEADER.length);
+			if (!hasHeader(data)) {
+				return entries;
+			}
+
+			State current = INITIAL_STATE;
+			while (true) {
+				in.readFully(data);
+				State next = decode(current, data, 0);
+				if (next == null) {
+					break;
+				}
+				current = next;
+
+				ByteBuffer buffer = ByteBuffer.wrap(data);
+				long time = buffer.getLong(3);
+				boolean snapshot = isSnapshot(data, 0);
+				if (time >= since
+						&& (!snapshot || (data[1] & FLAG_JUMP) != 0)) {
+					entries.add(new Entry(snapshot ? null
+							: Event.values()[data[0]], time, current));
+				}
+			}
+		}
+		catch (EOFException e) {
+			// End of the log, or a torn record at its end
+		}
+		finally {
+			in.close();
+		}
+		return entries;
+	}
+
+	/* Public inner classes ******************** */
+
+	/**
+	 * State of the engine, as rebuilt from the log.
+	 */
+	public static class State {
+
+		private final Status status;
+
+		private final long timerStart;
+
+		private final long timerEnd;
+
+		private final int completedPomodoros;
+
+		public State(Status status, long timerStart, long timerEnd,
+				int completedPomodoros) {
+			this.status = status;
+			this.timerStart = timerStart;
+			this.timerEnd = timerEnd;
+			this.completedPomodoros = completedPomodoros;
+		}
+
+		public Status getStatus() {
+			return status;
+		}
+
+		public long getTimerStart() {
+			return timerStart;
+		}
+
+		public long getTimerEnd() {
+			return timerEnd;
+		}
+
+		/**
+		 * Returns the pomodoros completed since the last long break.
+		 */
+		public int getCompletedPomodoros() {
+			return completedPomodoros;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof State)) {
+				return false;
+			}
+			State other = (State) o;
+			return status == other.status && timerStart == other.timerStart
+					&& timerEnd == other.timerEnd
+					&& completedPomodoros == other.completedPomodoros;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (timerStart ^ timerEnd) * 31 + status.ordinal();
+		}
+
+		@Override
+		public String toString() {
+			return status + " " + timerStart + "-" + timerEnd + " ("
+					+ completedPomodoros + ")";
+		}
+
+	}
+
+	/**
+	 * A transition read back from the log.
+	 */
+	public static class Entry {
+
+		private final Event event;
+
+		private final long time;
+
+		private final State state;
+
+		public Entry(Event event, long time, State state) {
+			this.event = event;
+			this.time = time;
+			this.state = state;
+		}
+
+		/**
+		 * Returns the event, or null if the state was set without one.
+		 */
+		public Event getEvent() {
+			return event;
+		}
+
+		/**
+		 * Returns the wall clock time of the transition. A finish is logged
+		 * at the end of its period.
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * Returns the state the transition led to.
+		 */
+		public State getState() {
+			return state;
+		}
+
+	}
+
+	/* Private inner classes ******************* */
+
+	/**
+	 * State at the end of the log, as read back from the file.
+	 */
+	private static class Tail {
+
+		private final State state;
+
+		/** Events after the last snapshot. */
+		private final int events;
+
+		/** End of the last valid record. */
+		private final long end;
+
+		public Tail(State state, int events, long end) {
+			this.state = state;
+			this.events = events;
+			this.end = end;
+		}
+
+	}
+
+	private static class Transition {
+
+		private final Event event;
+
+		private final long time;
+
+		private final State state;
+
+		public Transition(Event event, long time, State state) {
+			this.event = event;
+			this.time = time;
+			this.state = state;
+		}
+
+	}
+
+}
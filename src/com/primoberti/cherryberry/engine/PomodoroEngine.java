@@ -0,0 +1,465 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.engine;
+
+/**
+ * Platform independent pomodoro state machine.
+ *
+ * All the transitions between {@link Status} values are driven through the
+ * {@link #TRANSITIONS} table, and time is taken from an injectable
+ * {@link Clock} and {@link Scheduler}, so the engine can run on a plain JVM as
+ * well as inside {@link com.primoberti.cherryberry.PomodoroTimerService}.
+ *
+ * The engine also keeps the long break cycle: it counts the pomodoros
+ * completed since the last long break, so {@link #isLongBreakNext()} can tell
+ * which kind of break comes next without looking at the history. The count is
+ * part of the state to save and {@link #restore(Status, long, long, int)}.
+ *
+ * This class is not thread safe; it must be used from the thread that runs
+ * the scheduler tasks.
+ *
+ * @author berti
+ */
+public class PomodoroEngine {
+
+	/* Public enumerations ********************* */
+
+	public enum Status {
+		IDLE, POMODORO_RUNNING, POMODORO_FINISHED, BREAK_RUNNING, BREAK_FINISHED
+	};
+
+	public enum Event {
+		START_POMODORO, START_BREAK, FINISH, STOP, SKIP
+	};
+
+	/* Public constants ************************ */
+
+	public final static long DEFAULT_TICK_INTERVAL = AlignedTicker.GRANULARITY_TEXT;
+
+	public final static int DEFAULT_LONG_BREAK_INTERVAL = 4;
+
+	/* Private constants *********************** */
+
+	/**
+	 * Transition table, indexed by the ordinals of the current status and the
+	 * event. A null entry means the event is not allowed in that status.
+	 */
+	private final static Status[][] TRANSITIONS = new Status[Status.values().length][Event
+			.values().length];
+
+	static {
+		allow(Status.IDLE, Event.START_POMODORO, Status.POMODORO_RUNNING);
+		allow(Status.IDLE, Event.STOP, Status.IDLE);
+
+		allow(Status.POMODORO_RUNNING, Event.FINISH, Status.POMODORO_FINISHED);
+		allow(Status.POMODORO_RUNNING, Event.STOP, Status.IDLE);
+		allow(Status.POMODORO_RUNNING, Event.SKIP, Status.IDLE);
+
+		allow(Status.POMODORO_FINISHED, Event.START_BREAK,
+				Status.BREAK_RUNNING);
+		allow(Status.POMODORO_FINISHED, Event.START_POMODORO,
+				Status.POMODORO_RUNNING);
+		allow(Status.POMODORO_FINISHED, Event.STOP, Status.IDLE);
+		allow(Status.POMODORO_FINISHED, Event.SKIP, Status.IDLE);
+
+		allow(Status.BREAK_RUNNING, Event.FINISH, Status.BREAK_FINISHED);
+		allow(Status.BREAK_RUNNING, Event.START_POMODORO,
+				Status.POMODORO_RUNNING);
+		allow(Status.BREAK_RUNNING, Event.STOP, Status.IDLE);
+		allow(Status.BREAK_RUNNING, Event.SKIP, Status.IDLE);
+
+		allow(Status.BREAK_FINISHED, Event.START_POMODORO,
+				Status.POMODORO_RUNNING);
+		allow(Status.BREAK_FINISHED, Event.STOP, Status.IDLE);
+		allow(Status.BREAK_FINISHED, Event.SKIP, Status.IDLE);
+	}
+
+	/* Private fields ************************** */
+
+	private final Clock clock;
+
+	private final AlignedTicker ticker;
+
+	private Status status = Status.IDLE;
+
+	private long timerStart;
+
+	private long timerEnd;
+
+	private long deadline;
+
+	private int completedPomodoros;
+
+	/** Event of the last transition, or null if it was a restore. */
+	private Event lastEvent;
+
+	private int longBreakInterval = DEFAULT_LONG_BREAK_INTERVAL;
+
+	private Listener listener;
+
+	/* Public constructors ********************* */
+
+	public PomodoroEngine(Clock clock, Scheduler scheduler) {
+		this(clock, scheduler, DEFAULT_TICK_INTERVAL);
+	}
+
+	public PomodoroEngine(Clock clock, Scheduler scheduler, long tickInterval) {
+		this.clock = clock;
+		this.ticker = new AlignedTicker(clock, scheduler, tickInterval,
+				new TickerCallback());
+	}
+
+	/* Public static methods ******************* */
+
+	/**
+	 * Returns the status reached by applying the event in the given status, or
+	 * null if the event is not allowed in that status.
+	 */
+	public static Status next(Status status, Event event) {
+		return TRANSITIONS[status.ordinal()][event.ordinal()];
+	}
+
+	/* Public methods ************************** */
+
+	/**
+	 * Start a pomodoro count down.
+	 *
+	 * @param millis the duration of the pomodoro
+	 */
+	public void startPomodoro(long millis) {
+		start(Event.START_POMODORO, millis);
+	}
+
+	/**
+	 * Start a break count down. Only allowed after a pomodoro has finished. If
+	 * a long break was due, this is taken to be the long break and a new
+	 * cycle starts.
+	 *
+	 * @param millis the duration of the break
+	 * @see #isLongBreakNext()
+	 */
+	public void startBreak(long millis) {
+		start(Event.START_BREAK, millis);
+	}
+
+	/**
+	 * Cancels the current count down, if any, and goes back to idle.
+	 */
+	public void stop() {
+		apply(Event.STOP);
+	}
+
+	/**
+	 * Skips the current period and goes back to idle. Skipping a long break
+	 * that was due starts a new cycle.
+	 */
+	public void skip() {
+		apply(Event.SKIP);
+	}
+
+	/**
+	 * Restores a previously saved state. A running period whose end time has
+	 * already passed is moved to its finished status, notifying the listener
+	 * of a transition from the running status, and any other running period
+	 * continues its count down with the remaining time.
+	 *
+	 * @param status the saved status
+	 * @param timerStart the saved wall clock start time
+	 * @param timerEnd the saved wall clock end time
+	 * @param completedPomodoros the saved count of pomodoros completed since
+	 *            the last long break
+	 */
+	public void restore(Status status, long timerStart, long timerEnd,
+			int completedPomodoros) {
+		cancelTicks();
+
+		Status previous = this.status;
+		this.status = status;
+		this.timerStart = timerStart;
+		this.timerEnd = timerEnd;
+		this.completedPomodoros = completedPomodoros;
+		lastEvent = null;
+
+		if (isRunning()) {
+			long remaining = timerEnd - clock.currentTimeMillis();
+			if (remaining > 0) {
+				deadline = clock.monotonicMillis() + remaining;
+				ticker.start(deadline);
+			}
+			else {
+				// The period ended while the engine wasn't running, so report
+				// it as a regular finish
+				previous = status;
+				this.status = next(status, Event.FINISH);
+				lastEvent = Event.FINISH;
+				countPomodoro(previous, this.status);
+			}
+		}
+
+		if (previous != this.status) {
+			notifyStatusChange(previous);
+		}
+	}
+
+	/**
+	 * Stops the count down ticks without changing the status, e.g. when the
+	 * host of the engine is destroyed. The state can be resumed later with
+	 * {@link #restore(Status, long, long, int)}.
+	 */
+	public void shutdown() {
+		cancelTicks();
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public boolean isRunning() {
+		return status == Status.POMODORO_RUNNING
+				|| status == Status.BREAK_RUNNING;
+	}
+
+	/**
+	 * Returns the event that caused the last transition, or null if the
+	 * status was set by {@link #restore(Status, long, long, int)} without
+	 * one. A period found finished on restore counts as a
+	 * {@link Event#FINISH}.
+	 */
+	public Event getLastEvent() {
+		return lastEvent;
+	}
+
+	/**
+	 * Returns the wall clock start time of the current count down, or 0 if
+	 * idle.
+	 */
+	public long getTimerStart() {
+		return timerStart;
+	}
+
+	/**
+	 * Returns the wall clock end time of the current count down, or 0 if idle.
+	 */
+	public long getTimerEnd() {
+		return timerEnd;
+	}
+
+	/**
+	 * Returns the milliseconds left in the current count down, or 0 if there
+	 * is no count down running.
+	 */
+	public long getRemaining() {
+		return isRunning() ? Math.max(0, deadline - clock.monotonicMillis())
+				: 0;
+	}
+
+	/**
+	 * Returns the number of pomodoros completed since the last long break.
+	 */
+	public int getCompletedPomodoros() {
+		return completedPomodoros;
+	}
+
+	/**
+	 * Returns true if enough pomodoros have been completed for the next break
+	 * to be a long one.
+	 */
+	public boolean isLongBreakNext() {
+		return longBreakInterval > 0 && completedPomodoros >= longBreakInterval;
+	}
+
+	public int getLongBreakInterval() {
+		return longBreakInterval;
+	}
+
+	/**
+	 * Sets how many pomodoros are completed before a long break, or 0 to never
+	 * take long breaks.
+	 */
+	public void setLongBreakInterval(int longBreakInterval) {
+		this.longBreakInterval = longBreakInterval;
+	}
+
+	/**
+	 * Starts a new long break cycle, forgetting the completed pomodoros.
+	 */
+	public void resetCycle() {
+		completedPomodoros = 0;
+	}
+
+	public Clock getClock() {
+		return clock;
+	}
+
+	public long getTickInterval() {
+		return ticker.getGranularity();
+	}
+
+	/**
+	 * Changes how often {@link Listener#onTick(PomodoroEngine, long)} is
+	 * called, e.g. {@link AlignedTicker#GRANULARITY_BACKGROUND} while nothing
+	 * shows the remaining time.
+	 */
+	public void setTickInterval(long tickInterval) {
+		ticker.setGranularity(tickInterval);
+	}
+
+	/**
+	 * Returns the ticker driving the count down, which keeps the jitter
+	 * statistics of the ticks.
+	 */
+	public AlignedTicker getTicker() {
+		return ticker;
+	}
+
+	public Listener getListener() {
+		return listener;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/* Private static methods ****************** */
+
+	private static void allow(Status from, Event event, Status to) {
+		TRANSITIONS[from.ordinal()][event.ordinal()] = to;
+	}
+
+	/* Private methods ************************* */
+
+	private void start(Event event, long millis) {
+		if (millis <= 0) {
+			throw new IllegalArgumentException("Invalid duration " + millis);
+		}
+
+		Status to = checkedNext(event);
+
+		cancelTicks();
+
+		timerStart = clock.currentTimeMillis();
+		timerEnd = timerStart + millis;
+		deadline = clock.monotonicMillis() + millis;
+
+		if (event == Event.START_BREAK && isLongBreakNext()) {
+			resetCycle();
+		}
+
+		changeStatus(event, to);
+
+		ticker.start(deadline);
+	}
+
+	private void apply(Event event) {
+		Status to = checkedNext(event);
+
+		cancelTicks();
+
+		if (to == Status.IDLE) {
+			timerStart = 0;
+			timerEnd = 0;
+		}
+
+		if (event == Event.SKIP && status == Status.POMODORO_FINISHED
+				&& isLongBreakNext()) {
+			resetCycle();
+		}
+
+		changeStatus(event, to);
+	}
+
+	private Status checkedNext(Event event) {
+		Status to = next(status, event);
+		if (to == null) {
+			throw new IllegalStateException("Can't apply " + event + " in "
+					+ status + " state");
+		}
+		return to;
+	}
+
+	private void changeStatus(Event event, Status to) {
+		Status previous = status;
+		status = to;
+		lastEvent = event;
+		countPomodoro(previous, to);
+		notifyStatusChange(previous);
+	}
+
+	private void countPomodoro(Status from, Status to) {
+		if (from == Status.POMODORO_RUNNING && to == Status.POMODORO_FINISHED) {
+			completedPomodoros++;
+		}
+	}
+
+	private void notifyStatusChange(Status previous) {
+		if (listener != null) {
+			listener.onStatusChange(this, previous);
+		}
+	}
+
+	private void cancelTicks() {
+		ticker.stop();
+	}
+
+	/* Private inner classes ******************* */
+
+	private class TickerCallback implements AlignedTicker.Callback {
+
+		@Override
+		public void onTick(long millisUntilFinished, long jitter) {
+			if (listener != null) {
+				listener.onTick(PomodoroEngine.this, millisUntilFinished);
+			}
+		}
+
+		@Override
+		public void onFinish(long jitter) {
+			if (isRunning()) {
+				changeStatus(Event.FINISH, checkedNext(Event.FINISH));
+			}
+		}
+
+	}
+
+	/* Public inner classes ******************** */
+
+	/**
+	 * A listener interface for {@link PomodoroEngine} events.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called after every transition, including the ones that finish a
+		 * period.
+		 *
+		 * @param engine the engine whose status changed
+		 * @param previous the status before the transition
+		 */
+		public void onStatusChange(PomodoroEngine engine, Status previous);
+
+		public void onTick(PomodoroEngine engine, long millisUntilFinished);
+
+	}
+
+}
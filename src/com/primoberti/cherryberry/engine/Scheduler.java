@@ -0,0 +1,52 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.engine;
+
+/**
+ * Runs tasks after a delay on behalf of {@link PomodoroEngine}.
+ *
+ * The engine is not thread safe, so implementations must run every task on
+ * the same thread the engine is used from (e.g. the main thread on Android).
+ *
+ * @author berti
+ */
+public interface Scheduler {
+
+	/**
+	 * Schedules the task to be run once after the given delay. Scheduling a
+	 * task that is already pending adds a second run.
+	 *
+	 * @param task the task to run
+	 * @param delayMillis delay in milliseconds, relative to now
+	 */
+	public void schedule(Runnable task, long delayMillis);
+
+	/**
+	 * Removes any pending runs of the given task.
+	 *
+	 * @param task the task to remove
+	 */
+	public void cancel(Runnable task);
+
+}
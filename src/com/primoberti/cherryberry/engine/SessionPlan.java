@@ -0,0 +1,227 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.engine;
+
+import java.util.Arrays;
+
+import com.primoberti.cherryberry.engine.PomodoroEngine.Status;
+
+/**
+ * Precomputed schedule of a block of pomodoros and the breaks after each of
+ * them, laid out back to back from a start time.
+ *
+ * The plan is fully determined by the parameters it was created with, so it
+ * can be saved as those few values and created again. Every boundary is
+ * known up front, which allows waking up the device only at the next one.
+ *
+ * @author berti
+ */
+public class SessionPlan {
+
+	/* Private fields ************************** */
+
+	private final long start;
+
+	private final int pomodoros;
+
+	private final long pomodoroDuration;
+
+	private final long breakDuration;
+
+	private final long longBreakDuration;
+
+	private final int longBreakInterval;
+
+	private final int completedPomodoros;
+
+	/** Wall clock end of each period, in increasing order. */
+	private final long[] ends;
+
+	private final boolean[] longBreaks;
+
+	/**
+	 * Pomodoros completed since the last long break while each period runs,
+	 * as kept by {@link PomodoroEngine}, plus the count after the plan.
+	 */
+	private final int[] cycleCounts;
+
+	/* Public constructors ********************* */
+
+	/**
+	 * Creates a plan of the given number of pomodoros, each followed by a
+	 * break. Breaks are long whenever the long break interval is reached,
+	 * counting the pomodoros already completed before the plan.
+	 *
+	 * @param start wall clock time when the first pomodoro starts
+	 * @param pomodoros number of pomodoros in the plan
+	 * @param pomodoroDuration duration of a pomodoro
+	 * @param breakDuration duration of a short break
+	 * @param longBreakDuration duration of a long break
+	 * @param longBreakInterval pomodoros before a long break, or 0 for none
+	 * @param completedPomodoros pomodoros completed since the last long break
+	 *            before the plan starts
+	 */
+	public SessionPlan(long start, int pomodoros, long pomodoroDuration,
+			long breakDuration, long longBreakDuration, int longBreakInterval,
+			int completedPomodoros) {
+		if (pomodoros <= 0 || pomodoroDuration <= 0 || breakDuration <= 0
+				|| longBreakDuration <= 0) {
+			throw new IllegalArgumentException("Invalid plan of " + pomodoros
+					+ " pomodoros");
+		}
+
+		this.start = start;
+		this.pomodoros = pomodoros;
+		this.pomodoroDuration = pomodoroDuration;
+		this.breakDuration = breakDuration;
+		this.longBreakDuration = longBreakDuration;
+		this.longBreakInterval = longBreakInterval;
+		this.completedPomodoros = completedPomodoros;
+
+		int count = pomodoros * 2;
+		ends = new long[count];
+		longBreaks = new boolean[count];
+		cycleCounts = new int[count + 1];
+
+		long time = start;
+		int cycle = completedPomodoros;
+		for (int i = 0; i < count; i += 2) {
+			cycleCounts[i] = cycle;
+			time += pomodoroDuration;
+			ends[i] = time;
+			cycle++;
+
+			longBreaks[i + 1] = longBreakInterval > 0
+					&& cycle >= longBreakInterval;
+			if (longBreaks[i + 1]) {
+				cycle = 0;
+			}
+			cycleCounts[i + 1] = cycle;
+			time += longBreaks[i + 1] ? longBreakDuration : breakDuration;
+			ends[i + 1] = time;
+		}
+		cycleCounts[count] = cycle;
+	}
+
+	/* Public methods ************************** */
+
+	public int getPeriodCount() {
+		return ends.length;
+	}
+
+	/**
+	 * Returns the index of the period running at the given time, -1 if the
+	 * plan hasn't started yet or {@link #getPeriodCount()} if it is over.
+	 * Boundaries belong to the period they start.
+	 */
+	public int indexAt(long time) {
+		if (time < start) {
+			return -1;
+		}
+
+		int index = Arrays.binarySearch(ends, time);
+		return index >= 0 ? index + 1 : -index - 1;
+	}
+
+	/**
+	 * Returns the next boundary after the given time, or -1 if the plan is
+	 * over by then.
+	 */
+	public long getNextBoundary(long time) {
+		int index = indexAt(time);
+		if (index < 0) {
+			return start;
+		}
+		return index < ends.length ? ends[index] : -1;
+	}
+
+	/**
+	 * Returns the running status of the given period, either
+	 * {@link Status#POMODORO_RUNNING} or {@link Status#BREAK_RUNNING}.
+	 */
+	public Status getStatus(int index) {
+		return index % 2 == 0 ? Status.POMODORO_RUNNING : Status.BREAK_RUNNING;
+	}
+
+	public boolean isLongBreak(int index) {
+		return longBreaks[index];
+	}
+
+	public long getPeriodStart(int index) {
+		return index == 0 ? start : ends[index - 1];
+	}
+
+	public long getPeriodEnd(int index) {
+		return ends[index];
+	}
+
+	/**
+	 * Returns the pomodoros completed since the last long break while the
+	 * given period runs, or after the plan if the index is
+	 * {@link #getPeriodCount()}.
+	 */
+	public int getCompletedPomodoros(int index) {
+		return cycleCounts[index];
+	}
+
+	public long getStart() {
+		return start;
+	}
+
+	/**
+	 * Returns the wall clock time when the last break ends.
+	 */
+	public long getEnd() {
+		return ends[ends.length - 1];
+	}
+
+	public int getPomodoros() {
+		return pomodoros;
+	}
+
+	public long getPomodoroDuration() {
+		return pomodoroDuration;
+	}
+
+	public long getBreakDuration() {
+		return breakDuration;
+	}
+
+	public long getLongBreakDuration() {
+		return longBreakDuration;
+	}
+
+	public int getLongBreakInterval() {
+		return longBreakInterval;
+	}
+
+	/**
+	 * Returns the pomodoros completed since the last long break before the
+	 * plan started.
+	 */
+	public int getCompletedPomodoros() {
+		return completedPomodoros;
+	}
+
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.engine;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.primoberti.cherryberry.engine.PomodoroEngine.Event;
+import com.primoberti.cherryberry.engine.PomodoroEngine.Status;
+
+/**
+ * Runs the pomodoros and breaks of many members at once, e.g. for a team
+ * room hosted on a server.
+ *
+ * Where a {@link PomodoroEngine} has a count down and scheduled ticks of its
+ * own, a room keeps a single {@link TimingWheel} with a deadline per member
+ * and one scheduled task that advances it, so the cost of a member is a few
+ * fields and a list node. Members follow the same transitions as the engine.
+ * The periods finished on the same tick of the wheel are reported together,
+ * so a listener can send them out in one go.
+ *
+ * This class is not thread safe; it must be used from the thread that runs
+ * the scheduler tasks.
+ *
+ * @author berti
+ */
+public class TimerRoom {
+
+	/* Public constants ************************ */
+
+	/** Default resolution of the finish times. */
+	public final static long DEFAULT_TICK_MILLIS = 100;
+
+	/* Private fields ************************** */
+
+	private final Clock clock;
+
+	private final Scheduler scheduler;
+
+	private final TimingWheel wheel;
+
+	private final Map<String, Member> members = new HashMap<String, Member>();
+
+	private Listener listener;
+
+	/** Whether {@link #advanceTask} is scheduled. */
+	private boolean advancing;
+
+	private Member[] finishedPomodoros = new Member[16];
+
+	private Member[] finishedBreaks = new Member[16];
+
+	private final Runnable advanceTask = new Runnable() {
+
+		@Override
+		public void run() {
+			advancing = false;
+			advance();
+		}
+
+	};
+
+	private final TimingWheel.Handler expiryHandler = new ExpiryHandler();
+
+	/* Public constructors ********************* */
+
+	public TimerRoom(Clock clock, Scheduler scheduler) {
+		this(clock, scheduler, DEFAULT_TICK_MILLIS);
+	}
+
+	public TimerRoom(Clock clock, Scheduler scheduler, long tickMillis) {
+		this.clock = clock;
+		this.scheduler = scheduler;
+		this.wheel = new TimingWheel(tickMillis, clock.monotonicMillis());
+	}
+
+	/* Public methods ************************** */
+
+	/**
+	 * Starts a pomodoro for the given member, adding it to the room if it
+	 * wasn't in it.
+	 *
+	 * @param millis the duration of the pomodoro
+	 * @return the member
+	 */
+	public Member startPomodoro(String id, long millis) {
+		return start(getOrAdd(id), Event.START_POMODORO, millis);
+	}
+
+	/**
+	 * Starts a break for the given member.
+	 *
+	 * @param millis the duration of the break
+	 * @throws IllegalStateException if the member has no finished pomodoro
+	 */
+	public Member startBreak(String id, long millis) {
+		return start(getOrAdd(id), Event.START_BREAK, millis);
+	}
+
+	/**
+	 * Cancels the member's count down, if any, and moves it back to idle.
+	 */
+	public void stop(String id) {
+		Member member = members.get(id);
+		if (member != null) {
+			wheel.cancel(member);
+			member.status = checkedNext(member, Event.STOP);
+			member.timerStart = 0;
+			member.timerEnd = 0;
+		}
+	}
+
+	/**
+	 * Skips the member's current period and moves it back to idle.
+	 * 
+	 * @throws IllegalStateException if the member is idle
+	 */
+	public void skip(String id) {
+		Member member = members.get(id);
+		if (member == null) {
+			throw new IllegalStateException("Can't apply " + Event.SKIP
+					+ " in " + Status.IDLE + " state");
+		}
+
+		Status to = checkedNext(member, Event.SKIP);
+		wheel.cancel(member);
+		member.status = to;
+		member.timerStart = 0;
+		member.timerEnd = 0;
+	}
+
+	/**
+	 * Removes the member from the room, cancelling its count down.
+	 */
+	public void remove(String id) {
+		Member member = members.remove(id);
+		if (member != null) {
+			wheel.cancel(member);
+		}
+	}
+
+	/**
+	 * Returns the member with the given id, or null.
+	 */
+	public Member getMember(String id) {
+		return members.get(id);
+	}
+
+	public int getMemberCount() {
+		return members.size();
+	}
+
+	/**
+	 * Returns the number of members with a running count down.
+	 */
+	public int getRunningCount() {
+		return wheel.size();
+	}
+
+	public Listener getListener() {
+		return listener;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Finishes every period whose end has been reached. Called by the
+	 * scheduler, but can be called any time to catch up.
+	 */
+	public void advance() {
+		wheel.advance(clock.monotonicMillis(), expiryHandler);
+		scheduleAdvance();
+	}
+
+	/**
+	 * Stops advancing the wheel, e.g. when the host is shut down. Calling
+	 * {@link #advance()} resumes it.
+	 */
+	public void shutdown() {
+		scheduler.cancel(advanceTask);
+		advancing = false;
+	}
+
+	/* Private methods ************************* */
+
+	private Member getOrAdd(String id) {
+		Member member = members.get(id);
+		if (member == null) {
+			member = new Member(id);
+			members.put(id, member);
+		}
+		return member;
+	}
+
+	private Member start(Member member, Event event, long millis) {
+		if (millis <= 0) {
+			throw new IllegalArgumentException("Invalid duration " + millis);
+		}
+
+		Status to = checkedNext(member, event);
+
+		member.status = to;
+		member.timerStart = clock.currentTimeMillis();
+		member.timerEnd = member.timerStart + millis;
+		wheel.schedule(member, clock.monotonicMillis() + millis);
+
+		scheduleAdvance();
+		return member;
+	}
+
+	private Status checkedNext(Member member, Event event) {
+		Status to = PomodoroEngine.next(member.status, event);
+		if (to == null) {
+			throw new IllegalStateException("Can't apply " + event + " in "
+					+ member.status + " state");
+		}
+		return to;
+	}
+
+	/**
+	 * Schedules the next advance for the next tick of the wheel, as long as
+	 * any member has a running count down.
+	 */
+	private void scheduleAdvance() {
+		if (advancing || wheel.size() == 0) {
+			return;
+		}
+
+		advancing = true;
+		scheduler.schedule(advanceTask,
+				Math.max(wheel.getCurrentTime() - clock.monotonicMillis(), 0));
+	}
+
+	/* Public inner classes ******************** */
+
+	/**
+	 * A member of the room and its current period.
+	 */
+	public static class Member extends TimingWheel.Timer {
+
+		private final String id;
+
+		private Status status = Status.IDLE;
+
+		private long timerStart;
+
+		private long timerEnd;
+
+		private int completedPomodoros;
+
+		private Member(String id) {
+			this.id = id;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public Status getStatus() {
+			return status;
+		}
+
+		/**
+		 * Returns the wall clock start time of the current period, or 0.
+		 */
+		public long getTimerStart() {
+			return timerStart;
+		}
+
+		/**
+		 * Returns the wall clock end time of the current period, or 0.
+		 */
+		public long getTimerEnd() {
+			return timerEnd;
+		}
+
+		/**
+		 * Returns the number of pomodoros the member has finished in the
+		 * room.
+		 */
+		public int getCompletedPomodoros() {
+			return completedPomodoros;
+		}
+
+		@Override
+		public String toString() {
+			return id + " " + status;
+		}
+
+	}
+
+	/**
+	 * Receives the periods finished on each tick of the wheel.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called with the members whose pomodoro finished on the same tick.
+		 * The array is reused, so it must not be kept.
+		 */
+		public void onPomodorosFinish(TimerRoom room, Member[] members,
+				int count);
+
+		/**
+		 * Called with the members whose break finished on the same tick. The
+		 * array is reused, so it must not be kept.
+		 */
+		public void onBreaksFinish(TimerRoom room, Member[] members, int count);
+
+	}
+
+	/* Private inner classes ******************* */
+
+	private class ExpiryHandler implements TimingWheel.Handler {
+
+		@Override
+		public void onExpired(TimingWheel wheel, TimingWheel.Timer[] timers,
+				int count, long tickTime) {
+			int pomodoros = 0;
+			int breaks = 0;
+			if (finishedPomodoros.length < count) {
+				finishedPomodoros = new Member[count];
+				finishedBreaks = new Member[count];
+			}
+
+			for (int i = 0; i < count; i++) {
+				Member member = (Member) timers[i];
+				if (member.status == Status.POMODORO_RUNNING) {
+					member.completedPomodoros++;
+					finishedPomodoros[pomodoros++] = member;
+				}
+				else {
+					finishedBreaks[breaks++] = member;
+				}
+				member.status = PomodoroEngine.next(member.status, Event.FINISH);
+			}
+
+			if (listener != null) {
+				if (pomodoros > 0) {
+					listener.onPomodorosFinish(TimerRoom.this,
+							finishedPomodoros, pomodoros);
+				}
+				if (breaks > 0) {
+					listener.onBreaksFinish(TimerRoom.this, finishedBreaks,
+							breaks);
+				}
+			}
+
+			// Don't keep the members reachable
+			for (int i = 0; i < pomodoros; i++) {
+				finishedPomodoros[i] = null;
+			}
+			for (int i = 0; i < breaks; i++) {
+				finishedBreaks[i] = null;
+			}
+		}
+
+	}
+
+}
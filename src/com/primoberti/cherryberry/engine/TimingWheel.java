@@ -0,0 +1,336 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.engine;
+
+/**
+ * Hierarchical timing wheel holding any number of deadlines with O(1)
+ * insertion and cancellation.
+ *
+ * Time is divided in ticks of a fixed length. The first level has a slot for
+ * each of the next {@link #LEVEL_0_SLOTS} ticks; every further level has
+ * {@link #LEVEL_SLOTS} slots, each spanning a whole turn of the level below,
+ * which covers 2^32 ticks in total. A timer goes into the slot of the lowest
+ * level its deadline fits in. When a level completes a turn, the next slot
+ * of the level above is emptied into the levels below, so every timer is
+ * moved at most once per level before it expires.
+ *
+ * Timers are intrusive list nodes: {@link Timer} objects can be subclassed to
+ * carry their own data and reused after they expire or are cancelled, so
+ * scheduling doesn't allocate. Expired timers are handed to the
+ * {@link Handler} in one batch per tick.
+ *
+ * This class is not thread safe.
+ *
+ * @author berti
+ */
+public class TimingWheel {
+
+	/* Public constants ************************ */
+
+	public final static int LEVEL_0_SLOTS = 256;
+
+	public final static int LEVEL_SLOTS = 64;
+
+	/* Private constants *********************** */
+
+	private final static int LEVEL_0_BITS = 8;
+
+	private final static int LEVEL_BITS = 6;
+
+	private final static int LEVELS = 5;
+
+	/** Longest delay the wheel can hold, in ticks. */
+	private final static long MAX_TICKS = (1L << (LEVEL_0_BITS + (LEVELS - 1)
+			* LEVEL_BITS)) - 1;
+
+	/* Private fields ************************** */
+
+	private final long tickMillis;
+
+	private final long origin;
+
+	/** Slot heads, level 0 first; each one is a circular list sentinel. */
+	private final Timer[] slots;
+
+	/** Next tick to be processed. */
+	private long currentTick;
+
+	private int size;
+
+	/** Expired timers of the tick being processed. */
+	private Timer[] batch = new Timer[64];
+
+	/* Public constructors ********************* */
+
+	/**
+	 * @param tickMillis length of a tick; deadlines are rounded up to it
+	 * @param origin time of the first tick, in the same time base as the
+	 *            deadlines
+	 */
+	public TimingWheel(long tickMillis, long origin) {
+		if (tickMillis <= 0) {
+			throw new IllegalArgumentException("Tick must be positive: "
+					+ tickMillis);
+		}
+
+		this.tickMillis = tickMillis;
+		this.origin = origin;
+
+		slots = new Timer[LEVEL_0_SLOTS + (LEVELS - 1) * LEVEL_SLOTS];
+		for (int i = 0; i < slots.length; i++) {
+			Timer head = new Timer();
+			head.next = head;
+			head.previous = head;
+			slots[i] = head;
+		}
+	}
+
+	/* Public methods ************************** */
+
+	/**
+	 * Schedules the timer to expire at the given time. A timer that is
+	 * already scheduled is moved to the new deadline. Deadlines in the past
+	 * expire on the next tick.
+	 */
+	public void schedule(Timer timer, long deadline) {
+		if (timer.isScheduled()) {
+			unlink(timer);
+		}
+		else {
+			size++;
+		}
+
+		timer.deadline = deadline;
+		timer.expiryTick = Math.max(toTick(deadline), currentTick);
+		insert(timer);
+	}
+
+	/**
+	 * Removes the timer from the wheel.
+	 *
+	 * @return false if it wasn't scheduled
+	 */
+	public boolean cancel(Timer timer) {
+		if (!timer.isScheduled()) {
+			return false;
+		}
+
+		unlink(timer);
+		size--;
+		return true;
+	}
+
+	/**
+	 * Expires the timers of every tick up to the given time, calling the
+	 * handler once per tick that has any.
+	 *
+	 * @return the number of timers expired
+	 */
+	public int advance(long now, Handler handler) {
+		long lastTick = toTickFloor(now);
+		int expired = 0;
+
+		while (currentTick <= lastTick) {
+			int index = (int) (currentTick & (LEVEL_0_SLOTS - 1));
+			if (index == 0) {
+				cascade(1);
+			}
+
+			Timer head = slots[index];
+			int count = 0;
+			while (head.next != head) {
+				Timer timer = head.next;
+				unlink(timer);
+				if (count == batch.length) {
+					Timer[] larger = new Timer[batch.length * 2];
+					System.arraycopy(batch, 0, larger, 0, count);
+					batch = larger;
+				}
+				batch[count++] = timer;
+			}
+
+			long tick = currentTick++;
+			if (count > 0) {
+				size -= count;
+				expired += count;
+				handler.onExpired(this, batch, count, origin + tick
+						* tickMillis);
+				// Don't keep the timers reachable
+				for (int i = 0; i < count; i++) {
+					batch[i] = null;
+				}
+			}
+
+			if (size == 0) {
+				// Nothing left to expire; skip the empty ticks
+				currentTick = Math.max(currentTick, lastTick + 1);
+			}
+		}
+
+		return expired;
+	}
+
+	/**
+	 * Returns the number of timers scheduled.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public long getTickMillis() {
+		return tickMillis;
+	}
+
+	/**
+	 * Returns the start time of the next tick to be processed.
+	 */
+	public long getCurrentTime() {
+		return origin + currentTick * tickMillis;
+	}
+
+	/* Private methods ************************* */
+
+	/**
+	 * Returns the tick a deadline expires at, rounding up so timers never
+	 * expire early.
+	 */
+	private long toTick(long time) {
+		long offset = time - origin;
+		return offset <= 0 ? 0 : (offset + tickMillis - 1) / tickMillis;
+	}
+
+	private long toTickFloor(long time) {
+		long offset = time - origin;
+		return offset < 0 ? -1 : offset / tickMillis;
+	}
+
+	private void insert(Timer timer) {
+		long ticks = Math.min(timer.expiryTick - currentTick, MAX_TICKS);
+		long expiry = currentTick + ticks;
+
+		int index;
+		if (ticks < LEVEL_0_SLOTS) {
+			index = (int) (expiry & (LEVEL_0_SLOTS - 1));
+		}
+		else {
+			int level = 1;
+			int shift = LEVEL_0_BITS;
+			while (ticks >= 1L << (shift + LEVEL_BITS)) {
+				level++;
+				shift += LEVEL_BITS;
+			}
+			index = LEVEL_0_SLOTS + (level - 1) * LEVEL_SLOTS
+					+ (int) ((expiry >>> shift) & (LEVEL_SLOTS - 1));
+		}
+
+		Timer head = slots[index];
+		timer.previous = head.previous;
+		timer.next = head;
+		head.previous.next = timer;
+		head.previous = timer;
+	}
+
+	/**
+	 * Moves the timers in the current slot of the given level to the levels
+	 * below, cascading from the level above first if this one completed a
+	 * turn too.
+	 */
+	private void cascade(int level) {
+		if (level >= LEVELS) {
+			return;
+		}
+
+		int shift = LEVEL_0_BITS + (level - 1) * LEVEL_BITS;
+		int index = (int) ((currentTick >>> shift) & (LEVEL_SLOTS - 1));
+		if (index == 0) {
+			cascade(level + 1);
+		}
+
+		Timer head = slots[LEVEL_0_SLOTS + (level - 1) * LEVEL_SLOTS + index];
+		Timer timer = head.next;
+		head.next = head;
+		head.previous = head;
+		while (timer != head) {
+			Timer next = timer.next;
+			insert(timer);
+			timer = next;
+		}
+	}
+
+	private void unlink(Timer timer) {
+		timer.previous.next = timer.next;
+		timer.next.previous = timer.previous;
+		timer.next = null;
+		timer.previous = null;
+	}
+
+	/* Public inner classes ******************** */
+
+	/**
+	 * A deadline in the wheel. Can be subclassed to attach data, and
+	 * scheduled again once it has expired or been cancelled.
+	 */
+	public static class Timer {
+
+		private Timer next;
+
+		private Timer previous;
+
+		private long deadline;
+
+		private long expiryTick;
+
+		public boolean isScheduled() {
+			return next != null;
+		}
+
+		/**
+		 * Returns the time the timer was last scheduled for.
+		 */
+		public long getDeadline() {
+			return deadline;
+		}
+
+	}
+
+	/**
+	 * Receives the timers expired on each tick.
+	 */
+	public interface Handler {
+
+		/**
+		 * Called with the timers expired on a tick, which are no longer
+		 * scheduled and may be scheduled again from here. The array is
+		 * reused, so it must not be kept.
+		 *
+		 * @param timers the expired timers, in no particular order
+		 * @param count number of valid entries in the array
+		 * @param tickTime start time of the tick
+		 */
+		public void onExpired(TimingWheel wheel, Timer[] timers, int count,
+				long tickTime);
+
+	}
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.history;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * Opens and upgrades the history database.
+ *
+ * The database runs in write-ahead logging mode where available (Android 3.0
+ * and later), so the background inserts don't block queries from the UI.
+ *
+ * @author berti
+ */
+public class HistoryDatabase extends SQLiteOpenHelper {
+
+	/* Public constants ************************ */
+
+	public final static String TABLE_SESSIONS = "sessions";
+
+	public final static String COLUMN_ID = "_id";
+
+	public final static String COLUMN_TYPE = "type";
+
+	public final static String COLUMN_START = "start";
+
+	public final static String COLUMN_END = "end";
+
+	public final static String COLUMN_PLANNED = "planned";
+
+	public final static String COLUMN_OUTCOME = "outcome";
+
+	public final static String COLUMN_TASK = "task";
+
+	public final static String COLUMN_INTERNAL_INTERRUPTIONS = "internal_interruptions";
+
+	public final static String COLUMN_EXTERNAL_INTERRUPTIONS = "external_interruptions";
+
+	public final static String TABLE_ROLLUPS = "rollups";
+
+	public final static String COLUMN_PERIOD = "period";
+
+	public final static String COLUMN_PERIOD_START = "period_start";
+
+	public final static String COLUMN_STARTED = "started";
+
+	public final static String COLUMN_COMPLETED = "completed";
+
+	public final static String COLUMN_INTERRUPTIONS = "interruptions";
+
+	public final static String COLUMN_FOCUS = "focus";
+
+	/* Private constants *********************** */
+
+	private final static String DATABASE_NAME = "history.db";
+
+	private final static int DATABASE_VERSION = 2;
+
+	/* Public constructors ********************* */
+
+	public HistoryDatabase(Context context) {
+		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+	}
+
+	/* Public methods ************************** */
+
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE " + TABLE_SESSIONS + " (" + COLUMN_ID
+				+ " INTEGER PRIMARY KEY AUTOINCREMENT, " + COLUMN_TYPE
+				+ " INTEGER NOT NULL, " + COLUMN_START + " INTEGER NOT NULL, "
+				+ COLUMN_END + " INTEGER NOT NULL, " + COLUMN_PLANNED
+				+ " INTEGER NOT NULL, " + COLUMN_OUTCOME
+				+ " INTEGER NOT NULL, " + COLUMN_TASK + " TEXT, "
+				+ COLUMN_INTERNAL_INTERRUPTIONS + " INTEGER NOT NULL DEFAULT 0, "
+				+ COLUMN_EXTERNAL_INTERRUPTIONS + " INTEGER NOT NULL DEFAULT 0)");
+		db.execSQL("CREATE INDEX sessions_start ON " + TABLE_SESSIONS + " ("
+				+ COLUMN_START + ")");
+		db.execSQL("CREATE INDEX sessions_task ON " + TABLE_SESSIONS + " ("
+				+ COLUMN_TASK + ", " + COLUMN_START + ")");
+		createRollups(db);
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		if (oldVersion < 2) {
+			db.execSQL("ALTER TABLE " + TABLE_SESSIONS + " ADD COLUMN "
+					+ COLUMN_INTERNAL_INTERRUPTIONS
+					+ " INTEGER NOT NULL DEFAULT 0");
+			db.execSQL("ALTER TABLE " + TABLE_SESSIONS + " ADD COLUMN "
+					+ COLUMN_EXTERNAL_INTERRUPTIONS
+					+ " INTEGER NOT NULL DEFAULT 0");
+			// Filled in from the sessions by SessionStore
+			createRollups(db);
+		}
+	}
+
+	@Override
+	@TargetApi(11)
+	public void onOpen(SQLiteDatabase db) {
+		super.onOpen(db);
+
+		if (android.os.Build.VERSION.SDK_INT >= 11 && !db.isReadOnly()) {
+			db.enableWriteAheadLogging();
+		}
+	}
+
+	/* Private methods ************************* */
+
+	private void createRollups(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE " + TABLE_ROLLUPS + " (" + COLUMN_PERIOD
+				+ " INTEGER NOT NULL, " + COLUMN_PERIOD_START
+				+ " INTEGER NOT NULL, " + COLUMN_STARTED
+				+ " INTEGER NOT NULL DEFAULT 0, " + COLUMN_COMPLETED
+				+ " INTEGER NOT NULL DEFAULT 0, " + COLUMN_INTERRUPTIONS
+				+ " INTEGER NOT NULL DEFAULT 0, " + COLUMN_FOCUS
+				+ " INTEGER NOT NULL DEFAULT 0, PRIMARY KEY (" + COLUMN_PERIOD
+				+ ", " + COLUMN_PERIOD_START + "))");
+	}
+
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.util.Log;
+
+import com.primoberti.cherryberry.history.Session.Interruption;
+
+/**
+ * Append-only log of the interruptions of the running session.
+ *
+ * Each interruption is appended as a fixed size record holding its time, the
+ * session it belongs to and its kind. Sessions are identified by their start
+ * time, as they get no row id until they are recorded. The counts of the
+ * running session are kept up to date in memory, so they can be queried
+ * without reading the log back.
+ *
+ * Only the latest session is kept: logging an interruption for another
+ * session, or {@link #clear()}, starts the log over. The log is read back in
+ * the background as soon as it is created, so the counts survive the process
+ * being killed; the first call waits for that if it hasn't finished yet. The
+ * file is written by the same background thread, in the order of the calls,
+ * so the callers never wait for it.
+ *
+ * @author berti
+ */
+public class InterruptionLog {
+
+	/* Public constants ************************ */
+
+	/**
+	 * Size of a record: time and session start (8 bytes each) and kind (1
+	 * byte).
+	 */
+	public final static int RECORD_SIZE = 17;
+
+	/* Private constants *********************** */
+
+	private final static String TAG = "InterruptionLog";
+
+	private final static Interruption[] KINDS = Interruption.values();
+
+	private final static ExecutorService WRITER = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, TAG);
+					thread.setDaemon(true);
+					return thread;
+				}
+
+			});
+
+	/* Private fields ************************** */
+
+	private final File file;
+
+	/** Reused for every record; only used by the writer thread. */
+	private final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+
+	/** Start of the session being logged, or 0 if there is none. */
+	private long session;
+
+	private final int[] counts = new int[KINDS.length];
+
+	private final Future<?> load;
+
+	/* Public constructors ********************* */
+
+	public InterruptionLog(File file) {
+		this.file = file;
+
+		load = WRITER.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				load();
+			}
+
+		});
+	}
+
+	/* Public methods ************************** */
+
+	/**
+	 * Logs an interruption of the given session.
+	 *
+	 * @param session start time of the session
+	 * @param kind kind of interruption
+	 * @param time wall clock time of the interruption
+	 */
+	public void record(final long session, final Interruption kind,
+			final long time) {
+		awaitLoad();
+
+		final boolean append;
+		synchronized (this) {
+			append = session == this.session;
+			if (!append) {
+				reset(session);
+			}
+			counts[kind.ordinal()]++;
+		}
+
+		WRITER.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				write(session, kind, time, append);
+			}
+
+		});
+	}
+
+	/**
+	 * Returns the interruptions of the given kind logged for the given
+	 * session.
+	 */
+	public int getCount(long session, Interruption kind) {
+		awaitLoad();
+
+		synchronized (this) {
+			return session == this.session ? counts[kind.ordinal()] : 0;
+		}
+	}
+
+	/**
+	 * Returns the interruptions of any kind logged for the given session.
+	 */
+	public int getCount(long session) {
+		awaitLoad();
+
+		synchronized (this) {
+			if (session != this.session) {
+				return 0;
+			}
+
+			int count = 0;
+			for (int i = 0; i < counts.length; i++) {
+				count += counts[i];
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Empties the log, e.g. once the session has been recorded with its
+	 * interruptions.
+	 */
+	public void clear() {
+		awaitLoad();
+
+		synchronized (this) {
+			reset(0);
+		}
+
+		WRITER.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				file.delete();
+			}
+
+		});
+	}
+
+	/* Private methods ************************* */
+
+	private void reset(long session) {
+		this.session = session;
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = 0;
+		}
+	}
+
+	/**
+	 * Waits for the log to be read back. Must not be called with the lock
+	 * held, as reading it back takes the lock.
+	 */
+	private void awaitLoad() {
+		try {
+			load.get();
+		}
+		catch (InterruptedException e) {
+			// Keep going with whatever was read
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Appends the record, or starts the log over with it. Runs on the writer
+	 * thread.
+	 */
+	private void write(long session, Interruption kind, long time,
+			boolean append) {
+		buffer.clear();
+		buffer.putLong(time);
+		buffer.putLong(session);
+		buffer.put((byte) kind.ordinal());
+
+		try {
+			RandomAccessFile out = new RandomAccessFile(file, "rw");
+			try {
+				if (append) {
+					out.seek(out.length());
+				}
+				else {
+					out.setLength(0);
+				}
+				out.write(buffer.array(), 0, RECORD_SIZE);
+			}
+			finally {
+				out.close();
+			}
+		}
+		catch (IOException e) {
+			// Still counted in memory; only lost if the process is killed
+			Log.w(TAG, "Can't log interruption", e);
+		}
+	}
+
+	/**
+	 * Counts the records of the session logged last. A record torn by a crash
+	 * is cut off, so new ones are appended right after the last whole one.
+	 * Runs on the writer thread.
+	 */
+	private void load() {
+		if (!file.exists()) {
+			return;
+		}
+
+		long lastSession = 0;
+		int[] lastCounts = new int[KINDS.length];
+		try {
+			RandomAccessFile in = new RandomAccessFile(file, "rw");
+			try {
+				long records = in.length() / RECORD_SIZE;
+				if (in.length() != records * RECORD_SIZE) {
+					in.setLength(records * RECORD_SIZE);
+				}
+
+				byte[] data = buffer.array();
+				for (long i = 0; i < records; i++) {
+					in.readFully(data, 0, RECORD_SIZE);
+					buffer.clear();
+					buffer.getLong();
+					long recordSession = buffer.getLong();
+					int kind = buffer.get();
+
+					if (recordSession != lastSession) {
+						lastSession = recordSession;
+						lastCounts = new int[KINDS.length];
+					}
+					if (kind >= 0 && kind < lastCounts.length) {
+						lastCounts[kind]++;
+					}
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			// Losing the interruptions isn't worth failing the session over
+			Log.w(TAG, "Can't read " + file, e);
+			return;
+		}
+
+		synchronized (this) {
+			session = lastSession;
+			System.arraycopy(lastCounts, 0, counts, 0, counts.length);
+		}
+	}
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.history;
+
+/**
+ * Productivity totals for the pomodoros started in a day, week or month.
+ *
+ * Only pomodoros are counted; breaks don't add to any total.
+ *
+ * @author berti
+ */
+public class Rollup {
+
+	/* Public enumerations ********************* */
+
+	/**
+	 * Length of the period covered by a rollup. Stored by ordinal, so new
+	 * values must be added at the end.
+	 */
+	public enum Period {
+		DAY, WEEK, MONTH
+	};
+
+	/* Private fields ************************** */
+
+	private final Period period;
+
+	private final long start;
+
+	private int started;
+
+	private int completed;
+
+	private int interruptions;
+
+	private long focus;
+
+	/* Public constructors ********************* */
+
+	public Rollup(Period period, long start, int started, int completed,
+			int interruptions, long focus) {
+		this.period = period;
+		this.start = start;
+		this.started = started;
+		this.completed = completed;
+		this.interruptions = interruptions;
+		this.focus = focus;
+	}
+
+	/* Public methods ************************** */
+
+	public Period getPeriod() {
+		return period;
+	}
+
+	/**
+	 * Returns the wall clock time when the period starts, at local midnight.
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	/**
+	 * Returns how many pomodoros were started, whatever their outcome.
+	 */
+	public int getStarted() {
+		return started;
+	}
+
+	/**
+	 * Returns how many pomodoros ran until the end.
+	 */
+	public int getCompleted() {
+		return completed;
+	}
+
+	/**
+	 * Returns the internal and external interruptions logged during the
+	 * pomodoros.
+	 */
+	public int getInterruptions() {
+		return interruptions;
+	}
+
+	/**
+	 * Returns the time spent in pomodoros, completed or not, in milliseconds.
+	 */
+	public long getFocus() {
+		return focus;
+	}
+
+	public int getFocusMinutes() {
+		return (int) (focus / 60000);
+	}
+
+	/**
+	 * Returns the fraction of the started pomodoros that were completed, or 0
+	 * if none was started.
+	 */
+	public float getCompletionRatio() {
+		return started > 0 ? (float) completed / started : 0;
+	}
+
+	@Override
+	public String toString() {
+		return period + " " + start + ": " + completed + "/" + started + ", "
+				+ interruptions + " interruptions logged, " + focus + " ms";
+	}
+
+	/* Package methods ************************* */
+
+	/**
+	 * Adds a pomodoro to the totals.
+	 *
+	 * @param duration time actually spent in the pomodoro
+	 * @param completed whether it ran until the end
+	 * @param interruptions internal and external interruptions logged in it
+	 */
+	void add(long duration, boolean completed, int interruptions) {
+		started++;
+		focus += duration;
+		if (completed) {
+			this.completed++;
+		}
+		this.interruptions += interruptions;
+	}
+
+	void add(Rollup other) {
+		started += other.started;
+		completed += other.completed;
+		interruptions += other.interruptions;
+		focus += other.focus;
+	}
+
+	boolean hasSameTotals(Rollup other) {
+		return started == other.started && completed == other.completed
+				&& interruptions == other.interruptions && focus == other.focus;
+	}
+
+}
@@ -0,0 +1,503 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.history;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.primoberti.cherryberry.history.Rollup.Period;
+
+/**
+ * Maintains the daily, weekly and monthly rollups of the session history.
+ *
+ * Each recorded pomodoro updates one row per period in place, in the same
+ * transaction as the session itself, so keeping the rollups current costs a
+ * constant amount of work however long the history is. {@link #rebuild()}
+ * recomputes them from the raw sessions, aggregating each month in parallel,
+ * and {@link #check()} compares them against the raw sessions.
+ *
+ * Periods start at local midnight in the time zone current when the session
+ * was recorded; after a time zone change, a rebuild moves the sessions to
+ * their new periods.
+ *
+ * @author berti
+ */
+public class Rollups {
+
+	/* Private constants *********************** */
+
+	private final static String TAG = "Rollups";
+
+	private final static Period[] PERIODS = Period.values();
+
+	private final static String INSERT_EMPTY = "INSERT OR IGNORE INTO "
+			+ HistoryDatabase.TABLE_ROLLUPS + " ("
+			+ HistoryDatabase.COLUMN_PERIOD + ", "
+			+ HistoryDatabase.COLUMN_PERIOD_START + ") VALUES (?, ?)";
+
+	private final static String INCREMENT = "UPDATE "
+			+ HistoryDatabase.TABLE_ROLLUPS + " SET "
+			+ HistoryDatabase.COLUMN_STARTED + " = "
+			+ HistoryDatabase.COLUMN_STARTED + " + 1, "
+			+ HistoryDatabase.COLUMN_COMPLETED + " = "
+			+ HistoryDatabase.COLUMN_COMPLETED + " + ?, "
+			+ HistoryDatabase.COLUMN_INTERRUPTIONS + " = "
+			+ HistoryDatabase.COLUMN_INTERRUPTIONS + " + ?, "
+			+ HistoryDatabase.COLUMN_FOCUS + " = "
+			+ HistoryDatabase.COLUMN_FOCUS + " + ? WHERE "
+			+ HistoryDatabase.COLUMN_PERIOD + " = ? AND "
+			+ HistoryDatabase.COLUMN_PERIOD_START + " = ?";
+
+	private final static String INSERT = "INSERT INTO "
+			+ HistoryDatabase.TABLE_ROLLUPS + " ("
+			+ HistoryDatabase.COLUMN_PERIOD + ", "
+			+ HistoryDatabase.COLUMN_PERIOD_START + ", "
+			+ HistoryDatabase.COLUMN_STARTED + ", "
+			+ HistoryDatabase.COLUMN_COMPLETED + ", "
+			+ HistoryDatabase.COLUMN_INTERRUPTIONS + ", "
+			+ HistoryDatabase.COLUMN_FOCUS + ") VALUES (?, ?, ?, ?, ?, ?)";
+
+	private final static String SELECT = "SELECT "
+			+ HistoryDatabase.COLUMN_PERIOD + ", "
+			+ HistoryDatabase.COLUMN_PERIOD_START + ", "
+			+ HistoryDatabase.COLUMN_STARTED + ", "
+			+ HistoryDatabase.COLUMN_COMPLETED + ", "
+			+ HistoryDatabase.COLUMN_INTERRUPTIONS + ", "
+			+ HistoryDatabase.COLUMN_FOCUS + " FROM "
+			+ HistoryDatabase.TABLE_ROLLUPS;
+
+	private final static String SELECT_RANGE = SELECT + " WHERE "
+			+ HistoryDatabase.COLUMN_PERIOD + " = ? AND "
+			+ HistoryDatabase.COLUMN_PERIOD_START + " >= ? AND "
+			+ HistoryDatabase.COLUMN_PERIOD_START + " < ? ORDER BY "
+			+ HistoryDatabase.COLUMN_PERIOD_START;
+
+	private final static String SELECT_POMODORO_BOUNDS = "SELECT MIN("
+			+ HistoryDatabase.COLUMN_START + "), MAX("
+			+ HistoryDatabase.COLUMN_START + ") FROM "
+			+ HistoryDatabase.TABLE_SESSIONS + " WHERE "
+			+ HistoryDatabase.COLUMN_TYPE + " = "
+			+ Session.Type.POMODORO.ordinal();
+
+	private final static String SELECT_POMODOROS = "SELECT "
+			+ HistoryDatabase.COLUMN_START + ", " + HistoryDatabase.COLUMN_END
+			+ ", " + HistoryDatabase.COLUMN_OUTCOME + ", "
+			+ HistoryDatabase.COLUMN_INTERNAL_INTERRUPTIONS + ", "
+			+ HistoryDatabase.COLUMN_EXTERNAL_INTERRUPTIONS + " FROM "
+			+ HistoryDatabase.TABLE_SESSIONS + " WHERE "
+			+ HistoryDatabase.COLUMN_TYPE + " = "
+			+ Session.Type.POMODORO.ordinal() + " AND "
+			+ HistoryDatabase.COLUMN_START + " >= ? AND "
+			+ HistoryDatabase.COLUMN_START + " < ?";
+
+	/* Private fields ************************** */
+
+	private final HistoryDatabase database;
+
+	/* Public constructors ********************* */
+
+	public Rollups(HistoryDatabase database) {
+		this.database = database;
+	}
+
+	/* Public methods ************************** */
+
+	/**
+	 * Returns the rollup for the period containing the given time. The rollup
+	 * is empty if no pomodoro was started in it.
+	 */
+	public Rollup get(Period period, long time) {
+		Calendar calendar = Calendar.getInstance();
+		toPeriodStart(calendar, period, time);
+		long from = calendar.getTimeInMillis();
+
+		List<Rollup> rollups = getRange(period, from, from + 1);
+		return rollups.isEmpty() ? new Rollup(period, from, 0, 0, 0, 0)
+				: rollups.get(0);
+	}
+
+	/**
+	 * Returns the rollups of the given length starting in the given range,
+	 * oldest first. Periods without pomodoros are left out.
+	 */
+	public List<Rollup> getRange(Period period, long from, long to) {
+		SQLiteDatabase db = database.getReadableDatabase();
+		Cursor cursor = db.rawQuery(SELECT_RANGE,
+				new String[] { Integer.toString(period.ordinal()),
+						Long.toString(from), Long.toString(to) });
+		try {
+			List<Rollup> rollups = new ArrayList<Rollup>(cursor.getCount());
+			while (cursor.moveToNext()) {
+				rollups.add(read(cursor));
+			}
+			return rollups;
+		}
+		finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Adds the given sessions to the rollups. Must be called inside the
+	 * transaction that inserts them.
+	 */
+	public void apply(SQLiteDatabase db, List<Session> sessions) {
+		SQLiteStatement insertEmpty = db.compileStatement(INSERT_EMPTY);
+		SQLiteStatement increment = db.compileStatement(INCREMENT);
+		try {
+			Calendar calendar = Calendar.getInstance();
+			for (int i = 0; i < sessions.size(); i++) {
+				Session session = sessions.get(i);
+				if (session.getType() != Session.Type.POMODORO) {
+					continue;
+				}
+
+				boolean completed = session.getOutcome() == Session.Outcome.FINISHED;
+				int interruptions = session
+						.getInterruptions(Session.Interruption.INTERNAL)
+						+ session.getInterruptions(Session.Interruption.EXTERNAL);
+				for (Period period : PERIODS) {
+					toPeriodStart(calendar, period, session.getStart());
+					long start = calendar.getTimeInMillis();
+
+					insertEmpty.bindLong(1, period.ordinal());
+					insertEmpty.bindLong(2, start);
+					insertEmpty.execute();
+
+					increment.bindLong(1, completed ? 1 : 0);
+					increment.bindLong(2, interruptions);
+					increment.bindLong(3, session.getDuration());
+					increment.bindLong(4, period.ordinal());
+					increment.bindLong(5, start);
+					increment.execute();
+				}
+			}
+		}
+		finally {
+			insertEmpty.close();
+			increment.close();
+		}
+	}
+
+	/**
+	 * Recomputes all the rollups from the raw sessions. Blocks, so it must not
+	 * be called from the main thread, and no sessions must be inserted
+	 * meanwhile.
+	 */
+	public void rebuild() {
+		Aggregate aggregate = aggregateSessions();
+
+		SQLiteDatabase db = database.getWritableDatabase();
+		db.beginTransaction();
+		try {
+			db.execSQL("DELETE FROM " + HistoryDatabase.TABLE_ROLLUPS);
+
+			SQLiteStatement insert = db.compileStatement(INSERT);
+			try {
+				for (Map<Long, Rollup> rollups : aggregate.periods) {
+					for (Rollup rollup : rollups.values()) {
+						insert.bindLong(1, rollup.getPeriod().ordinal());
+						insert.bindLong(2, rollup.getStart());
+						insert.bindLong(3, rollup.getStarted());
+						insert.bindLong(4, rollup.getCompleted());
+						insert.bindLong(5, rollup.getInterruptions());
+						insert.bindLong(6, rollup.getFocus());
+						insert.executeInsert();
+					}
+				}
+			}
+			finally {
+				insert.close();
+			}
+			db.setTransactionSuccessful();
+		}
+		finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Compares the stored rollups with the ones computed from the raw
+	 * sessions, logging every difference. Blocks, so it must not be called
+	 * from the main thread.
+	 *
+	 * @return the number of rollups that differ, or are missing on either
+	 *         side
+	 */
+	public int check() {
+		Aggregate expected = aggregateSessions();
+		Aggregate stored = new Aggregate();
+
+		SQLiteDatabase db = database.getReadableDatabase();
+		Cursor cursor = db.rawQuery(SELECT, null);
+		try {
+			while (cursor.moveToNext()) {
+				stored.add(read(cursor));
+			}
+		}
+		finally {
+			cursor.close();
+		}
+
+		int mismatches = 0;
+		for (int i = 0; i < PERIODS.length; i++) {
+			Map<Long, Rollup> expectedRollups = expected.periods.get(i);
+			Map<Long, Rollup> storedRollups = stored.periods.get(i);
+
+			for (Rollup rollup : expectedRollups.values()) {
+				Rollup other = storedRollups.get(rollup.getStart());
+				if (other == null || !rollup.hasSameTotals(other)) {
+					Log.w(TAG, "Expected " + rollup + ", found " + other);
+					mismatches++;
+				}
+			}
+			for (Rollup rollup : storedRollups.values()) {
+				if (!expectedRollups.containsKey(rollup.getStart())) {
+					Log.w(TAG, "Unexpected " + rollup);
+					mismatches++;
+				}
+			}
+		}
+		return mismatches;
+	}
+
+	/**
+	 * Returns true if there are pomodoros in the history but no rollups, as
+	 * happens right after upgrading from a version without them.
+	 */
+	public boolean isMissing() {
+		SQLiteDatabase db = database.getReadableDatabase();
+		return count(db, "SELECT COUNT(*) FROM "
+				+ HistoryDatabase.TABLE_ROLLUPS) == 0
+				&& count(db, "SELECT COUNT(*) FROM "
+						+ HistoryDatabase.TABLE_SESSIONS + " WHERE "
+						+ HistoryDatabase.COLUMN_TYPE + " = "
+						+ Session.Type.POMODORO.ordinal()) > 0;
+	}
+
+	/* Package static methods ****************** */
+
+	/**
+	 * Sets the calendar to the start of the period containing the given time.
+	 */
+	static void toPeriodStart(Calendar calendar, Period period, long time) {
+		calendar.setTimeInMillis(time);
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+
+		switch (period) {
+		case WEEK:
+			int offset = (calendar.get(Calendar.DAY_OF_WEEK)
+					- calendar.getFirstDayOfWeek() + 7) % 7;
+			calendar.add(Calendar.DAY_OF_MONTH, -offset);
+			break;
+		case MONTH:
+			calendar.set(Calendar.DAY_OF_MONTH, 1);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Moves the calendar forward by one period.
+	 */
+	static void toNextPeriod(Calendar calendar, Period period) {
+		switch (period) {
+		case DAY:
+			calendar.add(Calendar.DAY_OF_MONTH, 1);
+			break;
+		case WEEK:
+			calendar.add(Calendar.WEEK_OF_YEAR, 1);
+			break;
+		case MONTH:
+			calendar.add(Calendar.MONTH, 1);
+			break;
+		}
+	}
+
+	/* Private methods ************************* */
+
+	/**
+	 * Aggregates the raw sessions, one month per task on a pool with a thread
+	 * per processor. Weeks spanning two months are merged at the end.
+	 */
+	private Aggregate aggregateSessions() {
+		final SQLiteDatabase db = database.getReadableDatabase();
+
+		Aggregate aggregate = new Aggregate();
+
+		long min, max;
+		Cursor cursor = db.rawQuery(SELECT_POMODORO_BOUNDS, null);
+		try {
+			if (!cursor.moveToFirst() || cursor.isNull(0)) {
+				return aggregate;
+			}
+			min = cursor.getLong(0);
+			max = cursor.getLong(1);
+		}
+		finally {
+			cursor.close();
+		}
+
+		List<Callable<Aggregate>> tasks = new ArrayList<Callable<Aggregate>>();
+		Calendar calendar = Calendar.getInstance();
+		toPeriodStart(calendar, Period.MONTH, min);
+		while (calendar.getTimeInMillis() <= max) {
+			final long from = calendar.getTimeInMillis();
+			toNextPeriod(calendar, Period.MONTH);
+			final long to = calendar.getTimeInMillis();
+
+			tasks.add(new Callable<Aggregate>() {
+
+				@Override
+				public Aggregate call() {
+					return aggregateSessions(db, from, to);
+				}
+
+			});
+		}
+
+		int threads = Math.min(tasks.size(), Runtime.getRuntime()
+				.availableProcessors());
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			for (Future<Aggregate> future : pool.invokeAll(tasks)) {
+				aggregate.add(future.get());
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while aggregating", e);
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException("Can't aggregate sessions",
+					e.getCause());
+		}
+		finally {
+			pool.shutdown();
+		}
+
+		return aggregate;
+	}
+
+	private Aggregate aggregateSessions(SQLiteDatabase db, long from, long to) {
+		Aggregate aggregate = new Aggregate();
+		Calendar calendar = Calendar.getInstance();
+
+		Cursor cursor = db.rawQuery(SELECT_POMODOROS,
+				new String[] { Long.toString(from), Long.toString(to) });
+		try {
+			while (cursor.moveToNext()) {
+				long start = cursor.getLong(0);
+				long duration = cursor.getLong(1) - start;
+				boolean completed = cursor.getInt(2) == Session.Outcome.FINISHED
+						.ordinal();
+				int interruptions = cursor.getInt(3) + cursor.getInt(4);
+
+				for (Period period : PERIODS) {
+					toPeriodStart(calendar, period, start);
+					aggregate.get(period, calendar.getTimeInMillis()).add(
+							duration, completed, interruptions);
+				}
+			}
+		}
+		finally {
+			cursor.close();
+		}
+
+		return aggregate;
+	}
+
+	private Rollup read(Cursor cursor) {
+		return new Rollup(PERIODS[cursor.getInt(0)], cursor.getLong(1),
+				cursor.getInt(2), cursor.getInt(3), cursor.getInt(4),
+				cursor.getLong(5));
+	}
+
+	private long count(SQLiteDatabase db, String sql) {
+		SQLiteStatement statement = db.compileStatement(sql);
+		try {
+			return statement.simpleQueryForLong();
+		}
+		finally {
+			statement.close();
+		}
+	}
+
+	/* Private inner classes ******************* */
+
+	/**
+	 * Rollups being computed in memory, by period and start time.
+	 */
+	private static class Aggregate {
+
+		private final List<Map<Long, Rollup>> periods = new ArrayList<Map<Long, Rollup>>();
+
+		public Aggregate() {
+			for (int i = 0; i < PERIODS.length; i++) {
+				periods.add(new HashMap<Long, Rollup>());
+			}
+		}
+
+		public Rollup get(Period period, long start) {
+			Map<Long, Rollup> rollups = periods.get(period.ordinal());
+			Rollup rollup = rollups.get(start);
+			if (rollup == null) {
+				rollup = new Rollup(period, start, 0, 0, 0, 0);
+				rollups.put(start, rollup);
+			}
+			return rollup;
+		}
+
+		public void add(Rollup rollup) {
+			get(rollup.getPeriod(), rollup.getStart()).add(rollup);
+		}
+
+		public void add(Aggregate other) {
+			for (Map<Long, Rollup> rollups : other.periods) {
+				for (Rollup rollup : rollups.values()) {
+					add(rollup);
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.history;
+
+/**
+ * A pomodoro or break as recorded in the session history.
+ *
+ * @author berti
+ */
+public class Session {
+
+	/* Public enumerations ********************* */
+
+	/**
+	 * Kind of period. Stored by ordinal, so new values must be added at the
+	 * end.
+	 */
+	public enum Type {
+		POMODORO, BREAK
+	};
+
+	/**
+	 * How the period ended. Stored by ordinal, so new values must be added at
+	 * the end.
+	 */
+	public enum Outcome {
+		FINISHED, STOPPED, SKIPPED
+	};
+
+	/**
+	 * Kind of interruption during a pomodoro, as in the technique: internal
+	 * ones come from the user, external ones from someone else. Stored by
+	 * ordinal, so new values must be added at the end.
+	 */
+	public enum Interruption {
+		INTERNAL, EXTERNAL
+	};
+
+	/* Private fields ************************** */
+
+	private final long id;
+
+	private final Type type;
+
+	private final long start;
+
+	private final long end;
+
+	private final long plannedDuration;
+
+	private final Outcome outcome;
+
+	private final String task;
+
+	private final int internalInterruptions;
+
+	private final int externalInterruptions;
+
+	/* Public constructors ********************* */
+
+	/**
+	 * Creates a session that hasn't been stored yet.
+	 */
+	public Session(Type type, long start, long end, long plannedDuration,
+			Outcome outcome, String task) {
+		this(0, type, start, end, plannedDuration, outcome, task, 0, 0);
+	}
+
+	/**
+	 * Creates a session that hasn't been stored yet, with the interruptions
+	 * logged while it ran.
+	 */
+	public Session(Type type, long start, long end, long plannedDuration,
+			Outcome outcome, String task, int internalInterruptions,
+			int externalInterruptions) {
+		this(0, type, start, end, plannedDuration, outcome, task,
+				internalInterruptions, externalInterruptions);
+	}
+
+	public Session(long id, Type type, long start, long end,
+			long plannedDuration, Outcome outcome, String task) {
+		this(id, type, start, end, plannedDuration, outcome, task, 0, 0);
+	}
+
+	public Session(long id, Type type, long start, long end,
+			long plannedDuration, Outcome outcome, String task,
+			int internalInterruptions, int externalInterruptions) {
+		this.id = id;
+		this.type = type;
+		this.start = start;
+		this.end = end;
+		this.plannedDuration = plannedDuration;
+		this.outcome = outcome;
+		this.task = task;
+		this.internalInterruptions = internalInterruptions;
+		this.externalInterruptions = externalInterruptions;
+	}
+
+	/* Public methods ************************** */
+
+	/**
+	 * Returns the row id of the session, or 0 if it hasn't been stored.
+	 */
+	public long getId() {
+		return id;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the wall clock time when the session started.
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	/**
+	 * Returns the wall clock time when the session ended, which is earlier
+	 * than planned if it was stopped.
+	 */
+	public long getEnd() {
+		return end;
+	}
+
+	public long getDuration() {
+		return end - start;
+	}
+
+	public long getPlannedDuration() {
+		return plannedDuration;
+	}
+
+	public Outcome getOutcome() {
+		return outcome;
+	}
+
+	/**
+	 * Returns the id of the task worked on, or null.
+	 * 
+	 * @see com.primoberti.cherryberry.tasks.Task#getId()
+	 */
+	public String getTask() {
+		return task;
+	}
+
+	public int getInterruptions(Interruption kind) {
+		return kind == Interruption.INTERNAL ? internalInterruptions
+				: externalInterruptions;
+	}
+
+	/**
+	 * Returns the number of interruptions of either kind.
+	 */
+	public int getInterruptions() {
+		return internalInterruptions + externalInterruptions;
+	}
+
+	@Override
+	public String toString() {
+		return type + " " + outcome + " " + start + "-" + end;
+	}
+
+}
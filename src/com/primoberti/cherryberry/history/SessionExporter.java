@@ -0,0 +1,578 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.history;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Calendar;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+/**
+ * Writes the session history to a file as CSV, JSON lines or iCalendar
+ * events, optionally compressed with gzip.
+ *
+ * Rows are streamed from a cursor and encoded one at a time into a reused
+ * buffer, which is compressed and written through a {@link FileChannel}
+ * whenever it fills up, so the memory used doesn't depend on the number of
+ * rows. Numbers, timestamps and the task ids are encoded straight into the
+ * buffer without creating strings.
+ *
+ * The file is written aside and renamed once complete, so an export that
+ * fails never leaves a truncated file behind.
+ *
+ * @author berti
+ */
+public class SessionExporter {
+
+	/* Public enumerations ********************* */
+
+	public enum Format {
+		CSV("csv"), JSON_LINES("jsonl"), ICALENDAR("ics");
+
+		private final String extension;
+
+		private Format(String extension) {
+			this.extension = extension;
+		}
+
+		public String getExtension() {
+			return extension;
+		}
+
+	};
+
+	/* Public constants ************************ */
+
+	/** Gzip file extension, appended to the one of the format. */
+	public final static String GZIP_EXTENSION = "gz";
+
+	/* Private constants *********************** */
+
+	private final static int BUFFER_SIZE = 32 * 1024;
+
+	/** Maximum length of an iCalendar line, in bytes, before folding it. */
+	private final static int MAX_LINE_LENGTH = 75;
+
+	private final static byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b,
+			Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	private final static String CSV_HEADER = "id,type,start,end,planned,"
+			+ "duration,outcome,task,internal_interruptions,"
+			+ "external_interruptions\r\n";
+
+	private final static String ICALENDAR_HEADER = "BEGIN:VCALENDAR\r\n"
+			+ "VERSION:2.0\r\n"
+			+ "PRODID:-//primoberti.com//CherryBerry history//EN\r\n";
+
+	private final static String ICALENDAR_FOOTER = "END:VCALENDAR\r\n";
+
+	private final static Session.Type[] TYPES = Session.Type.values();
+
+	private final static Session.Outcome[] OUTCOMES = Session.Outcome.values();
+
+	/** First column of the cursor, as in the {@link SessionStore} queries. */
+	private final static int COLUMN_ID = 0;
+
+	private final static int COLUMN_TYPE = 1;
+
+	private final static int COLUMN_START = 2;
+
+	private final static int COLUMN_END = 3;
+
+	private final static int COLUMN_PLANNED = 4;
+
+	private final static int COLUMN_OUTCOME = 5;
+
+	private final static int COLUMN_TASK = 6;
+
+	private final static int COLUMN_INTERNAL_INTERRUPTIONS = 7;
+
+	private final static int COLUMN_EXTERNAL_INTERRUPTIONS = 8;
+
+	/* Private fields ************************** */
+
+	private final Format format;
+
+	private final boolean gzip;
+
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+	private final CharArrayBuffer task = new CharArrayBuffer(64);
+
+	private final byte[] digits = new byte[20];
+
+	private final Calendar calendar = Calendar.getInstance(TimeZone
+			.getTimeZone("UTC"));
+
+	private FileChannel channel;
+
+	private Deflater deflater;
+
+	private ByteBuffer compressed;
+
+	private final CRC32 crc = new CRC32();
+
+	private long size;
+
+	/** Bytes in the current line, for folding iCalendar lines. */
+	private int lineLength;
+
+	/* Public constructors ********************* */
+
+	public SessionExporter(Format format, boolean gzip) {
+		this.format = format;
+		this.gzip = gzip;
+	}
+
+	/* Public methods ************************** */
+
+	/**
+	 * Returns the name of the export file for the given base name, with the
+	 * extensions of the format and compression.
+	 */
+	public String getFileName(String baseName) {
+		return baseName + "." + format.getExtension()
+				+ (gzip ? "." + GZIP_EXTENSION : "");
+	}
+
+	/**
+	 * Writes every row of the cursor to the given file, replacing it. The
+	 * cursor must have the columns of the session store queries, and is left
+	 * open. Blocks, so it must not be called from the main thread.
+	 *
+	 * @return the number of sessions written
+	 */
+	public int export(Cursor cursor, File file) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		channel = out.getChannel();
+		buffer.clear();
+		size = 0;
+		lineLength = 0;
+		crc.reset();
+
+		int rows = 0;
+		boolean exported = false;
+		try {
+			if (gzip) {
+				deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+				compressed = ByteBuffer.allocate(BUFFER_SIZE);
+				writeFully(ByteBuffer.wrap(GZIP_HEADER));
+			}
+			writeHeader();
+			while (cursor.moveToNext()) {
+				writeRow(cursor);
+				rows++;
+			}
+			writeFooter();
+			finish();
+			channel.force(false);
+			out.close();
+
+			if (!temp.renameTo(file)) {
+				throw new IOException("Can't rename " + temp + " to " + file);
+			}
+			exported = true;
+		}
+		finally {
+			out.close();
+			if (deflater != null) {
+				deflater.end();
+				deflater = null;
+				compressed = null;
+			}
+			channel = null;
+			if (!exported) {
+				// Don't leave a partial export behind
+				temp.delete();
+			}
+		}
+		return rows;
+	}
+
+	/* Private methods ************************* */
+
+	private void writeHeader() throws IOException {
+		switch (format) {
+		case CSV:
+			putAscii(CSV_HEADER);
+			break;
+		case ICALENDAR:
+			putAscii(ICALENDAR_HEADER);
+			break;
+		}
+	}
+
+	private void writeFooter() throws IOException {
+		if (format == Format.ICALENDAR) {
+			putAscii(ICALENDAR_FOOTER);
+		}
+	}
+
+	private void writeRow(Cursor cursor) throws IOException {
+		long id = cursor.getLong(COLUMN_ID);
+		Session.Type type = TYPES[cursor.getInt(COLUMN_TYPE)];
+		long start = cursor.getLong(COLUMN_START);
+		long end = cursor.getLong(COLUMN_END);
+		long planned = cursor.getLong(COLUMN_PLANNED);
+		Session.Outcome outcome = OUTCOMES[cursor.getInt(COLUMN_OUTCOME)];
+		boolean hasTask = !cursor.isNull(COLUMN_TASK);
+		if (hasTask) {
+			cursor.copyStringToBuffer(COLUMN_TASK, task);
+		}
+		int internal = cursor.getInt(COLUMN_INTERNAL_INTERRUPTIONS);
+		int external = cursor.getInt(COLUMN_EXTERNAL_INTERRUPTIONS);
+
+		switch (format) {
+		case CSV:
+			putLong(id);
+			put(',');
+			putAscii(type.name());
+			put(',');
+			putTimestamp(start, true);
+			put(',');
+			putTimestamp(end, true);
+			put(',');
+			putLong(planned);
+			put(',');
+			putLong(end - start);
+			put(',');
+			putAscii(outcome.name());
+			put(',');
+			if (hasTask) {
+				put('"');
+				putTask();
+				put('"');
+			}
+			put(',');
+			putLong(internal);
+			put(',');
+			putLong(external);
+			putAscii("\r\n");
+			break;
+
+		case JSON_LINES:
+			putAscii("{\"id\":");
+			putLong(id);
+			putAscii(",\"type\":\"");
+			putAscii(type.name());
+			putAscii("\",\"start\":\"");
+			putTimestamp(start, true);
+			putAscii("\",\"end\":\"");
+			putTimestamp(end, true);
+			putAscii("\",\"planned\":");
+			putLong(planned);
+			putAscii(",\"duration\":");
+			putLong(end - start);
+			putAscii(",\"outcome\":\"");
+			putAscii(outcome.name());
+			putAscii("\",\"task\":");
+			if (hasTask) {
+				put('"');
+				putTask();
+				put('"');
+			}
+			else {
+				putAscii("null");
+			}
+			putAscii(",\"internalInterruptions\":");
+			putLong(internal);
+			putAscii(",\"externalInterruptions\":");
+			putLong(external);
+			putAscii("}\n");
+			break;
+
+		case ICALENDAR:
+			putAscii("BEGIN:VEVENT\r\nUID:");
+			putLong(id);
+			putAscii("@history.cherryberry.primoberti.com\r\nDTSTAMP:");
+			putTimestamp(end, false);
+			putAscii("\r\nDTSTART:");
+			putTimestamp(start, false);
+			putAscii("\r\nDTEND:");
+			putTimestamp(end, false);
+			putAscii("\r\nSUMMARY:");
+			putAscii(type == Session.Type.POMODORO ? "Pomodoro" : "Break");
+			putAscii(outcome == Session.Outcome.FINISHED ? "" : outcome
+					== Session.Outcome.STOPPED ? " (stopped)" : " (skipped)");
+			putAscii("\r\nCATEGORIES:CherryBerry,");
+			putAscii(type.name());
+			if (hasTask || internal + external > 0) {
+				putAscii("\r\nDESCRIPTION:");
+				if (hasTask) {
+					putAscii("Task ");
+					putTask();
+					if (internal + external > 0) {
+						putAscii("\\n");
+					}
+				}
+				if (internal + external > 0) {
+					putAscii("Interruptions: ");
+					putLong(internal);
+					putAscii(" internal\\, ");
+					putLong(external);
+					putAscii(" external");
+				}
+			}
+			putAscii("\r\nEND:VEVENT\r\n");
+			break;
+		}
+	}
+
+	/**
+	 * Puts the task id of the current row, escaped for the format.
+	 */
+	private void putTask() throws IOException {
+		char[] chars = task.data;
+		int length = task.sizeCopied;
+		for (int i = 0; i < length; i++) {
+			char c = chars[i];
+			switch (format) {
+			case CSV:
+				if (c == '"') {
+					put('"');
+				}
+				break;
+			case JSON_LINES:
+				if (c == '"' || c == '\\') {
+					put('\\');
+				}
+				else if (c < 0x20) {
+					putAscii("\\u00");
+					put(Character.forDigit(c >> 4, 16));
+					put(Character.forDigit(c & 0xf, 16));
+					continue;
+				}
+				break;
+			case ICALENDAR:
+				if (c == '\\' || c == ';' || c == ',') {
+					put('\\');
+				}
+				else if (c == '\n') {
+					putAscii("\\n");
+					continue;
+				}
+				else if (c < 0x20) {
+					continue;
+				}
+				break;
+			}
+
+			if (Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(chars[i + 1])) {
+				putCodePoint(Character.toCodePoint(c, chars[++i]));
+			}
+			else {
+				putCodePoint(c);
+			}
+		}
+	}
+
+	private void putCodePoint(int c) throws IOException {
+		if (c < 0x80) {
+			put(c);
+			return;
+		}
+
+		int length = c < 0x800 ? 2 : c < 0x10000 ? 3 : 4;
+		if (format == Format.ICALENDAR) {
+			// Don't split the character when folding
+			fold(length);
+		}
+
+		if (length == 2) {
+			putByte(0xc0 | c >> 6);
+		}
+		else if (length == 3) {
+			putByte(0xe0 | c >> 12);
+			putByte(0x80 | c >> 6 & 0x3f);
+		}
+		else {
+			putByte(0xf0 | c >> 18);
+			putByte(0x80 | c >> 12 & 0x3f);
+			putByte(0x80 | c >> 6 & 0x3f);
+		}
+		putByte(0x80 | c & 0x3f);
+	}
+
+	/**
+	 * Puts a timestamp in UTC, as <code>2012-05-01T10:15:00Z</code>, or
+	 * <code>20120501T101500Z</code> in the basic format used by iCalendar.
+	 */
+	private void putTimestamp(long time, boolean extended) throws IOException {
+		calendar.setTimeInMillis(time);
+		putPadded(calendar.get(Calendar.YEAR), 4);
+		if (extended) {
+			put('-');
+		}
+		putPadded(calendar.get(Calendar.MONTH) + 1, 2);
+		if (extended) {
+			put('-');
+		}
+		putPadded(calendar.get(Calendar.DAY_OF_MONTH), 2);
+		put('T');
+		putPadded(calendar.get(Calendar.HOUR_OF_DAY), 2);
+		if (extended) {
+			put(':');
+		}
+		putPadded(calendar.get(Calendar.MINUTE), 2);
+		if (extended) {
+			put(':');
+		}
+		putPadded(calendar.get(Calendar.SECOND), 2);
+		put('Z');
+	}
+
+	private void putPadded(int value, int width) throws IOException {
+		for (int divisor = width == 4 ? 1000 : 10; divisor > 0; divisor /= 10) {
+			put('0' + value / divisor % 10);
+		}
+	}
+
+	private void putLong(long value) throws IOException {
+		if (value < 0) {
+			put('-');
+			if (value == Long.MIN_VALUE) {
+				putAscii("9223372036854775808");
+				return;
+			}
+			value = -value;
+		}
+
+		int count = 0;
+		do {
+			digits[count++] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value > 0);
+		while (count > 0) {
+			put(digits[--count]);
+		}
+	}
+
+	private void putAscii(String text) throws IOException {
+		for (int i = 0; i < text.length(); i++) {
+			put(text.charAt(i));
+		}
+	}
+
+	/**
+	 * Puts an ASCII character, folding iCalendar lines before it if needed.
+	 */
+	private void put(int c) throws IOException {
+		if (format == Format.ICALENDAR && c != '\r' && c != '\n') {
+			fold(1);
+		}
+		putByte(c);
+		if (c == '\n') {
+			lineLength = 0;
+		}
+	}
+
+	/**
+	 * Starts a continuation line if the given number of bytes doesn't fit in
+	 * the current one.
+	 */
+	private void fold(int length) throws IOException {
+		if (lineLength + length > MAX_LINE_LENGTH) {
+			putByte('\r');
+			putByte('\n');
+			putByte(' ');
+			lineLength = 1;
+		}
+	}
+
+	private void putByte(int b) throws IOException {
+		if (!buffer.hasRemaining()) {
+			drain();
+		}
+		buffer.put((byte) b);
+		lineLength++;
+	}
+
+	/**
+	 * Writes out the buffer, compressing it if needed.
+	 */
+	private void drain() throws IOException {
+		buffer.flip();
+		if (gzip) {
+			byte[] data = buffer.array();
+			int length = buffer.limit();
+			crc.update(data, 0, length);
+			size += length;
+
+			deflater.setInput(data, 0, length);
+			while (!deflater.needsInput()) {
+				deflate();
+			}
+		}
+		else {
+			writeFully(buffer);
+		}
+		buffer.clear();
+	}
+
+	private void finish() throws IOException {
+		drain();
+		if (gzip) {
+			deflater.finish();
+			while (!deflater.finished()) {
+				deflate();
+			}
+
+			ByteBuffer trailer = ByteBuffer.allocate(8);
+			trailer.put((byte) crc.getValue());
+			trailer.put((byte) (crc.getValue() >> 8));
+			trailer.put((byte) (crc.getValue() >> 16));
+			trailer.put((byte) (crc.getValue() >> 24));
+			trailer.put((byte) size);
+			trailer.put((byte) (size >> 8));
+			trailer.put((byte) (size >> 16));
+			trailer.put((byte) (size >> 24));
+			trailer.flip();
+			writeFully(trailer);
+		}
+	}
+
+	private void deflate() throws IOException {
+		compressed.clear();
+		int length = deflater.deflate(compressed.array());
+		compressed.limit(length);
+		writeFully(compressed);
+	}
+
+	private void writeFully(ByteBuffer data) throws IOException {
+		while (data.hasRemaining()) {
+			channel.write(data);
+		}
+	}
+
+}
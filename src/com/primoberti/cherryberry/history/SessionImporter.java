@@ -0,0 +1,1282 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.history;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads sessions exported by other pomodoro trackers, or by
+ * {@link SessionExporter}, and hands them to a {@link Sink} in batches.
+ *
+ * The input is CSV with a header row, separated by commas, semicolons or
+ * tabs, or JSON: either one object per line or an array of objects. The
+ * format is told from the first character, and gzipped input is unpacked on
+ * the fly. Columns and keys are matched by name, ignoring case and
+ * punctuation, against the usual names for the start and end times, the
+ * actual and planned durations, the type, the outcome, the task and the
+ * interruptions. Unknown ones are ignored.
+ *
+ * Records are parsed one at a time straight from the bytes, through a
+ * reused buffer, so neither the file nor its lines are ever held in memory.
+ * After each batch is handed to the sink, the listener gets the
+ * {@link Progress}, whose offset is where the next record starts. Passing it
+ * back to {@link #importFrom(InputStream, Progress, ProgressListener)}
+ * resumes the import from there.
+ *
+ * @author berti
+ */
+public class SessionImporter {
+
+	/* Public constants ************************ */
+
+	/** Number of sessions handed to the sink at once. */
+	public final static int BATCH_SIZE = 1000;
+
+	/* Private constants *********************** */
+
+	private final static int BUFFER_SIZE = 64 * 1024;
+
+	/** Value of a time or duration that isn't in the record. */
+	private final static long NONE = Long.MIN_VALUE;
+
+	/** Bigger epoch values are taken as milliseconds, smaller as seconds. */
+	private final static long EPOCH_MILLIS_THRESHOLD = 100000000000L;
+
+	/** Durations without a unit below this are minutes, others milliseconds. */
+	private final static long UNITLESS_MINUTES_THRESHOLD = 1000;
+
+	private final static long UNITLESS = 0;
+
+	private final static long SECOND = 1000;
+
+	private final static long MINUTE = 60 * SECOND;
+
+	private final static long HOUR = 60 * MINUTE;
+
+	private final static long DAY = 24 * HOUR;
+
+	/** Keys learnt from JSON objects, to look them up without strings. */
+	private final static int MAX_CACHED_KEYS = 64;
+
+	private final static Map<String, Column> COLUMNS = new HashMap<String, Column>();
+
+	private final static Map<String, Long> UNITS = new HashMap<String, Long>();
+
+	static {
+		alias(Column.START, "start", "starttime", "startdate", "startdatetime",
+				"started", "startedat", "begin", "begintime", "from");
+		alias(Column.END, "end", "endtime", "enddate", "enddatetime", "ended",
+				"endedat", "finish", "finishtime", "finishedat", "stoppedat",
+				"to");
+		alias(Column.DURATION, "duration", "actualduration", "length",
+				"elapsed", "minutes", "seconds");
+		alias(Column.PLANNED, "planned", "plannedduration", "target",
+				"targetduration", "goal");
+		alias(Column.TYPE, "type", "kind", "mode", "sessiontype",
+				"periodtype");
+		alias(Column.OUTCOME, "outcome", "status", "result", "state",
+				"completed", "complete", "finished", "done");
+		alias(Column.TASK, "task", "taskid", "taskname", "tasktitle", "title",
+				"name", "label");
+		alias(Column.INTERNAL, "internal", "internalinterruptions",
+				"internalinterruption");
+		alias(Column.EXTERNAL, "external", "externalinterruptions",
+				"externalinterruption");
+		alias(Column.INTERRUPTIONS, "interruptions", "interruption",
+				"interruptioncount");
+
+		unit(1, "ms", "millis", "milliseconds");
+		unit(SECOND, "sec", "secs", "seconds");
+		unit(MINUTE, "min", "mins", "minutes");
+	}
+
+	/* Private enumerations ******************** */
+
+	private enum Column {
+		IGNORED, START, END, DURATION, PLANNED, TYPE, OUTCOME, TASK, INTERNAL,
+		EXTERNAL, INTERRUPTIONS
+	};
+
+	/* Private fields ************************** */
+
+	private final Sink sink;
+
+	private final int batchSize;
+
+	private final TimeZone timeZone = TimeZone.getDefault();
+
+	private InputStream in;
+
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+
+	private int position;
+
+	private int limit;
+
+	/** Offset in the input of the first byte in the buffer. */
+	private long base;
+
+	private boolean json;
+
+	private int delimiter;
+
+	/** Columns and units of the CSV fields, by position. */
+	private Column[] columns;
+
+	private long[] units;
+
+	/** Unescaped text of the fields of the current record. */
+	private byte[] text = new byte[256];
+
+	private int textLength;
+
+	private int[] fieldStarts = new int[16];
+
+	private int[] fieldEnds = new int[16];
+
+	private final List<byte[]> keyNames = new ArrayList<byte[]>();
+
+	private final List<Column> keyColumns = new ArrayList<Column>();
+
+	private final List<Long> keyUnits = new ArrayList<Long>();
+
+	/** Task of the last session, shared by the next ones with the same. */
+	private byte[] lastTaskBytes = new byte[0];
+
+	private String lastTask;
+
+	// Values of the current record
+
+	private long start;
+
+	private long end;
+
+	private long duration;
+
+	private long planned;
+
+	private Session.Type type;
+
+	private Session.Outcome outcome;
+
+	private String task;
+
+	private int internal;
+
+	private int external;
+
+	private boolean malformed;
+
+	/* Public constructors ********************* */
+
+	public SessionImporter(Sink sink) {
+		this(sink, BATCH_SIZE);
+	}
+
+	public SessionImporter(Sink sink, int batchSize) {
+		this.sink = sink;
+		this.batchSize = batchSize;
+	}
+
+	/* Public methods ************************** */
+
+	/**
+	 * Imports every session in the input, or the ones after the given
+	 * checkpoint. Blocks, so it must not be called from the main thread. The
+	 * input isn't closed.
+	 *
+	 * @param input CSV or JSON export, possibly gzipped
+	 * @param checkpoint progress last reported for the same input, or null to
+	 *            start from the beginning
+	 * @param listener notified after each batch, or null
+	 * @return the final progress
+	 * @throws IOException if the input can't be read, or isn't an export
+	 */
+	public Progress importFrom(InputStream input, Progress checkpoint,
+			ProgressListener listener) throws IOException {
+		Progress progress = checkpoint != null ? new Progress(checkpoint)
+				: new Progress();
+		open(input);
+		if (progress.offset > base + position) {
+			skipTo(progress.offset);
+		}
+
+		List<Session> batch = new ArrayList<Session>(batchSize);
+		int read = 0;
+		int invalid = 0;
+		while (json ? readJsonRecord() : readCsvRecord()) {
+			read++;
+			Session session = toSession();
+			if (session != null) {
+				batch.add(session);
+			}
+			else {
+				invalid++;
+			}
+
+			if (batch.size() == batchSize) {
+				commit(batch, read, invalid, progress, listener);
+				read = 0;
+				invalid = 0;
+			}
+		}
+		if (read > 0) {
+			commit(batch, read, invalid, progress, listener);
+		}
+
+		return progress;
+	}
+
+	/* Private static methods ****************** */
+
+	private static void alias(Column column, String... names) {
+		for (String name : names) {
+			COLUMNS.put(name, column);
+		}
+	}
+
+	private static void unit(long millis, String... suffixes) {
+		for (String suffix : suffixes) {
+			UNITS.put(suffix, millis);
+		}
+	}
+
+	/**
+	 * Returns the name in lower case without anything but letters and
+	 * digits, e.g. <code>durationminutes</code> for
+	 * <code>Duration (minutes)</code>.
+	 */
+	private static String normalize(String name) {
+		StringBuilder normalized = new StringBuilder(name.length());
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (Character.isLetterOrDigit(c)) {
+				normalized.append(c);
+			}
+		}
+		return normalized.toString().toLowerCase(Locale.US);
+	}
+
+	private static Column getColumn(String normalized) {
+		Column column = COLUMNS.get(normalized);
+		if (column == null) {
+			String base = stripUnit(normalized);
+			if (base != null) {
+				column = COLUMNS.get(base);
+			}
+		}
+		return column != null ? column : Column.IGNORED;
+	}
+
+	/**
+	 * Returns the unit in milliseconds of a duration column, told by its name
+	 * or the suffix of its name, or {@link #UNITLESS}.
+	 */
+	private static long getUnit(String normalized) {
+		if (normalized.equals("seconds")) {
+			return SECOND;
+		}
+		if (normalized.equals("minutes")) {
+			return MINUTE;
+		}
+		String base = stripUnit(normalized);
+		return base != null ? UNITS.get(normalized.substring(base.length()))
+				: UNITLESS;
+	}
+
+	/**
+	 * Returns the name of a known column without its unit suffix, e.g.
+	 * <code>duration</code> for <code>durationminutes</code>, or null if it
+	 * isn't one.
+	 */
+	private static String stripUnit(String normalized) {
+		for (String suffix : UNITS.keySet()) {
+			if (normalized.endsWith(suffix)) {
+				String base = normalized.substring(0, normalized.length()
+						- suffix.length());
+				if (COLUMNS.containsKey(base)) {
+					return base;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the number of days from 1970-01-01 to the given date in the
+	 * proleptic Gregorian calendar.
+	 */
+	private static long daysFromCivil(int year, int month, int day) {
+		if (month <= 2) {
+			year--;
+		}
+		long era = (year >= 0 ? year : year - 399) / 400;
+		int yearOfEra = (int) (year - era * 400);
+		int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5
+				+ day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+				+ dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	private static boolean isDigit(int c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isSpace(int c) {
+		return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+	}
+
+	/* Private methods ************************* */
+
+	private void open(InputStream input) throws IOException {
+		in = input;
+		base = 0;
+		position = 0;
+		limit = 0;
+		keyNames.clear();
+		keyColumns.clear();
+		keyUnits.clear();
+
+		fill();
+		if (limit >= 2 && (buffer[0] & 0xff) == 0x1f
+				&& (buffer[1] & 0xff) == 0x8b) {
+			// Put back what was read and unpack the rest on the fly
+			in = new GZIPInputStream(new SequenceInputStream(
+					new ByteArrayInputStream(buffer.clone(), 0, limit), input),
+					BUFFER_SIZE);
+			limit = 0;
+			fill();
+		}
+
+		// Byte order mark
+		if (limit >= 3 && (buffer[0] & 0xff) == 0xef
+				&& (buffer[1] & 0xff) == 0xbb && (buffer[2] & 0xff) == 0xbf) {
+			position = 3;
+		}
+
+		int c;
+		while (isSpace(c = peekByte())) {
+			position++;
+		}
+		json = c == '{' || c == '[';
+
+		if (!json) {
+			delimiter = detectDelimiter();
+			readHeader();
+		}
+	}
+
+	/**
+	 * Returns whichever of comma, semicolon and tab appears most in the first
+	 * line buffered.
+	 */
+	private int detectDelimiter() {
+		int commas = 0;
+		int semicolons = 0;
+		int tabs = 0;
+		for (int i = position; i < limit && buffer[i] != '\n'; i++) {
+			if (buffer[i] == ',') {
+				commas++;
+			}
+			else if (buffer[i] == ';') {
+				semicolons++;
+			}
+			else if (buffer[i] == '\t') {
+				tabs++;
+			}
+		}
+		if (tabs > commas && tabs > semicolons) {
+			return '\t';
+		}
+		return semicolons > commas ? ';' : ',';
+	}
+
+	private void readHeader() throws IOException {
+		int count = readCsvFields();
+		columns = new Column[Math.max(count, 0)];
+		units = new long[columns.length];
+
+		boolean hasStart = false;
+		for (int i = 0; i < columns.length; i++) {
+			String name = normalize(getText(fieldStarts[i], fieldEnds[i]));
+			columns[i] = getColumn(name);
+			units[i] = getUnit(name);
+			hasStart |= columns[i] == Column.START;
+		}
+
+		if (!hasStart) {
+			throw new IOException("No start time column in the header");
+		}
+	}
+
+	private void commit(List<Session> batch, int read, int invalid,
+			Progress progress, ProgressListener listener) {
+		int inserted = batch.isEmpty() ? 0 : sink.insert(batch);
+
+		progress.offset = base + position;
+		progress.read += read;
+		progress.imported += inserted;
+		progress.duplicates += batch.size() - inserted;
+		progress.invalid += invalid;
+		batch.clear();
+
+		if (listener != null) {
+			listener.onProgress(progress);
+		}
+	}
+
+	/**
+	 * Builds the session from the values of the current record, filling in
+	 * the missing ones from the others.
+	 *
+	 * @return the session, or null if the record doesn't make one
+	 */
+	private Session toSession() {
+		if (malformed || start == NONE) {
+			return null;
+		}
+
+		if (end == NONE) {
+			if (duration != NONE) {
+				end = start + duration;
+			}
+			else if (planned != NONE) {
+				end = start + planned;
+			}
+			else {
+				return null;
+			}
+		}
+		if (end < start) {
+			return null;
+		}
+
+		if (planned == NONE) {
+			planned = end - start;
+		}
+		if (outcome == null) {
+			outcome = end - start < planned ? Session.Outcome.STOPPED
+					: Session.Outcome.FINISHED;
+		}
+
+		return new Session(type != null ? type : Session.Type.POMODORO, start,
+				end, planned, outcome, task, internal, external);
+	}
+
+	private void clearRecord() {
+		textLength = 0;
+		start = NONE;
+		end = NONE;
+		duration = NONE;
+		planned = NONE;
+		type = null;
+		outcome = null;
+		task = null;
+		internal = 0;
+		external = 0;
+		malformed = false;
+	}
+
+	/**
+	 * Parses the text between the given positions as the value of the given
+	 * column. Empty values are left out.
+	 */
+	private void setValue(Column column, long unit, int from, int to)
+			throws IOException {
+		if (from == to || column == Column.IGNORED) {
+			return;
+		}
+
+		switch (column) {
+		case START:
+			start = parseTime(from, to);
+			malformed |= start == NONE;
+			break;
+		case END:
+			end = parseTime(from, to);
+			malformed |= end == NONE;
+			break;
+		case DURATION:
+			duration = parseDuration(unit, from, to);
+			break;
+		case PLANNED:
+			planned = parseDuration(unit, from, to);
+			break;
+		case TYPE:
+			type = parseType(from, to);
+			break;
+		case OUTCOME:
+			outcome = parseOutcome(from, to);
+			break;
+		case TASK:
+			task = getTask(from, to);
+			break;
+		case INTERNAL:
+		case INTERRUPTIONS:
+			internal = (int) Math.max(parseNumber(from, to, 1), 0);
+			break;
+		case EXTERNAL:
+			external = (int) Math.max(parseNumber(from, to, 1), 0);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Parses a time as the milliseconds or seconds since the epoch, or as an
+	 * ISO 8601 date and time, e.g. <code>2012-05-01T10:15:00Z</code> or
+	 * <code>2012-05-01 12:15</code>. Times without an offset are local.
+	 *
+	 * @return the time, or {@link #NONE} if it can't be parsed
+	 */
+	private long parseTime(int from, int to) {
+		while (from < to && text[from] == ' ') {
+			from++;
+		}
+		while (to > from && text[to - 1] == ' ') {
+			to--;
+		}
+
+		if (to - from < 10 || text[from + 4] != '-' && text[from + 4] != '/') {
+			long seconds = parseNumber(from, to, SECOND);
+			if (seconds < 0) {
+				return NONE;
+			}
+			// Whole milliseconds are read as thousands of seconds
+			return seconds >= EPOCH_MILLIS_THRESHOLD * SECOND ? seconds
+					/ SECOND : seconds;
+		}
+
+		int i = from;
+		int year = digits(i, 4, to);
+		int month = digits(i + 5, 2, to);
+		int day = digits(i + 8, 2, to);
+		if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31
+				|| text[i + 7] != text[i + 4]) {
+			return NONE;
+		}
+		i += 10;
+
+		long millis = daysFromCivil(year, month, day) * DAY;
+		if (i < to && (text[i] == 'T' || text[i] == ' ')) {
+			int hour = digits(i + 1, 2, to);
+			int minute = i + 3 < to && text[i + 3] == ':' ? digits(i + 4, 2,
+					to) : -1;
+			if (hour < 0 || hour > 24 || minute < 0 || minute > 59) {
+				return NONE;
+			}
+			millis += hour * HOUR + minute * MINUTE;
+			i += 6;
+
+			if (i < to && text[i] == ':') {
+				int second = digits(i + 1, 2, to);
+				if (second < 0 || second > 60) {
+					return NONE;
+				}
+				millis += second * SECOND;
+				i += 3;
+
+				if (i < to && (text[i] == '.' || text[i] == ',')) {
+					long scale = 100;
+					for (i++; i < to && isDigit(text[i]); i++) {
+						millis += (text[i] - '0') * scale;
+						scale /= 10;
+					}
+				}
+			}
+		}
+
+		if (i == to) {
+			// Local time, with the offset in effect at about that time
+			return millis - timeZone.getOffset(millis - timeZone.getRawOffset());
+		}
+		if (text[i] == 'Z' && i + 1 == to) {
+			return millis;
+		}
+		if ((text[i] == '+' || text[i] == '-') && i + 3 <= to) {
+			int hours = digits(i + 1, 2, to);
+			int minutes = 0;
+			int rest = i + 3;
+			if (rest < to && text[rest] == ':') {
+				rest++;
+			}
+			if (rest < to) {
+				minutes = digits(rest, 2, to);
+				rest += 2;
+			}
+			if (hours < 0 || minutes < 0 || rest != to) {
+				return NONE;
+			}
+			long offset = hours * HOUR + minutes * MINUTE;
+			return text[i] == '+' ? millis - offset : millis + offset;
+		}
+		return NONE;
+	}
+
+	/**
+	 * Parses a duration as <code>h:mm:ss</code>, <code>mm:ss</code> or a
+	 * number in the given unit. Numbers without a unit are minutes if they
+	 * are small enough to be, milliseconds otherwise.
+	 *
+	 * @return the duration, or {@link #NONE} if it can't be parsed
+	 */
+	private long parseDuration(long unit, int from, int to) {
+		int colon = -1;
+		for (int i = from; i < to; i++) {
+			if (text[i] == ':') {
+				colon = i;
+				break;
+			}
+		}
+
+		if (colon >= 0) {
+			long total = 0;
+			int partStart = from;
+			for (int i = from; i <= to; i++) {
+				if (i == to || text[i] == ':') {
+					long part = parseNumber(partStart, i, SECOND);
+					if (part < 0) {
+						return NONE;
+					}
+					total = total * 60 + part;
+					partStart = i + 1;
+				}
+			}
+			return total;
+		}
+
+		if (unit == UNITLESS) {
+			long minutes = parseNumber(from, to, MINUTE);
+			if (minutes < 0) {
+				return NONE;
+			}
+			return minutes < UNITLESS_MINUTES_THRESHOLD * MINUTE ? minutes
+					: minutes / MINUTE;
+		}
+		long value = parseNumber(from, to, unit);
+		return value >= 0 ? value : NONE;
+	}
+
+	/**
+	 * Parses a non-negative decimal number and returns it times the given
+	 * scale, or -1 if it isn't one.
+	 */
+	private long parseNumber(int from, int to, long scale) {
+		while (from < to && (text[from] == ' ' || text[from] == '+')) {
+			from++;
+		}
+		while (to > from && text[to - 1] == ' ') {
+			to--;
+		}
+
+		long value = 0;
+		int i = from;
+		for (; i < to && isDigit(text[i]); i++) {
+			value = value * 10 + text[i] - '0';
+		}
+		if (i == from || value > Long.MAX_VALUE / scale) {
+			return -1;
+		}
+		value *= scale;
+
+		if (i < to && text[i] == '.') {
+			long fraction = scale / 10;
+			for (i++; i < to && isDigit(text[i]); i++) {
+				value += (text[i] - '0') * fraction;
+				fraction /= 10;
+			}
+		}
+		return i == to ? value : -1;
+	}
+
+	/**
+	 * Returns the value of the given number of digits, or -1 if they aren't.
+	 */
+	private int digits(int from, int count, int to) {
+		int value = 0;
+		for (int i = from; i < from + count; i++) {
+			if (i >= to || !isDigit(text[i])) {
+				return -1;
+			}
+			value = value * 10 + text[i] - '0';
+		}
+		return value;
+	}
+
+	private Session.Type parseType(int from, int to) {
+		return contains(from, to, "break") || contains(from, to, "rest")
+				? Session.Type.BREAK : Session.Type.POMODORO;
+	}
+
+	/**
+	 * Reads an outcome, or whether the session was completed.
+	 *
+	 * @return the outcome, or null if it isn't known
+	 */
+	private Session.Outcome parseOutcome(int from, int to) {
+		if (startsWith(from, to, "skip")) {
+			return Session.Outcome.SKIPPED;
+		}
+		if (startsWith(from, to, "fin") || startsWith(from, to, "comp")
+				|| startsWith(from, to, "done") || startsWith(from, to, "succ")
+				|| startsWith(from, to, "true") || startsWith(from, to, "yes")
+				|| startsWith(from, to, "1")) {
+			return Session.Outcome.FINISHED;
+		}
+		if (startsWith(from, to, "stop") || startsWith(from, to, "canc")
+				|| startsWith(from, to, "int") || startsWith(from, to, "inc")
+				|| startsWith(from, to, "abort")
+				|| startsWith(from, to, "aband") || startsWith(from, to, "fail")
+				|| startsWith(from, to, "false") || startsWith(from, to, "no")
+				|| startsWith(from, to, "0")) {
+			return Session.Outcome.STOPPED;
+		}
+		return null;
+	}
+
+	private boolean startsWith(int from, int to, String prefix) {
+		if (to - from < prefix.length()) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if ((text[from + i] | 0x20) != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean contains(int from, int to, String word) {
+		for (int i = from; i + word.length() <= to; i++) {
+			if (startsWith(i, to, word)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the task as a string, shared with the previous session if it is
+	 * the same.
+	 */
+	private String getTask(int from, int to) throws IOException {
+		int length = to - from;
+		boolean same = length == lastTaskBytes.length;
+		for (int i = 0; same && i < length; i++) {
+			same = text[from + i] == lastTaskBytes[i];
+		}
+
+		if (!same) {
+			lastTaskBytes = new byte[length];
+			System.arraycopy(text, from, lastTaskBytes, 0, length);
+			lastTask = getText(from, to);
+		}
+		return lastTask;
+	}
+
+	private String getText(int from, int to) throws IOException {
+		try {
+			return new String(text, from, to - from, "UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Reads the next CSV record and sets its values.
+	 *
+	 * @return false at the end of the input
+	 */
+	private boolean readCsvRecord() throws IOException {
+		int count = readCsvFields();
+		if (count < 0) {
+			return false;
+		}
+
+		for (int i = 0; i < count && i < columns.length; i++) {
+			setValue(columns[i], units[i], fieldStarts[i], fieldEnds[i]);
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the fields of the next record, skipping blank lines, into the
+	 * text buffer.
+	 *
+	 * @return the number of fields, or -1 at the end of the input
+	 */
+	private int readCsvFields() throws IOException {
+		clearRecord();
+
+		int c = readByte();
+		while (c == '\r' || c == '\n') {
+			c = readByte();
+		}
+		if (c < 0) {
+			return -1;
+		}
+
+		int count = 0;
+		while (true) {
+			if (count == fieldStarts.length) {
+				int[] starts = new int[count * 2];
+				int[] ends = new int[count * 2];
+				System.arraycopy(fieldStarts, 0, starts, 0, count);
+				System.arraycopy(fieldEnds, 0, ends, 0, count);
+				fieldStarts = starts;
+				fieldEnds = ends;
+			}
+			fieldStarts[count] = textLength;
+
+			if (c == '"') {
+				while ((c = readByte()) >= 0) {
+					if (c == '"' && (c = readByte()) != '"') {
+						break;
+					}
+					append(c);
+				}
+				// Anything after the closing quote is dropped
+				while (c >= 0 && c != delimiter && c != '\n' && c != '\r') {
+					c = readByte();
+				}
+			}
+			else {
+				while (c >= 0 && c != delimiter && c != '\n' && c != '\r') {
+					append(c);
+					c = readByte();
+				}
+			}
+			fieldEnds[count++] = textLength;
+
+			if (c == delimiter) {
+				c = readByte();
+				continue;
+			}
+			if (c == '\r' && peekByte() == '\n') {
+				position++;
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Reads the next JSON object and sets its values. Whatever surrounds the
+	 * objects, such as the brackets and commas of an array, is skipped.
+	 *
+	 * @return false at the end of the input
+	 */
+	private boolean readJsonRecord() throws IOException {
+		clearRecord();
+
+		int c;
+		while ((c = readByte()) >= 0 && c != '{') {
+			if (!isSpace(c) && c != '[' && c != ',' && c != ']') {
+				throw new IOException("Unexpected character at offset "
+						+ (base + position - 1));
+			}
+		}
+		if (c < 0) {
+			return false;
+		}
+
+		while (true) {
+			c = skipSpace();
+			if (c == '}') {
+				return true;
+			}
+			if (c == ',') {
+				continue;
+			}
+			if (c != '"') {
+				return skipMalformed(c);
+			}
+
+			textLength = 0;
+			readJsonString();
+			int key = getKey(textLength);
+
+			c = skipSpace();
+			if (c != ':') {
+				return skipMalformed(c);
+			}
+			c = skipSpace();
+			int from = textLength;
+			if (c == '"') {
+				readJsonString();
+			}
+			else if (c == '{' || c == '[') {
+				skipJsonValue(c);
+			}
+			else {
+				// Number or literal, up to the next delimiter
+				while (c >= 0 && c != ',' && c != '}' && !isSpace(c)) {
+					append(c);
+					c = readByte();
+				}
+				if (c >= 0) {
+					position--;
+				}
+				if (textLength - from == 4
+						&& startsWith(from, textLength, "null")) {
+					textLength = from;
+				}
+			}
+
+			if (key >= 0) {
+				setValue(keyColumns.get(key), keyUnits.get(key), from,
+						textLength);
+			}
+			textLength = from;
+		}
+	}
+
+	/**
+	 * Reads the rest of a string, after the opening quote, into the text
+	 * buffer.
+	 */
+	private void readJsonString() throws IOException {
+		int c;
+		while ((c = readByte()) >= 0 && c != '"') {
+			if (c != '\\') {
+				append(c);
+				continue;
+			}
+
+			c = readByte();
+			switch (c) {
+			case 'b':
+				append('\b');
+				break;
+			case 'f':
+				append('\f');
+				break;
+			case 'n':
+				append('\n');
+				break;
+			case 'r':
+				append('\r');
+				break;
+			case 't':
+				append('\t');
+				break;
+			case 'u':
+				int code = readHex();
+				if (code >= 0xd800 && code < 0xdc00 && readByte() == '\\'
+						&& readByte() == 'u') {
+					code = 0x10000 + (code - 0xd800 << 10) + readHex() - 0xdc00;
+				}
+				appendCodePoint(code);
+				break;
+			default:
+				if (c >= 0) {
+					append(c);
+				}
+				break;
+			}
+		}
+	}
+
+	private int readHex() throws IOException {
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			int c = readByte();
+			int digit = Character.digit(c, 16);
+			if (digit < 0) {
+				return 0xfffd;
+			}
+			value = value << 4 | digit;
+		}
+		return value;
+	}
+
+	/**
+	 * Skips a nested object or array, after its opening bracket.
+	 */
+	private void skipJsonValue(int c) throws IOException {
+		int depth = 1;
+		while (depth > 0 && (c = readByte()) >= 0) {
+			if (c == '"') {
+				int from = textLength;
+				readJsonString();
+				textLength = from;
+			}
+			else if (c == '{' || c == '[') {
+				depth++;
+			}
+			else if (c == '}' || c == ']') {
+				depth--;
+			}
+		}
+	}
+
+	/**
+	 * Marks the record as malformed and skips to the end of the line, where
+	 * the next object of a JSON lines file starts.
+	 *
+	 * @return whether there is anything left
+	 */
+	private boolean skipMalformed(int c) throws IOException {
+		malformed = true;
+		while (c >= 0 && c != '\n') {
+			c = readByte();
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the index of the key in the text buffer among the ones learnt,
+	 * learning it if needed, or -1 if there are too many.
+	 */
+	private int getKey(int length) throws IOException {
+		for (int i = 0; i < keyNames.size(); i++) {
+			byte[] name = keyNames.get(i);
+			if (name.length == length) {
+				int j = 0;
+				while (j < length && name[j] == text[j]) {
+					j++;
+				}
+				if (j == length) {
+					return i;
+				}
+			}
+		}
+
+		if (keyNames.size() == MAX_CACHED_KEYS) {
+			return -1;
+		}
+		byte[] name = new byte[length];
+		System.arraycopy(text, 0, name, 0, length);
+		String normalized = normalize(getText(0, length));
+		keyNames.add(name);
+		keyColumns.add(getColumn(normalized));
+		keyUnits.add(getUnit(normalized));
+		return keyNames.size() - 1;
+	}
+
+	private int skipSpace() throws IOException {
+		int c;
+		while (isSpace(c = readByte())) {
+		}
+		return c;
+	}
+
+	private int readByte() throws IOException {
+		if (position == limit && !fill()) {
+			return -1;
+		}
+		return buffer[position++] & 0xff;
+	}
+
+	private int peekByte() throws IOException {
+		if (position == limit && !fill()) {
+			return -1;
+		}
+		return buffer[position] & 0xff;
+	}
+
+	/**
+	 * Reads the next bytes into the buffer, once it has all been consumed.
+	 *
+	 * @return false at the end of the input
+	 */
+	private boolean fill() throws IOException {
+		base += limit;
+		position = 0;
+		limit = 0;
+
+		int count;
+		do {
+			count = in.read(buffer);
+		} while (count == 0);
+
+		if (count < 0) {
+			return false;
+		}
+		limit = count;
+		return true;
+	}
+
+	/**
+	 * Reads up to the given offset, where a previous import stopped.
+	 */
+	private void skipTo(long offset) throws IOException {
+		long remaining = offset - (base + position);
+		while (remaining > 0) {
+			if (position == limit && !fill()) {
+				throw new IOException("Checkpoint past the end of the input");
+			}
+			int count = (int) Math.min(remaining, limit - position);
+			position += count;
+			remaining -= count;
+		}
+	}
+
+	private void append(int c) {
+		if (textLength == text.length) {
+			byte[] larger = new byte[text.length * 2];
+			System.arraycopy(text, 0, larger, 0, textLength);
+			text = larger;
+		}
+		text[textLength++] = (byte) c;
+	}
+
+	private void appendCodePoint(int c) {
+		if (c < 0x80) {
+			append(c);
+		}
+		else if (c < 0x800) {
+			append(0xc0 | c >> 6);
+			append(0x80 | c & 0x3f);
+		}
+		else if (c < 0x10000) {
+			append(0xe0 | c >> 12);
+			append(0x80 | c >> 6 & 0x3f);
+			append(0x80 | c & 0x3f);
+		}
+		else {
+			append(0xf0 | c >> 18);
+			append(0x80 | c >> 12 & 0x3f);
+			append(0x80 | c >> 6 & 0x3f);
+			append(0x80 | c & 0x3f);
+		}
+	}
+
+	/* Public inner classes ******************** */
+
+	/**
+	 * Takes the sessions imported, a batch at a time.
+	 */
+	public interface Sink {
+
+		/**
+		 * Stores the sessions, leaving out the ones already stored. The list
+		 * is reused once the call returns.
+		 *
+		 * @return the number of sessions stored
+		 */
+		int insert(List<Session> sessions);
+
+	}
+
+	public interface ProgressListener {
+
+		/**
+		 * Called after each batch is handed to the sink.
+		 */
+		void onProgress(Progress progress);
+
+	}
+
+	/**
+	 * How far an import went, as a checkpoint to resume it from.
+	 */
+	public static class Progress {
+
+		private long offset;
+
+		private int read;
+
+		private int imported;
+
+		private int duplicates;
+
+		private int invalid;
+
+		public Progress() {
+		}
+
+		/**
+		 * Creates the progress saved from a previous import.
+		 */
+		public Progress(long offset, int read, int imported, int duplicates,
+				int invalid) {
+			this.offset = offset;
+			this.read = read;
+			this.imported = imported;
+			this.duplicates = duplicates;
+			this.invalid = invalid;
+		}
+
+		private Progress(Progress progress) {
+			this(progress.offset, progress.read, progress.imported,
+					progress.duplicates, progress.invalid);
+		}
+
+		/**
+		 * Returns the offset in the input, unpacked if it was gzipped, of the
+		 * first record not handed to the sink yet.
+		 */
+		public long getOffset() {
+			return offset;
+		}
+
+		/**
+		 * Returns the number of records read, valid or not.
+		 */
+		public int getRead() {
+			return read;
+		}
+
+		public int getImported() {
+			return imported;
+		}
+
+		/**
+		 * Returns the number of sessions left out because they were already
+		 * stored.
+		 */
+		public int getDuplicates() {
+			return duplicates;
+		}
+
+		/**
+		 * Returns the number of records without a valid start time or end.
+		 */
+		public int getInvalid() {
+			return invalid;
+		}
+
+		@Override
+		public String toString() {
+			return read + " read, " + imported + " imported, " + duplicates
+					+ " duplicates, " + invalid + " invalid";
+		}
+
+	}
+
+}
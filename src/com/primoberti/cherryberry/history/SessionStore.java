@@ -0,0 +1,475 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.primoberti.cherryberry.backup.BackupWriter;
+import com.primoberti.cherryberry.history.Rollup.Period;
+
+/**
+ * Store for the session history.
+ *
+ * Sessions recorded with {@link #record(Session)} are queued and inserted
+ * from a background thread, with all the sessions queued at that point going
+ * in a single transaction through one prepared statement. Queries use the
+ * indexes on the start time and on the task, and should be run off the main
+ * thread as well. The {@link Rollups} are updated in the same transaction as
+ * the sessions.
+ *
+ * @author berti
+ */
+public class SessionStore {
+
+	/* Private constants *********************** */
+
+	private final static String TAG = "SessionStore";
+
+	private final static String COLUMNS = HistoryDatabase.COLUMN_ID + ", "
+			+ HistoryDatabase.COLUMN_TYPE + ", " + HistoryDatabase.COLUMN_START
+			+ ", " + HistoryDatabase.COLUMN_END + ", "
+			+ HistoryDatabase.COLUMN_PLANNED + ", "
+			+ HistoryDatabase.COLUMN_OUTCOME + ", "
+			+ HistoryDatabase.COLUMN_TASK + ", "
+			+ HistoryDatabase.COLUMN_INTERNAL_INTERRUPTIONS + ", "
+			+ HistoryDatabase.COLUMN_EXTERNAL_INTERRUPTIONS;
+
+	private final static String INSERT = "INSERT INTO "
+			+ HistoryDatabase.TABLE_SESSIONS + " ("
+			+ HistoryDatabase.COLUMN_TYPE + ", " + HistoryDatabase.COLUMN_START
+			+ ", " + HistoryDatabase.COLUMN_END + ", "
+			+ HistoryDatabase.COLUMN_PLANNED + ", "
+			+ HistoryDatabase.COLUMN_OUTCOME + ", "
+			+ HistoryDatabase.COLUMN_TASK + ", "
+			+ HistoryDatabase.COLUMN_INTERNAL_INTERRUPTIONS + ", "
+			+ HistoryDatabase.COLUMN_EXTERNAL_INTERRUPTIONS
+			+ ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+	private final static String COUNT_STARTED = "SELECT COUNT(*) FROM "
+			+ HistoryDatabase.TABLE_SESSIONS + " WHERE "
+			+ HistoryDatabase.COLUMN_START + " >= ? AND "
+			+ HistoryDatabase.COLUMN_START + " < ?";
+
+	private final static String SELECT_RANGE = "SELECT " + COLUMNS + " FROM "
+			+ HistoryDatabase.TABLE_SESSIONS + " WHERE "
+			+ HistoryDatabase.COLUMN_START + " >= ? AND "
+			+ HistoryDatabase.COLUMN_START + " < ? ORDER BY "
+			+ HistoryDatabase.COLUMN_START;
+
+	private final static String SELECT_ALL = "SELECT " + COLUMNS + " FROM "
+			+ HistoryDatabase.TABLE_SESSIONS + " ORDER BY "
+			+ HistoryDatabase.COLUMN_START;
+
+	private final static String SELECT_TASK_RANGE = "SELECT " + COLUMNS
+			+ " FROM " + HistoryDatabase.TABLE_SESSIONS + " WHERE "
+			+ HistoryDatabase.COLUMN_TASK + " = ? AND "
+			+ HistoryDatabase.COLUMN_START + " >= ? AND "
+			+ HistoryDatabase.COLUMN_START + " < ? ORDER BY "
+			+ HistoryDatabase.COLUMN_START;
+
+	private final static Session.Type[] TYPES = Session.Type.values();
+
+	private final static Session.Outcome[] OUTCOMES = Session.Outcome.values();
+
+	/* Private static fields ******************* */
+
+	private static SessionStore instance;
+
+	/* Private fields ************************** */
+
+	private final HistoryDatabase database;
+
+	private final Rollups rollups;
+
+	private final ExecutorService writer = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					return new Thread(r, TAG);
+				}
+
+			});
+
+	/** Sessions waiting to be inserted, guarded by itself. */
+	private final List<Session> queue = new ArrayList<Session>();
+
+	private final Runnable flushTask = new Runnable() {
+
+		@Override
+		public void run() {
+			flush();
+		}
+
+	};
+
+	/* Private constructors ******************** */
+
+	private SessionStore(Context context) {
+		database = new HistoryDatabase(context);
+		rollups = new Rollups(database);
+
+		writer.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				fillRollups();
+			}
+
+		});
+	}
+
+	/* Public static methods ******************* */
+
+	public static synchronized SessionStore getInstance(Context context) {
+		if (instance == null) {
+			instance = new SessionStore(context.getApplicationContext());
+		}
+		return instance;
+	}
+
+	/* Public methods ************************** */
+
+	/**
+	 * Queues the session to be inserted in the background.
+	 */
+	public void record(Session session) {
+		boolean submit;
+		synchronized (queue) {
+			submit = queue.isEmpty();
+			queue.add(session);
+		}
+
+		if (submit) {
+			writer.execute(flushTask);
+		}
+	}
+
+	/**
+	 * Inserts the given sessions in a single transaction. Blocks, so it must
+	 * not be called from the main thread.
+	 */
+	public void insert(List<Session> sessions) {
+		SQLiteDatabase db = database.getWritableDatabase();
+		db.beginTransaction();
+		try {
+			SQLiteStatement statement = db.compileStatement(INSERT);
+			try {
+				for (int i = 0; i < sessions.size(); i++) {
+					bind(statement, sessions.get(i));
+					statement.executeInsert();
+				}
+			}
+			finally {
+				statement.close();
+			}
+			rollups.apply(db, sessions);
+			db.setTransactionSuccessful();
+		}
+		finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Inserts the given sessions in a single transaction, leaving out the ones
+	 * that start within the same second as a session already in the history,
+	 * including the ones inserted before them. Imports from other trackers
+	 * round the start times to the second, so this is what tells that a
+	 * session is already there. Blocks, so it must not be called from the
+	 * main thread.
+	 *
+	 * @return the number of sessions inserted
+	 * @see SessionImporter
+	 */
+	public int insertNew(List<Session> sessions) {
+		List<Session> inserted = new ArrayList<Session>(sessions.size());
+
+		SQLiteDatabase db = database.getWritableDatabase();
+		db.beginTransaction();
+		try {
+			SQLiteStatement count = db.compileStatement(COUNT_STARTED);
+			SQLiteStatement statement = db.compileStatement(INSERT);
+			try {
+				for (int i = 0; i < sessions.size(); i++) {
+					Session session = sessions.get(i);
+					long second = session.getStart() - session.getStart()
+							% 1000;
+					count.bindLong(1, second);
+					count.bindLong(2, second + 1000);
+					if (count.simpleQueryForLong() == 0) {
+						bind(statement, session);
+						statement.executeInsert();
+						inserted.add(session);
+					}
+				}
+			}
+			finally {
+				count.close();
+				statement.close();
+			}
+			rollups.apply(db, inserted);
+			db.setTransactionSuccessful();
+		}
+		finally {
+			db.endTransaction();
+		}
+
+		return inserted.size();
+	}
+
+	/**
+	 * Returns the sessions started in the given range, oldest first.
+	 *
+	 * @param from start of the range, inclusive
+	 * @param to end of the range, exclusive
+	 */
+	public List<Session> getRange(long from, long to) {
+		return query(SELECT_RANGE,
+				new String[] { Long.toString(from), Long.toString(to) });
+	}
+
+	/**
+	 * Returns the sessions for the given task started in the given range,
+	 * oldest first.
+	 */
+	public List<Session> getRange(String task, long from, long to) {
+		return query(SELECT_TASK_RANGE, new String[] { task,
+				Long.toString(from), Long.toString(to) });
+	}
+
+	/**
+	 * Returns the sessions started on the same local day as the given time.
+	 */
+	public List<Session> getDay(long time) {
+		return getPeriod(Period.DAY, time);
+	}
+
+	/**
+	 * Returns the sessions started on the same local week as the given time.
+	 */
+	public List<Session> getWeek(long time) {
+		return getPeriod(Period.WEEK, time);
+	}
+
+	/**
+	 * Returns the sessions started on the same local month as the given time.
+	 */
+	public List<Session> getMonth(long time) {
+		return getPeriod(Period.MONTH, time);
+	}
+
+	/**
+	 * Writes every session to the given file, oldest first, streaming them
+	 * from a cursor. Blocks, so it must not be called from the main thread.
+	 *
+	 * @return the number of sessions written
+	 * @see SessionExporter
+	 */
+	public int export(SessionExporter exporter, File file) throws IOException {
+		SQLiteDatabase db = database.getReadableDatabase();
+		Cursor cursor = db.rawQuery(SELECT_ALL, null);
+		try {
+			return exporter.export(cursor, file);
+		}
+		finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Adds every session to the backup, oldest first, streaming them from a
+	 * cursor. Blocks, so it must not be called from the main thread.
+	 */
+	public void backup(BackupWriter writer) throws IOException {
+		SQLiteDatabase db = database.getReadableDatabase();
+		Cursor cursor = db.rawQuery(SELECT_ALL, null);
+		try {
+			while (cursor.moveToNext()) {
+				writer.addSession(read(cursor));
+			}
+		}
+		finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Returns the daily, weekly and monthly totals. Queries must be run off the
+	 * main thread.
+	 */
+	public Rollups getRollups() {
+		return rollups;
+	}
+
+	/**
+	 * Recomputes the rollups from the raw sessions, in between inserts.
+	 * Blocks, so it must not be called from the main thread.
+	 */
+	public void rebuildRollups() throws InterruptedException {
+		await(writer.submit(new Callable<Void>() {
+
+			@Override
+			public Void call() {
+				rollups.rebuild();
+				return null;
+			}
+
+		}));
+	}
+
+	/**
+	 * Compares the rollups with the raw sessions, in between inserts. Blocks,
+	 * so it must not be called from the main thread.
+	 *
+	 * @return the number of rollups that don't match the sessions
+	 */
+	public int checkRollups() throws InterruptedException {
+		return await(writer.submit(new Callable<Integer>() {
+
+			@Override
+			public Integer call() {
+				return rollups.check();
+			}
+
+		}));
+	}
+
+	/* Package methods ************************* */
+
+	HistoryDatabase getDatabase() {
+		return database;
+	}
+
+	/* Private methods ************************* */
+
+	private List<Session> getPeriod(Period period, long time) {
+		Calendar calendar = Calendar.getInstance();
+		Rollups.toPeriodStart(calendar, period, time);
+		long from = calendar.getTimeInMillis();
+		Rollups.toNextPeriod(calendar, period);
+		return getRange(from, calendar.getTimeInMillis());
+	}
+
+	/**
+	 * Computes the rollups after upgrading from a version without them.
+	 */
+	private void fillRollups() {
+		try {
+			if (rollups.isMissing()) {
+				Log.i(TAG, "Building rollups");
+				rollups.rebuild();
+			}
+		}
+		catch (RuntimeException e) {
+			Log.e(TAG, "Can't build rollups", e);
+		}
+	}
+
+	private <T> T await(Future<T> future) throws InterruptedException {
+		try {
+			return future.get();
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	private void flush() {
+		List<Session> sessions;
+		synchronized (queue) {
+			sessions = new ArrayList<Session>(queue);
+			queue.clear();
+		}
+
+		try {
+			insert(sessions);
+		}
+		catch (RuntimeException e) {
+			Log.e(TAG, "Can't record " + sessions.size() + " sessions", e);
+		}
+	}
+
+	private void bind(SQLiteStatement statement, Session session) {
+		statement.bindLong(1, session.getType().ordinal());
+		statement.bindLong(2, session.getStart());
+		statement.bindLong(3, session.getEnd());
+		statement.bindLong(4, session.getPlannedDuration());
+		statement.bindLong(5, session.getOutcome().ordinal());
+		if (session.getTask() != null) {
+			statement.bindString(6, session.getTask());
+		}
+		else {
+			statement.bindNull(6);
+		}
+		statement.bindLong(7,
+				session.getInterruptions(Session.Interruption.INTERNAL));
+		statement.bindLong(8,
+				session.getInterruptions(Session.Interruption.EXTERNAL));
+	}
+
+	private List<Session> query(String sql, String[] args) {
+		SQLiteDatabase db = database.getReadableDatabase();
+		Cursor cursor = db.rawQuery(sql, args);
+		try {
+			List<Session> sessions = new ArrayList<Session>(cursor.getCount());
+			while (cursor.moveToNext()) {
+				sessions.add(read(cursor));
+			}
+			return sessions;
+		}
+		finally {
+			cursor.close();
+		}
+	}
+
+	private Session read(Cursor cursor) {
+		return new Session(cursor.getLong(0), TYPES[cursor.getInt(1)],
+				cursor.getLong(2), cursor.getLong(3), cursor.getLong(4),
+				OUTCOMES[cursor.getInt(5)],
+				cursor.isNull(6) ? null : cursor.getString(6),
+				cursor.getInt(7), cursor.getInt(8));
+	}
+
+}
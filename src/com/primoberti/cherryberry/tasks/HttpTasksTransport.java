@@ -0,0 +1,369 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.tasks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Sends requests to the Google Tasks API over HTTPS.
+ *
+ * Batches are sent as a single <code>multipart/mixed</code> request to the
+ * batch endpoint, with one part per request.
+ *
+ * @author berti
+ */
+public class HttpTasksTransport implements TasksTransport {
+
+	/* Public constants ************************ */
+
+	/** OAuth 2.0 scope needed by the requests. */
+	public final static String SCOPE = "https://www.googleapis.com/auth/tasks";
+
+	/* Private constants *********************** */
+
+	private final static String API_PATH = "/tasks/v1";
+
+	private final static String API_URL = "https://www.googleapis.com"
+			+ API_PATH;
+
+	private final static String BATCH_URL = "https://www.googleapis.com/batch"
+			+ API_PATH;
+
+	private final static int MAX_BATCH_SIZE = 50;
+
+	private final static int TIMEOUT = 30 * 1000;
+
+	private final static String CRLF = "\r\n";
+
+	/* Private fields ************************** */
+
+	private final TokenProvider tokenProvider;
+
+	/* Public constructors ********************* */
+
+	public HttpTasksTransport(TokenProvider tokenProvider) {
+		this.tokenProvider = tokenProvider;
+	}
+
+	/* Package static methods ****************** */
+
+	/**
+	 * Builds the body of a batch request.
+	 */
+	static String buildBatch(List<TasksRequest> requests, String boundary) {
+		StringBuilder out = new StringBuilder();
+		for (int i = 0; i < requests.size(); i++) {
+			TasksRequest request = requests.get(i);
+
+			out.append("--").append(boundary).append(CRLF);
+			out.append("Content-Type: application/http").append(CRLF);
+			out.append("Content-ID: <").append(i).append('>').append(CRLF);
+			out.append(CRLF);
+
+			out.append(request.getMethod()).append(' ').append(API_PATH)
+					.append(request.getPath()).append(CRLF);
+			if (request.getEtag() != null) {
+				out.append(
+						TasksRequest.GET.equals(request.getMethod()) ? "If-None-Match: "
+								: "If-Match: ").append(request.getEtag())
+						.append(CRLF);
+			}
+			if (request.getBody() != null) {
+				out.append("Content-Type: application/json").append(CRLF);
+				out.append(CRLF);
+				out.append(request.getBody());
+			}
+			out.append(CRLF);
+		}
+		out.append("--").append(boundary).append("--").append(CRLF);
+		return out.toString();
+	}
+
+	/**
+	 * Parses the body of a batch response.
+	 *
+	 * @return the responses, in the same order as the requests
+	 */
+	static List<TasksResponse> parseBatch(String body, String boundary,
+			int count) throws IOException {
+		TasksResponse[] responses = new TasksResponse[count];
+
+		String[] parts = body.split("--" + Pattern.quote(boundary));
+		for (String part : parts) {
+			String[] sections = part.split("\r?\n\r?\n", 3);
+			if (sections.length < 2) {
+				continue;
+			}
+
+			int index = parseContentId(sections[0]);
+			String[] lines = sections[1].split("\r?\n");
+			String[] statusLine = lines[0].trim().split(" ");
+			if (index < 0 || index >= count || statusLine.length < 2) {
+				continue;
+			}
+
+			String etag = null;
+			for (int i = 1; i < lines.length; i++) {
+				if (lines[i].regionMatches(true, 0, "ETag:", 0, 5)) {
+					etag = lines[i].substring(5).trim();
+				}
+			}
+
+			String content = sections.length > 2 ? sections[2].trim() : null;
+			try {
+				responses[index] = new TasksResponse(
+						Integer.parseInt(statusLine[1]), etag,
+						content != null && content.length() > 0 ? content
+								: null);
+			}
+			catch (NumberFormatException e) {
+				throw new IOException("Malformed status line " + lines[0]);
+			}
+		}
+
+		for (int i = 0; i < count; i++) {
+			if (responses[i] == null) {
+				throw new IOException("Missing response " + i + " in batch");
+			}
+		}
+		return Arrays.asList(responses);
+	}
+
+	/* Public methods ************************** */
+
+	@Override
+	public TasksResponse execute(TasksRequest request) throws IOException {
+		String token = tokenProvider.getToken();
+		TasksResponse response = execute(request, token);
+		if (response.getStatus() == TasksResponse.UNAUTHORIZED) {
+			// The token expired, try once with a fresh one
+			tokenProvider.invalidateToken(token);
+			response = execute(request, tokenProvider.getToken());
+		}
+		return response;
+	}
+
+	@Override
+	public List<TasksResponse> executeBatch(List<TasksRequest> requests)
+			throws IOException {
+		if (requests.size() > MAX_BATCH_SIZE) {
+			throw new IllegalArgumentException("Batch of " + requests.size()
+					+ " requests");
+		}
+
+		String boundary = "batch_" + Long.toHexString(System.nanoTime());
+		byte[] body = buildBatch(requests, boundary).getBytes("UTF-8");
+
+		String token = tokenProvider.getToken();
+		List<TasksResponse> responses = executeBatch(body, boundary,
+				requests.size(), token);
+		if (responses == null) {
+			// The token expired, try once with a fresh one
+			tokenProvider.invalidateToken(token);
+			responses = executeBatch(body, boundary, requests.size(),
+					tokenProvider.getToken());
+		}
+		if (responses == null) {
+			throw new IOException("Batch unauthorized");
+		}
+		return responses;
+	}
+
+	@Override
+	public int getMaxBatchSize() {
+		return MAX_BATCH_SIZE;
+	}
+
+	/* Private static methods ****************** */
+
+	private static int parseContentId(String headers) {
+		for (String line : headers.split("\r?\n")) {
+			if (line.regionMatches(true, 0, "Content-ID:", 0, 11)) {
+				// Responses are identified as <response-N>
+				String id = line.substring(11).replaceAll("[^0-9]", "");
+				try {
+					return Integer.parseInt(id);
+				}
+				catch (NumberFormatException e) {
+					return -1;
+				}
+			}
+		}
+		return -1;
+	}
+
+	private static void write(HttpURLConnection connection, byte[] body)
+			throws IOException {
+		OutputStream out = connection.getOutputStream();
+		try {
+			out.write(body);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private static String read(InputStream in) throws IOException {
+		if (in == null) {
+			return null;
+		}
+
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				out.write(buffer, 0, n);
+			}
+			return out.toString("UTF-8");
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/* Private methods ************************* */
+
+	private HttpURLConnection open(String url, String token)
+			throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url)
+				.openConnection();
+		connection.setConnectTimeout(TIMEOUT);
+		connection.setReadTimeout(TIMEOUT);
+		connection.setRequestProperty("Authorization", "Bearer " + token);
+		return connection;
+	}
+
+	/**
+	 * Sends a batch request.
+	 *
+	 * @return the responses, or null if the token was rejected
+	 */
+	private List<TasksResponse> executeBatch(byte[] body, String boundary,
+			int count, String token) throws IOException {
+		HttpURLConnection connection = open(BATCH_URL, token);
+		try {
+			connection.setRequestMethod("POST");
+			connection.setDoOutput(true);
+			connection.setRequestProperty("Content-Type",
+					"multipart/mixed; boundary=" + boundary);
+			connection.setFixedLengthStreamingMode(body.length);
+			write(connection, body);
+
+			int status = connection.getResponseCode();
+			if (status == TasksResponse.UNAUTHORIZED) {
+				return null;
+			}
+			if (status != TasksResponse.OK) {
+				throw new IOException("Batch failed with status " + status);
+			}
+
+			String contentType = connection.getContentType();
+			int index = contentType != null ? contentType.indexOf("boundary=")
+					: -1;
+			if (index < 0) {
+				throw new IOException("No boundary in " + contentType);
+			}
+			String responseBoundary = contentType.substring(index + 9)
+					.replace("\"", "");
+
+			return parseBatch(read(connection.getInputStream()),
+					responseBoundary, count);
+		}
+		finally {
+			connection.disconnect();
+		}
+	}
+
+	private TasksResponse execute(TasksRequest request, String token)
+			throws IOException {
+		HttpURLConnection connection = open(API_URL + request.getPath(), token);
+		try {
+			if (TasksRequest.PATCH.equals(request.getMethod())) {
+				// HttpURLConnection doesn't know PATCH
+				connection.setRequestMethod("POST");
+				connection.setRequestProperty("X-HTTP-Method-Override",
+						TasksRequest.PATCH);
+			}
+			else {
+				connection.setRequestMethod(request.getMethod());
+			}
+
+			if (request.getEtag() != null) {
+				connection.setRequestProperty(TasksRequest.GET.equals(request
+						.getMethod()) ? "If-None-Match" : "If-Match", request
+						.getEtag());
+			}
+
+			if (request.getBody() != null) {
+				byte[] body = request.getBody().getBytes("UTF-8");
+				connection.setDoOutput(true);
+				connection.setRequestProperty("Content-Type",
+						"application/json");
+				connection.setFixedLengthStreamingMode(body.length);
+				write(connection, body);
+			}
+
+			int status = connection.getResponseCode();
+			String body = status >= 400 ? read(connection.getErrorStream())
+					: status == TasksResponse.NOT_MODIFIED ? null
+							: read(connection.getInputStream());
+			return new TasksResponse(status, connection.getHeaderField("ETag"),
+					body);
+		}
+		finally {
+			connection.disconnect();
+		}
+	}
+
+	/* Public inner classes ******************** */
+
+	/**
+	 * Provides OAuth 2.0 access tokens for {@link #SCOPE}, e.g. from the
+	 * AccountManager.
+	 */
+	public interface TokenProvider {
+
+		/**
+		 * Returns a valid token. May block, so it's only called from the sync
+		 * thread.
+		 */
+		public String getToken() throws IOException;
+
+		/**
+		 * Forgets the given token, which the server rejected.
+		 */
+		public void invalidateToken(String token);
+
+	}
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.tasks;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Formats and parses the timestamps used by Google Tasks, e.g.
+ * <code>2012-05-01T10:15:00.000Z</code>.
+ *
+ * @author berti
+ */
+class Rfc3339 {
+
+	/* Private constants *********************** */
+
+	private final static String PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
+
+	private final static String PATTERN_NO_MILLIS = "yyyy-MM-dd'T'HH:mm:ss'Z'";
+
+	/* Package static methods ****************** */
+
+	static String format(long time) {
+		return createFormat(PATTERN).format(new Date(time));
+	}
+
+	/**
+	 * Returns the given timestamp in milliseconds, or 0 if it is malformed.
+	 */
+	static long parse(String timestamp) {
+		if (timestamp == null) {
+			return 0;
+		}
+
+		try {
+			return createFormat(PATTERN).parse(timestamp).getTime();
+		}
+		catch (ParseException e) {
+			try {
+				return createFormat(PATTERN_NO_MILLIS).parse(timestamp)
+						.getTime();
+			}
+			catch (ParseException e2) {
+				return 0;
+			}
+		}
+	}
+
+	/* Private static methods ****************** */
+
+	private static SimpleDateFormat createFormat(String pattern) {
+		// Not thread safe, so created on every call; they are few per sync
+		SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format;
+	}
+
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.tasks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Persistent queue of local changes waiting to be sent to Google Tasks.
+ *
+ * Changes survive the process being killed and the device being offline.
+ * A newer change of the same kind to the same task replaces the pending one,
+ * so only the latest value is ever sent. Changes that fail are retried with
+ * an exponential backoff, randomized so that a fleet of devices coming back
+ * online doesn't retry in lockstep.
+ *
+ * @author berti
+ */
+public class SyncQueue {
+
+	/* Public constants ************************ */
+
+	/** Delay before the first retry. */
+	public final static long BASE_BACKOFF = 30 * 1000;
+
+	/** Longest delay between retries. */
+	public final static long MAX_BACKOFF = 6 * 60 * 60 * 1000;
+
+	/* Private constants *********************** */
+
+	private final static Operation[] OPERATIONS = Operation.values();
+
+	private final static String INSERT = "INSERT INTO "
+			+ TaskDatabase.TABLE_OUTBOX + " (" + TaskDatabase.COLUMN_LIST_ID
+			+ ", " + TaskDatabase.COLUMN_TASK_ID + ", "
+			+ TaskDatabase.COLUMN_OPERATION + ", " + TaskDatabase.COLUMN_VALUE
+			+ ") VALUES (?, ?, ?, ?)";
+
+	private final static String SELECT_DUE = "SELECT "
+			+ TaskDatabase.COLUMN_ID + ", " + TaskDatabase.COLUMN_LIST_ID
+			+ ", " + TaskDatabase.COLUMN_TASK_ID + ", "
+			+ TaskDatabase.COLUMN_OPERATION + ", " + TaskDatabase.COLUMN_VALUE
+			+ ", " + TaskDatabase.COLUMN_ATTEMPTS + " FROM "
+			+ TaskDatabase.TABLE_OUTBOX + " WHERE "
+			+ TaskDatabase.COLUMN_NEXT_ATTEMPT + " <= ? ORDER BY "
+			+ TaskDatabase.COLUMN_ID;
+
+	private final static String RETRY_LATER = "UPDATE "
+			+ TaskDatabase.TABLE_OUTBOX + " SET "
+			+ TaskDatabase.COLUMN_ATTEMPTS + " = ?, "
+			+ TaskDatabase.COLUMN_NEXT_ATTEMPT + " = ? WHERE "
+			+ TaskDatabase.COLUMN_ID + " = ?";
+
+	/* Public enumerations ********************* */
+
+	/**
+	 * Kind of change. Stored by ordinal, so new values must be added at the
+	 * end.
+	 */
+	public enum Operation {
+		/** Sets the pomodoros of the task to the value. */
+		POMODOROS,
+		/** Completes the task if the value is 1, or reopens it if 0. */
+		COMPLETED
+	};
+
+	/* Private fields ************************** */
+
+	private final TaskDatabase database;
+
+	private final Random random;
+
+	/* Public constructors ********************* */
+
+	public SyncQueue(TaskDatabase database) {
+		this(database, new Random());
+	}
+
+	/**
+	 * @param random source of the backoff jitter
+	 */
+	public SyncQueue(TaskDatabase database, Random random) {
+		this.database = database;
+		this.random = random;
+	}
+
+	/* Public static methods ******************* */
+
+	/**
+	 * Returns the delay before retrying a change that failed the given number
+	 * of times: {@link #BASE_BACKOFF} doubled on every attempt, up to
+	 * {@link #MAX_BACKOFF}, then shortened by up to a half at random.
+	 */
+	public static long getBackoff(int attempts, Random random) {
+		long delay = BASE_BACKOFF << Math.min(Math.max(attempts - 1, 0), 20);
+		delay = Math.min(delay, MAX_BACKOFF);
+		return delay - (long) (random.nextDouble() * delay / 2);
+	}
+
+	/* Public methods ************************** */
+
+	/**
+	 * Queues a change, replacing any pending change of the same kind to the
+	 * same task. The change is due immediately.
+	 */
+	public void enqueue(String listId, String taskId, Operation operation,
+			long value) {
+		SQLiteDatabase db = database.getWritableDatabase();
+		SQLiteStatement insert = db.compileStatement(INSERT);
+		try {
+			insert.bindString(1, listId);
+			insert.bindString(2, taskId);
+			insert.bindLong(3, operation.ordinal());
+			insert.bindLong(4, value);
+			insert.executeInsert();
+		}
+		finally {
+			insert.close();
+		}
+	}
+
+	/**
+	 * Returns the changes due at the given time, oldest first.
+	 */
+	public List<Entry> getDue(long now) {
+		SQLiteDatabase db = database.getReadableDatabase();
+		Cursor cursor = db.rawQuery(SELECT_DUE,
+				new String[] { Long.toString(now) });
+		try {
+			List<Entry> entries = new ArrayList<Entry>(cursor.getCount());
+			while (cursor.moveToNext()) {
+				entries.add(new Entry(cursor.getLong(0), cursor.getString(1),
+						cursor.getString(2), OPERATIONS[cursor.getInt(3)],
+						cursor.getLong(4), cursor.getInt(5)));
+			}
+			return entries;
+		}
+		finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Removes a change once it has been sent, or can never be. A newer change
+	 * queued meanwhile has another id, so it is kept.
+	 */
+	public void remove(Entry entry) {
+		database.getWritableDatabase().delete(TaskDatabase.TABLE_OUTBOX,
+				TaskDatabase.COLUMN_ID + " = ?",
+				new String[] { Long.toString(entry.getId()) });
+	}
+
+	/**
+	 * Counts a failed attempt and delays the change accordingly.
+	 *
+	 * @return the time of the next attempt
+	 */
+	public long retryLater(Entry entry, long now) {
+		int attempts = entry.getAttempts() + 1;
+		long nextAttempt = now + getBackoff(attempts, random);
+
+		SQLiteStatement update = database.getWritableDatabase()
+				.compileStatement(RETRY_LATER);
+		try {
+			update.bindLong(1, attempts);
+			update.bindLong(2, nextAttempt);
+			update.bindLong(3, entry.getId());
+			update.execute();
+		}
+		finally {
+			update.close();
+		}
+		return nextAttempt;
+	}
+
+	/**
+	 * Returns the time when the next change is due, or -1 if there are none.
+	 */
+	public long getNextAttempt() {
+		SQLiteDatabase db = database.getReadableDatabase();
+		Cursor cursor = db.rawQuery("SELECT MIN("
+				+ TaskDatabase.COLUMN_NEXT_ATTEMPT + "), COUNT(*) FROM "
+				+ TaskDatabase.TABLE_OUTBOX, null);
+		try {
+			return cursor.moveToFirst() && cursor.getInt(1) > 0 ? cursor
+					.getLong(0) : -1;
+		}
+		finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Returns the ids of the tasks with a pending change of the given kind.
+	 */
+	public List<String> getPendingTasks(Operation operation) {
+		SQLiteDatabase db = database.getReadableDatabase();
+		Cursor cursor = db.rawQuery("SELECT " + TaskDatabase.COLUMN_TASK_ID
+				+ " FROM " + TaskDatabase.TABLE_OUTBOX + " WHERE "
+				+ TaskDatabase.COLUMN_OPERATION + " = ?",
+				new String[] { Integer.toString(operation.ordinal()) });
+		try {
+			List<String> ids = new ArrayList<String>(cursor.getCount());
+			while (cursor.moveToNext()) {
+				ids.add(cursor.getString(0));
+			}
+			return ids;
+		}
+		finally {
+			cursor.close();
+		}
+	}
+
+	/* Public inner classes ******************** */
+
+	/**
+	 * A change waiting to be sent.
+	 */
+	public static class Entry {
+
+		private final long id;
+
+		private final String listId;
+
+		private final String taskId;
+
+		private final Operation operation;
+
+		private final long value;
+
+		private final int attempts;
+
+		public Entry(long id, String listId, String taskId,
+				Operation operation, long value, int attempts) {
+			this.id = id;
+			this.listId = listId;
+			this.taskId = taskId;
+			this.operation = operation;
+			this.value = value;
+			this.attempts = attempts;
+		}
+
+		public long getId() {
+			return id;
+		}
+
+		public String getListId() {
+			return listId;
+		}
+
+		public String getTaskId() {
+			return taskId;
+		}
+
+		public Operation getOperation() {
+			return operation;
+		}
+
+		public long getValue() {
+			return value;
+		}
+
+		/**
+		 * Returns how many times sending the change failed.
+		 */
+		public int getAttempts() {
+			return attempts;
+		}
+
+		@Override
+		public String toString() {
+			return operation + " " + value + " on " + taskId;
+		}
+
+	}
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.tasks;
+
+/**
+ * What a single {@link TaskSync#sync()} did.
+ *
+ * @author berti
+ */
+public class SyncResult {
+
+	/* Private fields ************************** */
+
+	private int pulledTasks;
+
+	private int deletedTasks;
+
+	private int unchangedLists;
+
+	private int pushedChanges;
+
+	private int pushRoundTrips;
+
+	private int failedChanges;
+
+	private int droppedChanges;
+
+	private int conflicts;
+
+	private int roundTrips;
+
+	private long nextAttempt = -1;
+
+	/* Public methods ************************** */
+
+	/**
+	 * Returns the tasks added or changed locally from the server.
+	 */
+	public int getPulledTasks() {
+		return pulledTasks;
+	}
+
+	/**
+	 * Returns the tasks removed locally because they were deleted on the
+	 * server.
+	 */
+	public int getDeletedTasks() {
+		return deletedTasks;
+	}
+
+	/**
+	 * Returns the lists, or the collection of lists, that hadn't changed
+	 * since the last sync, which only cost an empty response.
+	 */
+	public int getUnchangedLists() {
+		return unchangedLists;
+	}
+
+	/**
+	 * Returns the local changes sent to the server.
+	 */
+	public int getPushedChanges() {
+		return pushedChanges;
+	}
+
+	/**
+	 * Returns the round trips used to send the local changes.
+	 */
+	public int getPushRoundTrips() {
+		return pushRoundTrips;
+	}
+
+	/**
+	 * Returns the round trips saved by sending the local changes in batches
+	 * instead of one by one.
+	 */
+	public int getSavedRoundTrips() {
+		return pushedChanges - pushRoundTrips;
+	}
+
+	/**
+	 * Returns the local changes that failed and will be retried later.
+	 */
+	public int getFailedChanges() {
+		return failedChanges;
+	}
+
+	/**
+	 * Returns the local changes dropped because the server rejected them for
+	 * good, e.g. because the task no longer exists.
+	 */
+	public int getDroppedChanges() {
+		return droppedChanges;
+	}
+
+	/**
+	 * Returns the local changes that conflicted with a change on the server
+	 * and were sent again after pulling it.
+	 */
+	public int getConflicts() {
+		return conflicts;
+	}
+
+	/**
+	 * Returns all the round trips made, pushing and pulling.
+	 */
+	public int getRoundTrips() {
+		return roundTrips;
+	}
+
+	/**
+	 * Returns when the next pending change is due, or -1 if there are none.
+	 */
+	public long getNextAttempt() {
+		return nextAttempt;
+	}
+
+	@Override
+	public String toString() {
+		return "pulled " + pulledTasks + ", deleted " + deletedTasks
+				+ ", unchanged lists " + unchangedLists + ", pushed "
+				+ pushedChanges + " in " + pushRoundTrips
+				+ " round trips (saved " + getSavedRoundTrips() + "), failed "
+				+ failedChanges + ", dropped " + droppedChanges
+				+ ", conflicts " + conflicts + ", round trips " + roundTrips;
+	}
+
+	/* Package methods ************************* */
+
+	void addPulled() {
+		pulledTasks++;
+	}
+
+	void addDeleted() {
+		deletedTasks++;
+	}
+
+	void addUnchangedList() {
+		unchangedLists++;
+	}
+
+	void addPush(int changes) {
+		pushedChanges += changes;
+		pushRoundTrips++;
+		roundTrips++;
+	}
+
+	void addPull() {
+		roundTrips++;
+	}
+
+	void addFailed(int changes) {
+		failedChanges += changes;
+	}
+
+	void addDropped() {
+		droppedChanges++;
+	}
+
+	void addConflict() {
+		conflicts++;
+	}
+
+	void setNextAttempt(long nextAttempt) {
+		this.nextAttempt = nextAttempt;
+	}
+
+}
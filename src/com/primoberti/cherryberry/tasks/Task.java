@@ -0,0 +1,158 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.tasks;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A task as mirrored from Google Tasks.
+ *
+ * Google Tasks has no field for the pomodoros spent on a task, so they are
+ * kept as a line of the task notes, which the user can see and edit in any
+ * other client.
+ *
+ * @author berti
+ */
+public class Task {
+
+	/* Private constants *********************** */
+
+	private final static String POMODOROS_PREFIX = "Pomodoros: ";
+
+	private final static Pattern POMODOROS_LINE = Pattern.compile("^"
+			+ POMODOROS_PREFIX + "(\\d+)$", Pattern.MULTILINE);
+
+	/* Private fields ************************** */
+
+	private final String id;
+
+	private final String listId;
+
+	private final String title;
+
+	private final String notes;
+
+	private final boolean completed;
+
+	private final int pomodoros;
+
+	private final long updated;
+
+	/* Public constructors ********************* */
+
+	public Task(String id, String listId, String title, String notes,
+			boolean completed, int pomodoros, long updated) {
+		this.id = id;
+		this.listId = listId;
+		this.title = title;
+		this.notes = notes;
+		this.completed = completed;
+		this.pomodoros = pomodoros;
+		this.updated = updated;
+	}
+
+	/* Public static methods ******************* */
+
+	/**
+	 * Returns the pomodoros written in the given notes, or 0 if there are
+	 * none.
+	 */
+	public static int getPomodoros(String notes) {
+		if (notes == null) {
+			return 0;
+		}
+
+		Matcher matcher = POMODOROS_LINE.matcher(notes);
+		if (!matcher.find()) {
+			return 0;
+		}
+		try {
+			return Integer.parseInt(matcher.group(1));
+		}
+		catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Returns the given notes with their pomodoros line set to the given
+	 * count, adding the line at the end if there is none.
+	 */
+	public static String setPomodoros(String notes, int pomodoros) {
+		String line = POMODOROS_PREFIX + pomodoros;
+		if (notes == null || notes.length() == 0) {
+			return line;
+		}
+
+		Matcher matcher = POMODOROS_LINE.matcher(notes);
+		if (matcher.find()) {
+			return notes.substring(0, matcher.start()) + line
+					+ notes.substring(matcher.end());
+		}
+		return notes + "\n" + line;
+	}
+
+	/* Public methods ************************** */
+
+	public String getId() {
+		return id;
+	}
+
+	public String getListId() {
+		return listId;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	/**
+	 * Returns the notes of the task, or null.
+	 */
+	public String getNotes() {
+		return notes;
+	}
+
+	public boolean isCompleted() {
+		return completed;
+	}
+
+	public int getPomodoros() {
+		return pomodoros;
+	}
+
+	/**
+	 * Returns the time of the last change known from Google Tasks.
+	 */
+	public long getUpdated() {
+		return updated;
+	}
+
+	@Override
+	public String toString() {
+		return title;
+	}
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.tasks;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * Opens and upgrades the database with the local copy of Google Tasks and
+ * the changes waiting to be sent to it.
+ *
+ * @author berti
+ */
+public class TaskDatabase extends SQLiteOpenHelper {
+
+	/* Public constants ************************ */
+
+	public final static String TABLE_LISTS = "lists";
+
+	public final static String TABLE_TASKS = "tasks";
+
+	public final static String TABLE_OUTBOX = "outbox";
+
+	public final static String TABLE_SYNC_STATE = "sync_state";
+
+	public final static String COLUMN_ID = "_id";
+
+	public final static String COLUMN_TITLE = "title";
+
+	/** Update time of the newest task seen in the list, to sync from. */
+	public final static String COLUMN_UPDATED_MIN = "updated_min";
+
+	public final static String COLUMN_LIST_ID = "list_id";
+
+	public final static String COLUMN_NOTES = "notes";
+
+	public final static String COLUMN_COMPLETED = "completed";
+
+	public final static String COLUMN_POMODOROS = "pomodoros";
+
+	public final static String COLUMN_UPDATED = "updated";
+
+	public final static String COLUMN_ETAG = "etag";
+
+	public final static String COLUMN_TASK_ID = "task_id";
+
+	public final static String COLUMN_OPERATION = "operation";
+
+	public final static String COLUMN_VALUE = "value";
+
+	public final static String COLUMN_ATTEMPTS = "attempts";
+
+	public final static String COLUMN_NEXT_ATTEMPT = "next_attempt";
+
+	public final static String COLUMN_KEY = "key";
+
+	/* Private constants *********************** */
+
+	private final static String DATABASE_NAME = "tasks.db";
+
+	private final static int DATABASE_VERSION = 1;
+
+	/* Public constructors ********************* */
+
+	public TaskDatabase(Context context) {
+		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+	}
+
+	/* Public methods ************************** */
+
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE " + TABLE_LISTS + " (" + COLUMN_ID
+				+ " TEXT PRIMARY KEY, " + COLUMN_TITLE + " TEXT NOT NULL, "
+				+ COLUMN_UPDATED_MIN + " INTEGER NOT NULL DEFAULT 0)");
+		db.execSQL("CREATE TABLE " + TABLE_TASKS + " (" + COLUMN_ID
+				+ " TEXT PRIMARY KEY, " + COLUMN_LIST_ID + " TEXT NOT NULL, "
+				+ COLUMN_TITLE + " TEXT NOT NULL, " + COLUMN_NOTES + " TEXT, "
+				+ COLUMN_COMPLETED + " INTEGER NOT NULL DEFAULT 0, "
+				+ COLUMN_POMODOROS + " INTEGER NOT NULL DEFAULT 0, "
+				+ COLUMN_UPDATED + " INTEGER NOT NULL DEFAULT 0, "
+				+ COLUMN_ETAG + " TEXT)");
+		db.execSQL("CREATE INDEX tasks_list ON " + TABLE_TASKS + " ("
+				+ COLUMN_LIST_ID + ")");
+		// A newer change of the same kind to a task replaces the pending one
+		db.execSQL("CREATE TABLE " + TABLE_OUTBOX + " (" + COLUMN_ID
+				+ " INTEGER PRIMARY KEY AUTOINCREMENT, " + COLUMN_LIST_ID
+				+ " TEXT NOT NULL, " + COLUMN_TASK_ID + " TEXT NOT NULL, "
+				+ COLUMN_OPERATION + " INTEGER NOT NULL, " + COLUMN_VALUE
+				+ " INTEGER NOT NULL, " + COLUMN_ATTEMPTS
+				+ " INTEGER NOT NULL DEFAULT 0, " + COLUMN_NEXT_ATTEMPT
+				+ " INTEGER NOT NULL DEFAULT 0, UNIQUE (" + COLUMN_TASK_ID
+				+ ", " + COLUMN_OPERATION + ") ON CONFLICT REPLACE)");
+		db.execSQL("CREATE TABLE " + TABLE_SYNC_STATE + " (" + COLUMN_KEY
+				+ " TEXT PRIMARY KEY, " + COLUMN_VALUE + " TEXT)");
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+	}
+
+	@Override
+	@TargetApi(11)
+	public void onOpen(SQLiteDatabase db) {
+		super.onOpen(db);
+
+		if (android.os.Build.VERSION.SDK_INT >= 11 && !db.isReadOnly()) {
+			db.enableWriteAheadLogging();
+		}
+	}
+
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.tasks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.primoberti.cherryberry.backup.BackupWriter;
+
+/**
+ * Read side of the local copy of Google Tasks, for picking the task to work
+ * on.
+ *
+ * The tasks are loaded from {@link TaskDatabase} into a {@link TitleIndex} on
+ * a background thread the first time they are needed, not when the store is
+ * created, so getting the store is cheap enough for the main thread. Call
+ * {@link #prefetch()} as soon as a search is likely, e.g. when the task field
+ * gets the focus, and {@link #reload()} after a {@link TaskSync}. Searches
+ * block until the first load is done and must be run off the main thread;
+ * after that they only touch memory.
+ *
+ * Backups are the exception to it being read only: {@link #restore(Map, List)}
+ * writes the lists and tasks of a backup, as they were when it was made.
+ *
+ * @author berti
+ */
+public class TaskStore {
+
+	/* Private constants *********************** */
+
+	private final static String TAG = "TaskStore";
+
+	private final static String SELECT_TASKS = "SELECT "
+			+ TaskDatabase.COLUMN_ID + ", " + TaskDatabase.COLUMN_LIST_ID
+			+ ", " + TaskDatabase.COLUMN_TITLE + ", "
+			+ TaskDatabase.COLUMN_NOTES + ", " + TaskDatabase.COLUMN_COMPLETED
+			+ ", " + TaskDatabase.COLUMN_POMODOROS + ", "
+			+ TaskDatabase.COLUMN_UPDATED + " FROM " + TaskDatabase.TABLE_TASKS;
+
+	private final static String SELECT_LISTS = "SELECT "
+			+ TaskDatabase.COLUMN_ID + ", " + TaskDatabase.COLUMN_TITLE
+			+ " FROM " + TaskDatabase.TABLE_LISTS;
+
+	/** Also resets the time to sync from, so the next sync gets everything. */
+	private final static String REPLACE_LIST = "INSERT OR REPLACE INTO "
+			+ TaskDatabase.TABLE_LISTS + " (" + TaskDatabase.COLUMN_ID + ", "
+			+ TaskDatabase.COLUMN_TITLE + ") VALUES (?, ?)";
+
+	private final static String REPLACE_TASK = "INSERT OR REPLACE INTO "
+			+ TaskDatabase.TABLE_TASKS + " (" + TaskDatabase.COLUMN_ID + ", "
+			+ TaskDatabase.COLUMN_LIST_ID + ", " + TaskDatabase.COLUMN_TITLE
+			+ ", " + TaskDatabase.COLUMN_NOTES + ", "
+			+ TaskDatabase.COLUMN_COMPLETED + ", "
+			+ TaskDatabase.COLUMN_POMODOROS + ", "
+			+ TaskDatabase.COLUMN_UPDATED + ") VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+	/* Private static fields ******************* */
+
+	private static TaskStore instance;
+
+	/* Private fields ************************** */
+
+	private final TaskDatabase database;
+
+	private final ExecutorService loader = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, TAG);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+
+			});
+
+	/** Last loaded index, or null until the first load is done. */
+	private volatile TitleIndex index;
+
+	/** Latest load, or null if none has been started; guarded by this. */
+	private Future<TitleIndex> loading;
+
+	private final Callable<TitleIndex> loadTask = new Callable<TitleIndex>() {
+
+		@Override
+		public TitleIndex call() {
+			long start = SystemClock.uptimeMillis();
+			TitleIndex loaded = new TitleIndex(readTasks());
+			index = loaded;
+
+			Log.d(TAG, "Loaded " + loaded.size() + " tasks in "
+					+ (SystemClock.uptimeMillis() - start) + " ms");
+
+			return loaded;
+		}
+
+	};
+
+	/* Private constructors ******************** */
+
+	private TaskStore(Context context) {
+		database = new TaskDatabase(context);
+	}
+
+	/* Public static methods ******************* */
+
+	public static synchronized TaskStore getInstance(Context context) {
+		if (instance == null) {
+			instance = new TaskStore(context.getApplicationContext());
+		}
+		return instance;
+	}
+
+	/* Public methods ************************** */
+
+	/**
+	 * Starts loading the tasks in the background, unless they are loaded or
+	 * being loaded already. Doesn't block.
+	 */
+	public synchronized void prefetch() {
+		if (loading == null) {
+			loading = loader.submit(loadTask);
+		}
+	}
+
+	/**
+	 * Loads the tasks again in the background, e.g. after they have been
+	 * synced. Searches keep using the previous tasks until it is done.
+	 */
+	public synchronized void reload() {
+		loading = loader.submit(loadTask);
+	}
+
+	public boolean isLoaded() {
+		return index != null;
+	}
+
+	/**
+	 * Returns the best ranked tasks whose title has words starting with the
+	 * words in the query. Blocks until the tasks are loaded.
+	 *
+	 * @param limit maximum number of tasks to return
+	 * @see TitleIndex#search(CharSequence, int)
+	 */
+	public List<Task> search(CharSequence query, int limit)
+			throws InterruptedException {
+		return getIndex().search(query, limit);
+	}
+
+	/**
+	 * Returns the number of tasks. Blocks until the tasks are loaded.
+	 */
+	public int getTaskCount() throws InterruptedException {
+		return getIndex().size();
+	}
+
+	/**
+	 * Returns the task with the given id, or null. Blocks until the tasks are
+	 * loaded.
+	 */
+	public Task getTask(String id) throws InterruptedException {
+		return getIndex().getTask(id);
+	}
+
+	/**
+	 * Adds every task list and task to the backup, straight from the
+	 * database. Blocks, so it must not be called from the main thread.
+	 */
+	public void backup(BackupWriter writer) throws IOException {
+		SQLiteDatabase db = database.getReadableDatabase();
+		Cursor cursor = db.rawQuery(SELECT_LISTS, null);
+		try {
+			while (cursor.moveToNext()) {
+				writer.addTaskList(cursor.getString(0), cursor.getString(1));
+			}
+		}
+		finally {
+			cursor.close();
+		}
+
+		cursor = db.rawQuery(SELECT_TASKS, null);
+		try {
+			while (cursor.moveToNext()) {
+				writer.addTask(readTask(cursor));
+			}
+		}
+		finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Writes the given task lists and tasks in a single transaction, replacing
+	 * the ones with the same ids, and reloads the tasks. Blocks, so it must
+	 * not be called from the main thread.
+	 *
+	 * @param lists titles of the task lists by id
+	 */
+	public void restore(Map<String, String> lists, List<Task> tasks) {
+		SQLiteDatabase db = database.getWritableDatabase();
+		db.beginTransaction();
+		try {
+			SQLiteStatement statement = db.compileStatement(REPLACE_LIST);
+			try {
+				for (Map.Entry<String, String> list : lists.entrySet()) {
+					statement.bindString(1, list.getKey());
+					statement.bindString(2, list.getValue());
+					statement.execute();
+				}
+			}
+			finally {
+				statement.close();
+			}
+
+			statement = db.compileStatement(REPLACE_TASK);
+			try {
+				for (Task task : tasks) {
+					statement.bindString(1, task.getId());
+					statement.bindString(2, task.getListId());
+					statement.bindString(3, task.getTitle());
+					if (task.getNotes() != null) {
+						statement.bindString(4, task.getNotes());
+					}
+					else {
+						statement.bindNull(4);
+					}
+					statement.bindLong(5, task.isCompleted() ? 1 : 0);
+					statement.bindLong(6, task.getPomodoros());
+					statement.bindLong(7, task.getUpdated());
+					statement.execute();
+				}
+			}
+			finally {
+				statement.close();
+			}
+			db.setTransactionSuccessful();
+		}
+		finally {
+			db.endTransaction();
+		}
+
+		reload();
+	}
+
+	/* Private methods ************************* */
+
+	private TitleIndex getIndex() throws InterruptedException {
+		TitleIndex current = index;
+		if (current != null) {
+			return current;
+		}
+
+		Future<TitleIndex> future;
+		synchronized (this) {
+			prefetch();
+			future = loading;
+		}
+
+		try {
+			return future.get();
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	private List<Task> readTasks() {
+		Cursor cursor = database.getReadableDatabase().rawQuery(SELECT_TASKS,
+				null);
+		try {
+			List<Task> tasks = new ArrayList<Task>(cursor.getCount());
+			while (cursor.moveToNext()) {
+				tasks.add(readTask(cursor));
+			}
+			return tasks;
+		}
+		finally {
+			cursor.close();
+		}
+	}
+
+	private Task readTask(Cursor cursor) {
+		return new Task(cursor.getString(0), cursor.getString(1),
+				cursor.getString(2), cursor.isNull(3) ? null
+						: cursor.getString(3), cursor.getInt(4) != 0,
+				cursor.getInt(5), cursor.getLong(6));
+	}
+
+}
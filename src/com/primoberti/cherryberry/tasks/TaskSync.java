@@ -0,0 +1,680 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.tasks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.primoberti.cherryberry.tasks.SyncQueue.Entry;
+import com.primoberti.cherryberry.tasks.SyncQueue.Operation;
+
+/**
+ * Keeps the local copy of Google Tasks in sync with the server.
+ *
+ * Each sync first sends the changes due in the {@link SyncQueue}, as many as
+ * possible per round trip, and then pulls what changed on the server. The
+ * collection of task lists is fetched with its ETag, so it costs an empty
+ * response while it doesn't change, and the tasks of every list are fetched
+ * with <code>updatedMin</code> set to the newest update seen, so only tasks
+ * changed since the last sync are transferred. Changes rejected because the
+ * task changed meanwhile on the server are sent again after pulling it.
+ *
+ * The transport is pluggable, so the whole sync runs against the fake server
+ * in the test project as well as the real API.
+ *
+ * Blocks on the network, so it must not be used from the main thread.
+ *
+ * @author berti
+ */
+public class TaskSync {
+
+	/* Public constants ************************ */
+
+	public final static String LISTS_PATH = "/users/@me/lists";
+
+	/* Private constants *********************** */
+
+	private final static String TAG = "TaskSync";
+
+	private final static int PAGE_SIZE = 100;
+
+	private final static String STATE_LISTS_ETAG = "lists_etag";
+
+	private final static String INSERT_LIST = "INSERT OR IGNORE INTO "
+			+ TaskDatabase.TABLE_LISTS + " (" + TaskDatabase.COLUMN_ID + ", "
+			+ TaskDatabase.COLUMN_TITLE + ") VALUES (?, ?)";
+
+	private final static String UPDATE_LIST = "UPDATE "
+			+ TaskDatabase.TABLE_LISTS + " SET " + TaskDatabase.COLUMN_TITLE
+			+ " = ? WHERE " + TaskDatabase.COLUMN_ID + " = ?";
+
+	private final static String INSERT_TASK = "INSERT OR IGNORE INTO "
+			+ TaskDatabase.TABLE_TASKS + " (" + TaskDatabase.COLUMN_ID + ", "
+			+ TaskDatabase.COLUMN_LIST_ID + ", " + TaskDatabase.COLUMN_TITLE
+			+ ") VALUES (?, ?, ?)";
+
+	private final static String UPDATE_TASK = "UPDATE "
+			+ TaskDatabase.TABLE_TASKS + " SET " + TaskDatabase.COLUMN_LIST_ID
+			+ " = ?, " + TaskDatabase.COLUMN_TITLE + " = ?, "
+			+ TaskDatabase.COLUMN_NOTES + " = ?, "
+			+ TaskDatabase.COLUMN_COMPLETED + " = ?, "
+			+ TaskDatabase.COLUMN_UPDATED + " = ?, " + TaskDatabase.COLUMN_ETAG
+			+ " = ? WHERE " + TaskDatabase.COLUMN_ID + " = ?";
+
+	private final static String UPDATE_POMODOROS = "UPDATE "
+			+ TaskDatabase.TABLE_TASKS + " SET " + TaskDatabase.COLUMN_POMODOROS
+			+ " = ? WHERE " + TaskDatabase.COLUMN_ID + " = ?";
+
+	private final static String SELECT_TASK = "SELECT "
+			+ TaskDatabase.COLUMN_LIST_ID + ", " + TaskDatabase.COLUMN_TITLE
+			+ ", " + TaskDatabase.COLUMN_NOTES + ", "
+			+ TaskDatabase.COLUMN_COMPLETED + ", "
+			+ TaskDatabase.COLUMN_POMODOROS + ", "
+			+ TaskDatabase.COLUMN_UPDATED + ", " + TaskDatabase.COLUMN_ETAG
+			+ " FROM " + TaskDatabase.TABLE_TASKS + " WHERE "
+			+ TaskDatabase.COLUMN_ID + " = ?";
+
+	/* Private fields ************************** */
+
+	private final TaskDatabase database;
+
+	private final TasksTransport transport;
+
+	private final SyncQueue queue;
+
+	private volatile SyncResult lastResult;
+
+	/* Public constructors ********************* */
+
+	public TaskSync(TaskDatabase database, TasksTransport transport,
+			SyncQueue queue) {
+		this.database = database;
+		this.transport = transport;
+		this.queue = queue;
+	}
+
+	/* Public methods ************************** */
+
+	/**
+	 * Counts a pomodoro spent on the task and queues the new count to be sent.
+	 *
+	 * @return the new count, or -1 if the task isn't known
+	 */
+	public int addPomodoro(String taskId) {
+		SQLiteDatabase db = database.getWritableDatabase();
+		db.beginTransaction();
+		try {
+			Task task = readTask(db, taskId);
+			if (task == null) {
+				return -1;
+			}
+
+			int pomodoros = task.getPomodoros() + 1;
+			setPomodoros(db, taskId, pomodoros);
+			queue.enqueue(task.getListId(), taskId, Operation.POMODOROS,
+					pomodoros);
+
+			db.setTransactionSuccessful();
+			return pomodoros;
+		}
+		finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Completes or reopens the task and queues the change to be sent.
+	 *
+	 * @return false if the task isn't known
+	 */
+	public boolean setCompleted(String taskId, boolean completed) {
+		SQLiteDatabase db = database.getWritableDatabase();
+		db.beginTransaction();
+		try {
+			Task task = readTask(db, taskId);
+			if (task == null) {
+				return false;
+			}
+
+			db.execSQL("UPDATE " + TaskDatabase.TABLE_TASKS + " SET "
+					+ TaskDatabase.COLUMN_COMPLETED + " = ? WHERE "
+					+ TaskDatabase.COLUMN_ID + " = ?", new Object[] {
+					completed ? 1 : 0, taskId });
+			queue.enqueue(task.getListId(), taskId, Operation.COMPLETED,
+					completed ? 1 : 0);
+
+			db.setTransactionSuccessful();
+			return true;
+		}
+		finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Sends the pending changes that are due and pulls the changes from the
+	 * server.
+	 *
+	 * @throws IOException if the server can't be reached; changes that
+	 *             couldn't be sent are retried on a later sync, after their
+	 *             backoff
+	 */
+	public synchronized SyncResult sync() throws IOException {
+		SyncResult result = new SyncResult();
+		try {
+			boolean conflicts = push(result);
+			pull(result);
+			if (conflicts) {
+				push(result);
+			}
+		}
+		finally {
+			result.setNextAttempt(queue.getNextAttempt());
+			lastResult = result;
+			Log.d(TAG, "Sync: " + result);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the result of the last sync, even if it failed, or null.
+	 */
+	public SyncResult getLastResult() {
+		return lastResult;
+	}
+
+	public SyncQueue getQueue() {
+		return queue;
+	}
+
+	/* Private methods ************************* */
+
+	/**
+	 * Sends the due changes in batches.
+	 *
+	 * @return true if some change conflicted with the server and is still
+	 *         due
+	 */
+	private boolean push(SyncResult result) throws IOException {
+		long now = System.currentTimeMillis();
+		List<Entry> entries = queue.getDue(now);
+
+		List<Entry> batch = new ArrayList<Entry>();
+		List<TasksRequest> requests = new ArrayList<TasksRequest>();
+		boolean conflicts = false;
+		for (int i = 0; i < entries.size(); i++) {
+			Entry entry = entries.get(i);
+			TasksRequest request = createRequest(entry);
+			if (request == null) {
+				// The task is gone, so is the change
+				queue.remove(entry);
+				result.addDropped();
+				continue;
+			}
+
+			batch.add(entry);
+			requests.add(request);
+			if (batch.size() == transport.getMaxBatchSize()) {
+				conflicts |= send(batch, requests, result, now);
+				batch.clear();
+				requests.clear();
+			}
+		}
+		if (!batch.isEmpty()) {
+			conflicts |= send(batch, requests, result, now);
+		}
+		return conflicts;
+	}
+
+	/**
+	 * Sends a batch of changes in a single round trip.
+	 *
+	 * @return true if some change conflicted with the server
+	 */
+	private boolean send(List<Entry> batch, List<TasksRequest> requests,
+			SyncResult result, long now) throws IOException {
+		List<TasksResponse> responses;
+		try {
+			responses = requests.size() == 1 ? Collections
+					.singletonList(transport.execute(requests.get(0)))
+					: transport.executeBatch(requests);
+		}
+		catch (IOException e) {
+			for (Entry entry : batch) {
+				queue.retryLater(entry, now);
+			}
+			result.addFailed(batch.size());
+			throw e;
+		}
+		result.addPush(batch.size());
+
+		// Local pomodoros are kept while any change to them is pending,
+		// including the ones just sent, as newer ones may have been counted
+		Set<String> pendingPomodoros = new HashSet<String>(
+				queue.getPendingTasks(Operation.POMODOROS));
+		boolean conflicts = false;
+		for (int i = 0; i < batch.size(); i++) {
+			Entry entry = batch.get(i);
+			TasksResponse response = responses.get(i);
+
+			if (response.isSuccessful()) {
+				queue.remove(entry);
+				try {
+					storeTask(entry.getListId(), response.getJson(),
+							pendingPomodoros);
+				}
+				catch (JSONException e) {
+					Log.w(TAG, "Malformed task in response to " + entry, e);
+				}
+			}
+			else if (response.getStatus() == TasksResponse.PRECONDITION_FAILED) {
+				// Still due, sent again once the task is pulled
+				result.addConflict();
+				conflicts = true;
+			}
+			else if (response.isRetryable()) {
+				queue.retryLater(entry, now);
+				result.addFailed(1);
+			}
+			else {
+				Log.w(TAG, "Dropping " + entry + ", rejected with "
+						+ response.getStatus());
+				queue.remove(entry);
+				result.addDropped();
+			}
+		}
+		return conflicts;
+	}
+
+	/**
+	 * Returns the request that sends the change, or null if the task doesn't
+	 * exist anymore.
+	 */
+	private TasksRequest createRequest(Entry entry) {
+		Task task = readTask(database.getReadableDatabase(),
+				entry.getTaskId());
+		if (task == null) {
+			return null;
+		}
+
+		String path = "/lists/" + TasksRequest.encode(entry.getListId())
+				+ "/tasks/" + TasksRequest.encode(entry.getTaskId());
+		JSONObject body = new JSONObject();
+		try {
+			switch (entry.getOperation()) {
+			case POMODOROS:
+				// The notes are rewritten whole, so they must not have
+				// changed on the server since they were read
+				body.put("notes", Task.setPomodoros(
+						task.getNotes(), (int) entry.getValue()));
+				return TasksRequest.patch(path, body, readEtag(entry
+						.getTaskId()));
+			case COMPLETED:
+				if (entry.getValue() != 0) {
+					body.put("status", "completed");
+				}
+				else {
+					body.put("status", "needsAction");
+					body.put("completed", JSONObject.NULL);
+				}
+				return TasksRequest.patch(path, body, null);
+			default:
+				return null;
+			}
+		}
+		catch (JSONException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Pulls the lists and the tasks changed since the last sync.
+	 */
+	private void pull(SyncResult result) throws IOException {
+		List<String> listIds = pullLists(result);
+
+		Set<String> pendingPomodoros = new HashSet<String>(
+				queue.getPendingTasks(Operation.POMODOROS));
+		for (String listId : listIds) {
+			pullTasks(listId, pendingPomodoros, result);
+		}
+	}
+
+	/**
+	 * Pulls the collection of task lists, unless it hasn't changed.
+	 *
+	 * @return the ids of all the lists
+	 */
+	private List<String> pullLists(SyncResult result) throws IOException {
+		TasksResponse response = transport.execute(TasksRequest.get(
+				LISTS_PATH, getState(STATE_LISTS_ETAG)));
+		result.addPull();
+
+		SQLiteDatabase db = database.getWritableDatabase();
+		if (response.isNotModified()) {
+			result.addUnchangedList();
+			return readListIds(db);
+		}
+		if (!response.isSuccessful()) {
+			throw new IOException("Can't get lists: " + response.getStatus());
+		}
+
+		List<String> listIds = new ArrayList<String>();
+		db.beginTransaction();
+		try {
+			JSONArray items = response.getJson().optJSONArray("items");
+			SQLiteStatement insert = db.compileStatement(INSERT_LIST);
+			SQLiteStatement update = db.compileStatement(UPDATE_LIST);
+			try {
+				for (int i = 0; items != null && i < items.length(); i++) {
+					JSONObject item = items.getJSONObject(i);
+					String id = item.getString("id");
+					String title = item.optString("title");
+					listIds.add(id);
+
+					insert.bindString(1, id);
+					insert.bindString(2, title);
+					insert.execute();
+					update.bindString(1, title);
+					update.bindString(2, id);
+					update.execute();
+				}
+			}
+			finally {
+				insert.close();
+				update.close();
+			}
+
+			for (String id : readListIds(db)) {
+				if (!listIds.contains(id)) {
+					deleteList(db, id);
+				}
+			}
+			setState(db, STATE_LISTS_ETAG, response.getEtag());
+
+			db.setTransactionSuccessful();
+		}
+		catch (JSONException e) {
+			throw new IOException("Malformed lists: " + e.getMessage());
+		}
+		finally {
+			db.endTransaction();
+		}
+		return listIds;
+	}
+
+	/**
+	 * Pulls the tasks of the list changed since the last sync, page by page.
+	 *
+	 * @param pendingPomodoros tasks whose local pomodoros haven't been sent
+	 *            yet, and so must be kept
+	 */
+	private void pullTasks(String listId, Set<String> pendingPomodoros,
+			SyncResult result) throws IOException {
+		SQLiteDatabase db = database.getWritableDatabase();
+		long updatedMin = readUpdatedMin(db, listId);
+		long newest = updatedMin;
+		int changed = 0;
+
+		String pageToken = null;
+		do {
+			StringBuilder path = new StringBuilder("/lists/")
+					.append(TasksRequest.encode(listId))
+					.append("/tasks?showDeleted=true&showHidden=true&maxResults=")
+					.append(PAGE_SIZE);
+			if (updatedMin > 0) {
+				path.append("&updatedMin=").append(
+						TasksRequest.encode(Rfc3339.format(updatedMin)));
+			}
+			if (pageToken != null) {
+				path.append("&pageToken=").append(
+						TasksRequest.encode(pageToken));
+			}
+
+			TasksResponse response = transport.execute(TasksRequest.get(
+					path.toString(), null));
+			result.addPull();
+			if (response.getStatus() == TasksResponse.NOT_FOUND) {
+				// Deleted since the lists were pulled; gone on the next sync
+				return;
+			}
+			if (!response.isSuccessful()) {
+				throw new IOException("Can't get tasks of " + listId + ": "
+						+ response.getStatus());
+			}
+
+			db.beginTransaction();
+			try {
+				JSONObject page = response.getJson();
+				JSONArray items = page.optJSONArray("items");
+				for (int i = 0; items != null && i < items.length(); i++) {
+					JSONObject item = items.getJSONObject(i);
+					long updated = storeTask(listId, item, pendingPomodoros);
+					newest = Math.max(newest, updated);
+
+					if (item.optBoolean("deleted")) {
+						result.addDeleted();
+					}
+					else if (updated > updatedMin) {
+						// updatedMin is inclusive, so the newest task comes
+						// back every time
+						result.addPulled();
+						changed++;
+					}
+				}
+
+				if (newest > updatedMin) {
+					db.execSQL("UPDATE " + TaskDatabase.TABLE_LISTS + " SET "
+							+ TaskDatabase.COLUMN_UPDATED_MIN + " = ? WHERE "
+							+ TaskDatabase.COLUMN_ID + " = ?", new Object[] {
+							newest, listId });
+				}
+				db.setTransactionSuccessful();
+
+				pageToken = page.has("nextPageToken") ? page
+						.getString("nextPageToken") : null;
+			}
+			catch (JSONException e) {
+				throw new IOException("Malformed tasks of " + listId + ": "
+						+ e.getMessage());
+			}
+			finally {
+				db.endTransaction();
+			}
+		} while (pageToken != null);
+
+		if (changed == 0) {
+			result.addUnchangedList();
+		}
+	}
+
+	/**
+	 * Stores a task as received from the server, or deletes it if it was
+	 * deleted there.
+	 *
+	 * @return the update time of the task
+	 */
+	private long storeTask(String listId, JSONObject item,
+			Set<String> pendingPomodoros) throws JSONException {
+		SQLiteDatabase db = database.getWritableDatabase();
+		String id = item.getString("id");
+		long updated = Rfc3339.parse(item.optString("updated", null));
+
+		if (item.optBoolean("deleted")) {
+			db.delete(TaskDatabase.TABLE_TASKS, TaskDatabase.COLUMN_ID
+					+ " = ?", new String[] { id });
+			return updated;
+		}
+
+		String title = item.optString("title");
+		String notes = item.isNull("notes") ? null : item.getString("notes");
+
+		SQLiteStatement insert = db.compileStatement(INSERT_TASK);
+		SQLiteStatement update = db.compileStatement(UPDATE_TASK);
+		try {
+			insert.bindString(1, id);
+			insert.bindString(2, listId);
+			insert.bindString(3, title);
+			insert.execute();
+
+			update.bindString(1, listId);
+			update.bindString(2, title);
+			if (notes != null) {
+				update.bindString(3, notes);
+			}
+			else {
+				update.bindNull(3);
+			}
+			update.bindLong(4,
+					"completed".equals(item.optString("status")) ? 1 : 0);
+			update.bindLong(5, updated);
+			if (item.has("etag")) {
+				update.bindString(6, item.getString("etag"));
+			}
+			else {
+				update.bindNull(6);
+			}
+			update.bindString(7, id);
+			update.execute();
+		}
+		finally {
+			insert.close();
+			update.close();
+		}
+
+		if (!pendingPomodoros.contains(id)) {
+			setPomodoros(db, id, Task.getPomodoros(notes));
+		}
+		return updated;
+	}
+
+	private void setPomodoros(SQLiteDatabase db, String taskId, int pomodoros) {
+		SQLiteStatement update = db.compileStatement(UPDATE_POMODOROS);
+		try {
+			update.bindLong(1, pomodoros);
+			update.bindString(2, taskId);
+			update.execute();
+		}
+		finally {
+			update.close();
+		}
+	}
+
+	private void deleteList(SQLiteDatabase db, String listId) {
+		String[] args = new String[] { listId };
+		db.delete(TaskDatabase.TABLE_TASKS, TaskDatabase.COLUMN_LIST_ID
+				+ " = ?", args);
+		db.delete(TaskDatabase.TABLE_OUTBOX, TaskDatabase.COLUMN_LIST_ID
+				+ " = ?", args);
+		db.delete(TaskDatabase.TABLE_LISTS, TaskDatabase.COLUMN_ID + " = ?",
+				args);
+	}
+
+	private Task readTask(SQLiteDatabase db, String taskId) {
+		Cursor cursor = db.rawQuery(SELECT_TASK, new String[] { taskId });
+		try {
+			if (!cursor.moveToFirst()) {
+				return null;
+			}
+			return new Task(taskId, cursor.getString(0), cursor.getString(1),
+					cursor.isNull(2) ? null : cursor.getString(2),
+					cursor.getInt(3) != 0, cursor.getInt(4),
+					cursor.getLong(5));
+		}
+		finally {
+			cursor.close();
+		}
+	}
+
+	private String readEtag(String taskId) {
+		return queryString(database.getReadableDatabase(), "SELECT "
+				+ TaskDatabase.COLUMN_ETAG + " FROM " + TaskDatabase.TABLE_TASKS
+				+ " WHERE " + TaskDatabase.COLUMN_ID + " = ?", taskId);
+	}
+
+	private List<String> readListIds(SQLiteDatabase db) {
+		Cursor cursor = db.rawQuery("SELECT " + TaskDatabase.COLUMN_ID
+				+ " FROM " + TaskDatabase.TABLE_LISTS, null);
+		try {
+			List<String> ids = new ArrayList<String>(cursor.getCount());
+			while (cursor.moveToNext()) {
+				ids.add(cursor.getString(0));
+			}
+			return ids;
+		}
+		finally {
+			cursor.close();
+		}
+	}
+
+	private long readUpdatedMin(SQLiteDatabase db, String listId) {
+		String value = queryString(db, "SELECT "
+				+ TaskDatabase.COLUMN_UPDATED_MIN + " FROM "
+				+ TaskDatabase.TABLE_LISTS + " WHERE " + TaskDatabase.COLUMN_ID
+				+ " = ?", listId);
+		return value != null ? Long.parseLong(value) : 0;
+	}
+
+	private String getState(String key) {
+		return queryString(database.getReadableDatabase(), "SELECT "
+				+ TaskDatabase.COLUMN_VALUE + " FROM "
+				+ TaskDatabase.TABLE_SYNC_STATE + " WHERE "
+				+ TaskDatabase.COLUMN_KEY + " = ?", key);
+	}
+
+	private void setState(SQLiteDatabase db, String key, String value) {
+		db.execSQL("INSERT OR REPLACE INTO " + TaskDatabase.TABLE_SYNC_STATE
+				+ " (" + TaskDatabase.COLUMN_KEY + ", "
+				+ TaskDatabase.COLUMN_VALUE + ") VALUES (?, ?)", new Object[] {
+				key, value });
+	}
+
+	/**
+	 * Returns the first column of the first row, or null if there is none.
+	 */
+	private String queryString(SQLiteDatabase db, String sql, String arg) {
+		Cursor cursor = db.rawQuery(sql, new String[] { arg });
+		try {
+			return cursor.moveToFirst() && !cursor.isNull(0) ? cursor
+					.getString(0) : null;
+		}
+		finally {
+			cursor.close();
+		}
+	}
+
+}
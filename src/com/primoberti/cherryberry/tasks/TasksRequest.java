@@ -0,0 +1,131 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.tasks;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
+import org.json.JSONObject;
+
+/**
+ * A request to the Google Tasks API.
+ *
+ * @author berti
+ */
+public class TasksRequest {
+
+	/* Public constants ************************ */
+
+	public final static String GET = "GET";
+
+	public final static String PATCH = "PATCH";
+
+	/* Private fields ************************** */
+
+	private final String method;
+
+	private final String path;
+
+	private final String etag;
+
+	private final String body;
+
+	/* Private constructors ******************** */
+
+	private TasksRequest(String method, String path, String etag, String body) {
+		this.method = method;
+		this.path = path;
+		this.etag = etag;
+		this.body = body;
+	}
+
+	/* Public static methods ******************* */
+
+	/**
+	 * Creates a GET request, answered with 304 if the resource still has the
+	 * given ETag.
+	 *
+	 * @param path path and query below the API root
+	 * @param etag last known ETag, or null
+	 */
+	public static TasksRequest get(String path, String etag) {
+		return new TasksRequest(GET, path, etag, null);
+	}
+
+	/**
+	 * Creates a PATCH request, answered with 412 if the resource no longer
+	 * has the given ETag.
+	 *
+	 * @param path path below the API root
+	 * @param body fields to change
+	 * @param etag last known ETag, or null to change it regardless
+	 */
+	public static TasksRequest patch(String path, JSONObject body, String etag) {
+		return new TasksRequest(PATCH, path, etag, body.toString());
+	}
+
+	public static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/* Public methods ************************** */
+
+	public String getMethod() {
+		return method;
+	}
+
+	/**
+	 * Returns the path and query below the API root, e.g.
+	 * <code>/users/@me/lists</code>.
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * Returns the ETag to send as If-None-Match for a GET or If-Match for a
+	 * PATCH, or null.
+	 */
+	public String getEtag() {
+		return etag;
+	}
+
+	/**
+	 * Returns the JSON body, or null.
+	 */
+	public String getBody() {
+		return body;
+	}
+
+	@Override
+	public String toString() {
+		return method + " " + path;
+	}
+
+}
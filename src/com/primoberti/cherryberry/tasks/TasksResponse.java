@@ -0,0 +1,126 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.tasks;
+
+import java.io.IOException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A response from the Google Tasks API.
+ *
+ * @author berti
+ */
+public class TasksResponse {
+
+	/* Public constants ************************ */
+
+	public final static int OK = 200;
+
+	public final static int NOT_MODIFIED = 304;
+
+	public final static int BAD_REQUEST = 400;
+
+	public final static int UNAUTHORIZED = 401;
+
+	public final static int NOT_FOUND = 404;
+
+	public final static int PRECONDITION_FAILED = 412;
+
+	public final static int TOO_MANY_REQUESTS = 429;
+
+	/* Private fields ************************** */
+
+	private final int status;
+
+	private final String etag;
+
+	private final String body;
+
+	/* Public constructors ********************* */
+
+	/**
+	 * @param status HTTP status code
+	 * @param etag ETag of the resource, or null
+	 * @param body JSON body, or null
+	 */
+	public TasksResponse(int status, String etag, String body) {
+		this.status = status;
+		this.etag = etag;
+		this.body = body;
+	}
+
+	/* Public methods ************************** */
+
+	public int getStatus() {
+		return status;
+	}
+
+	public boolean isSuccessful() {
+		return status >= 200 && status < 300;
+	}
+
+	public boolean isNotModified() {
+		return status == NOT_MODIFIED;
+	}
+
+	/**
+	 * Returns true if the request may succeed if sent again later, e.g. on
+	 * server errors or rate limiting.
+	 */
+	public boolean isRetryable() {
+		return status >= 500 || status == TOO_MANY_REQUESTS;
+	}
+
+	/**
+	 * Returns the ETag of the resource, or null.
+	 */
+	public String getEtag() {
+		return etag;
+	}
+
+	public String getBody() {
+		return body;
+	}
+
+	public JSONObject getJson() throws IOException {
+		if (body == null) {
+			throw new IOException("Empty response with status " + status);
+		}
+
+		try {
+			return new JSONObject(body);
+		}
+		catch (JSONException e) {
+			throw new IOException("Malformed response: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public String toString() {
+		return Integer.toString(status);
+	}
+
+}
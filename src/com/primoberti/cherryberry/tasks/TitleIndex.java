@@ -0,0 +1,226 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.tasks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable in-memory index for type-ahead search of tasks by title.
+ *
+ * Every word of every title is kept in a sorted array next to the position of
+ * its task, so the words starting with a prefix are a contiguous range found
+ * by binary search. A query matches the tasks that have, for each word of the
+ * query, some word starting with it, e.g. "rep mon" matches "Monthly report".
+ * Case and the common Latin accents are ignored.
+ *
+ * The tasks are kept in ranking order, pending ones first and then by title,
+ * so results come out ranked without sorting them on every query.
+ *
+ * @author berti
+ */
+public class TitleIndex {
+
+	/* Private constants *********************** */
+
+	/** Lower case Latin-1 letters with accents, to fold into UNACCENTED. */
+	private final static String ACCENTED = "\u00e0\u00e1\u00e2\u00e3\u00e4\u00e5"
+			+ "\u00e8\u00e9\u00ea\u00eb\u00ec\u00ed\u00ee\u00ef"
+			+ "\u00f2\u00f3\u00f4\u00f5\u00f6" + "\u00f9\u00fa\u00fb\u00fc"
+			+ "\u00f1\u00e7\u00fd\u00ff";
+
+	private final static String UNACCENTED = "aaaaaa" + "eeeeiiii"
+			+ "ooooo" + "uuuu" + "ncyy";
+
+	private final static Comparator<Task> RANKING = new Comparator<Task>() {
+
+		@Override
+		public int compare(Task lhs, Task rhs) {
+			if (lhs.isCompleted() != rhs.isCompleted()) {
+				return lhs.isCompleted() ? 1 : -1;
+			}
+			return lhs.getTitle().compareToIgnoreCase(rhs.getTitle());
+		}
+
+	};
+
+	/* Private fields ************************** */
+
+	private final Task[] tasks;
+
+	private final Map<String, Task> tasksById;
+
+	/** Normalized title words, sorted. */
+	private final String[] words;
+
+	/** Position in {@link #tasks} of the task of each word. */
+	private final int[] owners;
+
+	/* Public constructors ********************* */
+
+	public TitleIndex(List<Task> tasks) {
+		this.tasks = tasks.toArray(new Task[tasks.size()]);
+		Arrays.sort(this.tasks, RANKING);
+
+		tasksById = new HashMap<String, Task>(this.tasks.length * 2);
+		final List<String> allWords = new ArrayList<String>();
+		List<Integer> allOwners = new ArrayList<Integer>();
+		for (int i = 0; i < this.tasks.length; i++) {
+			tasksById.put(this.tasks[i].getId(), this.tasks[i]);
+			for (String word : split(this.tasks[i].getTitle())) {
+				allWords.add(word);
+				allOwners.add(i);
+			}
+		}
+
+		Integer[] order = new Integer[allWords.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer lhs, Integer rhs) {
+				return allWords.get(lhs).compareTo(allWords.get(rhs));
+			}
+
+		});
+
+		words = new String[order.length];
+		owners = new int[order.length];
+		for (int i = 0; i < order.length; i++) {
+			words[i] = allWords.get(order[i]);
+			owners[i] = allOwners.get(order[i]);
+		}
+	}
+
+	/* Public static methods ******************* */
+
+	/**
+	 * Splits the text into lower case words without accents.
+	 */
+	public static List<String> split(String text) {
+		List<String> result = new ArrayList<String>();
+		if (text == null) {
+			return result;
+		}
+
+		String lower = text.toLowerCase(Locale.getDefault());
+		StringBuilder word = new StringBuilder();
+		for (int i = 0; i <= lower.length(); i++) {
+			char c = i < lower.length() ? lower.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(c)) {
+				int accented = ACCENTED.indexOf(c);
+				word.append(accented >= 0 ? UNACCENTED.charAt(accented) : c);
+			}
+			else if (word.length() > 0) {
+				result.add(word.toString());
+				word.setLength(0);
+			}
+		}
+		return result;
+	}
+
+	/* Public methods ************************** */
+
+	/**
+	 * Returns the best ranked tasks matching the query, or the best ranked
+	 * tasks overall if the query has no words.
+	 *
+	 * @param limit maximum number of tasks to return
+	 */
+	public List<Task> search(CharSequence query, int limit) {
+		List<String> prefixes = split(query != null ? query.toString() : null);
+		if (prefixes.isEmpty()) {
+			return Collections.unmodifiableList(Arrays.asList(tasks).subList(
+					0, Math.min(limit, tasks.length)));
+		}
+
+		BitSet matches = null;
+		for (String prefix : prefixes) {
+			BitSet found = new BitSet(tasks.length);
+			for (int i = lowerBound(prefix); i < words.length
+					&& words[i].startsWith(prefix); i++) {
+				found.set(owners[i]);
+			}
+
+			if (matches == null) {
+				matches = found;
+			}
+			else {
+				matches.and(found);
+			}
+			if (matches.isEmpty()) {
+				break;
+			}
+		}
+
+		List<Task> result = new ArrayList<Task>(Math.min(limit,
+				matches.cardinality()));
+		for (int i = matches.nextSetBit(0); i >= 0 && result.size() < limit; i = matches
+				.nextSetBit(i + 1)) {
+			result.add(tasks[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the task with the given id, or null.
+	 */
+	public Task getTask(String id) {
+		return tasksById.get(id);
+	}
+
+	public int size() {
+		return tasks.length;
+	}
+
+	/* Private methods ************************* */
+
+	/**
+	 * Returns the position of the first word not less than the given one.
+	 */
+	private int lowerBound(String word) {
+		int low = 0;
+		int high = words.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (words[middle].compareTo(word) < 0) {
+				low = middle + 1;
+			}
+			else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+}
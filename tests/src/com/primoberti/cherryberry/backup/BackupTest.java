@@ -0,0 +1,290 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.backup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.test.AndroidTestCase;
+
+import com.primoberti.cherryberry.engine.EventLog;
+import com.primoberti.cherryberry.engine.PomodoroEngine.Status;
+import com.primoberti.cherryberry.history.Session;
+import com.primoberti.cherryberry.tasks.Task;
+
+/**
+ * Writes backups with {@link BackupWriter} to the cache directory and reads
+ * them back with {@link BackupReader}, whole, damaged or cut short.
+ *
+ * @author berti
+ */
+public class BackupTest extends AndroidTestCase {
+
+	/* Private constants *********************** */
+
+	private final static long MINUTE = 60 * 1000;
+
+	/** 2012-05-01T10:15:00Z */
+	private final static long START = 1335867300000L;
+
+	/* Private fields ************************** */
+
+	private File directory;
+
+	private File file;
+
+	/* Public methods ************************** */
+
+	public void testRoundTrip() throws Exception {
+		Map<String, Object> settings = new LinkedHashMap<String, Object>();
+		settings.put("sound", true);
+		settings.put("pomodoros", -4);
+		settings.put("last_sync", START);
+		settings.put("volume", 0.75f);
+		settings.put("pomodoro_duration", "25");
+		settings.put("ignored", Collections.singleton("Not stored"));
+		EventLog.State state = new EventLog.State(Status.POMODORO_RUNNING,
+				START, START + 25 * MINUTE, 3);
+		// More than a block, some out of order
+		List<Session> sessions = new ArrayList<Session>();
+		for (int i = 0; i < BackupFormat.SESSIONS_PER_BLOCK + 10; i++) {
+			long start = START + (i % 7 == 0 ? -i : i) * 30 * MINUTE;
+			sessions.add(new Session(i % 2 == 0 ? Session.Type.POMODORO
+					: Session.Type.BREAK, start, start + 25 * MINUTE - i,
+					25 * MINUTE, Session.Outcome.values()[i % 3],
+					i % 5 == 0 ? null : "task" + i % 4, i % 3, i % 2));
+		}
+		Task task = new Task("t1", "l1", "Write \u00e9 \ud83c\udf52", null,
+				true, 4, START);
+
+		BackupWriter writer = new BackupWriter(file, START);
+		try {
+			writer.writeSettings(settings);
+			writer.writeTimer(state);
+			for (Session session : sessions) {
+				writer.addSession(session);
+			}
+			writer.addTaskList("l1", "Work");
+			writer.addTaskList("l2", null);
+			writer.addTask(task);
+			writer.finish();
+		}
+		finally {
+			writer.close();
+		}
+		assertEquals(sessions.size(), writer.getSessionCount());
+
+		Backup backup = new BackupReader(file, 4).read();
+
+		assertEquals(START, backup.getCreated());
+		settings.remove("ignored");
+		assertEquals(settings, backup.getSettings());
+		assertEquals(state, backup.getTimerState());
+		assertEquals(sessions.size(), backup.getSessions().size());
+		for (int i = 0; i < sessions.size(); i++) {
+			assertSession(sessions.get(i), backup.getSessions().get(i));
+		}
+		assertEquals(2, backup.getTaskLists().size());
+		assertEquals("Work", backup.getTaskLists().get("l1"));
+		assertTrue(backup.getTaskLists().containsKey("l2"));
+		assertNull(backup.getTaskLists().get("l2"));
+		assertEquals(1, backup.getTasks().size());
+		Task read = backup.getTasks().get(0);
+		assertEquals(task.getId(), read.getId());
+		assertEquals(task.getListId(), read.getListId());
+		assertEquals(task.getTitle(), read.getTitle());
+		assertNull(read.getNotes());
+		assertTrue(read.isCompleted());
+		assertEquals(task.getPomodoros(), read.getPomodoros());
+		assertEquals(task.getUpdated(), read.getUpdated());
+	}
+
+	public void testEmptyBackup() throws Exception {
+		BackupWriter writer = new BackupWriter(file, START);
+		writer.finish();
+
+		Backup backup = new BackupReader(file).read();
+
+		assertEquals(START, backup.getCreated());
+		assertTrue(backup.getSettings().isEmpty());
+		assertNull(backup.getTimerState());
+		assertTrue(backup.getSessions().isEmpty());
+	}
+
+	public void testEveryBitFlipIsDetected() throws Exception {
+		writeSmallBackup();
+		long length = file.length();
+
+		for (long offset = 0; offset < length; offset++) {
+			if (offset == BackupFormat.MAGIC.length) {
+				// The version and creation time aren't checked
+				offset = BackupFormat.HEADER_SIZE;
+			}
+			for (int bit = 0; bit < 8; bit++) {
+				flip(offset, bit);
+				try {
+					new BackupReader(file, 2).read();
+					fail("Read a backup with bit " + bit + " of byte "
+							+ offset + " flipped");
+				}
+				catch (IOException e) {
+					// Expected
+				}
+				finally {
+					flip(offset, bit);
+				}
+			}
+		}
+
+		assertEquals(2, new BackupReader(file).read().getSessions().size());
+	}
+
+	public void testTruncatedBackupFails() throws Exception {
+		writeSmallBackup();
+
+		for (long length = file.length() - 1; length >= 0; length--) {
+			RandomAccessFile out = new RandomAccessFile(file, "rw");
+			try {
+				out.setLength(length);
+			}
+			finally {
+				out.close();
+			}
+			try {
+				new BackupReader(file).read();
+				fail("Read a backup cut to " + length + " bytes");
+			}
+			catch (IOException e) {
+				// Expected
+			}
+		}
+	}
+
+	public void testUnfinishedBackupKeepsPreviousOne() throws Exception {
+		writeSmallBackup();
+		long length = file.length();
+
+		BackupWriter writer = new BackupWriter(file, START + MINUTE);
+		try {
+			writer.addSession(new Session(Session.Type.POMODORO, START, START
+					+ 25 * MINUTE, 25 * MINUTE, Session.Outcome.FINISHED,
+					null));
+		}
+		finally {
+			writer.close();
+		}
+
+		assertEquals(length, file.length());
+		assertEquals(START, new BackupReader(file).read().getCreated());
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+	}
+
+	/* Protected methods *********************** */
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		directory = new File(getContext().getCacheDir(), "BackupTest");
+		delete(directory);
+		assertTrue(directory.mkdirs());
+		file = new File(directory, "backup");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		delete(directory);
+
+		super.tearDown();
+	}
+
+	/* Private methods ************************* */
+
+	/**
+	 * Writes a backup with a block of each kind.
+	 */
+	private void writeSmallBackup() throws IOException {
+		BackupWriter writer = new BackupWriter(file, START);
+		try {
+			writer.writeSettings(Collections.singletonMap("sound", true));
+			writer.writeTimer(new EventLog.State(Status.IDLE, 0, 0, 0));
+			writer.addSession(new Session(Session.Type.POMODORO, START, START
+					+ 25 * MINUTE, 25 * MINUTE, Session.Outcome.FINISHED,
+					"t1"));
+			writer.addSession(new Session(Session.Type.BREAK, START + 25
+					* MINUTE, START + 30 * MINUTE, 5 * MINUTE,
+					Session.Outcome.FINISHED, "t1"));
+			writer.addTaskList("l1", "Work");
+			writer.addTask(new Task("t1", "l1", "Write", "", false, 1, START));
+			writer.finish();
+		}
+		finally {
+			writer.close();
+		}
+	}
+
+	private void flip(long offset, int bit) throws IOException {
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.seek(offset);
+			int b = out.read();
+			out.seek(offset);
+			out.write(b ^ 1 << bit);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private void assertSession(Session expected, Session actual) {
+		assertEquals(expected.getType(), actual.getType());
+		assertEquals(expected.getStart(), actual.getStart());
+		assertEquals(expected.getEnd(), actual.getEnd());
+		assertEquals(expected.getPlannedDuration(),
+				actual.getPlannedDuration());
+		assertEquals(expected.getOutcome(), actual.getOutcome());
+		assertEquals(expected.getTask(), actual.getTask());
+		assertEquals(expected.getInterruptions(Session.Interruption.INTERNAL),
+				actual.getInterruptions(Session.Interruption.INTERNAL));
+		assertEquals(expected.getInterruptions(Session.Interruption.EXTERNAL),
+				actual.getInterruptions(Session.Interruption.EXTERNAL));
+	}
+
+	private void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+}
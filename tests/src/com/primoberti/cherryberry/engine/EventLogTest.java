@@ -0,0 +1,279 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import android.test.AndroidTestCase;
+
+import com.primoberti.cherryberry.engine.PomodoroEngine.Event;
+import com.primoberti.cherryberry.engine.PomodoroEngine.Status;
+
+/**
+ * Appends the transitions of a {@link PomodoroEngine} to an {@link EventLog}
+ * in the cache directory and reads them back, including from logs cut short
+ * or damaged on disk.
+ *
+ * @author berti
+ */
+public class EventLogTest extends AndroidTestCase {
+
+	/* Private constants *********************** */
+
+	private final static long MINUTE = 60 * 1000;
+
+	private final static Scheduler NO_TICKS = new Scheduler() {
+
+		@Override
+		public void schedule(Runnable task, long delayMillis) {
+		}
+
+		@Override
+		public void cancel(Runnable task) {
+		}
+
+	};
+
+	/* Private fields ************************** */
+
+	private File directory;
+
+	private PomodoroEngine engine;
+
+	/* Public methods ************************** */
+
+	public void testEmptyLog() throws IOException {
+		File file = new File(directory, "events.log");
+
+		assertNull(new EventLog(file).restore());
+		assertNull(EventLog.readState(file));
+		assertEquals(0, new EventLog(file).read(0).size());
+	}
+
+	public void testReplayAcrossSnapshots() throws IOException {
+		File file = new File(directory, "events.log");
+		EventLog log = new EventLog(file);
+
+		int cycles = EventLog.SNAPSHOT_INTERVAL;
+		for (int i = 0; i < cycles; i++) {
+			engine.startPomodoro(25 * MINUTE);
+			log.append(engine);
+			engine.stop();
+			log.append(engine);
+		}
+		engine.startPomodoro(25 * MINUTE);
+		log.append(engine);
+		assertEquals(getState(), log.restore());
+
+		assertEquals(getState(), new EventLog(file).restore());
+		assertEquals(getState(), EventLog.readState(file));
+		List<EventLog.Entry> entries = new EventLog(file).read(0);
+		assertEquals(cycles * 2 + 1, entries.size());
+		assertEquals(Event.START_POMODORO, entries.get(0).getEvent());
+		assertEquals(Event.STOP, entries.get(1).getEvent());
+		assertEquals(getState(), entries.get(entries.size() - 1).getState());
+	}
+
+	public void testJumpIsReplayed() throws IOException {
+		File file = new File(directory, "events.log");
+		EventLog log = new EventLog(file);
+
+		engine.startPomodoro(25 * MINUTE);
+		log.append(engine);
+		long now = System.currentTimeMillis();
+		engine.restore(Status.BREAK_RUNNING, now, now + 5 * MINUTE, 2);
+		log.append(engine);
+		assertEquals(getState(), log.restore());
+
+		assertEquals(getState(), new EventLog(file).restore());
+		List<EventLog.Entry> entries = new EventLog(file).read(0);
+		assertEquals(2, entries.size());
+		assertNull(entries.get(1).getEvent());
+		assertEquals(getState(), entries.get(1).getState());
+	}
+
+	public void testTornRecordIsIgnoredAndOverwritten() throws IOException {
+		File file = new File(directory, "events.log");
+		EventLog log = new EventLog(file);
+
+		engine.startPomodoro(25 * MINUTE);
+		log.append(engine);
+		engine.stop();
+		log.append(engine);
+		log.restore();
+		long length = file.length();
+		// Part of a record, as left by a crash in the middle of a write
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.seek(length);
+			out.write(new byte[EventLog.RECORD_SIZE / 2]);
+		}
+		finally {
+			out.close();
+		}
+
+		assertEquals(getState(), EventLog.readState(file));
+		log = new EventLog(file);
+		assertEquals(getState(), log.restore());
+
+		engine.startPomodoro(20 * MINUTE);
+		log.append(engine);
+		assertEquals(getState(), log.restore());
+		assertEquals(length + EventLog.RECORD_SIZE, file.length());
+		assertEquals(getState(), new EventLog(file).restore());
+	}
+
+	public void testCorruptRecordEndsLog() throws IOException {
+		File file = new File(directory, "events.log");
+		EventLog log = new EventLog(file);
+
+		engine.startPomodoro(25 * MINUTE);
+		log.append(engine);
+		engine.stop();
+		log.append(engine);
+		EventLog.State stopped = getState();
+		engine.startPomodoro(20 * MINUTE);
+		log.append(engine);
+		log.restore();
+		// Flip a bit of the checksum of the last record
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.seek(file.length() - 1);
+			int b = out.read();
+			out.seek(file.length() - 1);
+			out.write(b ^ 1);
+		}
+		finally {
+			out.close();
+		}
+
+		assertEquals(stopped, new EventLog(file).restore());
+		assertEquals(stopped, EventLog.readState(file));
+		assertEquals(2, new EventLog(file).read(0).size());
+	}
+
+	public void testOtherFileIsReplaced() throws IOException {
+		File file = new File(directory, "events.log");
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.write("Not a log".getBytes("US-ASCII"));
+		}
+		finally {
+			out.close();
+		}
+
+		assertNull(EventLog.readState(file));
+		EventLog log = new EventLog(file);
+		assertNull(log.restore());
+
+		engine.startPomodoro(25 * MINUTE);
+		log.append(engine);
+		assertEquals(getState(), log.restore());
+		assertEquals(getState(), new EventLog(file).restore());
+	}
+
+	public void testFailedWriteIsRetriedOnRestore() throws IOException {
+		File missing = new File(directory, "missing");
+		EventLog log = new EventLog(new File(missing, "events.log"));
+
+		engine.startPomodoro(25 * MINUTE);
+		log.append(engine);
+		waitForWriter();
+		assertTrue(missing.mkdir());
+		engine.stop();
+		log.append(engine);
+		engine.startPomodoro(20 * MINUTE);
+		log.append(engine);
+
+		assertEquals(getState(), log.restore());
+		assertEquals(3, log.getAppendCount());
+		assertTrue(log.getWriteCount() > 0);
+	}
+
+	public void testFailedWriteIsRetriedWithoutAppends() throws Exception {
+		File missing = new File(directory, "missing");
+		File file = new File(missing, "events.log");
+		EventLog log = new EventLog(file);
+
+		engine.startPomodoro(25 * MINUTE);
+		log.append(engine);
+		waitForWriter();
+		assertTrue(missing.mkdir());
+
+		// The first retry is due after a second
+		for (int i = 0; i < 50 && log.getWriteCount() == 0; i++) {
+			Thread.sleep(100);
+		}
+		assertEquals(1, log.getWriteCount());
+		assertEquals(getState(), new EventLog(file).restore());
+	}
+
+	/* Protected methods *********************** */
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		directory = new File(getContext().getCacheDir(), "EventLogTest");
+		delete(directory);
+		assertTrue(directory.mkdirs());
+		engine = new PomodoroEngine(Clock.SYSTEM, NO_TICKS);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		delete(directory);
+
+		super.tearDown();
+	}
+
+	/* Private methods ************************* */
+
+	private EventLog.State getState() {
+		return new EventLog.State(engine.getStatus(), engine.getTimerStart(),
+				engine.getTimerEnd(), engine.getCompletedPomodoros());
+	}
+
+	/**
+	 * Returns once the writes queued so far have been attempted, as all logs
+	 * share a single writer thread.
+	 */
+	private void waitForWriter() throws IOException {
+		assertNull(new EventLog(new File(directory, "empty.log")).restore());
+	}
+
+	private void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.history;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import android.database.MatrixCursor;
+import android.test.AndroidTestCase;
+
+import com.primoberti.cherryberry.history.SessionExporter.Format;
+
+/**
+ * Exports sessions from a {@link MatrixCursor} with the columns of the
+ * {@link SessionStore} queries to the cache directory, and checks the files
+ * byte by byte.
+ *
+ * @author berti
+ */
+public class SessionExporterTest extends AndroidTestCase {
+
+	/* Private constants *********************** */
+
+	private final static String[] COLUMNS = { "_id", "type", "start", "end",
+			"planned", "outcome", "task", "internal_interruptions",
+			"external_interruptions" };
+
+	private final static long MINUTE = 60 * 1000;
+
+	/** 2012-05-01T10:15:00Z */
+	private final static long START = 1335867300000L;
+
+	/* Private fields ************************** */
+
+	private File directory;
+
+	private File file;
+
+	/* Public methods ************************** */
+
+	public void testFileName() {
+		assertEquals("history.csv",
+				new SessionExporter(Format.CSV, false).getFileName("history"));
+		assertEquals("history.jsonl.gz", new SessionExporter(
+				Format.JSON_LINES, true).getFileName("history"));
+		assertEquals("history.ics", new SessionExporter(Format.ICALENDAR,
+				false).getFileName("history"));
+	}
+
+	public void testCsv() throws IOException {
+		MatrixCursor cursor = createCursor();
+		addRow(cursor, 1, Session.Type.POMODORO, START, 25 * MINUTE,
+				25 * MINUTE, Session.Outcome.FINISHED, "Say \"hi\", then go",
+				1, 2);
+		addRow(cursor, 2, Session.Type.BREAK, START + 25 * MINUTE,
+				3 * MINUTE, 5 * MINUTE, Session.Outcome.STOPPED, null, 0, 0);
+
+		assertEquals(2, new SessionExporter(Format.CSV, false).export(cursor,
+				file));
+
+		assertEquals("id,type,start,end,planned,duration,outcome,task,"
+				+ "internal_interruptions,external_interruptions\r\n"
+				+ "1,POMODORO,2012-05-01T10:15:00Z,2012-05-01T10:40:00Z,"
+				+ "1500000,1500000,FINISHED,\"Say \"\"hi\"\", then go\",1,2\r\n"
+				+ "2,BREAK,2012-05-01T10:40:00Z,2012-05-01T10:43:00Z,"
+				+ "300000,180000,STOPPED,,0,0\r\n", read(file, false));
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+	}
+
+	public void testJsonLines() throws IOException {
+		MatrixCursor cursor = createCursor();
+		addRow(cursor, 7, Session.Type.POMODORO, START, 20 * MINUTE,
+				25 * MINUTE, Session.Outcome.SKIPPED,
+				"Caf\u00e9 \"a\\b\"\n\ud83c\udf52", 0, 3);
+		addRow(cursor, 8, Session.Type.BREAK, START, 5 * MINUTE, 5 * MINUTE,
+				Session.Outcome.FINISHED, null, 0, 0);
+
+		assertEquals(2, new SessionExporter(Format.JSON_LINES, false).export(
+				cursor, file));
+
+		assertEquals("{\"id\":7,\"type\":\"POMODORO\","
+				+ "\"start\":\"2012-05-01T10:15:00Z\","
+				+ "\"end\":\"2012-05-01T10:35:00Z\",\"planned\":1500000,"
+				+ "\"duration\":1200000,\"outcome\":\"SKIPPED\","
+				+ "\"task\":\"Caf\u00e9 \\\"a\\\\b\\\"\\u000a\ud83c\udf52\","
+				+ "\"internalInterruptions\":0,\"externalInterruptions\":3}\n"
+				+ "{\"id\":8,\"type\":\"BREAK\","
+				+ "\"start\":\"2012-05-01T10:15:00Z\","
+				+ "\"end\":\"2012-05-01T10:20:00Z\",\"planned\":300000,"
+				+ "\"duration\":300000,\"outcome\":\"FINISHED\","
+				+ "\"task\":null,"
+				+ "\"internalInterruptions\":0,\"externalInterruptions\":0}\n",
+				read(file, false));
+	}
+
+	public void testICalendarFoldsLongLines() throws IOException {
+		StringBuilder task = new StringBuilder();
+		for (int i = 0; i < 20; i++) {
+			task.append("\u00e9crire, ");
+		}
+		MatrixCursor cursor = createCursor();
+		addRow(cursor, 3, Session.Type.POMODORO, START, 25 * MINUTE,
+				25 * MINUTE, Session.Outcome.STOPPED, task.toString(), 1, 0);
+
+		assertEquals(1, new SessionExporter(Format.ICALENDAR, false).export(
+				cursor, file));
+
+		String text = read(file, false);
+		assertTrue(text.startsWith("BEGIN:VCALENDAR\r\n"));
+		assertTrue(text.endsWith("END:VEVENT\r\nEND:VCALENDAR\r\n"));
+		for (String line : text.split("\r\n")) {
+			assertTrue(line, line.getBytes("UTF-8").length <= 75);
+		}
+		String unfolded = text.replace("\r\n ", "");
+		assertTrue(unfolded.contains("\r\nUID:3@history.cherryberry."
+				+ "primoberti.com\r\n"));
+		assertTrue(unfolded.contains("\r\nDTSTART:20120501T101500Z\r\n"));
+		assertTrue(unfolded.contains("\r\nSUMMARY:Pomodoro (stopped)\r\n"));
+		assertTrue(unfolded.contains("\r\nDESCRIPTION:Task "
+				+ task.toString().replace(",", "\\,")
+				+ "\\nInterruptions: 1 internal\\, 0 external\r\n"));
+	}
+
+	public void testGzipMatchesPlainExport() throws IOException {
+		// Enough rows to go through the buffer several times
+		MatrixCursor cursor = createCursor();
+		for (int i = 0; i < 2000; i++) {
+			addRow(cursor, i, Session.Type.POMODORO, START + i * 30 * MINUTE,
+					25 * MINUTE, 25 * MINUTE, Session.Outcome.FINISHED,
+					i % 2 == 0 ? "Task " + i : null, i % 3, i % 5);
+		}
+		File plain = new File(directory, "history.csv");
+		assertEquals(2000, new SessionExporter(Format.CSV, false).export(
+				cursor, plain));
+
+		cursor.moveToPosition(-1);
+		assertEquals(2000, new SessionExporter(Format.CSV, true).export(
+				cursor, file));
+
+		assertEquals(read(plain, false), read(file, true));
+		assertTrue(file.length() < plain.length());
+	}
+
+	public void testFailedExportKeepsPreviousFile() throws IOException {
+		MatrixCursor cursor = createCursor();
+		addRow(cursor, 1, Session.Type.BREAK, START, 5 * MINUTE, 5 * MINUTE,
+				Session.Outcome.FINISHED, null, 0, 0);
+		SessionExporter exporter = new SessionExporter(Format.CSV, false);
+		exporter.export(cursor, file);
+		String previous = read(file, false);
+
+		MatrixCursor failing = new MatrixCursor(COLUMNS) {
+
+			@Override
+			public int getInt(int column) {
+				throw new IllegalStateException("Cursor closed");
+			}
+
+		};
+		addRow(failing, 2, Session.Type.BREAK, START, 5 * MINUTE, 5 * MINUTE,
+				Session.Outcome.FINISHED, null, 0, 0);
+		try {
+			exporter.export(failing, file);
+			fail("Exported a cursor that can't be read");
+		}
+		catch (IllegalStateException e) {
+			// Expected
+		}
+
+		assertEquals(previous, read(file, false));
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+	}
+
+	/* Protected methods *********************** */
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		directory = new File(getContext().getCacheDir(),
+				"SessionExporterTest");
+		delete(directory);
+		assertTrue(directory.mkdirs());
+		file = new File(directory, "history");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		delete(directory);
+
+		super.tearDown();
+	}
+
+	/* Private methods ************************* */
+
+	private MatrixCursor createCursor() {
+		return new MatrixCursor(COLUMNS);
+	}
+
+	private void addRow(MatrixCursor cursor, long id, Session.Type type,
+			long start, long duration, long planned, Session.Outcome outcome,
+			String task, int internal, int external) {
+		cursor.addRow(new Object[] { id, type.ordinal(), start,
+				start + duration, planned, outcome.ordinal(), task, internal,
+				external });
+	}
+
+	private String read(File file, boolean gzip) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			if (gzip) {
+				in = new GZIPInputStream(in);
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+			}
+			return out.toString("UTF-8");
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.history;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import android.database.MatrixCursor;
+import android.test.AndroidTestCase;
+
+import com.primoberti.cherryberry.history.SessionExporter.Format;
+import com.primoberti.cherryberry.history.SessionImporter.Progress;
+import com.primoberti.cherryberry.history.SessionImporter.ProgressListener;
+
+/**
+ * Imports sessions in the formats of {@link SessionExporter} and of other
+ * trackers into a sink kept in memory, and resumes imports from their
+ * checkpoints.
+ *
+ * @author berti
+ */
+public class SessionImporterTest extends AndroidTestCase {
+
+	/* Private constants *********************** */
+
+	private final static long MINUTE = 60 * 1000;
+
+	private final static long HOUR = 60 * MINUTE;
+
+	/** 2012-05-01T10:15:00Z */
+	private final static long START = 1335867300000L;
+
+	/* Private fields ************************** */
+
+	private File directory;
+
+	private TestSink sink;
+
+	/* Public methods ************************** */
+
+	public void testCsvExportIsImportedBack() throws IOException {
+		testExportIsImportedBack(Format.CSV, false);
+	}
+
+	public void testJsonLinesExportIsImportedBack() throws IOException {
+		testExportIsImportedBack(Format.JSON_LINES, false);
+	}
+
+	public void testGzippedExportIsImportedBack() throws IOException {
+		testExportIsImportedBack(Format.CSV, true);
+	}
+
+	public void testOtherTrackerCsv() throws IOException {
+		Progress progress = importFrom("\ufeffStart Time;Duration (minutes);"
+				+ "Completed;Task\r\n"
+				+ "2012-05-01T12:15:00+02:00;25;yes;Write\r\n"
+				+ "\r\n"
+				+ "1335869100;20;no;\r\n"
+				+ ";25;yes;No start\r\n"
+				+ "yesterday;25;yes;Bad start\r\n");
+
+		assertProgress(progress, 4, 2, 0, 2);
+		assertSession(sink.sessions.get(0), Session.Type.POMODORO, START,
+				START + 25 * MINUTE, 25 * MINUTE, Session.Outcome.FINISHED,
+				"Write", 0, 0);
+		assertSession(sink.sessions.get(1), Session.Type.POMODORO,
+				START + 30 * MINUTE, START + 50 * MINUTE, 20 * MINUTE,
+				Session.Outcome.STOPPED, null, 0, 0);
+	}
+
+	public void testJsonArray() throws IOException {
+		Progress progress = importFrom("[\n"
+				+ "  {\"started_at\": 1335867300000, "
+				+ "\"ended_at\": \"2012-05-01T10:40:00Z\", "
+				+ "\"kind\": \"pomodoro\", \"meta\": {\"tags\": [\"a\", "
+				+ "\"}\"]}, \"status\": \"completed\", \"interruptions\": 2},\n"
+				+ "  {\"start\": \"2012-05-01T10:40:00.500Z\", "
+				+ "\"duration_seconds\": 300, \"type\": \"short_break\", "
+				+ "\"task\": \"Caf\\u00e9 \\ud83c\\udf52\"},\n"
+				+ "  {\"end\": \"2012-05-01T11:00:00Z\"}\n"
+				+ "]\n");
+
+		assertProgress(progress, 3, 2, 0, 1);
+		assertSession(sink.sessions.get(0), Session.Type.POMODORO, START,
+				START + 25 * MINUTE, 25 * MINUTE, Session.Outcome.FINISHED,
+				null, 2, 0);
+		assertSession(sink.sessions.get(1), Session.Type.BREAK,
+				START + 25 * MINUTE + 500, START + 30 * MINUTE + 500,
+				5 * MINUTE, Session.Outcome.FINISHED,
+				"Caf\u00e9 \ud83c\udf52", 0, 0);
+	}
+
+	public void testDuplicatesAreCounted() throws IOException {
+		String csv = "start,end\r\n"
+				+ "2012-05-01T10:15:00Z,2012-05-01T10:40:00Z\r\n"
+				+ "2012-05-01T11:15:00Z,2012-05-01T11:40:00Z\r\n";
+		importFrom(csv);
+
+		Progress progress = importFrom(csv);
+
+		assertProgress(progress, 2, 0, 2, 0);
+		assertEquals(2, sink.sessions.size());
+	}
+
+	public void testMissingStartColumnFails() {
+		try {
+			importFrom("end,duration\r\n2012-05-01T10:40:00Z,25\r\n");
+			fail("Imported a file without start times");
+		}
+		catch (IOException e) {
+			// Expected
+		}
+		assertEquals(0, sink.sessions.size());
+	}
+
+	public void testResumeFromCheckpoint() throws IOException {
+		testResumeFromCheckpoint(false);
+	}
+
+	public void testResumeGzippedFromCheckpoint() throws IOException {
+		testResumeFromCheckpoint(true);
+	}
+
+	/* Protected methods *********************** */
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		directory = new File(getContext().getCacheDir(),
+				"SessionImporterTest");
+		delete(directory);
+		assertTrue(directory.mkdirs());
+		sink = new TestSink();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		delete(directory);
+
+		super.tearDown();
+	}
+
+	/* Private methods ************************* */
+
+	private void testExportIsImportedBack(Format format, boolean gzip)
+			throws IOException {
+		MatrixCursor cursor = new MatrixCursor(new String[] { "_id", "type",
+				"start", "end", "planned", "outcome", "task",
+				"internal_interruptions", "external_interruptions" });
+		cursor.addRow(new Object[] { 1, Session.Type.POMODORO.ordinal(),
+				START, START + 20 * MINUTE, 25 * MINUTE,
+				Session.Outcome.STOPPED.ordinal(),
+				"Say \"hi\",\n\u00e9 \ud83c\udf52", 1, 2 });
+		cursor.addRow(new Object[] { 2, Session.Type.BREAK.ordinal(),
+				START + HOUR, START + HOUR + 5 * MINUTE, 5 * MINUTE,
+				Session.Outcome.SKIPPED.ordinal(), null, 0, 0 });
+		File file = new File(directory, "history");
+		new SessionExporter(format, gzip).export(cursor, file);
+
+		Progress progress;
+		InputStream in = new FileInputStream(file);
+		try {
+			progress = new SessionImporter(sink).importFrom(in, null, null);
+		}
+		finally {
+			in.close();
+		}
+
+		assertProgress(progress, 2, 2, 0, 0);
+		assertSession(sink.sessions.get(0), Session.Type.POMODORO, START,
+				START + 20 * MINUTE, 25 * MINUTE, Session.Outcome.STOPPED,
+				"Say \"hi\",\n\u00e9 \ud83c\udf52", 1, 2);
+		assertSession(sink.sessions.get(1), Session.Type.BREAK, START + HOUR,
+				START + HOUR + 5 * MINUTE, 5 * MINUTE,
+				Session.Outcome.SKIPPED, null, 0, 0);
+	}
+
+	private void testResumeFromCheckpoint(boolean gzip) throws IOException {
+		StringBuilder csv = new StringBuilder("start,duration,task\r\n");
+		for (int i = 0; i < 5; i++) {
+			csv.append(START + i * HOUR).append(",25,Task ").append(i)
+					.append("\r\n");
+		}
+		byte[] input = getBytes(csv.toString(), gzip);
+
+		final List<Progress> checkpoints = new ArrayList<Progress>();
+		try {
+			new SessionImporter(sink, 2).importFrom(new ByteArrayInputStream(
+					input), null, new ProgressListener() {
+
+				@Override
+				public void onProgress(Progress progress) {
+					checkpoints.add(new Progress(progress.getOffset(),
+							progress.getRead(), progress.getImported(),
+							progress.getDuplicates(), progress.getInvalid()));
+					throw new IllegalStateException("Killed");
+				}
+
+			});
+			fail("Import wasn't stopped");
+		}
+		catch (IllegalStateException e) {
+			// Expected
+		}
+		assertEquals(1, checkpoints.size());
+		assertProgress(checkpoints.get(0), 2, 2, 0, 0);
+
+		Progress progress = new SessionImporter(sink, 2).importFrom(
+				new ByteArrayInputStream(input), checkpoints.get(0), null);
+
+		assertProgress(progress, 5, 5, 0, 0);
+		assertEquals(5, sink.sessions.size());
+		for (int i = 0; i < 5; i++) {
+			assertEquals("Task " + i, sink.sessions.get(i).getTask());
+			assertEquals(START + i * HOUR, sink.sessions.get(i).getStart());
+		}
+	}
+
+	private Progress importFrom(String text) throws IOException {
+		return new SessionImporter(sink).importFrom(new ByteArrayInputStream(
+				getBytes(text, false)), null, null);
+	}
+
+	private byte[] getBytes(String text, boolean gzip) throws IOException {
+		byte[] bytes = text.getBytes("UTF-8");
+		if (!gzip) {
+			return bytes;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		GZIPOutputStream gzipOut = new GZIPOutputStream(out);
+		gzipOut.write(bytes);
+		gzipOut.close();
+		return out.toByteArray();
+	}
+
+	private void assertProgress(Progress progress, int read, int imported,
+			int duplicates, int invalid) {
+		assertEquals(read, progress.getRead());
+		assertEquals(imported, progress.getImported());
+		assertEquals(duplicates, progress.getDuplicates());
+		assertEquals(invalid, progress.getInvalid());
+	}
+
+	private void assertSession(Session session, Session.Type type, long start,
+			long end, long planned, Session.Outcome outcome, String task,
+			int internal, int external) {
+		assertEquals(type, session.getType());
+		assertEquals(start, session.getStart());
+		assertEquals(end, session.getEnd());
+		assertEquals(planned, session.getPlannedDuration());
+		assertEquals(outcome, session.getOutcome());
+		assertEquals(task, session.getTask());
+		assertEquals(internal,
+				session.getInterruptions(Session.Interruption.INTERNAL));
+		assertEquals(external,
+				session.getInterruptions(Session.Interruption.EXTERNAL));
+	}
+
+	private void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/* Private inner classes ******************* */
+
+	/**
+	 * Keeps the sessions in memory, leaving out the ones with the start time
+	 * of one already stored.
+	 */
+	private static class TestSink implements SessionImporter.Sink {
+
+		private final List<Session> sessions = new ArrayList<Session>();
+
+		private final Set<Long> starts = new HashSet<Long>();
+
+		@Override
+		public int insert(List<Session> batch) {
+			int inserted = 0;
+			for (Session session : batch) {
+				if (starts.add(session.getStart())) {
+					sessions.add(session);
+					inserted++;
+				}
+			}
+			return inserted;
+		}
+
+	}
+
+}
@@ -0,0 +1,427 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.tasks;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * In-process stand-in for the Google Tasks API, so the sync can be exercised
+ * without network access or an account.
+ *
+ * Implements the subset of the API used by {@link TaskSync}: listing task
+ * lists with ETags, listing tasks with <code>updatedMin</code>, deleted tasks
+ * and paging, and patching tasks with <code>If-Match</code>. Every resource
+ * gets a new ETag and update time on each change, and update times strictly
+ * increase. Round trips can be made to fail to simulate being offline.
+ *
+ * @author berti
+ */
+public class FakeTasksServer implements TasksTransport {
+
+	/* Private constants *********************** */
+
+	private final static String LISTS_PATH = "/users/@me/lists";
+
+	private final static String LIST_PREFIX = "/lists/";
+
+	private final static int DEFAULT_MAX_BATCH_SIZE = 50;
+
+	private final static int DEFAULT_PAGE_SIZE = 100;
+
+	/* Private fields ************************** */
+
+	private final Map<String, FakeList> lists = new LinkedHashMap<String, FakeList>();
+
+	private final int maxBatchSize;
+
+	private long clock;
+
+	/** Changes whenever the set of lists does. */
+	private int listsVersion;
+
+	private int nextId = 1;
+
+	private int failures;
+
+	private int roundTrips;
+
+	private int requests;
+
+	/* Public constructors ********************* */
+
+	public FakeTasksServer() {
+		this(DEFAULT_MAX_BATCH_SIZE);
+	}
+
+	public FakeTasksServer(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/* Private static methods ****************** */
+
+	private static String decode(String value) {
+		try {
+			return URLDecoder.decode(value, "UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/* Public methods ************************** */
+
+	@Override
+	public synchronized TasksResponse execute(TasksRequest request)
+			throws IOException {
+		roundTrip();
+		return handle(request);
+	}
+
+	@Override
+	public synchronized List<TasksResponse> executeBatch(
+			List<TasksRequest> requests) throws IOException {
+		if (requests.size() > maxBatchSize) {
+			throw new IllegalArgumentException("Batch of " + requests.size()
+					+ " requests");
+		}
+
+		roundTrip();
+		List<TasksResponse> responses = new ArrayList<TasksResponse>(
+				requests.size());
+		for (TasksRequest request : requests) {
+			responses.add(handle(request));
+		}
+		return responses;
+	}
+
+	@Override
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	/**
+	 * Makes the given number of round trips fail with an IOException.
+	 */
+	public synchronized void setFailures(int failures) {
+		this.failures = failures;
+	}
+
+	/**
+	 * Returns the number of round trips, counting a batch as one.
+	 */
+	public synchronized int getRoundTrips() {
+		return roundTrips;
+	}
+
+	/**
+	 * Returns the number of requests handled, counting each one in a batch.
+	 */
+	public synchronized int getRequests() {
+		return requests;
+	}
+
+	public synchronized String addList(String title) {
+		FakeList list = new FakeList(newId("list"), title);
+		touch(list);
+		lists.put(list.id, list);
+		listsVersion++;
+		return list.id;
+	}
+
+	public synchronized String addTask(String listId, String title) {
+		FakeList list = lists.get(listId);
+		FakeTask task = new FakeTask(newId("task"), title);
+		touch(task);
+		list.tasks.put(task.id, task);
+		return task.id;
+	}
+
+	public synchronized void setTitle(String listId, String taskId,
+			String title) {
+		FakeTask task = lists.get(listId).tasks.get(taskId);
+		task.title = title;
+		touch(task);
+	}
+
+	/**
+	 * Marks the task as deleted; it is still listed with deleted tasks.
+	 */
+	public synchronized void deleteTask(String listId, String taskId) {
+		FakeTask task = lists.get(listId).tasks.get(taskId);
+		task.deleted = true;
+		touch(task);
+	}
+
+	public synchronized void deleteList(String listId) {
+		lists.remove(listId);
+		listsVersion++;
+	}
+
+	public synchronized String getNotes(String listId, String taskId) {
+		return lists.get(listId).tasks.get(taskId).notes;
+	}
+
+	public synchronized boolean isCompleted(String listId, String taskId) {
+		return lists.get(listId).tasks.get(taskId).completed;
+	}
+
+	/* Private methods ************************* */
+
+	private void roundTrip() throws IOException {
+		if (failures > 0) {
+			failures--;
+			throw new IOException("Simulated network failure");
+		}
+		roundTrips++;
+	}
+
+	private String newId(String prefix) {
+		return prefix + (nextId++);
+	}
+
+	/**
+	 * Gives the resource a new ETag and a strictly later update time.
+	 */
+	private void touch(FakeResource resource) {
+		clock = Math.max(clock + 1, System.currentTimeMillis());
+		resource.updated = clock;
+		resource.etag = "\"" + resource.id + "/" + clock + "\"";
+	}
+
+	private TasksResponse handle(TasksRequest request) {
+		requests++;
+
+		String path = request.getPath();
+		Map<String, String> query = new HashMap<String, String>();
+		int index = path.indexOf('?');
+		if (index >= 0) {
+			for (String parameter : path.substring(index + 1).split("&")) {
+				String[] pair = parameter.split("=", 2);
+				query.put(pair[0], pair.length > 1 ? decode(pair[1]) : "");
+			}
+			path = path.substring(0, index);
+		}
+
+		try {
+			if (TasksRequest.GET.equals(request.getMethod())
+					&& path.equals(LISTS_PATH)) {
+				return getLists(request.getEtag());
+			}
+
+			String[] segments = path.startsWith(LIST_PREFIX) ? path
+					.substring(LIST_PREFIX.length()).split("/") : new String[0];
+			FakeList list = segments.length > 0 ? lists.get(segments[0])
+					: null;
+			if (segments.length >= 2 && !segments[1].equals("tasks")) {
+				return error(TasksResponse.BAD_REQUEST);
+			}
+
+			if (TasksRequest.GET.equals(request.getMethod())
+					&& segments.length == 2) {
+				return list != null ? getTasks(list, query)
+						: error(TasksResponse.NOT_FOUND);
+			}
+			if (TasksRequest.PATCH.equals(request.getMethod())
+					&& segments.length == 3) {
+				FakeTask task = list != null ? list.tasks.get(segments[2])
+						: null;
+				return task != null && !task.deleted ? patchTask(task, request)
+						: error(TasksResponse.NOT_FOUND);
+			}
+			return error(TasksResponse.BAD_REQUEST);
+		}
+		catch (JSONException e) {
+			return error(TasksResponse.BAD_REQUEST);
+		}
+	}
+
+	private TasksResponse getLists(String etag) throws JSONException {
+		String collectionEtag = "\"lists/" + listsVersion + "\"";
+		if (collectionEtag.equals(etag)) {
+			return new TasksResponse(TasksResponse.NOT_MODIFIED,
+					collectionEtag, null);
+		}
+
+		JSONArray items = new JSONArray();
+		for (FakeList list : lists.values()) {
+			JSONObject item = new JSONObject();
+			item.put("id", list.id);
+			item.put("title", list.title);
+			item.put("updated", Rfc3339.format(list.updated));
+			item.put("etag", list.etag);
+			items.put(item);
+		}
+
+		JSONObject body = new JSONObject();
+		body.put("kind", "tasks#taskLists");
+		body.put("etag", collectionEtag);
+		body.put("items", items);
+		return new TasksResponse(TasksResponse.OK, collectionEtag,
+				body.toString());
+	}
+
+	private TasksResponse getTasks(FakeList list, Map<String, String> query)
+			throws JSONException {
+		long updatedMin = query.containsKey("updatedMin") ? Rfc3339
+				.parse(query.get("updatedMin")) : 0;
+		boolean showDeleted = "true".equals(query.get("showDeleted"));
+		int maxResults = query.containsKey("maxResults") ? Integer
+				.parseInt(query.get("maxResults")) : DEFAULT_PAGE_SIZE;
+		int offset = query.containsKey("pageToken") ? Integer.parseInt(query
+				.get("pageToken")) : 0;
+
+		List<FakeTask> matching = new ArrayList<FakeTask>();
+		for (FakeTask task : list.tasks.values()) {
+			if (task.updated >= updatedMin && (showDeleted || !task.deleted)) {
+				matching.add(task);
+			}
+		}
+		Collections.sort(matching, new Comparator<FakeTask>() {
+
+			@Override
+			public int compare(FakeTask a, FakeTask b) {
+				return a.updated < b.updated ? -1 : a.updated > b.updated ? 1
+						: 0;
+			}
+
+		});
+
+		JSONArray items = new JSONArray();
+		int end = Math.min(matching.size(), offset + maxResults);
+		for (int i = offset; i < end; i++) {
+			items.put(toJson(matching.get(i)));
+		}
+
+		JSONObject body = new JSONObject();
+		body.put("kind", "tasks#tasks");
+		body.put("items", items);
+		if (end < matching.size()) {
+			body.put("nextPageToken", Integer.toString(end));
+		}
+		return new TasksResponse(TasksResponse.OK, null, body.toString());
+	}
+
+	private TasksResponse patchTask(FakeTask task, TasksRequest request)
+			throws JSONException {
+		if (request.getEtag() != null && !request.getEtag().equals(task.etag)) {
+			return error(TasksResponse.PRECONDITION_FAILED);
+		}
+
+		JSONObject body = new JSONObject(request.getBody());
+		if (body.has("title")) {
+			task.title = body.getString("title");
+		}
+		if (body.has("notes")) {
+			task.notes = body.isNull("notes") ? null : body.getString("notes");
+		}
+		if (body.has("status")) {
+			task.completed = "completed".equals(body.getString("status"));
+		}
+		touch(task);
+
+		return new TasksResponse(TasksResponse.OK, task.etag, toJson(task)
+				.toString());
+	}
+
+	private JSONObject toJson(FakeTask task) throws JSONException {
+		JSONObject item = new JSONObject();
+		item.put("id", task.id);
+		item.put("etag", task.etag);
+		item.put("title", task.title);
+		item.put("updated", Rfc3339.format(task.updated));
+		item.put("status", task.completed ? "completed" : "needsAction");
+		if (task.notes != null) {
+			item.put("notes", task.notes);
+		}
+		if (task.deleted) {
+			item.put("deleted", true);
+		}
+		return item;
+	}
+
+	private TasksResponse error(int status) {
+		return new TasksResponse(status, null, "{\"error\":{\"code\":"
+				+ status + "}}");
+	}
+
+	/* Private inner classes ******************* */
+
+	private static class FakeResource {
+
+		protected final String id;
+
+		protected long updated;
+
+		protected String etag;
+
+		public FakeResource(String id) {
+			this.id = id;
+		}
+
+	}
+
+	private static class FakeList extends FakeResource {
+
+		private final String title;
+
+		private final Map<String, FakeTask> tasks = new LinkedHashMap<String, FakeTask>();
+
+		public FakeList(String id, String title) {
+			super(id);
+			this.title = title;
+		}
+
+	}
+
+	private static class FakeTask extends FakeResource {
+
+		private String title;
+
+		private String notes;
+
+		private boolean completed;
+
+		private boolean deleted;
+
+		public FakeTask(String id, String title) {
+			super(id);
+			this.title = title;
+		}
+
+	}
+
+}
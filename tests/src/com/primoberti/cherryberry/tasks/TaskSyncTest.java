@@ -0,0 +1,239 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.tasks;
+
+import java.io.IOException;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+/**
+ * Runs {@link TaskSync} against a {@link FakeTasksServer}, on a database of
+ * its own so the tasks of the app are left alone.
+ *
+ * @author berti
+ */
+public class TaskSyncTest extends AndroidTestCase {
+
+	/* Private constants *********************** */
+
+	private final static String DATABASE_NAME = "tasks.db";
+
+	/* Private fields ************************** */
+
+	private Context context;
+
+	private TaskDatabase database;
+
+	private FakeTasksServer server;
+
+	private TaskSync sync;
+
+	private String listId;
+
+	/* Public methods ************************** */
+
+	public void testFirstSyncPullsEverything() throws IOException {
+		server.addTask(listId, "Write report");
+		server.addTask(listId, "Review");
+		server.addTask(server.addList("Home"), "Inbox");
+
+		SyncResult result = sync.sync();
+
+		assertEquals(3, result.getPulledTasks());
+		assertEquals(3, countTasks());
+	}
+
+	public void testUnchangedSyncOnlyCostsEmptyResponses() throws IOException {
+		server.addTask(listId, "Write report");
+		server.addTask(server.addList("Home"), "Inbox");
+		sync.sync();
+
+		SyncResult result = sync.sync();
+
+		assertEquals(0, result.getPulledTasks());
+		// The collection of lists and both lists
+		assertEquals(3, result.getUnchangedLists());
+		assertEquals(3, result.getRoundTrips());
+	}
+
+	public void testSyncPullsOnlyChanges() throws IOException {
+		String renamed = server.addTask(listId, "Write report");
+		String deleted = server.addTask(listId, "Review");
+		server.addTask(listId, "Inbox");
+		sync.sync();
+
+		server.setTitle(listId, renamed, "Write final report");
+		server.deleteTask(listId, deleted);
+		SyncResult result = sync.sync();
+
+		assertEquals(1, result.getPulledTasks());
+		assertEquals(1, result.getDeletedTasks());
+		assertEquals(2, countTasks());
+		assertEquals("Write final report", readTitle(renamed));
+	}
+
+	public void testChangesAreSentInBatches() throws IOException {
+		String[] taskIds = new String[5];
+		for (int i = 0; i < taskIds.length; i++) {
+			taskIds[i] = server.addTask(listId, "Task " + i);
+		}
+		String completed = server.addTask(listId, "Inbox");
+		sync.sync();
+
+		for (String taskId : taskIds) {
+			assertEquals(1, sync.addPomodoro(taskId));
+		}
+		assertTrue(sync.setCompleted(completed, true));
+		SyncResult result = sync.sync();
+
+		assertEquals(6, result.getPushedChanges());
+		assertEquals(1, result.getPushRoundTrips());
+		assertEquals(5, result.getSavedRoundTrips());
+		for (String taskId : taskIds) {
+			assertEquals(1,
+					Task.getPomodoros(server.getNotes(listId, taskId)));
+		}
+		assertTrue(server.isCompleted(listId, completed));
+		assertEquals(-1, sync.getQueue().getNextAttempt());
+	}
+
+	public void testConflictIsSentAgainAfterPulling() throws IOException {
+		String taskId = server.addTask(listId, "Write report");
+		sync.sync();
+
+		sync.addPomodoro(taskId);
+		server.setTitle(listId, taskId, "Report");
+		SyncResult result = sync.sync();
+
+		assertEquals(1, result.getConflicts());
+		assertEquals(1, Task.getPomodoros(server.getNotes(listId, taskId)));
+		assertEquals("Report", readTitle(taskId));
+		assertEquals(-1, sync.getQueue().getNextAttempt());
+	}
+
+	public void testFailedChangesAreRetriedLater() throws IOException {
+		String taskId = server.addTask(listId, "Write report");
+		sync.sync();
+
+		sync.addPomodoro(taskId);
+		server.setFailures(1);
+		long start = System.currentTimeMillis();
+		try {
+			sync.sync();
+			fail("Sync succeeded while offline");
+		}
+		catch (IOException e) {
+			// Expected
+		}
+
+		assertEquals(1, sync.getLastResult().getFailedChanges());
+		assertTrue(sync.getQueue().getNextAttempt() >= start
+				+ SyncQueue.BASE_BACKOFF / 2);
+
+		// Not due yet, so only pulled
+		SyncResult result = sync.sync();
+		assertEquals(0, result.getPushedChanges());
+		assertEquals(0, Task.getPomodoros(server.getNotes(listId, taskId)));
+		assertEquals(1, readPomodoros(taskId));
+	}
+
+	public void testChangesToDeletedTasksAreDropped() throws IOException {
+		String taskId = server.addTask(listId, "Write report");
+		sync.sync();
+
+		sync.addPomodoro(taskId);
+		server.deleteList(listId);
+		SyncResult result = sync.sync();
+
+		assertEquals(1, result.getDroppedChanges());
+		assertEquals(0, countTasks());
+		assertEquals(-1, sync.getQueue().getNextAttempt());
+	}
+
+	/* Protected methods *********************** */
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		context = new RenamingDelegatingContext(getContext(), "test.");
+		context.deleteDatabase(DATABASE_NAME);
+		database = new TaskDatabase(context);
+		server = new FakeTasksServer();
+		sync = new TaskSync(database, server, new SyncQueue(database));
+		listId = server.addList("Work");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		database.close();
+		context.deleteDatabase(DATABASE_NAME);
+
+		super.tearDown();
+	}
+
+	/* Private methods ************************* */
+
+	private int countTasks() {
+		Cursor cursor = database.getReadableDatabase().rawQuery(
+				"SELECT COUNT(*) FROM " + TaskDatabase.TABLE_TASKS, null);
+		try {
+			return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+		}
+		finally {
+			cursor.close();
+		}
+	}
+
+	private String readTitle(String taskId) {
+		Cursor cursor = queryTask(TaskDatabase.COLUMN_TITLE, taskId);
+		try {
+			return cursor.moveToFirst() ? cursor.getString(0) : null;
+		}
+		finally {
+			cursor.close();
+		}
+	}
+
+	private int readPomodoros(String taskId) {
+		Cursor cursor = queryTask(TaskDatabase.COLUMN_POMODOROS, taskId);
+		try {
+			return cursor.moveToFirst() ? cursor.getInt(0) : -1;
+		}
+		finally {
+			cursor.close();
+		}
+	}
+
+	private Cursor queryTask(String column, String taskId) {
+		return database.getReadableDatabase().rawQuery(
+				"SELECT " + column + " FROM " + TaskDatabase.TABLE_TASKS
+						+ " WHERE " + TaskDatabase.COLUMN_ID + " = ?",
+				new String[] { taskId });
+	}
+
+}
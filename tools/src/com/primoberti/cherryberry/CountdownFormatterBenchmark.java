@@ -0,0 +1,181 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry;
+
+import java.lang.reflect.Method;
+
+/**
+ * Checks on a desktop JVM that {@link CountdownFormatter} doesn't allocate
+ * per tick, and compares it with formatting through {@link String#format}.
+ *
+ * Formats a 25 minute count down at every 100 ms tick, and a three hour one
+ * past the precomputed table, after a warm up so the JIT compiled code is
+ * measured. The bytes allocated by the thread are read through the HotSpot
+ * management bean; the benchmark fails if the formatter allocated more than
+ * the bookkeeping of reading them. The output is checked against
+ * {@link String#format} on the way.
+ *
+ * <pre>
+ * CountdownFormatterBenchmark rounds
+ * </pre>
+ *
+ * @author berti
+ */
+public class CountdownFormatterBenchmark {
+
+	/* Private constants *********************** */
+
+	private final static long TICK = 100;
+
+	private final static long POMODORO = 25 * 60 * 1000;
+
+	private final static long LONG_TIMER = 3 * 60 * 60 * 1000;
+
+	/** Allowance for reading the allocated bytes itself. */
+	private final static long MEASUREMENT_BYTES = 1024;
+
+	/* Private static fields ******************* */
+
+	private static Object threadBean;
+
+	private static Method allocatedBytes;
+
+	/** Keeps the results alive, so the work isn't optimized away. */
+	private static long sink;
+
+	/* Public static methods ******************* */
+
+	public static void main(String[] args) throws Exception {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+
+		Class<?> factory = Class
+				.forName("java.lang.management.ManagementFactory");
+		threadBean = factory.getMethod("getThreadMXBean").invoke(null);
+		allocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+				.getMethod("getThreadAllocatedBytes", long.class);
+
+		CountdownFormatter formatter = new CountdownFormatter();
+		verify(formatter, POMODORO);
+		verify(formatter, LONG_TIMER);
+
+		// Warm up
+		for (int i = 0; i < rounds; i++) {
+			runFormatter(formatter, POMODORO);
+			runFormatter(formatter, LONG_TIMER);
+			runStringFormat(POMODORO);
+		}
+
+		boolean allocated = false;
+		allocated |= measure("CountdownFormatter, 25 min", formatter,
+				POMODORO, rounds, true);
+		allocated |= measure("CountdownFormatter, 3 h", formatter,
+				LONG_TIMER, rounds, true);
+		measure("String.format, 25 min", formatter, POMODORO, rounds, false);
+		System.out.println("(checksum " + sink + ")");
+
+		if (allocated) {
+			System.out.println("FAILED: CountdownFormatter allocated");
+			System.exit(1);
+		}
+	}
+
+	/* Private static methods ****************** */
+
+	/**
+	 * Prints the time and bytes per tick of formatting the count down the
+	 * given number of times.
+	 *
+	 * @return true if the formatter allocated
+	 */
+	private static boolean measure(String name, CountdownFormatter formatter,
+			long duration, int rounds, boolean useFormatter) throws Exception {
+		long ticks = (duration / TICK + 1) * rounds;
+		long bytes = getAllocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < rounds; i++) {
+			if (useFormatter) {
+				runFormatter(formatter, duration);
+			}
+			else {
+				runStringFormat(duration);
+			}
+		}
+		long time = System.nanoTime() - start;
+		bytes = getAllocatedBytes() - bytes;
+
+		System.out.println(name + ": " + ticks + " ticks, " + time / ticks
+				+ " ns/tick, " + bytes + " bytes, "
+				+ String.format("%.3f", (double) bytes / ticks) + " B/tick");
+		return useFormatter && bytes > MEASUREMENT_BYTES;
+	}
+
+	private static void runFormatter(CountdownFormatter formatter,
+			long duration) {
+		long sum = 0;
+		for (long remaining = duration; remaining >= 0; remaining -= TICK) {
+			int length = formatter.format(remaining);
+			sum += length + formatter.getChars()[length - 1];
+		}
+		sink += sum;
+	}
+
+	private static void runStringFormat(long duration) {
+		long sum = 0;
+		for (long remaining = duration; remaining >= 0; remaining -= TICK) {
+			String text = format(remaining);
+			sum += text.length() + text.charAt(text.length() - 1);
+		}
+		sink += sum;
+	}
+
+	/**
+	 * Fails unless the formatter agrees with {@link String#format} at every
+	 * second of the count down.
+	 */
+	private static void verify(CountdownFormatter formatter, long duration) {
+		for (long remaining = duration; remaining >= 0; remaining -= 1000) {
+			formatter.format(remaining);
+			String expected = format(remaining);
+			if (!expected.equals(formatter.toString())) {
+				throw new IllegalStateException("Formatted " + remaining
+						+ " as " + formatter + " instead of " + expected);
+			}
+		}
+	}
+
+	private static String format(long millis) {
+		long seconds = millis / 1000;
+		if (seconds >= 3600) {
+			return String.format("%d:%02d:%02d", seconds / 3600,
+					seconds / 60 % 60, seconds % 60);
+		}
+		return String.format("%d:%02d", seconds / 60, seconds % 60);
+	}
+
+	private static long getAllocatedBytes() throws Exception {
+		return (Long) allocatedBytes.invoke(threadBean, Thread.currentThread()
+				.getId());
+	}
+
+}
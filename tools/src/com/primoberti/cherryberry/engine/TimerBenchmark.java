@@ -0,0 +1,311 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.engine;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link TimingWheel} with a {@link PriorityQueue} and a
+ * {@link ScheduledThreadPoolExecutor} on a desktop JVM.
+ *
+ * Schedules the given number of timers 5 to 26 minutes out, cancels a tenth
+ * of them, moves another tenth to a new deadline, and then expires the rest
+ * with simulated time advancing at a 100 ms tick. The priority queue leaves
+ * tombstones behind when a timer is cancelled or moved, as a heap can't
+ * remove them cheaply. The executor waits on real delays, so only its
+ * scheduling and cancelling are timed.
+ *
+ * Reports the best time of each, and the bytes allocated per timer and the
+ * collections during that round, read through the HotSpot management beans
+ * when there are any. The wheel timers are created before timing, since
+ * they are reused; the queue and executor create an entry per schedule.
+ *
+ * <pre>
+ * TimerBenchmark timers rounds
+ * </pre>
+ *
+ * @author berti
+ */
+public class TimerBenchmark {
+
+	/* Private constants *********************** */
+
+	private final static long TICK = 100;
+
+	private final static long MIN_DELAY = 5 * 60 * 1000;
+
+	private final static int DELAY_RANGE = 21 * 60 * 1000;
+
+	/* Private static fields ******************* */
+
+	private static Object threadBean;
+
+	private static Method allocatedBytes;
+
+	private static List<?> collectorBeans;
+
+	private static Method collectionCount;
+
+	/* Public static methods ******************* */
+
+	public static void main(String[] args) throws Exception {
+		int timers = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		initManagement();
+
+		long[] deadlines = new long[timers];
+		long[] moved = new long[timers];
+		Random random = new Random(42);
+		for (int i = 0; i < timers; i++) {
+			deadlines[i] = MIN_DELAY + random.nextInt(DELAY_RANGE);
+			moved[i] = MIN_DELAY + random.nextInt(DELAY_RANGE);
+		}
+
+		TimingWheel.Timer[] wheelTimers = new TimingWheel.Timer[timers];
+		for (int i = 0; i < timers; i++) {
+			wheelTimers[i] = new TimingWheel.Timer();
+		}
+
+		for (int kind = 0; kind < 3; kind++) {
+			long best = Long.MAX_VALUE;
+			long bestBytes = -1;
+			long bestCollections = -1;
+			for (int i = 0; i < rounds; i++) {
+				System.gc();
+				long bytes = getAllocatedBytes();
+				long collections = getCollectionCount();
+				long start = System.nanoTime();
+				if (kind == 0) {
+					runWheel(wheelTimers, deadlines, moved);
+				}
+				else if (kind == 1) {
+					runQueue(deadlines, moved);
+				}
+				else {
+					runExecutor(deadlines, moved);
+				}
+				long time = System.nanoTime() - start;
+				if (time < best) {
+					best = time;
+					bestBytes = bytes >= 0 ? getAllocatedBytes() - bytes : -1;
+					bestCollections = collections >= 0 ? getCollectionCount()
+							- collections : -1;
+				}
+			}
+
+			String name = kind == 0 ? "TimingWheel"
+					: kind == 1 ? "PriorityQueue + tombstones"
+							: "ScheduledThreadPoolExecutor (no expiry)";
+			System.out.println(name + ": best " + best / 1000000 + " ms, "
+					+ (bestBytes >= 0 ? bestBytes / timers + " B/timer, " : "")
+					+ (bestCollections >= 0 ? bestCollections + " GCs" : ""));
+		}
+	}
+
+	/* Private static methods ****************** */
+
+	private static void runWheel(TimingWheel.Timer[] timers, long[] deadlines,
+			long[] moved) {
+		int count = deadlines.length;
+		CountingHandler handler = new CountingHandler();
+		TimingWheel wheel = new TimingWheel(TICK, 0);
+		for (int i = 0; i < count; i++) {
+			wheel.schedule(timers[i], deadlines[i]);
+		}
+		for (int i = 0; i < count; i += 10) {
+			wheel.cancel(timers[i]);
+			if (i + 1 < count) {
+				wheel.schedule(timers[i + 1], moved[i + 1]);
+			}
+		}
+		for (long now = 0; wheel.size() > 0; now += TICK) {
+			wheel.advance(now, handler);
+		}
+
+		check("TimingWheel", handler.expired, count);
+	}
+
+	private static void runQueue(long[] deadlines, long[] moved) {
+		int count = deadlines.length;
+		QueueTimer[] timers = new QueueTimer[count];
+		PriorityQueue<QueueTimer> queue = new PriorityQueue<QueueTimer>();
+
+		for (int i = 0; i < count; i++) {
+			timers[i] = new QueueTimer(deadlines[i]);
+			queue.add(timers[i]);
+		}
+		for (int i = 0; i < count; i += 10) {
+			timers[i].cancelled = true;
+			if (i + 1 < count) {
+				timers[i + 1].cancelled = true;
+				timers[i + 1] = new QueueTimer(moved[i + 1]);
+				queue.add(timers[i + 1]);
+			}
+		}
+		int expired = 0;
+		for (long now = 0; !queue.isEmpty(); now += TICK) {
+			while (!queue.isEmpty() && queue.peek().deadline <= now) {
+				if (!queue.poll().cancelled) {
+					expired++;
+				}
+			}
+		}
+
+		check("PriorityQueue", expired, count);
+	}
+
+	private static void runExecutor(long[] deadlines, long[] moved) {
+		int count = deadlines.length;
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+				1);
+		Runnable task = new Runnable() {
+
+			@Override
+			public void run() {
+			}
+
+		};
+		ScheduledFuture<?>[] futures = new ScheduledFuture<?>[count];
+
+		for (int i = 0; i < count; i++) {
+			futures[i] = executor.schedule(task, deadlines[i],
+					TimeUnit.MILLISECONDS);
+		}
+		for (int i = 0; i < count; i += 10) {
+			futures[i].cancel(false);
+			if (i + 1 < count) {
+				futures[i + 1].cancel(false);
+				futures[i + 1] = executor.schedule(task, moved[i + 1],
+						TimeUnit.MILLISECONDS);
+			}
+		}
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Fails unless exactly the timers that weren't cancelled expired.
+	 */
+	private static void check(String name, int expired, int count) {
+		int expected = count - (count + 9) / 10;
+		if (expired != expected) {
+			throw new IllegalStateException(name + " expired " + expired
+					+ " timers instead of " + expected);
+		}
+	}
+
+	private static void initManagement() {
+		try {
+			Class<?> factory = Class
+					.forName("java.lang.management.ManagementFactory");
+			threadBean = factory.getMethod("getThreadMXBean").invoke(null);
+			allocatedBytes = Class.forName(
+					"com.sun.management.ThreadMXBean").getMethod(
+					"getThreadAllocatedBytes", long.class);
+			collectorBeans = (List<?>) factory.getMethod(
+					"getGarbageCollectorMXBeans").invoke(null);
+			collectionCount = Class.forName(
+					"java.lang.management.GarbageCollectorMXBean").getMethod(
+					"getCollectionCount");
+		}
+		catch (Exception e) {
+			System.out.println("No management beans, only timing: " + e);
+			allocatedBytes = null;
+			collectionCount = null;
+		}
+	}
+
+	/**
+	 * Returns the bytes allocated so far by this thread, or -1 if unknown.
+	 */
+	private static long getAllocatedBytes() {
+		try {
+			return allocatedBytes != null ? (Long) allocatedBytes.invoke(
+					threadBean, Thread.currentThread().getId()) : -1;
+		}
+		catch (Exception e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns the collections run so far by all collectors, or -1 if
+	 * unknown.
+	 */
+	private static long getCollectionCount() {
+		if (collectionCount == null) {
+			return -1;
+		}
+
+		long count = 0;
+		try {
+			for (Object bean : collectorBeans) {
+				count += (Long) collectionCount.invoke(bean);
+			}
+		}
+		catch (Exception e) {
+			return -1;
+		}
+		return count;
+	}
+
+	/* Private inner classes ******************* */
+
+	private static class CountingHandler implements TimingWheel.Handler {
+
+		private int expired;
+
+		@Override
+		public void onExpired(TimingWheel wheel, TimingWheel.Timer[] timers,
+				int count, long tickTime) {
+			expired += count;
+		}
+
+	}
+
+	private static class QueueTimer implements Comparable<QueueTimer> {
+
+		private final long deadline;
+
+		private boolean cancelled;
+
+		public QueueTimer(long deadline) {
+			this.deadline = deadline;
+		}
+
+		@Override
+		public int compareTo(QueueTimer other) {
+			return deadline < other.deadline ? -1
+					: deadline > other.deadline ? 1 : 0;
+		}
+
+	}
+
+}
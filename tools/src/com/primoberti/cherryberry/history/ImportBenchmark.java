@@ -0,0 +1,178 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.history;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Measures the throughput of {@link SessionImporter} on a desktop JVM.
+ *
+ * Generates a CSV, a JSON lines and a gzipped CSV export of the given number
+ * of sessions in memory, then imports each of them a few times into a sink
+ * that only drops the duplicates, and reports the best rate. The database
+ * isn't part of it, since SQLite only runs on a device.
+ *
+ * <pre>
+ * ImportBenchmark sessions rounds
+ * </pre>
+ *
+ * @author berti
+ */
+public class ImportBenchmark {
+
+	/* Private constants *********************** */
+
+	private final static long START = 1335866400000L;
+
+	private final static String[] TASKS = { "Write report", "Review",
+			"Inbox", "\u00c1rbol de tareas" };
+
+	private final static SimpleDateFormat ISO_FORMAT = new SimpleDateFormat(
+			"yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+
+	static {
+		ISO_FORMAT.setTimeZone(TimeZone.getTimeZone("UTC"));
+	}
+
+	/* Public static methods ******************* */
+
+	public static void main(String[] args) throws IOException {
+		int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		byte[] csv = generate(sessions, false);
+		byte[] json = generate(sessions, true);
+		ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+		OutputStream out = new GZIPOutputStream(gzipped);
+		out.write(csv);
+		out.close();
+
+		run("CSV", csv, sessions, rounds);
+		run("JSON lines", json, sessions, rounds);
+		run("Gzipped CSV", gzipped.toByteArray(), sessions, rounds);
+	}
+
+	/* Private static methods ****************** */
+
+	private static void run(String name, byte[] data, int sessions,
+			int rounds) throws IOException {
+		long best = Long.MAX_VALUE;
+		SessionImporter.Progress progress = null;
+		for (int i = 0; i < rounds; i++) {
+			DedupSink sink = new DedupSink();
+			long start = System.nanoTime();
+			progress = new SessionImporter(sink).importFrom(
+					new ByteArrayInputStream(data), null, null);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+
+		System.out.println(name + ": " + data.length / 1024 + " KB, "
+				+ progress + ", best " + best / 1000000 + " ms, "
+				+ sessions * 1000000000L / best + " sessions/s");
+	}
+
+	/**
+	 * Returns an export of the given number of sessions, alternating
+	 * pomodoros and breaks, in the format of another tracker.
+	 */
+	private static byte[] generate(int sessions, boolean json)
+			throws IOException {
+		StringBuilder text = new StringBuilder(sessions * 120);
+		if (!json) {
+			text.append("Start Time;End Time;Duration (minutes);Type;"
+					+ "Status;Task;Interruptions\r\n");
+		}
+
+		long time = START;
+		for (int i = 0; i < sessions; i++) {
+			boolean pomodoro = i % 2 == 0;
+			long duration = pomodoro ? 25 : 5;
+			boolean stopped = i % 7 == 0;
+			long end = time + (stopped ? duration - 3 : duration) * 60000;
+			String task = TASKS[i / 8 % TASKS.length];
+
+			if (json) {
+				text.append("{\"start\":").append(time);
+				text.append(",\"end\":").append(end);
+				text.append(",\"planned_minutes\":").append(duration);
+				text.append(",\"type\":\"")
+						.append(pomodoro ? "focus" : "short_break");
+				text.append("\",\"completed\":").append(!stopped);
+				text.append(",\"task\":\"").append(task);
+				text.append("\",\"tags\":[\"a\",\"b\"]}\n");
+			}
+			else {
+				appendIso(text, time);
+				text.append(';');
+				appendIso(text, end);
+				text.append(';').append(duration);
+				text.append(';').append(pomodoro ? "Pomodoro" : "Break");
+				text.append(';').append(stopped ? "Stopped" : "Completed");
+				text.append(";\"").append(task).append("\";").append(i % 3);
+				text.append("\r\n");
+			}
+			time = end + 60000;
+		}
+		return text.toString().getBytes("UTF-8");
+	}
+
+	private static void appendIso(StringBuilder text, long time) {
+		text.append(ISO_FORMAT.format(new Date(time)));
+	}
+
+	/* Private inner classes ******************* */
+
+	/**
+	 * Keeps the start seconds of the sessions, to leave out the duplicates
+	 * as {@link SessionStore#insertNew(List)} does.
+	 */
+	private static class DedupSink implements SessionImporter.Sink {
+
+		private final Set<Long> seconds = new HashSet<Long>();
+
+		@Override
+		public int insert(List<Session> sessions) {
+			int inserted = 0;
+			for (int i = 0; i < sessions.size(); i++) {
+				if (seconds.add(sessions.get(i).getStart() / 1000)) {
+					inserted++;
+				}
+			}
+			return inserted;
+		}
+
+	}
+
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.server;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A client connection to the {@link TimerServer}, with just enough HTTP/1.1
+ * to read requests without bodies and to queue responses and server-sent
+ * events on a non-blocking channel.
+ *
+ * Only used from the server thread.
+ *
+ * @author berti
+ */
+class HttpConnection {
+
+	/* Public constants ************************ */
+
+	public final static Charset UTF_8 = Charset.forName("UTF-8");
+
+	/* Private constants *********************** */
+
+	private final static int MAX_REQUEST_SIZE = 8192;
+
+	/** Output a client may fall behind before it is disconnected. */
+	private final static int MAX_PENDING_BYTES = 256 * 1024;
+
+	/* Private fields ************************** */
+
+	private final SocketChannel channel;
+
+	private final SelectionKey key;
+
+	private ByteBuffer input = ByteBuffer.allocate(512);
+
+	private final LinkedList<ByteBuffer> output = new LinkedList<ByteBuffer>();
+
+	private int pendingBytes;
+
+	/** Bytes of a request body still to be skipped. */
+	private int bodyBytes;
+
+	private boolean closeAfterWrite;
+
+	/** Id of the member whose events are streamed, or null. */
+	private String stream;
+
+	/* Public constructors ********************* */
+
+	public HttpConnection(SocketChannel channel, SelectionKey key) {
+		this.channel = channel;
+		this.key = key;
+	}
+
+	/* Public methods ************************** */
+
+	/**
+	 * Reads whatever the client has sent.
+	 *
+	 * @return false if the client closed the connection
+	 */
+	public boolean read() throws IOException {
+		if (!input.hasRemaining()) {
+			if (input.capacity() >= MAX_REQUEST_SIZE) {
+				throw new IOException("Request too large");
+			}
+			ByteBuffer larger = ByteBuffer.allocate(input.capacity() * 2);
+			input.flip();
+			larger.put(input);
+			input = larger;
+		}
+
+		return channel.read(input) >= 0;
+	}
+
+	/**
+	 * Returns the next complete request read, or null if there is none.
+	 */
+	public Request nextRequest() throws IOException {
+		skipBody();
+
+		byte[] data = input.array();
+		int length = input.position();
+		int end = -1;
+		for (int i = 3; i < length; i++) {
+			if (data[i] == '\n' && data[i - 1] == '\r' && data[i - 2] == '\n'
+					&& data[i - 3] == '\r') {
+				end = i + 1;
+				break;
+			}
+		}
+		if (end < 0) {
+			return null;
+		}
+
+		String head = new String(data, 0, end, UTF_8.name());
+		input.flip();
+		input.position(end);
+		input.compact();
+
+		Request request = Request.parse(head);
+		bodyBytes = request.contentLength;
+		skipBody();
+		return request;
+	}
+
+	/**
+	 * Queues a complete response.
+	 *
+	 * @param status status code and reason, e.g. "200 OK"
+	 * @param body JSON body
+	 * @param close whether to close the connection after it
+	 */
+	public void respond(String status, String body, boolean close)
+			throws IOException {
+		byte[] content = body.getBytes(UTF_8.name());
+		StringBuilder head = new StringBuilder(128);
+		head.append("HTTP/1.1 ").append(status).append("\r\n");
+		head.append("Content-Type: application/json; charset=utf-8\r\n");
+		head.append("Content-Length: ").append(content.length).append("\r\n");
+		if (close) {
+			head.append("Connection: close\r\n");
+		}
+		head.append("\r\n");
+
+		byte[] headBytes = head.toString().getBytes(UTF_8.name());
+		ByteBuffer buffer = ByteBuffer.allocate(headBytes.length
+				+ content.length);
+		buffer.put(headBytes).put(content).flip();
+
+		closeAfterWrite |= close;
+		write(buffer);
+	}
+
+	/**
+	 * Turns the connection into an event stream for the given member.
+	 */
+	public void startStream(String member) throws IOException {
+		stream = member;
+		write(ByteBuffer.wrap(("HTTP/1.1 200 OK\r\n"
+				+ "Content-Type: text/event-stream\r\n"
+				+ "Cache-Control: no-cache\r\n\r\n").getBytes(UTF_8.name())));
+	}
+
+	/**
+	 * Queues an encoded server-sent event, shared between connections.
+	 */
+	public void sendEvent(ByteBuffer event) throws IOException {
+		write(event.duplicate());
+	}
+
+	/**
+	 * Writes as much of the queued output as the channel takes.
+	 */
+	public void flush() throws IOException {
+		while (!output.isEmpty()) {
+			ByteBuffer buffer = output.getFirst();
+			int written = channel.write(buffer);
+			pendingBytes -= written;
+			if (buffer.hasRemaining()) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				return;
+			}
+			output.removeFirst();
+		}
+
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		if (closeAfterWrite) {
+			close();
+		}
+	}
+
+	public void close() {
+		key.cancel();
+		try {
+			channel.close();
+		}
+		catch (IOException e) {
+			// Nothing else to do with it
+		}
+	}
+
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	/**
+	 * Returns the id of the member whose events are streamed, or null if the
+	 * connection takes requests.
+	 */
+	public String getStream() {
+		return stream;
+	}
+
+	/* Private methods ************************* */
+
+	private void write(ByteBuffer buffer) throws IOException {
+		pendingBytes += buffer.remaining();
+		if (pendingBytes > MAX_PENDING_BYTES) {
+			throw new IOException("Client too slow");
+		}
+
+		output.addLast(buffer);
+		if (output.size() == 1) {
+			flush();
+		}
+	}
+
+	private void skipBody() {
+		if (bodyBytes > 0 && input.position() > 0) {
+			int skipped = Math.min(bodyBytes, input.position());
+			input.flip();
+			input.position(skipped);
+			input.compact();
+			bodyBytes -= skipped;
+		}
+	}
+
+	/* Public inner classes ******************** */
+
+	/**
+	 * Request line, query and the headers that matter of a request.
+	 */
+	public static class Request {
+
+		private String method;
+
+		private String path;
+
+		private final Map<String, String> query = new HashMap<String, String>();
+
+		private boolean close;
+
+		private int contentLength;
+
+		private static Request parse(String head) throws IOException {
+			String[] lines = head.split("\r\n");
+			String[] parts = lines[0].split(" ");
+			if (parts.length != 3) {
+				throw new IOException("Malformed request line: " + lines[0]);
+			}
+
+			Request request = new Request();
+			request.method = parts[0];
+			request.close = parts[2].equals("HTTP/1.0");
+
+			String target = parts[1];
+			int question = target.indexOf('?');
+			request.path = question < 0 ? target : target.substring(0,
+					question);
+			if (question >= 0) {
+				for (String pair : target.substring(question + 1).split("&")) {
+					int equals = pair.indexOf('=');
+					if (equals > 0) {
+						request.query.put(decode(pair.substring(0, equals)),
+								decode(pair.substring(equals + 1)));
+					}
+				}
+			}
+
+			for (int i = 1; i < lines.length; i++) {
+				int colon = lines[i].indexOf(':');
+				if (colon < 0) {
+					continue;
+				}
+				String name = lines[i].substring(0, colon).trim()
+						.toLowerCase(Locale.US);
+				String value = lines[i].substring(colon + 1).trim();
+				if (name.equals("connection")) {
+					request.close = value.equalsIgnoreCase("close");
+				}
+				else if (name.equals("content-length")) {
+					try {
+						request.contentLength = Integer.parseInt(value);
+					}
+					catch (NumberFormatException e) {
+						throw new IOException("Malformed Content-Length: "
+								+ value);
+					}
+				}
+			}
+			return request;
+		}
+
+		private static String decode(String value) throws IOException {
+			try {
+				return URLDecoder.decode(value, UTF_8.name());
+			}
+			catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+			catch (IllegalArgumentException e) {
+				throw new IOException("Malformed query: " + value);
+			}
+		}
+
+		public String getMethod() {
+			return method;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * Returns the decoded query parameter, or null.
+		 */
+		public String getParameter(String name) {
+			return query.get(name);
+		}
+
+		/**
+		 * Returns true if the client asked to close the connection after the
+		 * response.
+		 */
+		public boolean isClose() {
+			return close;
+		}
+
+	}
+
+}
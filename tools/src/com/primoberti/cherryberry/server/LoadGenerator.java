@@ -0,0 +1,423 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.server;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load generator for {@link TimerServer}.
+ *
+ * Opens a number of event streams per member, then has a few worker threads
+ * start and stop pomodoros for disjoint sets of members over keep-alive
+ * connections. It reports the latency of the transition requests, and the
+ * fan-out latency from sending a transition to each stream receiving its
+ * status event, as p50, p99 and max.
+ *
+ * <pre>
+ * LoadGenerator host port members streamsPerMember workers seconds
+ * </pre>
+ *
+ * The streams are read by a single selector thread, so tens of thousands of
+ * them only need a file descriptor limit to match, on both ends.
+ *
+ * @author berti
+ */
+public class LoadGenerator {
+
+	/* Private constants *********************** */
+
+	private final static String STATUS_RUNNING = "POMODORO_RUNNING";
+
+	private final static String STATUS_IDLE = "IDLE";
+
+	/* Private fields ************************** */
+
+	private final InetSocketAddress address;
+
+	private final int members;
+
+	private final int streamsPerMember;
+
+	private final int workers;
+
+	private final long durationMillis;
+
+	/** Send time and expected status of the last transition, by member. */
+	private final ConcurrentHashMap<String, Transition> transitions = new ConcurrentHashMap<String, Transition>();
+
+	private final Latencies requestLatencies = new Latencies();
+
+	private final Latencies fanOutLatencies = new Latencies();
+
+	private final AtomicInteger errors = new AtomicInteger();
+
+	private volatile boolean running = true;
+
+	/* Public constructors ********************* */
+
+	public LoadGenerator(InetSocketAddress address, int members,
+			int streamsPerMember, int workers, long durationMillis) {
+		this.address = address;
+		this.members = members;
+		this.streamsPerMember = streamsPerMember;
+		this.workers = workers;
+		this.durationMillis = durationMillis;
+	}
+
+	/* Public static methods ******************* */
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 6) {
+			System.err.println("Usage: LoadGenerator host port members "
+					+ "streamsPerMember workers seconds");
+			System.exit(1);
+		}
+
+		LoadGenerator generator = new LoadGenerator(new InetSocketAddress(
+				args[0], Integer.parseInt(args[1])),
+				Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+				Integer.parseInt(args[4]), Long.parseLong(args[5]) * 1000);
+		System.out.println(generator.run());
+	}
+
+	/* Public methods ************************** */
+
+	/**
+	 * Runs the load and returns the report.
+	 */
+	public String run() throws Exception {
+		Selector selector = Selector.open();
+		int streams = openStreams(selector);
+
+		Thread reader = new Thread(new StreamReader(selector), "streams");
+		reader.start();
+
+		final CountDownLatch done = new CountDownLatch(workers);
+		final AtomicInteger requests = new AtomicInteger();
+		for (int i = 0; i < workers; i++) {
+			final int worker = i;
+			new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						requests.addAndGet(runWorker(worker));
+					}
+					catch (IOException e) {
+						errors.incrementAndGet();
+						e.printStackTrace();
+					}
+					finally {
+						done.countDown();
+					}
+				}
+
+			}, "worker-" + i).start();
+		}
+
+		done.await();
+		// Let the last events arrive
+		Thread.sleep(500);
+		running = false;
+		selector.wakeup();
+		reader.join();
+
+		StringBuilder report = new StringBuilder();
+		report.append("Streams: ").append(streams).append('\n');
+		report.append("Transitions: ").append(requests.get()).append(" (")
+				.append(requests.get() * 1000L / durationMillis)
+				.append("/s)\n");
+		report.append("Errors: ").append(errors.get()).append('\n');
+		requestLatencies.report(report, "Transition latency");
+		fanOutLatencies.report(report, "Fan-out latency");
+		return report.toString();
+	}
+
+	/* Private static methods ****************** */
+
+	private static String memberId(int member) {
+		return "member" + member;
+	}
+
+	/* Private methods ************************* */
+
+	private int openStreams(Selector selector) throws IOException {
+		int count = 0;
+		for (int member = 0; member < members; member++) {
+			byte[] request = ("GET /members/" + memberId(member)
+					+ "/events HTTP/1.1\r\nHost: localhost\r\n\r\n")
+					.getBytes(HttpConnection.UTF_8.name());
+			for (int i = 0; i < streamsPerMember; i++) {
+				SocketChannel channel = SocketChannel.open(address);
+				channel.write(ByteBuffer.wrap(request));
+				channel.configureBlocking(false);
+				channel.register(selector, SelectionKey.OP_READ,
+						new Stream(memberId(member)));
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Alternates starting and stopping pomodoros for the worker's members
+	 * until the time is up.
+	 *
+	 * @return the number of transitions sent
+	 */
+	private int runWorker(int worker) throws IOException {
+		Socket socket = new Socket(address.getAddress(), address.getPort());
+		socket.setTcpNoDelay(true);
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+
+			int count = 0;
+			long end = System.currentTimeMillis() + durationMillis;
+			boolean start = true;
+			while (System.currentTimeMillis() < end) {
+				for (int member = worker; member < members
+						&& System.currentTimeMillis() < end; member += workers) {
+					String id = memberId(member);
+					String action = start ? "pomodoro" : "stop";
+					byte[] request = ("POST /members/" + id + "/" + action
+							+ " HTTP/1.1\r\nHost: localhost\r\n"
+							+ "Content-Length: 0\r\n\r\n")
+							.getBytes(HttpConnection.UTF_8.name());
+
+					long sent = System.nanoTime();
+					transitions.put(id, new Transition(sent,
+							start ? STATUS_RUNNING : STATUS_IDLE));
+					out.write(request);
+					out.flush();
+					int status = readResponse(in);
+					requestLatencies.add(System.nanoTime() - sent);
+
+					if (status != 200) {
+						errors.incrementAndGet();
+					}
+					count++;
+				}
+				start = !start;
+			}
+			return count;
+		}
+		finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Reads a response and returns its status code.
+	 */
+	private int readResponse(InputStream in) throws IOException {
+		String statusLine = readLine(in);
+		int contentLength = 0;
+		String line;
+		while ((line = readLine(in)).length() > 0) {
+			if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+				contentLength = Integer.parseInt(line.substring(15).trim());
+			}
+		}
+		for (int i = 0; i < contentLength; i++) {
+			if (in.read() < 0) {
+				throw new IOException("Truncated response");
+			}
+		}
+		return Integer.parseInt(statusLine.split(" ")[1]);
+	}
+
+	private String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c < 0) {
+				throw new IOException("Connection closed");
+			}
+			if (c != '\r') {
+				line.append((char) c);
+			}
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Records the fan-out latency of a status event, if it is the one for the
+	 * last transition sent for the member.
+	 */
+	private void onStatusEvent(String id, String data) {
+		Transition transition = transitions.get(id);
+		if (transition != null
+				&& data.contains("\"status\":\"" + transition.status + "\"")) {
+			fanOutLatencies.add(System.nanoTime() - transition.sent);
+		}
+	}
+
+	/* Private inner classes ******************* */
+
+	private static class Transition {
+
+		private final long sent;
+
+		private final String status;
+
+		public Transition(long sent, String status) {
+			this.sent = sent;
+			this.status = status;
+		}
+
+	}
+
+	/**
+	 * Event stream being read, and the text of its incomplete event.
+	 */
+	private static class Stream {
+
+		private final String id;
+
+		private final StringBuilder pending = new StringBuilder();
+
+		public Stream(String id) {
+			this.id = id;
+		}
+
+	}
+
+	private class StreamReader implements Runnable {
+
+		private final Selector selector;
+
+		private final ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+
+		public StreamReader(Selector selector) {
+			this.selector = selector;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					selector.select();
+					Iterator<SelectionKey> keys = selector.selectedKeys()
+							.iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						read(key);
+					}
+				}
+
+				for (SelectionKey key : selector.keys()) {
+					key.channel().close();
+				}
+				selector.close();
+			}
+			catch (IOException e) {
+				errors.incrementAndGet();
+				e.printStackTrace();
+			}
+		}
+
+		private void read(SelectionKey key) throws IOException {
+			SocketChannel channel = (SocketChannel) key.channel();
+			Stream stream = (Stream) key.attachment();
+
+			buffer.clear();
+			if (channel.read(buffer) < 0) {
+				errors.incrementAndGet();
+				key.cancel();
+				channel.close();
+				return;
+			}
+			stream.pending.append(new String(buffer.array(), 0,
+					buffer.position(), HttpConnection.UTF_8.name()));
+
+			int end;
+			while ((end = stream.pending.indexOf("\n\n")) >= 0) {
+				String event = stream.pending.substring(0, end);
+				stream.pending.delete(0, end + 2);
+
+				if (event.startsWith("event: status\n")) {
+					int data = event.indexOf("data: ");
+					onStatusEvent(stream.id, event.substring(data + 6));
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Latencies in nanoseconds, kept whole to report exact percentiles.
+	 */
+	private static class Latencies {
+
+		private long[] values = new long[1024];
+
+		private int count;
+
+		public synchronized void add(long nanos) {
+			if (count == values.length) {
+				values = Arrays.copyOf(values, count * 2);
+			}
+			values[count++] = nanos;
+		}
+
+		public synchronized void report(StringBuilder out, String name) {
+			out.append(name).append(": ");
+			if (count == 0) {
+				out.append("none\n");
+				return;
+			}
+
+			long[] sorted = Arrays.copyOf(values, count);
+			Arrays.sort(sorted);
+			out.append("count=").append(count);
+			out.append(" p50=").append(toMillis(sorted[(count - 1) / 2]));
+			out.append(" p99=").append(
+					toMillis(sorted[(int) ((count - 1) * 0.99)]));
+			out.append(" max=").append(toMillis(sorted[count - 1]));
+			out.append(" ms\n");
+		}
+
+		private String toMillis(long nanos) {
+			return String.format("%.3f", nanos / 1e6);
+		}
+
+	}
+
+}
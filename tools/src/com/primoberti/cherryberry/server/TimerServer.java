@@ -0,0 +1,524 @@
+/*
+ * Copyright 2012 Alberto Salmerón Moreno
+ * 
+ * This file is part of CherryBerry - https://github.com/berti/CherryBerry.
+ * 
+ * “Pomodoro Technique® is a registered trademark of Francesco Cirillo. This
+ * application is not affiliated by, associated with nor endorsed by the
+ * Pomodoro Technique® or Francesco Cirillo.
+ * 
+ * CherryBerry is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CherryBerry is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CherryBerry.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.primoberti.cherryberry.server;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import com.primoberti.cherryberry.engine.Clock;
+import com.primoberti.cherryberry.engine.PomodoroEngine.Status;
+import com.primoberti.cherryberry.engine.Scheduler;
+import com.primoberti.cherryberry.engine.TimerRoom;
+import com.primoberti.cherryberry.engine.TimerRoom.Member;
+
+/**
+ * Headless server running a {@link TimerRoom} behind a small HTTP/JSON API.
+ *
+ * <pre>
+ * POST /members/{id}/pomodoro?duration={millis}  start a pomodoro
+ * POST /members/{id}/break?duration={millis}     start a break
+ * POST /members/{id}/stop                        stop the current period
+ * POST /members/{id}/skip                        skip the current period
+ * GET  /members/{id}                             current status
+ * GET  /members/{id}/events                      server-sent events
+ * </pre>
+ *
+ * Every request answers with the member's status as JSON, or 409 if the
+ * transition isn't allowed in the current status. The event stream sends a
+ * <code>status</code> event on every transition and a <code>tick</code>
+ * event with the remaining time every second while a period runs, so
+ * clients don't have to poll.
+ *
+ * A single thread runs a selector over non-blocking channels, which doubles
+ * as the room's {@link Scheduler}, so the room is never touched from two
+ * threads and an idle connection costs a few buffers and no thread. Tens of
+ * thousands of connections only need a file descriptor limit to match.
+ *
+ * @author berti
+ */
+public class TimerServer implements Scheduler {
+
+	/* Public constants ************************ */
+
+	public final static int DEFAULT_PORT = 8025;
+
+	public final static long DEFAULT_POMODORO_DURATION = 25 * 60 * 1000;
+
+	public final static long DEFAULT_BREAK_DURATION = 5 * 60 * 1000;
+
+	/* Private constants *********************** */
+
+	private final static long TICK_INTERVAL = 1000;
+
+	private final static String PREFIX = "/members/";
+
+	/* Private fields ************************** */
+
+	private final Clock clock;
+
+	private final Selector selector;
+
+	private final ServerSocketChannel serverChannel;
+
+	private final TimerRoom room;
+
+	private final PriorityQueue<ScheduledTask> tasks = new PriorityQueue<ScheduledTask>();
+
+	private long taskSequence;
+
+	/** Event stream connections, by member id. */
+	private final Map<String, List<HttpConnection>> streams = new HashMap<String, List<HttpConnection>>();
+
+	private volatile boolean running = true;
+
+	private final Runnable tickTask = new Runnable() {
+
+		@Override
+		public void run() {
+			sendTicks();
+			schedule(this, TICK_INTERVAL);
+		}
+
+	};
+
+	/* Public constructors ********************* */
+
+	public TimerServer(InetSocketAddress address) throws IOException {
+		this.clock = Clock.SYSTEM;
+		this.selector = Selector.open();
+
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(address, 1024);
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+		room = new TimerRoom(clock, this);
+		room.setListener(new RoomListener());
+	}
+
+	/* Public static methods ******************* */
+
+	/**
+	 * Runs a server on the loopback interface.
+	 *
+	 * @param args optional port
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		TimerServer server = new TimerServer(new InetSocketAddress(
+				InetAddress.getByName("127.0.0.1"), port));
+		System.out.println("Listening on port " + server.getPort());
+		server.run();
+	}
+
+	/* Public methods ************************** */
+
+	/**
+	 * Serves requests on the calling thread until {@link #close()} is called.
+	 */
+	public void run() throws IOException {
+		schedule(tickTask, TICK_INTERVAL);
+
+		try {
+			while (running) {
+				selector.select(runDueTasks());
+
+				Iterator<SelectionKey> keys = selector.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+
+					if (key.isAcceptable()) {
+						accept();
+					}
+					else {
+						handle(key);
+					}
+				}
+			}
+		}
+		finally {
+			for (SelectionKey key : selector.keys()) {
+				key.channel().close();
+			}
+			selector.close();
+		}
+	}
+
+	/**
+	 * Stops the server. May be called from any thread.
+	 */
+	public void close() {
+		running = false;
+		selector.wakeup();
+	}
+
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * Runs the task on the server thread after the given delay. Only to be
+	 * called from the server thread.
+	 */
+	@Override
+	public void schedule(Runnable task, long delayMillis) {
+		tasks.add(new ScheduledTask(clock.monotonicMillis() + delayMillis,
+				taskSequence++, task));
+	}
+
+	@Override
+	public void cancel(Runnable task) {
+		Iterator<ScheduledTask> iterator = tasks.iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().task == task) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/* Private static methods ****************** */
+
+	private static String toJson(String id, Member member, long now) {
+		StringBuilder json = new StringBuilder(160);
+		json.append("{\"id\":");
+		appendString(json, id);
+		Status status = member != null ? member.getStatus() : Status.IDLE;
+		json.append(",\"status\":\"").append(status).append('"');
+		if (member != null && member.getTimerEnd() > 0) {
+			json.append(",\"timerStart\":").append(member.getTimerStart());
+			json.append(",\"timerEnd\":").append(member.getTimerEnd());
+			json.append(",\"remaining\":").append(
+					Math.max(member.getTimerEnd() - now, 0));
+		}
+		json.append(",\"completedPomodoros\":").append(
+				member != null ? member.getCompletedPomodoros() : 0);
+		json.append(",\"time\":").append(now).append('}');
+		return json.toString();
+	}
+
+	private static void appendString(StringBuilder json, String value) {
+		json.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				json.append('\\').append(c);
+			}
+			else if (c < 0x20) {
+				json.append(String.format("\\u%04x", (int) c));
+			}
+			else {
+				json.append(c);
+			}
+		}
+		json.append('"');
+	}
+
+	private static ByteBuffer encodeEvent(String name, String data) {
+		try {
+			return ByteBuffer.wrap(("event: " + name + "\ndata: " + data
+					+ "\n\n").getBytes(HttpConnection.UTF_8.name()));
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/* Private methods ************************* */
+
+	/**
+	 * Runs the scheduled tasks that are due.
+	 *
+	 * @return milliseconds until the next task, or 0 if there is none
+	 */
+	private long runDueTasks() {
+		while (!tasks.isEmpty()) {
+			long now = clock.monotonicMillis();
+			ScheduledTask next = tasks.peek();
+			if (next.time > now) {
+				return next.time - now;
+			}
+			tasks.poll();
+			next.task.run();
+		}
+		return 0;
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+			key.attach(new HttpConnection(channel, key));
+		}
+	}
+
+	private void handle(SelectionKey key) {
+		HttpConnection connection = (HttpConnection) key.attachment();
+		try {
+			if (key.isWritable()) {
+				connection.flush();
+			}
+			if (key.isValid() && key.isReadable()) {
+				if (!connection.read()) {
+					disconnect(connection);
+					return;
+				}
+
+				HttpConnection.Request request;
+				while (connection.getStream() == null && connection.isOpen()
+						&& (request = connection.nextRequest()) != null) {
+					handle(connection, request);
+				}
+			}
+		}
+		catch (IOException e) {
+			disconnect(connection);
+		}
+	}
+
+	private void handle(HttpConnection connection,
+			HttpConnection.Request request) throws IOException {
+		String path = request.getPath();
+		if (!path.startsWith(PREFIX) || path.length() == PREFIX.length()) {
+			connection.respond("404 Not Found", "{\"error\":\"Not found\"}",
+					request.isClose());
+			return;
+		}
+
+		String rest = path.substring(PREFIX.length());
+		int slash = rest.indexOf('/');
+		String id = slash < 0 ? rest : rest.substring(0, slash);
+		String action = slash < 0 ? "" : rest.substring(slash + 1);
+		boolean post = request.getMethod().equals("POST");
+
+		try {
+			if (action.equals("") && !post) {
+				// Just the status
+			}
+			else if (action.equals("events") && !post) {
+				subscribe(connection, id);
+				return;
+			}
+			else if (action.equals("pomodoro") && post) {
+				room.startPomodoro(id, getDuration(request,
+						DEFAULT_POMODORO_DURATION));
+			}
+			else if (action.equals("break") && post) {
+				room.startBreak(id, getDuration(request,
+						DEFAULT_BREAK_DURATION));
+			}
+			else if (action.equals("stop") && post) {
+				room.stop(id);
+			}
+			else if (action.equals("skip") && post) {
+				room.skip(id);
+			}
+			else {
+				connection.respond("404 Not Found",
+						"{\"error\":\"Not found\"}", request.isClose());
+				return;
+			}
+		}
+		catch (IllegalStateException e) {
+			connection.respond("409 Conflict", errorJson(e.getMessage()),
+					request.isClose());
+			return;
+		}
+		catch (IllegalArgumentException e) {
+			connection.respond("400 Bad Request", errorJson(e.getMessage()),
+					request.isClose());
+			return;
+		}
+
+		String json = toJson(id, room.getMember(id), clock.currentTimeMillis());
+		if (post) {
+			publish(id, encodeEvent("status", json));
+		}
+		connection.respond("200 OK", json, request.isClose());
+	}
+
+	private long getDuration(HttpConnection.Request request, long defValue) {
+		String value = request.getParameter("duration");
+		if (value == null) {
+			return defValue;
+		}
+		try {
+			return Long.parseLong(value);
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid duration " + value);
+		}
+	}
+
+	private String errorJson(String message) {
+		StringBuilder json = new StringBuilder("{\"error\":");
+		appendString(json, String.valueOf(message));
+		return json.append('}').toString();
+	}
+
+	private void subscribe(HttpConnection connection, String id)
+			throws IOException {
+		List<HttpConnection> subscribers = streams.get(id);
+		if (subscribers == null) {
+			subscribers = new ArrayList<HttpConnection>(2);
+			streams.put(id, subscribers);
+		}
+		subscribers.add(connection);
+
+		connection.startStream(id);
+		connection.sendEvent(encodeEvent("status",
+				toJson(id, room.getMember(id), clock.currentTimeMillis())));
+	}
+
+	/**
+	 * Sends the event to every stream of the member, encoding it only once.
+	 */
+	private void publish(String id, ByteBuffer event) {
+		List<HttpConnection> subscribers = streams.get(id);
+		if (subscribers == null) {
+			return;
+		}
+
+		for (int i = subscribers.size() - 1; i >= 0; i--) {
+			HttpConnection connection = subscribers.get(i);
+			try {
+				connection.sendEvent(event);
+			}
+			catch (IOException e) {
+				connection.close();
+				subscribers.remove(i);
+			}
+		}
+		if (subscribers.isEmpty()) {
+			streams.remove(id);
+		}
+	}
+
+	private void sendTicks() {
+		long now = clock.currentTimeMillis();
+		List<String> ids = new ArrayList<String>(streams.keySet());
+		for (String id : ids) {
+			Member member = room.getMember(id);
+			if (member != null
+					&& (member.getStatus() == Status.POMODORO_RUNNING || member
+							.getStatus() == Status.BREAK_RUNNING)) {
+				publish(id, encodeEvent("tick", "{\"remaining\":"
+						+ Math.max(member.getTimerEnd() - now, 0)
+						+ ",\"time\":" + now + "}"));
+			}
+		}
+	}
+
+	private void disconnect(HttpConnection connection) {
+		connection.close();
+
+		String id = connection.getStream();
+		if (id != null) {
+			List<HttpConnection> subscribers = streams.get(id);
+			if (subscribers != null) {
+				subscribers.remove(connection);
+				if (subscribers.isEmpty()) {
+					streams.remove(id);
+				}
+			}
+		}
+	}
+
+	/* Private inner classes ******************* */
+
+	private static class ScheduledTask implements Comparable<ScheduledTask> {
+
+		private final long time;
+
+		private final long sequence;
+
+		private final Runnable task;
+
+		public ScheduledTask(long time, long sequence, Runnable task) {
+			this.time = time;
+			this.sequence = sequence;
+			this.task = task;
+		}
+
+		@Override
+		public int compareTo(ScheduledTask another) {
+			if (time != another.time) {
+				return time < another.time ? -1 : 1;
+			}
+			return sequence < another.sequence ? -1
+					: sequence > another.sequence ? 1 : 0;
+		}
+
+	}
+
+	/**
+	 * Streams the periods finished on each tick of the room.
+	 */
+	private class RoomListener implements TimerRoom.Listener {
+
+		@Override
+		public void onPomodorosFinish(TimerRoom room, Member[] members,
+				int count) {
+			publishAll(members, count);
+		}
+
+		@Override
+		public void onBreaksFinish(TimerRoom room, Member[] members, int count) {
+			publishAll(members, count);
+		}
+
+		private void publishAll(Member[] members, int count) {
+			long now = clock.currentTimeMillis();
+			for (int i = 0; i < count; i++) {
+				String id = members[i].getId();
+				if (streams.containsKey(id)) {
+					publish(id, encodeEvent("status",
+							toJson(id, members[i], now)));
+				}
+			}
+		}
+
+	}
+
+}